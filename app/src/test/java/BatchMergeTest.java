@@ -0,0 +1,70 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the command line arguments of BatchMerge
+ */
+public class BatchMergeTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void filterRateOfZeroUsesIndex() throws IOException {
+		File database = TempFiles.write(folder, "db.csv", "record_id,other\n1,a\n");
+		File data = TempFiles.write(folder, "data.txt", "a\n");
+
+		assertEquals(BatchMerge.EXIT_OK, run("--database", database.getPath(), "--filter", "0", data.getPath()));
+	}
+
+	@Test
+	public void filterRateOfOneIsRejected() throws IOException {
+		File database = TempFiles.write(folder, "db.csv", "record_id,other\n1,a\n");
+		File data = TempFiles.write(folder, "data.txt", "a\n");
+
+		assertEquals(BatchMerge.EXIT_USAGE, run("--database", database.getPath(), "--filter", "1", data.getPath()));
+	}
+
+	@Test
+	public void directoryLeavesOutFilesTheProgramKeeps() throws IOException {
+		File database = TempFiles.write(folder, "db.csv", "record_id,other\n1,a\n");
+		TempFiles.write(folder, "data.txt", "a\n");
+		for (String name : new String[] {"data.txt.pending", "db.csv.0.idx", "db.csv.1.idx.tmp", "db.csv.idx", "db.csv.journal",
+				"db.csv.journal.stale", "db.csv.commit", "db.csv.commit.tmp", "tempData0.txt", "tempDatabase12.csv"}) {
+			TempFiles.write(folder, name, "");
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		// the database file is left out even when it is written differently from the directory
+		String databasePath = new File(new File(folder.getRoot(), "."), database.getName()).getPath();
+		int exitCode = BatchMerge.run(new String[] {"--database", databasePath, folder.getRoot().getPath()}, new PrintStream(out), new PrintStream(new ByteArrayOutputStream()));
+		assertEquals(BatchMerge.EXIT_OK, exitCode);
+		String summary = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		assertTrue(summary.contains("\"dataFiles\":1,"));
+		assertTrue(summary.contains("data.txt"));
+		assertFalse(summary.contains("tempData"));
+		assertFalse(summary.contains("tempDatabase"));
+		assertFalse(summary.contains(".commit"));
+		assertFalse(summary.contains(".idx"));
+		assertFalse(summary.contains(".journal"));
+	}
+
+	private static int run(String... args) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		int exitCode = BatchMerge.run(args, new PrintStream(out), new PrintStream(err));
+		assertTrue(exitCode == BatchMerge.EXIT_USAGE || err.size() == 0);
+		return exitCode;
+	}
+}
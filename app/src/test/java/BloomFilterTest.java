@@ -0,0 +1,68 @@
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Tests for BloomFilter: it must never rule out a token that was added, and must stay within
+ * the limits it was made with
+ */
+public class BloomFilterTest {
+
+	@Test
+	public void addedTokensAreAlwaysFound() {
+		BloomFilter filter = new BloomFilter(0.01, Long.MAX_VALUE, Long.MAX_VALUE);
+		add(filter, "token", 200000);
+
+		for (int i = 0; i < 200000; i++) {
+			assertTrue(contains(filter, "token" + i));
+		}
+		assertTrue(falsePositiveRate(filter) <= 0.015);
+	}
+
+	@Test
+	public void filterStopsGrowingAtMemoryLimit() {
+		BloomFilter filter = new BloomFilter(0.01, Long.MAX_VALUE, 64 << 10);
+		add(filter, "token", 500000);
+
+		assertTrue(filter.getSizeInBytes() <= 64 << 10);
+		// the filter is overfull, so more gets past it, but nothing that was added is ruled out
+		for (int i = 0; i < 500000; i++) {
+			assertTrue(contains(filter, "token" + i));
+		}
+	}
+
+	@Test
+	public void filterIsSizedForExpectedTokens() {
+		BloomFilter filter = new BloomFilter(0.01, 1000, Long.MAX_VALUE);
+		add(filter, "token", 1000);
+
+		// one stage of about 10 bits per token, rather than the first stage of a growing filter
+		assertTrue(filter.getSizeInBytes() <= 2048);
+		assertTrue(falsePositiveRate(filter) <= 0.015);
+	}
+
+	private static void add(BloomFilter filter, String prefix, int n) {
+		for (int i = 0; i < n; i++) {
+			byte[] token = (prefix + i).getBytes(StandardCharsets.UTF_8);
+			filter.addToken(token, 0, token.length, 0);
+		}
+	}
+
+	private static boolean contains(BloomFilter filter, String s) {
+		byte[] token = s.getBytes(StandardCharsets.UTF_8);
+		return filter.mightContainToken(token, 0, token.length);
+	}
+
+	private static double falsePositiveRate(BloomFilter filter) {
+		int passed = 0;
+		for (int i = 0; i < 100000; i++) {
+			if (contains(filter, "missing" + i)) {
+				passed++;
+			}
+		}
+
+		return passed / 100000.0;
+	}
+}
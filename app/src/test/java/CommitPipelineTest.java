@@ -0,0 +1,76 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for CommitPipeline: the database file and the data files are written together or not
+ * at all
+ */
+public class CommitPipelineTest {
+
+	private static final String DATABASE = "record_id,line\n1,l1\n2,l2\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void writesDatabaseAndDataFiles() throws IOException {
+		File db = TempFiles.write(folder, "db.csv", DATABASE);
+		DatabaseFile database = new DatabaseFile(db);
+		DataFile appended = open("appended.txt", "l1\nl2\n", database);
+		appended.addLine("l3");
+		DataFile rewritten = open("rewritten.txt", "l1\nl2\nl8\n", database);
+		rewritten.removeLine("l8");
+
+		assertTrue(commit(database, appended, rewritten));
+		assertEquals("record_id,line\n1,l1\n2,l2 | l3\n", DatabaseFileTest.read(db));
+		assertEquals("l1\nl2\nl3\n", DatabaseFileTest.read(appended.getFile()));
+		assertEquals("l1\nl2\n", DatabaseFileTest.read(rewritten.getFile()));
+		assertEquals(0, appended.getNumLinesAdded());
+		assertFalse(GroupCommit.manifestFor(db).exists());
+	}
+
+	@Test
+	public void nothingIsWrittenIfDataFileCantBeStaged() throws IOException {
+		File db = TempFiles.write(folder, "db.csv", DATABASE);
+		DatabaseFile database = new DatabaseFile(db);
+		DataFile appended = open("appended.txt", "l1\nl2\n", database);
+		appended.addLine("l3");
+		DataFile changed = open("changed.txt", "l1\nl2\n", database);
+		changed.addLine("l4");
+		Files.write(changed.getFile().toPath(), "l1\nl2 changed\n".getBytes(StandardCharsets.UTF_8));
+
+		assertFalse(commit(database, appended, changed));
+		assertEquals(DATABASE, DatabaseFileTest.read(db));
+		assertEquals("l1\nl2\n", DatabaseFileTest.read(appended.getFile()));
+		assertEquals(1, appended.getNumLinesAdded());
+		assertFalse(GroupCommit.manifestFor(db).exists());
+	}
+
+	private static boolean commit(DatabaseFile database, DataFile... dataFiles) {
+		TreeMap<String, String> refLinesToData = new TreeMap<> ();
+		ArrayList<DataFile> toWrite = new ArrayList<> ();
+		for (DataFile df : dataFiles) {
+			if (df.getNumLinesAdded() > 0) {
+				refLinesToData.put(df.getRefLine(), df.getFormattedNewLines());
+			}
+			toWrite.add(df);
+		}
+		return new CommitPipeline(2).commit(database, refLinesToData, toWrite);
+	}
+
+	private DataFile open(String name, String contents, DatabaseFile database) throws IOException {
+		return new DataFile(TempFiles.write(folder, name, contents), 10, database);
+	}
+}
@@ -0,0 +1,130 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for gzipped files: new lines must be appended to a gzipped data file as another member,
+ * and gzipped files that are rewritten must stay gzipped, at the level they are set to
+ */
+public class CompressedFilesTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void appendedMemberIsReadWithTheRest() throws IOException {
+		File file = newGzipFile("data.txt.gz", "l1\nl2\n");
+		OutputStream out = CompressedFiles.openOutput(file, true, CompressedFiles.DEFAULT_LEVEL);
+		try {
+			out.write(bytes("l3\n"));
+		} finally {
+			out.close();
+		}
+
+		assertEquals("l1\nl2\nl3\n", readGzip(file));
+	}
+
+	@Test
+	public void skipAndCopyUsePositionsInTheContents() throws IOException {
+		File file = newGzipFile("data.txt.gz", "l1\nl2\nl3\n");
+		InputStream in = CompressedFiles.openInput(file, null, false);
+		ByteArrayOutputStream copied = new ByteArrayOutputStream();
+		try {
+			CompressedFiles.skipFully(in, 3);
+			CompressedFiles.copy(in, copied, 3);
+		} finally {
+			in.close();
+		}
+
+		assertEquals("l2\n", new String(copied.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void newLinesAreAppendedToGzippedDataFile() throws IOException {
+		DataFile df = new DataFile(newGzipFile("data.txt.gz", "l1\nl2\n"), 10, newDatabase());
+		df.addLine("l3");
+
+		df.write();
+		assertEquals("l1\nl2\nl3\n", readGzip(df.getFile()));
+		assertEquals(Arrays.asList("l1", "l2", "l3"), df.getLastLines());
+	}
+
+	@Test
+	public void gzippedDataFileIsRewrittenAtCompressionLevel() throws IOException {
+		DatabaseFile database = newDatabase();
+		database.setCompressionLevel(CompressedFiles.MIN_LEVEL);
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			lines.append("earlier line\n");
+		}
+		DataFile df = new DataFile(newGzipFile("data.txt.gz", lines + "l1\nl2\nl8\n"), 10, database);
+		df.removeLine("l8");
+		df.addLine("l3");
+
+		df.write();
+		String written = readGzip(df.getFile());
+		assertEquals(lines + "l1\nl2\nl3\n", written);
+		// stored without compression, so it is no smaller than its contents
+		assertTrue(df.getFile().length() >= written.length());
+	}
+
+	@Test
+	public void gzippedDatabaseIsRewrittenGzipped() throws IOException {
+		File file = newGzipFile("db.csv.gz", DatabaseFileTest.generateDatabase(2000));
+		DatabaseFile database = new DatabaseFile(file);
+		TreeMap<String, String> data = new TreeMap<> ();
+		data.put("v7 1.5", " | v7 2.5");
+		data.put("plain1999", " | last");
+
+		assertTrue(database.writeNewData(data));
+		String written = readGzip(file);
+		assertTrue(written.contains("\n7,v7 1.5 | v7 2.5,plain7\n"));
+		assertTrue(written.endsWith(",plain1999 | last\n"));
+		assertTrue(new DatabaseFile(file).contains("plain1999 | last"));
+	}
+
+	private DatabaseFile newDatabase() throws IOException {
+		File db = folder.newFile("db.csv");
+		Files.write(db.toPath(), bytes("record_id,line\n1,l1\n2,l2\n"));
+		return new DatabaseFile(db);
+	}
+
+	private File newGzipFile(String name, String contents) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		OutputStream out = CompressedFiles.openOutput(file, false, CompressedFiles.DEFAULT_LEVEL);
+		try {
+			out.write(bytes(contents));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static String readGzip(File file) throws IOException {
+		InputStream in = CompressedFiles.openInput(file, null, false);
+		ByteArrayOutputStream contents = new ByteArrayOutputStream();
+		try {
+			CompressedFiles.copy(in, contents, -1);
+		} finally {
+			in.close();
+		}
+		return new String(contents.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+}
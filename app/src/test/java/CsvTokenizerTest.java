@@ -0,0 +1,149 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for CsvTokenizer: records must be split into the fields a CSV reader would see, and
+ * files that aren't quite CSV must be read leniently rather than rejected
+ */
+public class CsvTokenizerTest {
+
+	private CsvTokenizer tokenizer = new CsvTokenizer();
+
+	@Test
+	public void plainFieldsAreSplitAtCommas() {
+		assertEquals(Arrays.asList("a", "b", "", "c"), fields("a,b,,c"));
+		assertEquals(Arrays.asList(""), fields(""));
+		assertEquals(Arrays.asList("a", ""), fields("a,"));
+	}
+
+	@Test
+	public void quotedFieldsKeepCommasAndLineBreaks() {
+		assertEquals(Arrays.asList("x,y", "z"), fields("\"x,y\",z"));
+		assertEquals(Arrays.asList("1", "two\nlines", "3"), fields("1,\"two\nlines\",3"));
+		assertTrue(tokenizer.isQuoted(1));
+		assertFalse(tokenizer.isQuoted(0));
+		assertFalse(tokenizer.isEscaped(1));
+	}
+
+	@Test
+	public void doubledQuotesAreUnescaped() {
+		byte[] buf = bytes("\"say \"\"hi\"\"\",2");
+		assertEquals(2, tokenizer.tokenize(buf, 0, buf.length));
+		assertTrue(tokenizer.isEscaped(0));
+		assertEquals("say \"hi\"", unescaped(0));
+
+		// position 5 of the unescaped content is the 'h' after the doubled quote
+		assertEquals('h', buf[tokenizer.toRawIndex(0, 5)]);
+		assertEquals(0, tokenizer.getRawStart(0));
+		assertEquals(buf.length - 2, tokenizer.getRawEnd(0));
+	}
+
+	@Test
+	public void quotesInsideUnquotedFieldAreKept() {
+		// a comma between quotes in the middle of a field doesn't end it
+		assertEquals(Arrays.asList("ab\"c,d\"e", "f"), fields("ab\"c,d\"e,f"));
+		assertFalse(tokenizer.isQuoted(0));
+		assertTrue(tokenizer.hasQuote(0));
+		assertFalse(tokenizer.hasQuote(1));
+	}
+
+	@Test
+	public void quoteNotEndingFieldMakesItUnquoted() {
+		assertEquals(Arrays.asList("\"ab\"c", "d"), fields("\"ab\"c,d"));
+		assertFalse(tokenizer.isQuoted(0));
+	}
+
+	@Test
+	public void recordEndingInsideQuotesEndsTheField() {
+		assertEquals(Arrays.asList("a", "bc"), fields("a,\"bc"));
+		assertTrue(tokenizer.isQuoted(1));
+		assertEquals(Arrays.asList("a", "bc"), fields("a,\"bc\""));
+	}
+
+	@Test
+	public void recordInMiddleOfBufferIsTokenized() {
+		byte[] buf = bytes("skip\n1,\"2\",3\nskip");
+		assertEquals(3, tokenizer.tokenize(buf, 5, 12));
+		assertEquals(8, tokenizer.getContentStart(1));
+		assertEquals(9, tokenizer.getContentEnd(1));
+	}
+
+	@Test
+	public void manyFieldsAreAllKept() {
+		StringBuilder record = new StringBuilder();
+		List<String> expected = new ArrayList<> ();
+		for (int i = 0; i < 100; i++) {
+			record.append(i == 0 ? "" : ",").append(i % 2 == 0 ? "\"q\"\"" + i + "\"" : "p" + i);
+			expected.add(i % 2 == 0 ? "q\"" + i : "p" + i);
+		}
+
+		assertEquals(expected, fields(record.toString()));
+	}
+
+	@Test
+	public void escapedBytesTokenizeBackToThemselves() {
+		String[] values = new String[] {"plain", "with,comma", "with \"quotes\"", "line\nbreak", ""};
+		for (String value : values) {
+			byte[] escaped = CsvTokenizer.escape(bytes(value));
+			byte[] field = CsvTokenizer.needsQuotes(bytes(value)) ? concat(bytes("\""), escaped, bytes("\"")) : escaped;
+			assertEquals(Arrays.asList(value, "x"), fields(new String(concat(field, bytes(",x")), StandardCharsets.UTF_8)));
+		}
+
+		byte[] noQuotes = bytes("abc");
+		assertSame(noQuotes, CsvTokenizer.escape(noQuotes));
+		assertFalse(CsvTokenizer.needsQuotes(noQuotes));
+		assertTrue(CsvTokenizer.needsQuotes(bytes("a\rb")));
+	}
+
+	/**
+	 * Tokenizes a record and gets the content of each field, unescaped
+	 */
+	private List<String> fields(String record) {
+		byte[] buf = bytes(record);
+		int numFields = tokenizer.tokenize(buf, 0, buf.length);
+		assertEquals(numFields, tokenizer.getNumFields());
+
+		List<String> fields = new ArrayList<> ();
+		for (int i = 0; i < numFields; i++) {
+			if (tokenizer.isEscaped(i)) {
+				fields.add(unescaped(i));
+			} else {
+				fields.add(new String(buf, tokenizer.getContentStart(i), tokenizer.getContentEnd(i) - tokenizer.getContentStart(i), StandardCharsets.UTF_8));
+			}
+		}
+
+		return fields;
+	}
+
+	private String unescaped(int field) {
+		return new String(tokenizer.unescape(field), 0, tokenizer.getUnescapedLength(), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+
+		byte[] all = new byte[length];
+		int pos = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, all, pos, part.length);
+			pos += part.length;
+		}
+		return all;
+	}
+}
@@ -0,0 +1,125 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for DataFileCache and DataFile.openAll: what was read from a data file must only be
+ * used again while the file is unchanged, and its reference line only while the database is
+ */
+public class DataFileCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void unchangedFileIsNotReadAgain() throws IOException {
+		DatabaseFile database = newDatabase();
+		File file = newDataFile("l1\nl2\nl3\n");
+		DataFileCache cache = new DataFileCache();
+		open(file, 10, database, cache);
+
+		// the same length and modification time, so only reading the file would notice
+		long lastModified = file.lastModified();
+		Files.write(file.toPath(), "l1\nl2\nl9\n".getBytes(StandardCharsets.UTF_8));
+		file.setLastModified(lastModified);
+
+		DataFile df = open(file, 10, database, cache);
+		assertEquals(Arrays.asList("l1", "l2", "l3"), df.getLastLines());
+		assertEquals("l2", df.getRefLine());
+	}
+
+	@Test
+	public void changedFileIsReadAgain() throws IOException {
+		DatabaseFile database = newDatabase();
+		File file = newDataFile("l1\nl2\nl3\n");
+		DataFileCache cache = new DataFileCache();
+		open(file, 10, database, cache);
+		assertNotNull(cache.get(file));
+
+		TempFiles.append(file, "l9\n");
+		assertNull(cache.get(file));
+		DataFile df = open(file, 10, database, cache);
+		assertEquals(Arrays.asList("l1", "l2", "l3", "l9"), df.getLastLines());
+		assertEquals("l2", df.getRefLine());
+	}
+
+	@Test
+	public void moreLinesAreReadInFrontOfCachedOnes() throws IOException {
+		DatabaseFile database = newDatabase();
+		File file = newDataFile("l1\nl2\nl3\nl4\nl5\n");
+		DataFileCache cache = new DataFileCache();
+		DataFile df = open(file, 2, database, cache);
+		assertEquals(Arrays.asList("l4", "l5"), df.getLastLines());
+		assertNull(df.getRefLine());
+
+		df = open(file, 4, database, cache);
+		assertEquals(Arrays.asList("l2", "l3", "l4", "l5"), df.getLastLines());
+		assertEquals("l2", df.getRefLine());
+		assertEquals(4, cache.get(file).getLines().size());
+	}
+
+	@Test
+	public void refLineIsFoundAgainWhenDatabaseChanges() throws IOException {
+		checkRefLineIsFoundAgain(0);
+	}
+
+	@Test
+	public void refLineIsFoundAgainWhenDatabaseChangesInFilterMode() throws IOException {
+		checkRefLineIsFoundAgain(0.01);
+	}
+
+	@Test
+	public void clearForgetsEveryEntry() throws IOException {
+		File file = newDataFile("l1\n");
+		DataFileCache cache = new DataFileCache();
+		open(file, 10, newDatabase(), cache);
+
+		cache.clear();
+		assertNull(cache.get(file));
+	}
+
+	/**
+	 * Opens a data file, then adds its last line to the database and opens it again
+	 */
+	private void checkRefLineIsFoundAgain(double filterRate) throws IOException {
+		DatabaseFile database = newDatabase();
+		database.setFilterMode(filterRate);
+		File file = newDataFile("l1\nl2\nl3\n");
+		DataFileCache cache = new DataFileCache();
+		assertEquals("l2", open(file, 10, database, cache).getRefLine());
+		String fingerprint = database.getFingerprint();
+		assertEquals(1, cache.get(file).getRefLineInd(fingerprint));
+
+		TempFiles.append(database.getFile(), "3,l3\n");
+		assertEquals(DataFileCache.REF_LINE_UNKNOWN, cache.get(file).getRefLineInd(database.getFingerprint()));
+		assertEquals("l3", open(file, 10, database, cache).getRefLine());
+		assertEquals(2, cache.get(file).getRefLineInd(database.getFingerprint()));
+	}
+
+	private DatabaseFile newDatabase() throws IOException {
+		File db = folder.newFile("db.csv");
+		Files.write(db.toPath(), "record_id,line\n1,l1\n2,l2\n".getBytes(StandardCharsets.UTF_8));
+		return new DatabaseFile(db);
+	}
+
+	private File newDataFile(String contents) throws IOException {
+		File file = folder.newFile("data.txt");
+		Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private static DataFile open(File file, int linesFromEnd, DatabaseFile database, DataFileCache cache) {
+		return DataFile.openAll(Collections.singletonList(file), linesFromEnd, database, cache).get(0);
+	}
+}
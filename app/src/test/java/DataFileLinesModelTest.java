@@ -0,0 +1,110 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for DataFileLinesModel: every line of a data file must be shown in order, whether it is
+ * read from the file, uncompressed from a gzipped file or copied out of a Word document
+ */
+public class DataFileLinesModelTest {
+
+	private static final int NUM_LINES = 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void showsEveryLineOfTextFile() throws IOException {
+		File file = folder.newFile("data.txt");
+		Files.write(file.toPath(), textLines(0, NUM_LINES).getBytes(StandardCharsets.UTF_8));
+		assertShowsLines(show(file), NUM_LINES);
+	}
+
+	@Test
+	public void showsEveryLineOfCompressedFile() throws IOException {
+		File file = folder.newFile("data.txt.gz");
+		OutputStream out = new GZIPOutputStream(Files.newOutputStream(file.toPath()));
+		try {
+			out.write(textLines(0, NUM_LINES).getBytes(StandardCharsets.UTF_8));
+		} finally {
+			out.close();
+		}
+		assertShowsLines(show(file), NUM_LINES);
+	}
+
+	@Test
+	public void showsEveryLineOfDocument() throws IOException {
+		File file = folder.newFile("data.docx");
+		StringBuilder xml = new StringBuilder("<w:document xmlns:w=\"http://schemas.openxmlformats.org/wordprocessingml/2006/main\"><w:body>");
+		for (int i = 0; i < NUM_LINES; i++) {
+			xml.append("<w:p><w:r><w:t>line ").append(i).append("</w:t></w:r></w:p>");
+		}
+		xml.append("</w:body></w:document>");
+
+		ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file.toPath()));
+		try {
+			zip.putNextEntry(new ZipEntry("word/document.xml"));
+			zip.write(xml.toString().getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		} finally {
+			zip.close();
+		}
+		assertShowsLines(show(file), NUM_LINES);
+	}
+
+	@Test
+	public void tableIsCarriedOnWhenLinesAreAppended() throws IOException {
+		File file = folder.newFile("data.txt");
+		Files.write(file.toPath(), textLines(0, NUM_LINES).getBytes(StandardCharsets.UTF_8));
+		DataFileLinesModel model = show(file);
+		DataFile df = model.getDataFile();
+		assertSame(model.getTable(), DataFileLinesModel.readTable(df, model.getTable()));
+
+		Files.write(file.toPath(), textLines(NUM_LINES, NUM_LINES + 300).getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		df.readAppendedLines();
+		model.linesChanged(DataFileLinesModel.readTable(df, model.getTable()));
+		assertShowsLines(model, NUM_LINES + 300);
+	}
+
+	/**
+	 * Shows a data file whose lines are in the database file
+	 */
+	private DataFileLinesModel show(File file) throws IOException {
+		File db = folder.newFile("db.csv");
+		Files.write(db.toPath(), ("record_id,line\n1,line " + (NUM_LINES - 1) + "\n").getBytes(StandardCharsets.UTF_8));
+		DataFile df = new DataFile(file, 10, new DatabaseFile(db));
+
+		DataFileLinesModel model = new DataFileLinesModel();
+		model.setDataFile(df, DataFileLinesModel.readTable(df, null));
+		return model;
+	}
+
+	private static void assertShowsLines(DataFileLinesModel model, int numLines) {
+		assertEquals(numLines, model.getSize());
+		// read backwards, so that pages are not read in order
+		for (int i = numLines - 1; i >= 0; i--) {
+			assertEquals("line " + i, model.getElementAt(i));
+		}
+	}
+
+	private static String textLines(int from, int to) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			sb.append("line ").append(i).append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,155 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for DataFile: writing new lines must never lose what another program has written to the
+ * data file since it was read
+ */
+public class DataFileTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void linesAppendedByAnotherProgramAreKept() throws IOException {
+		DataFile df = open("l1\nl2\n");
+		df.addLine("l3");
+		TempFiles.append(df.getFile(), "l9\n");
+
+		df.write();
+		assertEquals("l1\nl2\nl9\nl3\n", DatabaseFileTest.read(df.getFile()));
+	}
+
+	@Test
+	public void linesAppendedByAnotherProgramAreKeptWhenRewriting() throws IOException {
+		DataFile df = open("l1\nl2\nl8\n");
+		df.removeLine("l8");
+		df.addLine("l3");
+		TempFiles.append(df.getFile(), "l9\n");
+
+		df.write();
+		assertEquals("l1\nl2\nl9\nl3\n", DatabaseFileTest.read(df.getFile()));
+	}
+
+	@Test
+	public void linesAppendedAfterStagingAreKept() throws IOException {
+		DataFile df = open("l1\nl2\n");
+		df.addLine("l3");
+		assertTrue(df.stage());
+		TempFiles.append(df.getFile(), "l9\n");
+
+		publishAndCommit(df);
+		assertEquals("l1\nl2\nl9\nl3\n", DatabaseFileTest.read(df.getFile()));
+	}
+
+	@Test
+	public void linesAppendedAfterStagingAreKeptWhenRewriting() throws IOException {
+		DataFile df = open("l1\nl2\nl8\n");
+		df.removeLine("l8");
+		df.addLine("l3");
+		assertTrue(df.stage());
+		TempFiles.append(df.getFile(), "l9\n");
+
+		publishAndCommit(df);
+		assertEquals("l1\nl2\nl9\nl3\n", DatabaseFileTest.read(df.getFile()));
+	}
+
+	@Test
+	public void fileChangedAfterStagingIsNotWritten() throws IOException {
+		DataFile df = open("l1\nl2\n");
+		df.addLine("l3");
+		assertTrue(df.stage());
+		String changed = "l1\n";
+		Files.write(df.getFile().toPath(), changed.getBytes(StandardCharsets.UTF_8));
+
+		try {
+			publishAndCommit(df);
+			fail("the file was changed since it was staged");
+		} catch (IOException e) {
+			df.discard();
+		}
+		assertEquals(changed, DatabaseFileTest.read(df.getFile()));
+		assertEquals(1, df.getNumLinesAdded());
+	}
+
+	@Test
+	public void fileChangedByAnotherProgramIsNotWritten() throws IOException {
+		DataFile df = open("l1\nl2\n");
+		df.addLine("l3");
+		String changed = "l1\nl2 changed\n";
+		Files.write(df.getFile().toPath(), changed.getBytes(StandardCharsets.UTF_8));
+
+		df.write();
+		assertEquals(changed, DatabaseFileTest.read(df.getFile()));
+	}
+
+	@Test
+	public void fileEditedAndAppendedToIsNotWritten() throws IOException {
+		DataFile df = open("l1\nl2\n");
+		df.addLine("l3");
+		// the same length up to where the file ended, with a line break there
+		String changed = "l1\nlX\nl9\n";
+		Files.write(df.getFile().toPath(), changed.getBytes(StandardCharsets.UTF_8));
+
+		df.write();
+		assertEquals(changed, DatabaseFileTest.read(df.getFile()));
+	}
+
+	@Test
+	public void linesGivenOutAreNotChangedByFollowingAppend() throws IOException {
+		DataFile df = open("l1\nl2\n");
+		List<String> shown = df.getLastLines();
+		TempFiles.append(df.getFile(), "l9\n");
+
+		assertTrue(df.readAppendedLines());
+		assertEquals(Arrays.asList("l1", "l2"), shown);
+		assertEquals(Arrays.asList("l1", "l2", "l9"), df.getLastLines());
+		assertEquals(1, df.getNumLinesAdded());
+	}
+
+	@Test
+	public void fileWithoutReferenceLineIsNotRewritten() throws IOException {
+		DataFile df = open("x1\nx2\n");
+		df.removeLine("x2");
+
+		df.write();
+		assertEquals("x1\nx2\n", DatabaseFileTest.read(df.getFile()));
+		assertFalse(new File(folder.getRoot(), "tempData0.txt").exists());
+	}
+
+	/**
+	 * Makes a data file whose lines up to l2 are in the database file
+	 */
+	private DataFile open(String contents) throws IOException {
+		File db = folder.newFile("db.csv");
+		Files.write(db.toPath(), "record_id,line\n1,l1\n2,l2\n".getBytes(StandardCharsets.UTF_8));
+		File file = folder.newFile("data.txt");
+		Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+		return new DataFile(file, 10, new DatabaseFile(db));
+	}
+
+	private static void publishAndCommit(DataFile df) throws IOException {
+		GroupCommit commit = new GroupCommit(GroupCommit.manifestFor(df.getFile()));
+		df.publish(commit);
+		try {
+			commit.commit();
+		} catch (IOException e) {
+			commit.abort();
+			throw e;
+		}
+		df.finishPublish();
+	}
+}
@@ -0,0 +1,285 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for DatabaseFile: inserting data must give the same file whichever way the database is
+ * searched
+ */
+public class DatabaseFileTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void keyAtEndOfLongerTokenIsNotInsertedWithOrWithoutIndex() throws IOException {
+		String db = "1,abc | x\n2,zzabc | y\n";
+		TreeMap<String, String> data = new TreeMap<> ();
+		data.put("abc", " | new");
+
+		String expected = "1,abc | new | x\n2,zzabc | y\n";
+		assertEquals(expected, writeWithoutIndex(db, data));
+		assertEquals(expected, writeWithIndex(db, data, "abc"));
+	}
+
+	@Test
+	public void keyOnSeveralLinesIsInsertedOnEachWithIndex() throws IOException {
+		String db = "1,a | x\n2,b\n3,\"c, a\"\n4,a\n";
+		TreeMap<String, String> data = new TreeMap<> ();
+		data.put("a", " | new");
+		data.put("b", " | other");
+
+		String expected = "1,a | new | x\n2,b | other\n3,\"c, a | new\"\n4,a | new\n";
+		assertEquals(expected, writeWithoutIndex(db, data));
+		assertEquals(expected, writeWithIndex(db, data, "a"));
+	}
+
+	@Test
+	public void containsAndWriteNewDataMatchTheSameKeys() throws IOException {
+		String db = "1,zzabc | y\n2,\"a, zzabc | y\"\n";
+		String[] keys = new String[] {"abc", "abc | y"};
+		for (int i = 0; i < keys.length; i++) {
+			String key = keys[i];
+			File file = newDatabase("key" + i, db);
+			DatabaseFile database = new DatabaseFile(file);
+			assertFalse(key, database.contains(key));
+
+			TreeMap<String, String> data = new TreeMap<> ();
+			data.put(key, " | new");
+			assertTrue(database.writeNewData(data));
+			assertEquals(key, db, read(file));
+		}
+
+		File file = newDatabase("match", db);
+		DatabaseFile database = new DatabaseFile(file);
+		assertTrue(database.contains("zzabc | y"));
+		TreeMap<String, String> data = new TreeMap<> ();
+		data.put("zzabc | y", " | new");
+		assertTrue(database.writeNewData(data));
+		assertEquals("1,zzabc | y | new\n2,\"a, zzabc | y | new\"\n", read(file));
+	}
+
+	@Test
+	public void indexAndScanGiveTheSameFile() throws IOException {
+		String db = generateDatabase(2000);
+		TreeMap<String, String> data = new TreeMap<> ();
+		data.put("v7 1.5", " | v7 2.5");
+		data.put("v1999 1.5", " | a,\"b\"");
+		data.put("7 1.5", " | short");
+		data.put("plain42", " | p");
+		data.put("missing", " | m");
+
+		String withoutIndex = writeWithoutIndex(db, data);
+		assertEquals(withoutIndex, writeWithIndex(db, data, "v7 1.5"));
+		assertTrue(withoutIndex.contains("v7 1.5 | v7 2.5"));
+		assertTrue(withoutIndex.contains("\"v1999 1.5 | a,\"\"b\"\""));
+		// "7 1.5" is not a token of "v17 1.5", "v27 1.5", ...
+		assertFalse(withoutIndex.contains("| short"));
+	}
+
+	@Test
+	public void filterAtItsMemoryLimitGivesTheSameFile() throws IOException {
+		String db = generateDatabase(2000);
+		TreeMap<String, String> data = new TreeMap<> ();
+		data.put("v7 1.5", " | v7 2.5");
+		data.put("plain42", " | p");
+		data.put("missing", " | m");
+
+		File file = newDatabase("filter", db);
+		DatabaseFile database = new DatabaseFile(file);
+		database.setParallelism(4);
+		database.setFilterMode(0.01);
+		// far less than the filter would need, so it is overfull
+		database.setFilterMemoryLimit(1024);
+		assertTrue(database.contains("v7 1.5"));
+		assertFalse(database.contains("missing"));
+		assertTrue(database.writeNewData(data));
+		assertEquals(writeWithoutIndex(db, data), read(file));
+	}
+
+	@Test
+	public void parallelScanGivesTheSameFile() throws IOException {
+		String db = generateDatabase(5000);
+		TreeMap<String, String> data = new TreeMap<> ();
+		data.put("v7 1.5", " | v7 2.5");
+		data.put("v4999 1.5", " | last");
+		data.put("7 1.5", " | short");
+		data.put("plain0", " | first");
+
+		String expected = writeWithoutIndex(db, data);
+		for (int parallelism : new int[] {2, 3, 8}) {
+			File file = newDatabase("scan" + parallelism, db);
+			DatabaseFile database = new DatabaseFile(file);
+			database.setParallelism(parallelism);
+			assertTrue(database.writeNewData(data));
+			assertEquals(expected, read(file));
+
+			// the index built from parallel chunks must find the same places
+			file = newDatabase("index" + parallelism, db);
+			database = new DatabaseFile(file);
+			database.setParallelism(parallelism);
+			assertTrue(database.contains("plain0"));
+			assertTrue(database.writeNewData(data));
+			assertEquals(expected, read(file));
+		}
+	}
+
+	@Test
+	public void lookupsAreTheSameWithIndexFilterAndParallelScan() throws IOException {
+		String db = generateDatabase(3000);
+		String[] keys = new String[] {"v7 1.5", "7 1.5", "v3 1.5", "plain2999", "plain3000", "1.5", "v7", "with comma", "missing", "record_id"};
+		List<List<String>> tails = Arrays.asList(Arrays.asList("nothing", "v7 1.5"), Arrays.asList("plain42", "missing"),
+				Arrays.asList("missing"), Arrays.asList("v3 1.5", "v2998 1.5"));
+
+		File file = newDatabase("expected", db);
+		DatabaseFile expected = new DatabaseFile(file);
+		int[] expectedIndices = expected.findRefLineIndices(tails);
+		boolean[] expectedContains = new boolean[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			expectedContains[i] = expected.contains(keys[i]);
+		}
+		assertArrayEquals(new int[] {1, 0, -1, 1}, expectedIndices);
+		assertTrue(expectedContains[0]);
+		assertFalse(expectedContains[8]);
+
+		for (int parallelism : new int[] {1, 4}) {
+			for (double filterRate : new double[] {0, 0.01}) {
+				DatabaseFile database = new DatabaseFile(newDatabase("lookup" + parallelism + "-" + filterRate, db));
+				database.setParallelism(parallelism);
+				database.setFilterMode(filterRate);
+				assertArrayEquals(expectedIndices, database.findRefLineIndices(tails));
+				for (int i = 0; i < keys.length; i++) {
+					assertEquals(keys[i], expectedContains[i], database.contains(keys[i]));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void singleByteDatabaseIsSearchedInItsCharset() throws IOException {
+		File file = new File(folder.newFolder("latin1"), "db.csv");
+		Files.write(file.toPath(), "record_id,name\n1,caf\u00e9\n2,na\u00efve\n".getBytes(StandardCharsets.ISO_8859_1));
+
+		// read as UTF-8, the bytes of the accented chars aren't the same
+		assertFalse(new DatabaseFile(file).contains("caf\u00e9"));
+
+		DatabaseFile database = new DatabaseFile(file);
+		assertFalse(database.contains("caf\u00e9"));
+		database.setCharset(StandardCharsets.ISO_8859_1);
+		assertTrue(database.contains("caf\u00e9"));
+		TreeMap<String, String> data = new TreeMap<> ();
+		data.put("na\u00efve", " | cr\u00e8me");
+		assertTrue(database.writeNewData(data));
+		assertEquals("record_id,name\n1,caf\u00e9\n2,na\u00efve | cr\u00e8me\n",
+				new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void multiByteCharsetOtherThanUtf8IsRefused() throws IOException {
+		new DatabaseFile(newDatabase("utf16", "record_id\n")).setCharset(StandardCharsets.UTF_16);
+	}
+
+	@Test
+	public void refLinesOfEveryTailAreFoundInOnePass() throws IOException {
+		String db = generateDatabase(3000);
+		File file = newDatabase("refLines", db);
+		List<List<String>> tails = Arrays.asList(
+				Arrays.asList("plain5", "nothing", "v3 1.5, with comma"),
+				Arrays.asList("plain7", "missing"),
+				Arrays.asList("missing"),
+				Arrays.asList("v6 1.5, with comma", "v7 1.5"),
+				Arrays.asList("plain1, plain2"));
+		PerformanceMetrics metrics = PerformanceMetrics.get();
+		metrics.reset();
+
+		// the index is built and the lines with commas are searched for in the same pass
+		DatabaseFile database = new DatabaseFile(file);
+		assertArrayEquals(new int[] {2, 0, -1, 1, -1}, database.findRefLineIndices(tails));
+		assertEquals(db.length(), metrics.getBytesRead());
+
+		// and then only those lines need the file read again
+		metrics.reset();
+		assertArrayEquals(new int[] {0, 0, -1, 1, -1}, database.findRefLineIndices(Arrays.asList(
+				Arrays.asList("plain5", "nothing"), tails.get(1), tails.get(2), tails.get(3), tails.get(4))));
+		assertEquals(db.length(), metrics.getBytesRead());
+		metrics.reset();
+		assertArrayEquals(new int[] {0, 0}, database.findRefLineIndices(Arrays.asList(
+				Arrays.asList("plain5", "nothing"), tails.get(1))));
+		assertEquals(0, metrics.getBytesRead());
+
+		// each answer is the last line of the tail that contains() finds
+		for (int t = 0; t < tails.size(); t++) {
+			int last = -1;
+			for (int i = 0; i < tails.get(t).size(); i++) {
+				if (database.contains(tails.get(t).get(i))) {
+					last = i;
+				}
+			}
+			assertEquals(last, database.findRefLineIndices(tails.subList(t, t + 1))[0]);
+		}
+		metrics.reset();
+	}
+
+	/**
+	 * Makes the contents of a REDCap style database file, with some quoted fields
+	 * @param rows: the number of records
+	 * @return: the contents
+	 */
+	static String generateDatabase(int rows) {
+		StringBuilder sb = new StringBuilder("record_id,visits,other\n");
+		for (int i = 0; i < rows; i++) {
+			sb.append(i).append(',');
+			if (i % 3 == 0) {
+				sb.append("\"v").append(i).append(" 1.5, with comma\"");
+			} else {
+				sb.append('v').append(i).append(" 1.5");
+			}
+			sb.append(",plain").append(i).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes data into a new database file that has never been looked up in, so that it has no
+	 * index
+	 */
+	private String writeWithoutIndex(String contents, TreeMap<String, String> data) throws IOException {
+		File file = newDatabase("scan", contents);
+		assertTrue(new DatabaseFile(file).writeNewData(data));
+		return read(file);
+	}
+
+	/**
+	 * Writes data into a new database file after looking a key up in it, which builds the index
+	 */
+	private String writeWithIndex(String contents, TreeMap<String, String> data, String lookup) throws IOException {
+		File file = newDatabase("index", contents);
+		DatabaseFile database = new DatabaseFile(file);
+		assertTrue(database.contains(lookup));
+		assertTrue(database.writeNewData(data));
+		return read(file);
+	}
+
+	private File newDatabase(String name, String contents) throws IOException {
+		File file = new File(folder.newFolder(name), "db.csv");
+		Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+}
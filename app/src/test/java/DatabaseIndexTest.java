@@ -0,0 +1,156 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for DatabaseIndex: a saved index must only be reused for the file it was built from, or
+ * for that file with lines added to its end
+ */
+public class DatabaseIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void appendedFileIsAppendedTo() throws IOException {
+		File file = newDatabase();
+		assertTrue(new DatabaseFile(file).contains("plain5000"));
+
+		TempFiles.append(file, "9999,v9999 1.5,plain9999\n");
+		assertTrue(DatabaseIndex.load(file).isAppendedTo(file));
+	}
+
+	@Test
+	public void editInTheMiddleIsNotAppendedTo() throws IOException {
+		File file = newDatabase();
+		assertTrue(new DatabaseFile(file).contains("plain5000"));
+
+		// far enough from both ends that only hashing the whole file notices
+		editMiddle(file);
+		TempFiles.append(file, "9999,v9999 1.5,plain9999\n");
+		assertFalse(DatabaseIndex.load(file).isAppendedTo(file));
+	}
+
+	@Test
+	public void hashOfParallelChunksIsHashOfWholeFile() throws IOException {
+		File file = new File(folder.getRoot(), "db.csv");
+		byte[] contents = DatabaseFileTest.generateDatabase(200000).getBytes(StandardCharsets.UTF_8);
+		Files.write(file.toPath(), contents);
+		DatabaseFile database = new DatabaseFile(file);
+		database.setParallelism(4);
+		assertTrue(database.contains("plain199999"));
+
+		CRC32 crc = new CRC32();
+		crc.update(contents);
+		assertEquals(crc.getValue(), DatabaseIndex.load(file).getPrefixHash());
+	}
+
+	@Test
+	public void combinedCrcIsCrcOfBothBlocks() {
+		byte[] bytes = "one,two | three\r\nfour,five\n".getBytes(StandardCharsets.UTF_8);
+		CRC32 whole = new CRC32();
+		whole.update(bytes);
+		for (int split = 0; split <= bytes.length; split++) {
+			CRC32 first = new CRC32();
+			first.update(bytes, 0, split);
+			CRC32 second = new CRC32();
+			second.update(bytes, split, bytes.length - split);
+			assertEquals(whole.getValue(), DatabaseIndex.combineCrc(first.getValue(), second.getValue(), bytes.length - split));
+		}
+	}
+
+	@Test
+	public void indexWithoutHashIsNotAppendedTo() throws IOException {
+		File file = newDatabase();
+		DatabaseIndex index = new DatabaseIndex();
+		index.setFingerprint(file);
+
+		TempFiles.append(file, "9999,v9999 1.5,plain9999\n");
+		assertFalse(index.isAppendedTo(file));
+	}
+
+	@Test
+	public void editInTheMiddleIsFoundAfterReopening() throws IOException {
+		File file = newDatabase();
+		assertTrue(new DatabaseFile(file).contains("plain5000"));
+
+		editMiddle(file);
+		TempFiles.append(file, "9999,v9999 1.5,plain9999\n");
+		DatabaseFile reopened = new DatabaseFile(file);
+		assertTrue(reopened.contains("other5000"));
+		assertFalse(reopened.contains("plain5000"));
+		assertTrue(reopened.contains("plain9999"));
+	}
+
+	@Test
+	public void savingWhileMappedUsesNewSidecar() throws IOException {
+		File file = newDatabase();
+		DatabaseIndex index = new DatabaseIndex();
+		index.setFingerprint(file);
+		index.save(file);
+
+		DatabaseIndex loaded = DatabaseIndex.load(file);
+		assertNotNull(loaded);
+		loaded.save(file);
+
+		assertFalse(DatabaseIndex.sidecarFor(file, 0).exists());
+		assertTrue(DatabaseIndex.sidecarFor(file, 1).exists());
+		assertTrue(DatabaseIndex.load(file).matches(file));
+		assertEquals(1, folder.getRoot().list().length - 1);
+	}
+
+	@Test
+	public void tokenListsEveryLineItIsOn() throws IOException {
+		DatabaseIndex index = new DatabaseIndex();
+		byte[] several = "several".getBytes(StandardCharsets.UTF_8);
+		byte[] common = "common".getBytes(StandardCharsets.UTF_8);
+		for (int line = 0; line <= DatabaseIndex.MAX_TOKEN_LINES; line++) {
+			index.addLineStart(line * 10);
+			if (line % 5 == 0) {
+				index.addToken(several, 0, several.length, line);
+			}
+			index.addToken(common, 0, common.length, line);
+		}
+
+		File file = newDatabase();
+		index.save(file);
+		for (DatabaseIndex i : new DatabaseIndex[] {index, DatabaseIndex.load(file)}) {
+			int[] lines = i.findTokenLines(several, 0, several.length);
+			Arrays.sort(lines);
+			assertArrayEquals(new int[] {0, 5, 10, 15}, lines);
+			assertNull(i.findTokenLines(common, 0, common.length));
+			assertEquals(0, i.findTokenLines("missing".getBytes(StandardCharsets.UTF_8), 0, 7).length);
+		}
+	}
+
+	private File newDatabase() throws IOException {
+		File file = new File(folder.getRoot(), "db.csv");
+		Files.write(file.toPath(), DatabaseFileTest.generateDatabase(10000).getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	/**
+	 * Changes "plain5000" to "other5000", leaving the file the same size
+	 */
+	private static void editMiddle(File file) throws IOException {
+		String contents = DatabaseFileTest.read(file);
+		assertTrue(contents.contains(",plain5000\n"));
+		long lastModified = file.lastModified();
+		Files.write(file.toPath(), contents.replace(",plain5000\n", ",other5000\n").getBytes(StandardCharsets.UTF_8));
+		file.setLastModified(lastModified);
+	}
+}
@@ -0,0 +1,206 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for DatabaseJournal and journal mode: the database read through the journal must be
+ * the same as if every commit had been written into it, across reopening and compaction
+ */
+public class DatabaseJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void commitsAreReadBackAfterReopening() throws IOException {
+		File database = TempFiles.write(folder, "db.csv", "line one\nline two\n");
+		DatabaseJournal journal = DatabaseJournal.open(database);
+		assertTrue(journal.isEmpty());
+
+		append(journal, new long[] {0, 8, 18}, "> ", " A", "end\n");
+		assertEquals("> line one A\nline two\nend\n", contents(journal));
+		// offsets of a later commit are in the contents as they are after the earlier ones
+		append(journal, new long[] {12}, " B");
+		assertEquals("> line one A B\nline two\nend\n", contents(journal));
+
+		// the database file itself is untouched
+		assertEquals("line one\nline two\n", DatabaseFileTest.read(database));
+
+		DatabaseJournal reopened = DatabaseJournal.open(database);
+		assertFalse(reopened.isEmpty());
+		assertEquals(journal.size(), reopened.size());
+		assertEquals(journal.getLength(), reopened.getLength());
+		assertEquals("> line one A B\nline two\nend\n", contents(reopened));
+	}
+
+	@Test
+	public void commitCutOffPartwayIsDropped() throws IOException {
+		File database = TempFiles.write(folder, "db.csv", "line one\n");
+		DatabaseJournal journal = DatabaseJournal.open(database);
+		append(journal, new long[] {8}, " A");
+		long lengthAfterFirst = journal.getLength();
+		append(journal, new long[] {10}, " B");
+
+		// as if the program stopped before the second commit was all written
+		RandomAccessFile raf = new RandomAccessFile(journal.getFile(), "rw");
+		raf.setLength(journal.getLength() - 3);
+		raf.close();
+
+		DatabaseJournal reopened = DatabaseJournal.open(database);
+		assertEquals("line one A\n", contents(reopened));
+		assertEquals(lengthAfterFirst, reopened.getLength());
+		assertEquals(lengthAfterFirst, journal.getFile().length());
+	}
+
+	@Test
+	public void journalOfChangedDatabaseIsSetAside() throws IOException {
+		File database = TempFiles.write(folder, "db.csv", "line one\n");
+		DatabaseJournal journal = DatabaseJournal.open(database);
+		append(journal, new long[] {8}, " A");
+
+		Files.write(database.toPath(), "edited elsewhere\n".getBytes(StandardCharsets.UTF_8));
+		assertTrue(journal.isStale());
+
+		DatabaseJournal reopened = DatabaseJournal.open(database);
+		assertTrue(reopened.isEmpty());
+		assertEquals("edited elsewhere\n", contents(reopened));
+		assertFalse(journal.getFile().exists());
+		assertTrue(new File(journal.getFile().getPath() + ".stale").exists());
+	}
+
+	@Test
+	public void failedGroupLeavesJournalAsItWas() throws IOException {
+		File database = TempFiles.write(folder, "db.csv", "line one\n");
+		DatabaseJournal journal = DatabaseJournal.open(database);
+		append(journal, new long[] {8}, " A");
+		long length = journal.getLength();
+
+		// a temp file that isn't there can't be committed
+		GroupCommit commit = new GroupCommit(GroupCommit.manifestFor(database));
+		commit.replace(new File(folder.getRoot(), "missing.txt"), TempFiles.write(folder, "other.txt", "old"));
+		try {
+			journal.append(new long[] {0}, new byte[][] {bytes("> ")}, 1, commit);
+			fail("the commit should have failed");
+		} catch (IOException e) {
+			// expected
+		}
+
+		assertEquals(length, journal.getFile().length());
+		assertEquals("line one A\n", contents(DatabaseJournal.open(database)));
+	}
+
+	@Test
+	public void journalModeGivesTheSameFileAfterCompaction() throws IOException {
+		String db = DatabaseFileTest.generateDatabase(2000);
+		TreeMap<String, String> first = new TreeMap<> ();
+		first.put("v7 1.5", " | v7 2.5");
+		first.put("plain42", " | p");
+		TreeMap<String, String> second = new TreeMap<> ();
+		second.put("v7 2.5", " | v7 3.5");
+		second.put("v1999 1.5", " | last");
+
+		File rewritten = TempFiles.write(folder, "rewritten.csv", db);
+		DatabaseFile expected = new DatabaseFile(rewritten);
+		assertTrue(expected.writeNewData(first));
+		assertTrue(expected.writeNewData(second));
+
+		File file = TempFiles.write(folder, "journaled.csv", db);
+		DatabaseFile database = new DatabaseFile(file);
+		database.setJournalMode(true);
+		assertTrue(database.writeNewData(first));
+		assertEquals(db, DatabaseFileTest.read(file));
+		assertTrue(DatabaseJournal.journalFor(file).exists());
+
+		// a new DatabaseFile reads the database with the journal applied
+		DatabaseFile reopened = new DatabaseFile(file);
+		reopened.setJournalMode(true);
+		assertTrue(reopened.contains("v7 2.5"));
+		reopened.setCompactionThreshold(1);
+		assertTrue(reopened.writeNewData(second));
+		reopened.awaitCompaction();
+
+		assertFalse(DatabaseJournal.journalFor(file).exists());
+		assertEquals(DatabaseFileTest.read(rewritten), DatabaseFileTest.read(file));
+	}
+
+	@Test
+	public void journaledDatabaseIsReadWithoutBeingMapped() throws IOException {
+		// big enough to be scanned in parallel chunks
+		File file = TempFiles.write(folder, "journaled.csv", DatabaseFileTest.generateDatabase(200000));
+		DatabaseFile database = new DatabaseFile(file);
+		database.setJournalMode(true);
+		TreeMap<String, String> first = new TreeMap<> ();
+		first.put("plain5", " | a");
+		assertTrue(database.writeNewData(first));
+
+		// the scans, the index and the next commit all read the contents through the journal,
+		// which can't be mapped
+		DatabaseFile reopened = new DatabaseFile(file);
+		reopened.setJournalMode(true);
+		reopened.setParallelism(4);
+		assertTrue(reopened.contains("plain5 | a"));
+		assertTrue(reopened.contains("plain199999"));
+		assertEquals(0, reopened.findRefLineIndices(Arrays.asList(Arrays.asList("plain5 | a", "nothing")))[0]);
+		TreeMap<String, String> second = new TreeMap<> ();
+		second.put("plain199999", " | b");
+		assertTrue(reopened.writeNewData(second));
+		assertTrue(new DatabaseFile(file).contains("plain199999 | b"));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void journaledContentsCantBeMapped() throws IOException {
+		File database = TempFiles.write(folder, "db.csv", "line one\n");
+		DatabaseJournal journal = DatabaseJournal.open(database);
+		append(journal, new long[] {0}, "> ");
+
+		FileChannel in = journal.openChannel();
+		try {
+			in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void append(DatabaseJournal journal, long[] offsets, String... data) throws IOException {
+		byte[][] bytes = new byte[data.length][];
+		for (int i = 0; i < data.length; i++) {
+			bytes[i] = bytes(data[i]);
+		}
+		journal.append(offsets, bytes, data.length, new GroupCommit(GroupCommit.manifestFor(journal.getFile())));
+	}
+
+	private static String contents(DatabaseJournal journal) throws IOException {
+		FileChannel in = journal.openChannel();
+		try {
+			ByteBuffer buf = ByteBuffer.allocate((int) in.size());
+			// read positionally, as the scans do
+			while (buf.hasRemaining()) {
+				if (in.read(buf, buf.position()) < 0) {
+					break;
+				}
+			}
+			return new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,153 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for GroupCommit: a group must end up either all in place or not at all, whether it
+ * fails, is committed or is recovered after the program stopped partway through
+ */
+public class GroupCommitTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void commitReplacesAndAppends() throws IOException {
+		File replaced = TempFiles.write(folder, "replaced.txt", "old");
+		File temp = TempFiles.write(folder, "temp0.txt", "new");
+		File appended = TempFiles.write(folder, "appended.txt", "abc");
+		File manifest = GroupCommit.manifestFor(replaced);
+
+		GroupCommit commit = new GroupCommit(manifest);
+		commit.replace(temp, replaced);
+		commit.append(appended, 3, bytes("def"));
+		commit.commit();
+
+		assertEquals("new", DatabaseFileTest.read(replaced));
+		assertEquals("abcdef", DatabaseFileTest.read(appended));
+		assertFalse(temp.exists());
+		assertFalse(manifest.exists());
+	}
+
+	@Test
+	public void membersJoinWhenCommitted() throws IOException {
+		final File appended = TempFiles.write(folder, "appended.txt", "abc");
+		GroupCommit commit = new GroupCommit(GroupCommit.manifestFor(appended));
+		commit.addMember(new GroupCommit.Member() {
+			public void join(GroupCommit c) {
+				c.append(appended, 3, bytes("def"));
+			}
+		});
+
+		assertEquals("abc", DatabaseFileTest.read(appended));
+		commit.commit();
+		assertEquals("abcdef", DatabaseFileTest.read(appended));
+	}
+
+	@Test
+	public void failedCommitIsUndone() throws IOException {
+		File appended = TempFiles.write(folder, "appended.txt", "abc");
+		File created = new File(folder.getRoot(), "created.txt");
+		File replaced = TempFiles.write(folder, "replaced.txt", "old");
+		File manifest = GroupCommit.manifestFor(replaced);
+
+		GroupCommit commit = new GroupCommit(manifest);
+		commit.append(appended, 3, bytes("def"));
+		commit.append(created, 0, bytes("new"));
+		// a temp file that isn't there can't be forced, which fails the commit after the appends
+		commit.replace(new File(folder.getRoot(), "missing.txt"), replaced);
+		try {
+			commit.commit();
+			fail("the commit should have failed");
+		} catch (IOException e) {
+			commit.abort();
+		}
+
+		assertEquals("abc", DatabaseFileTest.read(appended));
+		assertFalse(created.exists());
+		assertEquals("old", DatabaseFileTest.read(replaced));
+		assertFalse(manifest.exists());
+	}
+
+	@Test
+	public void fileChangedBeforeCommitIsNotWritten() throws IOException {
+		File appended = TempFiles.write(folder, "appended.txt", "abc");
+		File replaced = TempFiles.write(folder, "replaced.txt", "old");
+		File temp = TempFiles.write(folder, "temp0.txt", "new");
+
+		GroupCommit commit = new GroupCommit(GroupCommit.manifestFor(replaced));
+		commit.requireLength(appended, 3);
+		commit.append(appended, 3, bytes("def"));
+		commit.requireLength(replaced, 3);
+		commit.replace(temp, replaced);
+		Files.write(appended.toPath(), bytes("xyz"), StandardOpenOption.APPEND);
+		try {
+			commit.commit();
+			fail("the appended file was changed by another program");
+		} catch (IOException e) {
+			commit.abort();
+		}
+
+		assertEquals("abcxyz", DatabaseFileTest.read(appended));
+		assertEquals("old", DatabaseFileTest.read(replaced));
+		assertFalse(temp.exists());
+	}
+
+	@Test
+	public void recoverUndoesGroupThatWasNotCommitted() throws IOException {
+		File appended = TempFiles.write(folder, "appended.txt", "abcdef");
+		File created = TempFiles.write(folder, "created.txt", "new");
+		File replaced = TempFiles.write(folder, "replaced.txt", "old");
+		File temp = TempFiles.write(folder, "temp0.txt", "new");
+		File manifest = TempFiles.write(folder, "group.commit", "replace\t" + temp.getPath() + "\t" + replaced.getPath() + "\n"
+				+ "append\t3\t" + appended.getPath() + "\n"
+				+ "append\t-1\t" + created.getPath() + "\n");
+
+		assertTrue(GroupCommit.recover(manifest));
+		assertEquals("abc", DatabaseFileTest.read(appended));
+		assertFalse(created.exists());
+		assertEquals("old", DatabaseFileTest.read(replaced));
+		assertFalse(temp.exists());
+		assertFalse(manifest.exists());
+	}
+
+	@Test
+	public void recoverFinishesGroupThatWasCommitted() throws IOException {
+		File appended = TempFiles.write(folder, "appended.txt", "abcdef");
+		File replaced = TempFiles.write(folder, "replaced.txt", "old");
+		File temp = TempFiles.write(folder, "temp0.txt", "new");
+		// the first file was already moved into place before the program stopped
+		File moved = TempFiles.write(folder, "moved.txt", "new");
+		File manifest = TempFiles.write(folder, "group.commit", "replace\t" + new File(folder.getRoot(), "temp1.txt").getPath() + "\t" + moved.getPath() + "\n"
+				+ "replace\t" + temp.getPath() + "\t" + replaced.getPath() + "\n"
+				+ "append\t3\t" + appended.getPath() + "\n"
+				+ "committed\n");
+
+		assertTrue(GroupCommit.recover(manifest));
+		assertEquals("abcdef", DatabaseFileTest.read(appended));
+		assertEquals("new", DatabaseFileTest.read(moved));
+		assertEquals("new", DatabaseFileTest.read(replaced));
+		assertFalse(temp.exists());
+		assertFalse(manifest.exists());
+	}
+
+	@Test
+	public void recoverWithoutManifestDoesNothing() throws IOException {
+		assertFalse(GroupCommit.recover(new File(folder.getRoot(), "group.commit")));
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+}
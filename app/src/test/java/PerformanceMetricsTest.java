@@ -0,0 +1,122 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for PerformanceMetrics: the counters must add up what they are given, and each commit
+ * must be logged as one line of JSON holding only what happened during it
+ */
+public class PerformanceMetricsTest {
+
+	private static final String LOG_PROPERTY = "redcap.metrics.log";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private PerformanceMetrics metrics = PerformanceMetrics.get();
+	private String oldLog;
+	private File log;
+
+	@Before
+	public void logToFolder() {
+		oldLog = System.getProperty(LOG_PROPERTY);
+		log = new File(folder.getRoot(), "metrics.jsonl");
+		System.setProperty(LOG_PROPERTY, log.getPath());
+		metrics.reset();
+	}
+
+	@After
+	public void restoreLog() {
+		if (oldLog == null) {
+			System.clearProperty(LOG_PROPERTY);
+		} else {
+			System.setProperty(LOG_PROPERTY, oldLog);
+		}
+		metrics.reset();
+	}
+
+	@Test
+	public void countersAddUp() {
+		metrics.addBytesRead(10);
+		metrics.addBytesRead(20);
+		metrics.addBytesWritten(5);
+		metrics.addLinesScanned(3);
+		metrics.addMatchesFound(2);
+		metrics.addTempFileCreated();
+		metrics.addTime(PerformanceMetrics.CONTAINS, System.nanoTime());
+		metrics.addTime(PerformanceMetrics.CONTAINS, System.nanoTime());
+
+		assertEquals(30, metrics.getBytesRead());
+		assertEquals(5, metrics.getBytesWritten());
+		assertEquals(3, metrics.getLinesScanned());
+		assertEquals(2, metrics.getMatchesFound());
+		assertEquals(1, metrics.getTempFilesCreated());
+		assertEquals(Long.valueOf(2), metrics.getCalls().get(PerformanceMetrics.CONTAINS));
+		assertTrue(metrics.getMillis().containsKey(PerformanceMetrics.CONTAINS));
+
+		metrics.reset();
+		assertEquals(0, metrics.getBytesRead());
+		assertTrue(metrics.getCalls().isEmpty());
+	}
+
+	@Test
+	public void commitIsLoggedAsOneLineOfJson() throws IOException {
+		File database = folder.newFile("db.csv");
+		File dataFile = folder.newFile("data.txt");
+		// only what happens after the commit starts is counted in it
+		metrics.addBytesWritten(100);
+		metrics.addTime(PerformanceMetrics.CONTAINS, System.nanoTime());
+
+		metrics.beginCommit(database);
+		metrics.addBytesWritten(5);
+		metrics.addTime(PerformanceMetrics.SPLICE, System.nanoTime());
+		metrics.addDataFileWrite(dataFile, 3, System.nanoTime());
+		String summary = metrics.finishCommit(true);
+
+		assertTrue(summary.startsWith("1 data files, 3 lines in "));
+		assertEquals(1, metrics.getCommits());
+		List<String> lines = Files.readAllLines(log.toPath(), StandardCharsets.UTF_8);
+		assertEquals(1, lines.size());
+		String json = lines.get(0);
+		assertEquals(metrics.getLastCommit(), json);
+		assertTrue(json.startsWith("{\"time\":"));
+		assertTrue(json.contains(",\"succeeded\":true,\"database\":" + PerformanceMetrics.jsonString(database.getPath()) + ","));
+		assertTrue(json.contains(",\"bytesWritten\":5,"));
+		assertTrue(json.contains("\"phases\":{\"" + PerformanceMetrics.DATA_FILE_WRITE + "\":{\"calls\":1,"));
+		assertTrue(json.contains("\"" + PerformanceMetrics.SPLICE + "\":{\"calls\":1,"));
+		assertFalse(json.contains(PerformanceMetrics.CONTAINS));
+		assertTrue(json.endsWith(",\"dataFiles\":[{\"file\":" + PerformanceMetrics.jsonString(dataFile.getPath())
+				+ ",\"size\":0,\"lines\":3,\"millis\":0}]}"));
+	}
+
+	@Test
+	public void finishWithoutCommitLogsNothing() {
+		assertEquals("", metrics.finishCommit(true));
+		assertEquals(0, metrics.getCommits());
+		assertFalse(log.exists());
+	}
+
+	@Test
+	public void emptyLogPropertyTurnsLogOff() {
+		System.setProperty(LOG_PROPERTY, "");
+		assertNull(PerformanceMetrics.getLogFile());
+	}
+
+	@Test
+	public void jsonStringIsEscaped() {
+		assertEquals("\"a\\\"b\\\\c\\u000a\"", PerformanceMetrics.jsonString("a\"b\\c\n"));
+	}
+}
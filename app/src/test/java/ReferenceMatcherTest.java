@@ -0,0 +1,121 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for ReferenceMatcher: every occurrence of every pattern that is followed by a data end
+ * must be found, the same way whether Strings or encoded bytes are searched
+ */
+public class ReferenceMatcherTest {
+
+	private static final char[] DATA_END_CHARS = new char[] {'|', ','};
+
+	@Test
+	public void overlappingPatternsAreAllFoundLongestFirst() {
+		ReferenceMatcher matcher = new ReferenceMatcher(Arrays.asList("c", "abc", "bc", "x"), DATA_END_CHARS, 1);
+
+		assertEquals(Arrays.asList("abc@1", "bc@2", "c@3"), describe(matcher.findAll("xabc |")));
+	}
+
+	@Test
+	public void matchMustBeFollowedByDataEnd() {
+		ReferenceMatcher matcher = new ReferenceMatcher(Arrays.asList("abc"), DATA_END_CHARS, 1);
+
+		// there has to be a char after the match, and then a data end char or the end of the line
+		assertEquals(0, matcher.findAll("abc").size());
+		assertEquals(1, matcher.findAll("abc ").size());
+		assertEquals(1, matcher.findAll("abc |").size());
+		assertEquals(1, matcher.findAll("abc ,").size());
+		assertEquals(0, matcher.findAll("abc x").size());
+		assertEquals(Arrays.asList("abc@0", "abc@6"), describe(matcher.findAll("abc | abc ,")));
+	}
+
+	@Test
+	public void emptyPatternsAreIgnored() {
+		ReferenceMatcher matcher = new ReferenceMatcher(Arrays.asList("", "a"), DATA_END_CHARS, 1);
+
+		assertEquals(Arrays.asList("a@0"), describe(matcher.findAll("a |")));
+	}
+
+	@Test
+	public void bytesAndStringsGiveTheSameMatches() {
+		List<String> patterns = Arrays.asList("café", "é 1", "日本", "1.5", "v7 1.5", "é");
+		String[] lines = new String[] {"café | v7 1.5 ,", "日本語 | 日本 ,", "xé 1 |é |", "v7 1.5", "", "1.5 1.5 ,"};
+
+		for (Charset charset : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1}) {
+			ReferenceMatcher stringMatcher = new ReferenceMatcher(patterns, DATA_END_CHARS, 1);
+			ReferenceMatcher byteMatcher = new ReferenceMatcher(patterns, charset, DATA_END_CHARS, 1);
+			for (String line : lines) {
+				// ISO-8859-1 can't encode the Japanese lines
+				if (!charset.newEncoder().canEncode(line)) {
+					continue;
+				}
+
+				byte[] buf = ("#" + line + "\n").getBytes(charset);
+				assertEquals(patternsOf(stringMatcher.findAll(line)), patternsOf(byteMatcher.findAll(buf, 1, buf.length - 1)));
+			}
+		}
+	}
+
+	@Test
+	public void byteMatchPositionsAreIndicesIntoBuffer() {
+		ReferenceMatcher matcher = new ReferenceMatcher(Arrays.asList("été"), StandardCharsets.UTF_8, DATA_END_CHARS, 1);
+		byte[] buf = "abété |".getBytes(StandardCharsets.UTF_8);
+
+		List<ReferenceMatcher.Match> matches = matcher.findAll(buf, 0, buf.length);
+		assertEquals(1, matches.size());
+		assertEquals(2, matches.get(0).getStart());
+		assertEquals(7, matches.get(0).getEnd());
+		assertEquals(0, matches.get(0).getPatternIndex());
+	}
+
+	@Test
+	public void candidateIsFirstByteAPatternStartsWith() {
+		ReferenceMatcher matcher = new ReferenceMatcher(Arrays.asList("xyz", "qr"), StandardCharsets.UTF_8, DATA_END_CHARS, 1);
+		byte[] buf = "abcdqxyz".getBytes(StandardCharsets.UTF_8);
+
+		// "q" starts a pattern even though "qr" isn't there
+		assertEquals(4, matcher.findCandidate(buf, 0, buf.length));
+		assertEquals(5, matcher.findCandidate(buf, 5, buf.length));
+		// with no candidate the end is returned
+		assertEquals(3, matcher.findCandidate(buf, 0, 3));
+	}
+
+	@Test
+	public void supportedCharsets() {
+		assertTrue(ReferenceMatcher.isSupported(StandardCharsets.UTF_8));
+		assertTrue(ReferenceMatcher.isSupported(StandardCharsets.ISO_8859_1));
+		assertFalse(ReferenceMatcher.isSupported(StandardCharsets.UTF_16));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void stringMatcherDoesNotSearchBytes() {
+		new ReferenceMatcher(Arrays.asList("a"), DATA_END_CHARS, 1).findAll(new byte[] {'a'}, 0, 1);
+	}
+
+	private static List<String> describe(List<ReferenceMatcher.Match> matches) {
+		List<String> descriptions = new ArrayList<> ();
+		for (ReferenceMatcher.Match m : matches) {
+			descriptions.add(m.getPattern() + "@" + m.getStart());
+		}
+
+		return descriptions;
+	}
+
+	private static List<String> patternsOf(List<ReferenceMatcher.Match> matches) {
+		List<String> found = new ArrayList<> ();
+		for (ReferenceMatcher.Match m : matches) {
+			found.add(m.getPattern());
+		}
+
+		return found;
+	}
+}
@@ -0,0 +1,152 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for RingBuffer: it must behave like any other list, however far its elements have
+ * wrapped around the end of its array
+ */
+public class RingBufferTest {
+
+	@Test
+	public void oldestLineIsEvictedWhenFull() {
+		RingBuffer<String> lines = new RingBuffer<> (3);
+		for (int i = 0; i < 10; i++) {
+			if (lines.isFull()) {
+				assertEquals("line" + (i - 3), lines.removeFirst());
+			}
+			lines.addLast("line" + i);
+		}
+
+		assertEquals(3, lines.size());
+		assertEquals(3, lines.capacity());
+		assertEquals(Arrays.asList("line7", "line8", "line9"), lines);
+	}
+
+	@Test
+	public void addingToFullBufferFails() {
+		RingBuffer<String> lines = new RingBuffer<> (1);
+		lines.addLast("a");
+		try {
+			lines.addFirst("b");
+			fail("the buffer is full");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			lines.add(1, "b");
+			fail("the buffer is full");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		assertEquals(Arrays.asList("a"), lines);
+	}
+
+	@Test(expected = NoSuchElementException.class)
+	public void removeFirstOfEmptyBufferFails() {
+		new RingBuffer<String> (2).removeFirst();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void bufferWithNoCapacityHoldsNothing() {
+		RingBuffer<String> lines = new RingBuffer<> (0);
+		assertTrue(lines.isFull());
+		lines.addLast("a");
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void indexPastEndFails() {
+		RingBuffer<String> lines = new RingBuffer<> (4);
+		lines.addLast("a");
+		lines.get(1);
+	}
+
+	@Test
+	public void growingKeepsOrderAfterWrapping() {
+		RingBuffer<Integer> buffer = new RingBuffer<> (4);
+		buffer.addLast(2);
+		buffer.addLast(3);
+		// wraps around to the end of the array
+		buffer.addFirst(1);
+		buffer.addFirst(0);
+
+		buffer.ensureCapacity(6);
+		assertEquals(6, buffer.capacity());
+		assertFalse(buffer.isFull());
+		buffer.addLast(4);
+		buffer.addFirst(-1);
+		assertEquals(Arrays.asList(-1, 0, 1, 2, 3, 4), buffer);
+
+		// asking for less than it has changes nothing
+		buffer.ensureCapacity(2);
+		assertEquals(6, buffer.capacity());
+	}
+
+	@Test(expected = ConcurrentModificationException.class)
+	public void iteratorNoticesChanges() {
+		RingBuffer<Integer> buffer = new RingBuffer<> (4);
+		buffer.addLast(1);
+		buffer.addLast(2);
+		Iterator<Integer> it = buffer.iterator();
+		it.next();
+		buffer.removeFirst();
+		it.next();
+	}
+
+	@Test
+	public void randomOperationsMatchArrayList() {
+		Random random = new Random(7);
+		RingBuffer<Integer> buffer = new RingBuffer<> (5);
+		ArrayList<Integer> expected = new ArrayList<> ();
+
+		for (int n = 0; n < 20000; n++) {
+			int op = random.nextInt(9);
+			int value = random.nextInt(1000);
+			if (op <= 4 && buffer.isFull()) {
+				// make room the way the owners do, by evicting or growing
+				if (random.nextBoolean()) {
+					assertEquals(expected.remove(0), buffer.removeFirst());
+				} else {
+					buffer.ensureCapacity(buffer.capacity() + 1 + random.nextInt(3));
+				}
+			}
+
+			if (op == 0) {
+				buffer.addFirst(value);
+				expected.add(0, value);
+			} else if (op == 1 || op == 2) {
+				buffer.addLast(value);
+				expected.add(value);
+			} else if (op == 3 || op == 4) {
+				int index = random.nextInt(expected.size() + 1);
+				buffer.add(index, value);
+				expected.add(index, value);
+			} else if (op == 5 && !expected.isEmpty()) {
+				int index = random.nextInt(expected.size());
+				assertEquals(expected.remove(index), buffer.remove(index));
+			} else if (op == 6 && !expected.isEmpty()) {
+				assertEquals(expected.remove(0), buffer.removeFirst());
+			} else if (op == 7 && !expected.isEmpty()) {
+				int index = random.nextInt(expected.size());
+				assertEquals(expected.set(index, value), buffer.set(index, value));
+			} else if (op == 8 && random.nextInt(50) == 0) {
+				buffer.clear();
+				expected.clear();
+			}
+
+			assertEquals(expected.size(), buffer.size());
+			assertEquals(expected, buffer);
+		}
+	}
+}
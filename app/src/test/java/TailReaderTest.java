@@ -0,0 +1,131 @@
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for TailReader: reading backwards must give the same last lines as reading the whole
+ * file forwards, wherever the lines fall across the blocks it reads
+ */
+public class TailReaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private int numFiles;
+
+	@Test
+	public void lastLinesWithEveryKindOfLineBreak() throws IOException {
+		File file = newFile("first\nsecond\r\nthird\rfourth\n\n\r\nfifth\r\n", StandardCharsets.UTF_8);
+
+		assertEquals(Arrays.asList("third", "fourth", "fifth"), TailReader.readLastLines(file, 3, StandardCharsets.UTF_8));
+		assertEquals(Arrays.asList("first", "second", "third", "fourth", "fifth"), TailReader.readLastLines(file, 10, StandardCharsets.UTF_8));
+		assertEquals(0, TailReader.readLastLines(file, 0, StandardCharsets.UTF_8).size());
+	}
+
+	@Test
+	public void fileWithoutLineBreakAtEnd() throws IOException {
+		File file = newFile("first\nlast", StandardCharsets.UTF_8);
+
+		assertEquals(Arrays.asList("last"), TailReader.readLastLines(file, 1, StandardCharsets.UTF_8));
+		assertEquals(Arrays.asList("first", "last"), TailReader.readLastLines(file, 2, StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void emptyFileHasNoLines() throws IOException {
+		File file = newFile("", StandardCharsets.UTF_8);
+
+		assertEquals(0, TailReader.readLastLines(file, 5, StandardCharsets.UTF_8).size());
+		assertEquals(0L, TailReader.readLinesBefore(file, 0, 5, StandardCharsets.UTF_8, new RingBuffer<String> (5)));
+	}
+
+	@Test
+	public void linesAcrossBlocksAreWhole() throws IOException {
+		// a line longer than a block, and multi-byte chars that fall across block boundaries
+		StringBuilder longLine = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			longLine.append("é日");
+		}
+		String contents = "before\n" + longLine + "\nafter\n";
+		File file = newFile(contents, StandardCharsets.UTF_8);
+
+		assertEquals(Arrays.asList("before", longLine.toString(), "after"), TailReader.readLastLines(file, 3, StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void randomFilesMatchReadingForwards() throws IOException {
+		Random random = new Random(42);
+		String[] breaks = new String[] {"\n", "\r\n", "\r", "\n\n"};
+
+		for (int n = 0; n < 20; n++) {
+			StringBuilder contents = new StringBuilder();
+			int numLines = random.nextInt(400);
+			for (int i = 0; i < numLines; i++) {
+				int length = random.nextInt(i % 50 == 0 ? 10000 : 80);
+				for (int j = 0; j < length; j++) {
+					contents.append(random.nextInt(20) == 0 ? 'ü' : (char) ('a' + random.nextInt(26)));
+				}
+				contents.append(breaks[random.nextInt(breaks.length)]);
+			}
+
+			for (Charset charset : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1}) {
+				File file = newFile(contents.toString(), charset);
+				int wanted = random.nextInt(30);
+				List<String> expected = lastLines(contents.toString(), wanted);
+
+				assertEquals(expected, TailReader.readLastLines(file, wanted, charset));
+				byte[] bytes = Files.readAllBytes(file.toPath());
+				assertEquals(expected, TailReader.readLastLines(new ByteArrayInputStream(bytes), wanted, charset));
+			}
+		}
+	}
+
+	@Test
+	public void earlierLinesAreReadFromWhereTheLastReadStopped() throws IOException {
+		StringBuilder contents = new StringBuilder();
+		for (int i = 0; i < 3000; i++) {
+			contents.append("line ").append(i).append(i % 7 == 0 ? "\r\n\r\n" : "\n");
+		}
+		File file = newFile(contents.toString(), StandardCharsets.UTF_8);
+
+		RingBuffer<String> lines = new RingBuffer<> (10);
+		long start = TailReader.readLinesBefore(file, file.length(), 10, StandardCharsets.UTF_8, lines);
+		for (int i = 0; i < 5; i++) {
+			lines.ensureCapacity(lines.size() + 500);
+			start = TailReader.readLinesBefore(file, start, 500, StandardCharsets.UTF_8, lines);
+		}
+
+		assertEquals(lastLines(contents.toString(), 2510), lines);
+		assertEquals("line 490", lines.get(0));
+		assertEquals(contents.indexOf("\nline 490\r") + 1, start);
+	}
+
+	/**
+	 * Gets the last non-blank lines of some text by splitting all of it
+	 */
+	private static List<String> lastLines(String contents, int numLines) {
+		List<String> lines = new ArrayList<> ();
+		for (String line : contents.split("\r\n|\r|\n")) {
+			if (!line.isEmpty()) {
+				lines.add(line);
+			}
+		}
+
+		return lines.subList(Math.max(0, lines.size() - numLines), lines.size());
+	}
+
+	private File newFile(String contents, Charset charset) throws IOException {
+		return TempFiles.write(folder, "data" + numFiles++ + ".txt", contents, charset);
+	}
+}
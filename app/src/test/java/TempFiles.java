@@ -0,0 +1,54 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes the files the tests work on
+ */
+class TempFiles {
+
+	private TempFiles() {
+	}
+
+	/**
+	 * Writes a file in a temporary folder as UTF-8, replacing it if it is already there
+	 * @param folder: the folder
+	 * @param name: the name of the file
+	 * @param contents: the contents of the file
+	 * @return: the file
+	 * @throws IOException if the file can't be written
+	 */
+	static File write(TemporaryFolder folder, String name, String contents) throws IOException {
+		return write(folder, name, contents, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a file in a temporary folder, replacing it if it is already there
+	 * @param folder: the folder
+	 * @param name: the name of the file
+	 * @param contents: the contents of the file
+	 * @param charset: the charset to encode the contents in
+	 * @return: the file
+	 * @throws IOException if the file can't be written
+	 */
+	static File write(TemporaryFolder folder, String name, String contents, Charset charset) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		Files.write(file.toPath(), contents.getBytes(charset));
+		return file;
+	}
+
+	/**
+	 * Adds text to the end of a file as UTF-8, the way another program would
+	 * @param file: the file
+	 * @param text: the text to add
+	 * @throws IOException if the file can't be written
+	 */
+	static void append(File file, String text) throws IOException {
+		Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+	}
+}
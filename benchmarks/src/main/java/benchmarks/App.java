@@ -0,0 +1,124 @@
+package benchmarks;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.TreeMap;
+
+/**
+ * Calls into the program's classes. They live in the default package, which can't be imported
+ * from a named package, and JMH won't generate benchmarks in the default package, so the
+ * benchmarks reach them through method handles that are looked up once
+ */
+final class App {
+
+	private static final MethodHandle NEW_DATABASE_FILE;
+	private static final MethodHandle SET_PARALLELISM;
+	private static final MethodHandle CONTAINS;
+	private static final MethodHandle WRITE_NEW_DATA;
+	private static final MethodHandle NEW_DATA_FILE;
+	private static final MethodHandle GET_REF_LINE;
+	private static final MethodHandle ADD_LINE;
+	private static final MethodHandle GET_FORMATTED_NEW_LINES;
+	private static final MethodHandle WRITE;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> database = Class.forName("DatabaseFile");
+			Class<?> dataFile = Class.forName("DataFile");
+
+			NEW_DATABASE_FILE = lookup.findConstructor(database, MethodType.methodType(void.class, File.class));
+			SET_PARALLELISM = lookup.findVirtual(database, "setParallelism", MethodType.methodType(void.class, int.class));
+			CONTAINS = lookup.findVirtual(database, "contains", MethodType.methodType(boolean.class, String.class));
+			WRITE_NEW_DATA = lookup.findVirtual(database, "writeNewData", MethodType.methodType(boolean.class, TreeMap.class));
+			NEW_DATA_FILE = lookup.findConstructor(dataFile, MethodType.methodType(void.class, File.class, int.class, database));
+			GET_REF_LINE = lookup.findVirtual(dataFile, "getRefLine", MethodType.methodType(String.class));
+			ADD_LINE = lookup.findVirtual(dataFile, "addLine", MethodType.methodType(void.class, String.class));
+			GET_FORMATTED_NEW_LINES = lookup.findVirtual(dataFile, "getFormattedNewLines", MethodType.methodType(String.class));
+			WRITE = lookup.findVirtual(dataFile, "write", MethodType.methodType(void.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private App() {
+	}
+
+	static Object newDatabaseFile(File file, int parallelism) {
+		try {
+			Object database = NEW_DATABASE_FILE.invoke(file);
+			SET_PARALLELISM.invoke(database, parallelism);
+			return database;
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static boolean contains(Object database, String data) {
+		try {
+			return (boolean) CONTAINS.invoke(database, data);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static boolean writeNewData(Object database, TreeMap<String, String> refLinesToData) {
+		try {
+			return (boolean) WRITE_NEW_DATA.invoke(database, refLinesToData);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static Object newDataFile(File file, int linesFromEnd, Object database) {
+		try {
+			return NEW_DATA_FILE.invoke(file, linesFromEnd, database);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static String getRefLine(Object dataFile) {
+		try {
+			return (String) GET_REF_LINE.invoke(dataFile);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static void addLine(Object dataFile, String line) {
+		try {
+			ADD_LINE.invoke(dataFile, line);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static String getFormattedNewLines(Object dataFile) {
+		try {
+			return (String) GET_FORMATTED_NEW_LINES.invoke(dataFile);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	static void write(Object dataFile) {
+		try {
+			WRITE.invoke(dataFile);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	private static RuntimeException rethrow(Throwable t) {
+		if (t instanceof RuntimeException) {
+			return (RuntimeException) t;
+		}
+		if (t instanceof Error) {
+			throw (Error) t;
+		}
+		return new RuntimeException(t);
+	}
+}
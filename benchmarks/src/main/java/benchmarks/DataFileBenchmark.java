@@ -0,0 +1,116 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the data file side of the program: opening a data file, which reads its last
+ * lines and finds its reference line, building the lines to send to the database, and writing
+ * the new lines back to the file
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DataFileBenchmark {
+
+	// lines in the database file
+	@Param({"10000"})
+	public int rows;
+
+	// lines in the data file, all of which are read when it is opened
+	@Param({"10", "1000"})
+	public int tailLines;
+
+	// lines added to the data file before its new lines are built or written
+	@Param({"1", "100"})
+	public int newLines;
+
+	private SyntheticData data;
+	private Object database;
+	private File dataFile;
+	private Object withNewLines;
+
+	@Setup(Level.Trial)
+	public void setUpTrial() throws IOException {
+		data = new SyntheticData(rows, 256, 1, tailLines);
+		dataFile = data.getDataFiles().get(0);
+
+		// build the index up front so opening a data file only times the data file
+		database = App.newDatabaseFile(data.getDatabase(), 1);
+		App.contains(database, data.getRefLines().get(0));
+
+		withNewLines = App.newDataFile(dataFile, tailLines, database);
+		addNewLines(withNewLines);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() {
+		data.delete();
+	}
+
+	private void addNewLines(Object file) {
+		for (int i = 0; i < newLines; i++) {
+			App.addLine(file, "new reading " + i);
+		}
+	}
+
+	/**
+	 * Opens a data file, reading its last lines and finding its reference line
+	 */
+	@Benchmark
+	public String open() {
+		return App.getRefLine(App.newDataFile(dataFile, tailLines, database));
+	}
+
+	/**
+	 * Builds the block of new lines that is inserted into the database
+	 */
+	@Benchmark
+	public String getFormattedNewLines() {
+		return App.getFormattedNewLines(withNewLines);
+	}
+
+	/**
+	 * Writes the new lines to the end of a data file
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Measurement(iterations = 20)
+	public void write(Copy copy) {
+		App.write(copy.dataFile);
+	}
+
+	/**
+	 * A fresh copy of the data file for each invocation, with the new lines added to it
+	 */
+	@State(Scope.Thread)
+	public static class Copy {
+
+		private Object dataFile;
+
+		@Setup(Level.Invocation)
+		public void setUp(DataFileBenchmark benchmark) throws IOException {
+			File copy = benchmark.data.copy(benchmark.dataFile, "copy.txt");
+			dataFile = App.newDataFile(copy, benchmark.tailLines, benchmark.database);
+			benchmark.addNewLines(dataFile);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for the database side of the program: looking keys up with
+ * DatabaseFile.contains, with and without an index already built, and splicing new lines in
+ * with DatabaseFile.writeNewData. Cold lookups and writes change files on disk, so each
+ * invocation gets its own copy of the database from a Copy state and is timed on its own
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DatabaseBenchmark {
+
+	// lines in the database file
+	@Param({"10000", "100000"})
+	public int rows;
+
+	// rough length of each database line in chars
+	@Param({"256"})
+	public int lineLength;
+
+	// how many keys are looked up or written back, one for each data file
+	@Param({"1", "16"})
+	public int numKeys;
+
+	// threads used to scan the database file
+	@Param({"1", "4"})
+	public int parallelism;
+
+	private SyntheticData data;
+	private Object warmDatabase;
+	private List<String> keys;
+	private List<String> missingKeys;
+	private TreeMap<String, String> refLinesToData;
+
+	@Setup(Level.Trial)
+	public void setUpTrial() throws IOException {
+		data = new SyntheticData(rows, lineLength, numKeys, 64);
+		keys = data.getRefLines();
+		missingKeys = data.getMissingKeys();
+
+		refLinesToData = new TreeMap<>();
+		for (int i = 0; i < numKeys; i++) {
+			refLinesToData.put(keys.get(i), data.getNewLines().get(i) + "\n");
+		}
+
+		// the first lookup builds the index, after that everything comes from memory
+		warmDatabase = App.newDatabaseFile(data.getDatabase(), parallelism);
+		App.contains(warmDatabase, keys.get(0));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() {
+		data.delete();
+	}
+
+	/**
+	 * Looks up every key in a database that has never been read, which includes reading the
+	 * whole file and building and saving its index
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Measurement(iterations = 10)
+	public void containsCold(Copy copy, Blackhole bh) {
+		for (int i = 0; i < numKeys; i++) {
+			bh.consume(App.contains(copy.database, keys.get(i)));
+		}
+	}
+
+	/**
+	 * Looks up every key, and a key that isn't there for each one, once the index is built
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void containsWarm(Blackhole bh) {
+		for (int i = 0; i < numKeys; i++) {
+			bh.consume(App.contains(warmDatabase, keys.get(i)));
+			bh.consume(App.contains(warmDatabase, missingKeys.get(i)));
+		}
+	}
+
+	/**
+	 * Inserts a new line after every occurrence of every key, rewriting the whole file
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Measurement(iterations = 10)
+	public void writeNewData(Copy copy) {
+		App.writeNewData(copy.database, refLinesToData);
+	}
+
+	/**
+	 * A fresh copy of the database file for each invocation, with no saved index next to it
+	 */
+	@State(Scope.Thread)
+	public static class Copy {
+
+		private Object database;
+
+		@Setup(Level.Invocation)
+		public void setUp(DatabaseBenchmark benchmark) throws IOException {
+			File copy = benchmark.data.copy(benchmark.data.getDatabase(), "copy.csv");
+			// the saved index is numbered, as copy.csv.<n>.idx
+			for (File f : copy.getParentFile().listFiles()) {
+				if (f.getName().startsWith(copy.getName() + ".") && f.getName().endsWith(".idx")) {
+					f.delete();
+				}
+			}
+			database = App.newDatabaseFile(copy, benchmark.parallelism);
+		}
+	}
+}
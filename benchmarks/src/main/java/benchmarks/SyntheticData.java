@@ -0,0 +1,168 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates REDCap style database and data files for the benchmarks. The database has one
+ * record per line, made of a quoted record id followed by quoted fields separated by '|', where
+ * some of the fields are readings copied from the data files. Each data file is a list of readings, one per
+ * line, and its last lines are the ones most recently added to the database. Everything comes
+ * from a fixed seed so runs can be compared with each other
+ */
+final class SyntheticData {
+
+	private static final long SEED = 0x5EEDL;
+
+	private final File dir;
+	private final File database;
+	private final List<File> dataFiles = new ArrayList<>();
+	private final List<String> refLines = new ArrayList<>();
+	private final List<String> newLines = new ArrayList<>();
+	private final List<String> missingKeys = new ArrayList<>();
+
+	/**
+	 * @param rows: the number of lines in the database
+	 * @param lineLength: the rough length of each database line in chars
+	 * @param numDataFiles: the number of data files, and so the number of keys written back
+	 * @param tailLines: the number of lines in each data file
+	 * @throws IOException if the files can't be written
+	 */
+	SyntheticData(int rows, int lineLength, int numDataFiles, int tailLines) throws IOException {
+		Random random = new Random(SEED);
+		dir = Files.createTempDirectory("redcap-bench").toFile();
+		database = new File(dir, "database.csv");
+
+		// the readings in each data file. The last one in each is the newest one in the database
+		List<List<String>> readings = new ArrayList<>();
+		for (int f = 0; f < numDataFiles; f++) {
+			List<String> lines = new ArrayList<>();
+			for (int i = 0; i < tailLines; i++) {
+				lines.add(reading(random, f, i));
+			}
+			readings.add(lines);
+			refLines.add(lines.get(lines.size() - 1));
+			newLines.add(reading(random, f, tailLines));
+			missingKeys.add("missing-" + f + "-" + random.nextInt(1000000));
+
+			File dataFile = new File(dir, "data" + f + ".txt");
+			writeLines(dataFile, lines);
+			dataFiles.add(dataFile);
+		}
+
+		// spread the readings through the database so the reference lines are all over it
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(database), StandardCharsets.UTF_8), 1 << 16);
+		try {
+			StringBuilder line = new StringBuilder(lineLength + 32);
+			for (int r = 0; r < rows; r++) {
+				line.setLength(0);
+				line.append("\"record_").append(r).append('"');
+				// make sure every reference line is in the database at least once
+				if (r < numDataFiles) {
+					line.append("|\"").append(refLines.get(r)).append('"');
+				}
+				while (line.length() < lineLength) {
+					line.append("|\"");
+					if (numDataFiles > 0 && random.nextInt(8) == 0) {
+						List<String> lines = readings.get(random.nextInt(numDataFiles));
+						line.append(lines.get(random.nextInt(lines.size())));
+					} else {
+						line.append("field").append(random.nextInt(100000));
+					}
+					line.append('"');
+				}
+				out.write(line.toString());
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String reading(Random random, int file, int index) {
+		return "s" + file + "-" + index + " " + random.nextInt(1000) + "." + random.nextInt(100);
+	}
+
+	private static void writeLines(File file, List<String> lines) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+		try {
+			for (String line : lines) {
+				out.write(line);
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return: the generated database file
+	 */
+	File getDatabase() {
+		return database;
+	}
+
+	/**
+	 * @return: the generated data files
+	 */
+	List<File> getDataFiles() {
+		return dataFiles;
+	}
+
+	/**
+	 * @return: the last line of each data file, which are all in the database
+	 */
+	List<String> getRefLines() {
+		return refLines;
+	}
+
+	/**
+	 * @return: one line for each data file that is not yet in the database or the data file
+	 */
+	List<String> getNewLines() {
+		return newLines;
+	}
+
+	/**
+	 * @return: one key for each data file that is in neither the database nor the data file
+	 */
+	List<String> getMissingKeys() {
+		return missingKeys;
+	}
+
+	/**
+	 * Copies a generated file to a new file in the same directory
+	 * @param source: the file to copy
+	 * @param name: the name of the copy
+	 * @return: the copy
+	 * @throws IOException if the file can't be copied
+	 */
+	File copy(File source, String name) throws IOException {
+		File copy = new File(dir, name);
+		Files.copy(source.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return copy;
+	}
+
+	/**
+	 * Deletes the generated files
+	 */
+	void delete() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+}
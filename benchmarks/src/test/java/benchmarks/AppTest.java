@@ -0,0 +1,50 @@
+package benchmarks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Smoke test for the method handles the benchmarks call the program through. They are looked up
+ * by signature when App is loaded, so a change to one of the signatures would otherwise only
+ * show up as every benchmark failing
+ */
+public class AppTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void everyHandleCanBeCalled() throws IOException {
+		File database = folder.newFile("database.csv");
+		Files.write(database.toPath(), "1,old 1.5\n".getBytes(StandardCharsets.UTF_8));
+		File dataFile = folder.newFile("data.txt");
+		Files.write(dataFile.toPath(), "old 1.5\n".getBytes(StandardCharsets.UTF_8));
+
+		Object db = App.newDatabaseFile(database, 1);
+		assertTrue(App.contains(db, "old 1.5"));
+		assertFalse(App.contains(db, "new 2.5"));
+
+		Object df = App.newDataFile(dataFile, 10, db);
+		assertEquals("old 1.5", App.getRefLine(df));
+		App.addLine(df, "new 2.5");
+
+		TreeMap<String, String> refLinesToData = new TreeMap<>();
+		refLinesToData.put(App.getRefLine(df), App.getFormattedNewLines(df));
+		assertTrue(App.writeNewData(db, refLinesToData));
+		App.write(df);
+
+		assertEquals("1,old 1.5 | new 2.5\n", new String(Files.readAllBytes(database.toPath()), StandardCharsets.UTF_8));
+		assertTrue(new String(Files.readAllBytes(dataFile.toPath()), StandardCharsets.UTF_8).contains("new 2.5"));
+	}
+}
@@ -0,0 +1,466 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Merges new lines into a database file and its data files without the GUI, so that it can be
+ * run from scripts. The new lines for each data file are read from a staging file next to it,
+ * named after the data file with a suffix added (".pending" by default). All of the reference
+ * lines are found with one pass over the database file, the new lines of every data file are
+ * inserted into the database file with a single rewrite, and then each data file is written.
+ * <br>A summary of what happened to each data file is printed as a single JSON object, and the
+ * exit code says whether everything was merged
+ */
+public class BatchMerge {
+
+	// exit codes
+	public static final int EXIT_OK = 0;
+	public static final int EXIT_NOT_ALL_MERGED = 1;
+	public static final int EXIT_USAGE = 2;
+	public static final int EXIT_DATABASE_FAILED = 3;
+
+	// what happened to each data file
+	private static final String STATUS_MERGED = "merged";
+	private static final String STATUS_NO_PENDING = "no-pending-lines";
+	private static final String STATUS_NO_REF_LINE = "no-reference-line";
+	private static final String STATUS_NOT_WRITTEN = "database-not-written";
+	private static final String STATUS_WRITE_FAILED = "data-file-write-failed";
+	private static final String STATUS_READ_ONLY = "data-file-read-only";
+
+	private static final String DEFAULT_PENDING_SUFFIX = ".pending";
+	private static final int DEFAULT_LINES_FROM_END = 10;
+
+	private static final String USAGE = "Usage: java -jar redcap-data-adder.jar --database <file> [options] [<data file or directory>...]\n"
+			+ "Options:\n"
+			+ "  --database <file>        the database file to add the new lines to\n"
+			+ "  --list <file>            a file listing data files or directories, one per line\n"
+			+ "  --pending-suffix <text>  the suffix of the staging file holding the new lines for each\n"
+			+ "                           data file (default " + DEFAULT_PENDING_SUFFIX + ")\n"
+			+ "  --lines <n>              the number of lines from the end of each data file to look\n"
+			+ "                           for its reference line in (default " + DEFAULT_LINES_FROM_END + ")\n"
+			+ "  --threads <n>            the number of threads to scan the database file with\n"
+			+ "                           (default the number of processors)\n"
+			+ "  --charset <name>         the charset the database file is encoded in, UTF-8 or a\n"
+			+ "                           single byte charset (default UTF-8)\n"
+			+ "  --filter <rate>          look data up in a Bloom filter with this false positive rate,\n"
+			+ "                           less than 1, instead of the full index. For database files\n"
+			+ "                           whose index would take up too much memory. 0 uses the index\n"
+			+ "  --filter-memory <MB>     the most memory the Bloom filter may take up (default a\n"
+			+ "                           quarter of the most memory the JVM may use)\n"
+			+ "  --journal                append the new data to a journal next to the database file\n"
+			+ "                           instead of rewriting the database file\n"
+			+ "  --compression-level <n>  the level to compress rewritten .gz files at, from "
+			+ CompressedFiles.MIN_LEVEL + " to " + CompressedFiles.MAX_LEVEL + "\n"
+			+ "                           (default " + CompressedFiles.DEFAULT_LEVEL + ")\n"
+			+ "  --help                   print this message\n"
+			+ "With no arguments at all the program starts the GUI instead.\n"
+			+ "Exit codes: " + EXIT_OK + " everything was merged, " + EXIT_NOT_ALL_MERGED + " some data files couldn't be merged, "
+			+ EXIT_USAGE + " bad arguments, " + EXIT_DATABASE_FAILED + " the database file couldn't be written";
+
+	private File database;
+	private ArrayList<File> dataFiles = new ArrayList<> ();
+	private String pendingSuffix = DEFAULT_PENDING_SUFFIX;
+	private int linesFromEnd = DEFAULT_LINES_FROM_END;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private Charset charset = StandardCharsets.UTF_8;
+	private double filterRate;
+	private long filterMemoryLimit;
+	private boolean journal;
+	private int compressionLevel = CompressedFiles.DEFAULT_LEVEL;
+
+	/**
+	 * Runs a merge from the command line arguments
+	 * <br>pre: args != null && out != null && err != null
+	 * @param args: the command line arguments
+	 * @param out: where to print the summary
+	 * @param err: where to print usage and error messages
+	 * @return: the exit code
+	 */
+	public static int run(String[] args, PrintStream out, PrintStream err) {
+		if (Arrays.asList(args).contains("--help")) {
+			out.println(USAGE);
+			return EXIT_OK;
+		}
+
+		BatchMerge merge = new BatchMerge();
+		try {
+			merge.parseArgs(args);
+		} catch (IllegalArgumentException e) {
+			err.println(e.getMessage());
+			err.println(USAGE);
+			return EXIT_USAGE;
+		}
+
+		return merge.merge(out);
+	}
+
+	/**
+	 * Helper method to read the command line arguments
+	 * @param args: the command line arguments
+	 * @throws IllegalArgumentException if the arguments are missing or not valid
+	 */
+	private void parseArgs(String[] args) {
+		ArrayList<String> paths = new ArrayList<> ();
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+
+			if (arg.equals("--database")) {
+				database = new File(value(args, ++i, arg));
+			} else if (arg.equals("--list")) {
+				File list = new File(value(args, ++i, arg));
+				try {
+					for (String line : Files.readAllLines(list.toPath(), Charset.defaultCharset())) {
+						if (!line.trim().isEmpty()) {
+							paths.add(line.trim());
+						}
+					}
+				} catch (IOException e) {
+					throw new IllegalArgumentException("Couldn't read " + list + ": " + e);
+				}
+			} else if (arg.equals("--pending-suffix")) {
+				pendingSuffix = value(args, ++i, arg);
+				if (pendingSuffix.isEmpty()) {
+					throw new IllegalArgumentException("--pending-suffix may not be empty");
+				}
+			} else if (arg.equals("--lines")) {
+				linesFromEnd = positiveInt(value(args, ++i, arg), arg);
+			} else if (arg.equals("--threads")) {
+				threads = positiveInt(value(args, ++i, arg), arg);
+			} else if (arg.equals("--charset")) {
+				String name = value(args, ++i, arg);
+				try {
+					charset = Charset.forName(name);
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("Unknown charset " + name);
+				}
+				if (!ReferenceMatcher.isSupported(charset)) {
+					throw new IllegalArgumentException("--charset must be UTF-8 or a single byte charset, not " + name);
+				}
+			} else if (arg.equals("--filter")) {
+				filterRate = fraction(value(args, ++i, arg), arg);
+			} else if (arg.equals("--filter-memory")) {
+				filterMemoryLimit = (long) positiveInt(value(args, ++i, arg), arg) << 20;
+			} else if (arg.equals("--journal")) {
+				journal = true;
+			} else if (arg.equals("--compression-level")) {
+				compressionLevel = compressionLevel(value(args, ++i, arg), arg);
+			} else if (arg.startsWith("--")) {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			} else {
+				paths.add(arg);
+			}
+		}
+
+		if (database == null) {
+			throw new IllegalArgumentException("--database is required");
+		}
+		if (!database.isFile()) {
+			throw new IllegalArgumentException("Database file " + database + " doesn't exist");
+		}
+
+		// directories stand for every data file directly inside them, in name order
+		for (String path : paths) {
+			File f = new File(path);
+			if (f.isDirectory()) {
+				File[] children = f.listFiles();
+				Arrays.sort(children);
+				for (File child : children) {
+					if (child.isFile() && !child.isHidden() && !isWorkingFile(child)) {
+						dataFiles.add(child);
+					}
+				}
+			} else if (f.isFile()) {
+				dataFiles.add(f);
+			} else {
+				throw new IllegalArgumentException("Data file " + f + " doesn't exist");
+			}
+		}
+
+		if (dataFiles.isEmpty()) {
+			throw new IllegalArgumentException("No data files were given");
+		}
+	}
+
+	/**
+	 * Helper method to check if a file in a data file directory is one the program keeps for
+	 * itself rather than a data file: a staging file, the database file or its index or journal,
+	 * a manifest or temp file left by a commit that was interrupted, or the metrics log
+	 * @param file: the file
+	 * @return: true if the file isn't a data file, false otherwise
+	 */
+	private boolean isWorkingFile(File file) {
+		return file.getName().endsWith(pendingSuffix) || sameFile(file, database) || sameFile(file, PerformanceMetrics.getLogFile())
+				|| DatabaseIndex.isSidecar(file, database) || file.getName().startsWith(DatabaseJournal.journalFor(database).getName())
+				|| GroupCommit.isManifest(file) || DataFile.isTempFile(file) || DatabaseFile.isTempFile(file);
+	}
+
+	/**
+	 * Helper method to check if two paths are the same file, however they are written
+	 * @param a: the first path
+	 * @param b: the second path, or null
+	 * @return: true if both paths lead to the same file, false otherwise
+	 */
+	private static boolean sameFile(File a, File b) {
+		return b != null && a.toPath().toAbsolutePath().normalize().equals(b.toPath().toAbsolutePath().normalize());
+	}
+
+	/**
+	 * Helper method to get the value following an option
+	 * @param args: the command line arguments
+	 * @param i: the index of the value
+	 * @param option: the option the value is for
+	 * @return: the value
+	 * @throws IllegalArgumentException if there is no value
+	 */
+	private static String value(String[] args, int i, String option) {
+		if (i >= args.length) {
+			throw new IllegalArgumentException(option + " needs a value");
+		}
+
+		return args[i];
+	}
+
+	/**
+	 * Helper method to read a positive number given to an option
+	 * @param value: the text of the number
+	 * @param option: the option the number is for
+	 * @return: the number
+	 * @throws IllegalArgumentException if the text isn't a positive number
+	 */
+	private static int positiveInt(String value, String option) {
+		try {
+			int n = Integer.parseInt(value);
+			if (n > 0) {
+				return n;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+
+		throw new IllegalArgumentException(option + " must be a positive number");
+	}
+
+	/**
+	 * Helper method to read a compression level given to an option
+	 * @param value: the text of the level
+	 * @param option: the option the level is for
+	 * @return: the level
+	 * @throws IllegalArgumentException if the text isn't a valid compression level
+	 */
+	private static int compressionLevel(String value, String option) {
+		try {
+			int level = Integer.parseInt(value);
+			if (CompressedFiles.isValidLevel(level)) {
+				return level;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+
+		throw new IllegalArgumentException(option + " must be a number from " + CompressedFiles.MIN_LEVEL + " to " + CompressedFiles.MAX_LEVEL);
+	}
+
+	/**
+	 * Helper method to read a number from 0 up to but not including 1 given to an option
+	 * @param value: the text of the number
+	 * @param option: the option the number is for
+	 * @return: the number
+	 * @throws IllegalArgumentException if the text isn't a number at least 0 and less than 1
+	 */
+	private static double fraction(String value, String option) {
+		try {
+			double d = Double.parseDouble(value);
+			if (d >= 0 && d < 1) {
+				return d;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+
+		throw new IllegalArgumentException(option + " must be a number at least 0 and less than 1");
+	}
+
+	/**
+	 * Helper method to do the merge once the arguments have been read
+	 * @param out: where to print the summary
+	 * @return: the exit code
+	 */
+	private int merge(PrintStream out) {
+		long startTime = System.currentTimeMillis();
+		DatabaseFile databaseFile = new DatabaseFile(database);
+		databaseFile.setParallelism(threads);
+		databaseFile.setCharset(charset);
+		databaseFile.setFilterMode(filterRate);
+		if (filterMemoryLimit > 0) {
+			databaseFile.setFilterMemoryLimit(filterMemoryLimit);
+		}
+		databaseFile.setJournalMode(journal);
+		databaseFile.setCompressionLevel(compressionLevel);
+
+		String[] statuses = new String[dataFiles.size()];
+		int[] numLines = new int[dataFiles.size()];
+
+		// read the new lines for every data file that has any
+		ArrayList<File> toOpen = new ArrayList<> ();
+		ArrayList<List<String>> pending = new ArrayList<> ();
+		ArrayList<Integer> openedIndices = new ArrayList<> ();
+		for (int i = 0; i < dataFiles.size(); i++) {
+			List<String> lines = readPendingLines(dataFiles.get(i));
+			numLines[i] = lines.size();
+			if (lines.isEmpty()) {
+				statuses[i] = STATUS_NO_PENDING;
+			} else {
+				toOpen.add(dataFiles.get(i));
+				pending.add(lines);
+				openedIndices.add(i);
+			}
+		}
+
+		// find every reference line with one pass over the database file, and put together the
+		// data to insert after each one. Data files that share a reference line all have their
+		// lines inserted after it
+		ArrayList<DataFile> opened = DataFile.openAll(toOpen, linesFromEnd, databaseFile);
+		ArrayList<DataFile> toWrite = new ArrayList<> ();
+		ArrayList<Integer> toWriteIndices = new ArrayList<> ();
+		TreeMap<String, String> refLinesToData = new TreeMap<> ();
+		for (int j = 0; j < opened.size(); j++) {
+			DataFile df = opened.get(j);
+			int i = openedIndices.get(j);
+
+			if (df.getRefLine() == null) {
+				statuses[i] = STATUS_NO_REF_LINE;
+				continue;
+			}
+			// the new lines couldn't be written to a Word document afterwards
+			if (df.isDocument()) {
+				statuses[i] = STATUS_READ_ONLY;
+				continue;
+			}
+
+			for (String line : pending.get(j)) {
+				df.addLine(line);
+			}
+
+			String data = refLinesToData.get(df.getRefLine());
+			refLinesToData.put(df.getRefLine(), (data == null ? "" : data) + df.getFormattedNewLines());
+			toWrite.add(df);
+			toWriteIndices.add(i);
+		}
+
+		// insert everything into the database file at once while the data files are staged, and
+		// only write the data files once it has been
+		PerformanceMetrics metrics = PerformanceMetrics.get();
+		metrics.beginCommit(database);
+		boolean databaseWritten = new CommitPipeline(threads).commit(databaseFile, refLinesToData, toWrite);
+		for (int j = 0; j < toWrite.size(); j++) {
+			int i = toWriteIndices.get(j);
+			if (!databaseWritten) {
+				statuses[i] = STATUS_NOT_WRITTEN;
+				continue;
+			}
+
+			DataFile df = toWrite.get(j);
+			if (df.getNumLinesAdded() == 0) {
+				statuses[i] = STATUS_MERGED;
+				// the lines are in the data file now, so they mustn't be merged again next time
+				pendingFile(dataFiles.get(i)).delete();
+			} else {
+				statuses[i] = STATUS_WRITE_FAILED;
+			}
+		}
+
+		metrics.finishCommit(databaseWritten);
+		databaseFile.awaitCompaction();
+
+		int exitCode = !databaseWritten ? EXIT_DATABASE_FAILED : EXIT_OK;
+		for (String status : statuses) {
+			if (exitCode == EXIT_OK && !status.equals(STATUS_MERGED) && !status.equals(STATUS_NO_PENDING)) {
+				exitCode = EXIT_NOT_ALL_MERGED;
+			}
+		}
+
+		printSummary(out, statuses, numLines, databaseWritten, exitCode, System.currentTimeMillis() - startTime);
+		return exitCode;
+	}
+
+	/**
+	 * Helper method to get the staging file holding the new lines for a data file
+	 * @param dataFile: the data file
+	 * @return: the staging file, which may not exist
+	 */
+	private File pendingFile(File dataFile) {
+		return new File(dataFile.getPath() + pendingSuffix);
+	}
+
+	/**
+	 * Helper method to read the new lines for a data file from its staging file
+	 * @param dataFile: the data file
+	 * @return: the non-blank lines in the staging file, or an empty list if there isn't one
+	 */
+	private List<String> readPendingLines(File dataFile) {
+		ArrayList<String> lines = new ArrayList<> ();
+		File pendingFile = pendingFile(dataFile);
+		if (!pendingFile.isFile()) {
+			return lines;
+		}
+
+		try {
+			for (String line : Files.readAllLines(pendingFile.toPath(), Charset.defaultCharset())) {
+				if (!line.trim().isEmpty()) {
+					lines.add(line);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Helper method to print what happened as a single line of JSON
+	 * @param out: where to print the summary
+	 * @param statuses: what happened to each data file, parallel to dataFiles
+	 * @param numLines: the number of new lines for each data file, parallel to dataFiles
+	 * @param databaseWritten: whether the database file was written
+	 * @param exitCode: the exit code
+	 * @param elapsedMillis: how long the merge took
+	 */
+	private void printSummary(PrintStream out, String[] statuses, int[] numLines, boolean databaseWritten, int exitCode, long elapsedMillis) {
+		int numMerged = 0;
+		int linesMerged = 0;
+		StringBuilder files = new StringBuilder();
+		for (int i = 0; i < statuses.length; i++) {
+			if (statuses[i].equals(STATUS_MERGED)) {
+				numMerged++;
+				linesMerged += numLines[i];
+			}
+
+			if (i > 0) {
+				files.append(',');
+			}
+			files.append("{\"path\":").append(PerformanceMetrics.jsonString(dataFiles.get(i).getPath()));
+			files.append(",\"status\":").append(PerformanceMetrics.jsonString(statuses[i]));
+			files.append(",\"lines\":").append(numLines[i]).append('}');
+		}
+
+		StringBuilder summary = new StringBuilder();
+		summary.append("{\"database\":").append(PerformanceMetrics.jsonString(database.getPath()));
+		summary.append(",\"databaseWritten\":").append(databaseWritten);
+		summary.append(",\"dataFiles\":").append(statuses.length);
+		summary.append(",\"merged\":").append(numMerged);
+		summary.append(",\"linesMerged\":").append(linesMerged);
+		summary.append(",\"elapsedMillis\":").append(elapsedMillis);
+		summary.append(",\"exitCode\":").append(exitCode);
+		summary.append(",\"files\":[").append(files).append("]}");
+		out.println(summary);
+	}
+}
@@ -0,0 +1,238 @@
+import java.util.ArrayList;
+
+/**
+ * Bloom filter of the data tokens of a database file, for databases whose full index would not
+ * fit in memory. It can tell for certain that a token is not in the file, but only that a token
+ * probably is. It takes about 1.2 bytes per distinct token at a 1% false positive rate, where
+ * the index takes 24 or more.
+ * <br>The number of tokens doesn't have to be known in advance: the filter is made of stages,
+ * each holding twice as many tokens as the one before with half its false positive rate, and a
+ * new stage is started whenever the last one is full, so the overall false positive rate stays
+ * under the rate the filter was made for (a scalable Bloom filter).
+ * <br>Stages stop being added once they could hold every token the filter was told to expect,
+ * or once the next one would take the filter over its memory limit. After that the last stage
+ * keeps taking tokens past what it was sized for, so its false positive rate rises instead of
+ * the memory used
+ */
+public class BloomFilter implements TokenSink {
+
+	private static final long INITIAL_CAPACITY = 1 << 16;
+	// the false positive rate of each stage compared to the stage before it
+	private static final double TIGHTENING_RATIO = 0.5;
+
+	private double falsePositiveRate;
+	private long maxTokens;
+	private long maxBytes;
+	private ArrayList<Stage> stages = new ArrayList<> ();
+
+	/**
+	 * Constructor for BloomFilter. Creates an empty filter
+	 * <br>pre: 0 < falsePositiveRate < 1 && maxTokens > 0 && maxBytes >= 8
+	 * @param falsePositiveRate: the highest fraction of tokens that aren't in the filter that it
+	 * may report as being in it, as long as it is within its limits
+	 * @param maxTokens: the most distinct tokens that will be added, or an upper bound on it
+	 * @param maxBytes: the most memory the filter's bits may take up
+	 */
+	public BloomFilter(double falsePositiveRate, long maxTokens, long maxBytes) {
+		if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+		}
+		if (maxTokens <= 0 || maxBytes < 8) {
+			throw new IllegalArgumentException("maxTokens must be positive and maxBytes at least 8");
+		}
+
+		this.falsePositiveRate = falsePositiveRate;
+		this.maxTokens = maxTokens;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return: the false positive rate the filter was made for
+	 */
+	public double getFalsePositiveRate() {
+		return falsePositiveRate;
+	}
+
+	/**
+	 * @return: the most distinct tokens the filter was told to expect
+	 */
+	public long getMaxTokens() {
+		return maxTokens;
+	}
+
+	/**
+	 * @return: the most memory the filter may take up
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Adds a token to the filter
+	 * @param buf: the buffer holding the encoded token
+	 * @param start: the index of the first byte of the token
+	 * @param end: the index just after the last byte of the token
+	 * @param line: not used, since the filter doesn't record where tokens are
+	 */
+	public void addToken(byte[] buf, int start, int end, int line) {
+		long h = DatabaseIndex.hash(buf, start, end);
+
+		// a token that is already in the filter doesn't take up any more room, so it isn't
+		// counted towards filling the last stage
+		if (mightContain(h)) {
+			return;
+		}
+
+		Stage last = stages.isEmpty() ? null : stages.get(stages.size() - 1);
+		if (last == null) {
+			// the first stage is cut down to fit in the memory limit if it has to be
+			last = new Stage(Math.min(INITIAL_CAPACITY, maxTokens), falsePositiveRate * (1 - TIGHTENING_RATIO), maxBytes);
+			stages.add(last);
+		} else if (last.count >= last.capacity && getCapacity() < maxTokens) {
+			long capacity = last.capacity * 2;
+			double rate = last.falsePositiveRate * TIGHTENING_RATIO;
+			if (getSizeInBytes() + Stage.sizeInBytes(capacity, rate) <= maxBytes) {
+				last = new Stage(capacity, rate, maxBytes);
+				stages.add(last);
+			}
+		}
+		last.add(h);
+	}
+
+	/**
+	 * Helper method to get the number of tokens the stages are sized for altogether
+	 * @return: the total capacity of the stages
+	 */
+	private long getCapacity() {
+		long capacity = 0;
+		for (Stage stage : stages) {
+			capacity += stage.capacity;
+		}
+
+		return capacity;
+	}
+
+	/**
+	 * Checks if a token may be in the filter
+	 * @param buf: the buffer holding the encoded token
+	 * @param start: the index of the first byte of the token
+	 * @param end: the index just after the last byte of the token
+	 * @return: false if the token was definitely never added, true if it probably was
+	 */
+	public boolean mightContainToken(byte[] buf, int start, int end) {
+		return mightContain(DatabaseIndex.hash(buf, start, end));
+	}
+
+	/**
+	 * Helper method to check if a token hash may be in any stage of the filter
+	 * @param h: the hash of the token
+	 * @return: false if the token was definitely never added, true if it probably was
+	 */
+	private boolean mightContain(long h) {
+		for (int i = 0; i < stages.size(); i++) {
+			if (stages.get(i).contains(h)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Adds every token in another filter to this one, by taking over its stages. The false
+	 * positive rates and memory of the two filters add up, so filters built in parallel to be
+	 * put together should each be made for their share of the rate and memory wanted
+	 * @param other: the filter to add. It must not be used afterwards
+	 */
+	public void addAll(BloomFilter other) {
+		stages.addAll(other.stages);
+	}
+
+	/**
+	 * @return: the number of bytes the filter takes up
+	 */
+	public long getSizeInBytes() {
+		long size = 0;
+		for (Stage stage : stages) {
+			size += 8L * stage.bits.length;
+		}
+
+		return size;
+	}
+
+	/**
+	 * One fixed size Bloom filter
+	 */
+	private static class Stage {
+
+		private long[] bits;
+		private long numBits;
+		private int numHashes;
+		// how many distinct tokens the stage is sized for, and how many it holds
+		private long capacity;
+		private long count;
+		private double falsePositiveRate;
+
+		/**
+		 * Constructor for Stage. Sizes the stage so that it has the specified false positive
+		 * rate once it holds capacity tokens, or as close to it as fits in maxBytes
+		 * @param capacity: the number of tokens the stage is for
+		 * @param falsePositiveRate: the false positive rate of the stage when it is full
+		 * @param maxBytes: the most memory the stage may take up
+		 */
+		private Stage(long capacity, double falsePositiveRate, long maxBytes) {
+			this.capacity = capacity;
+			this.falsePositiveRate = falsePositiveRate;
+
+			// the optimal number of bits for the capacity and rate, and the number of hashes
+			// that is best for the bits there is room for
+			long words = Math.min(sizeInBytes(capacity, falsePositiveRate), maxBytes) / 8;
+			bits = new long[(int) Math.min(Math.max(1, words), Integer.MAX_VALUE - 8)];
+			numBits = 64L * bits.length;
+			numHashes = Math.max(1, (int) Math.round((double) numBits / capacity * Math.log(2)));
+		}
+
+		/**
+		 * Helper method to get the memory a stage takes up
+		 * @param capacity: the number of tokens the stage is for
+		 * @param falsePositiveRate: the false positive rate of the stage when it is full
+		 * @return: the number of bytes of bits the stage needs
+		 */
+		private static long sizeInBytes(long capacity, double falsePositiveRate) {
+			double ln2 = Math.log(2);
+			long wantedBits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+			return 8 * Math.max(1, (wantedBits + 63) / 64);
+		}
+
+		/**
+		 * Helper method to set the bits of a token hash
+		 * @param h: the hash of the token
+		 */
+		private void add(long h) {
+			// the bits are picked by combining two halves of the hash (double hashing)
+			long h2 = Long.rotateLeft(h, 32) | 1;
+			for (int i = 0; i < numHashes; i++) {
+				long bit = ((h + i * h2) & Long.MAX_VALUE) % numBits;
+				bits[(int) (bit >>> 6)] |= 1L << bit;
+			}
+			count++;
+		}
+
+		/**
+		 * Helper method to check if every bit of a token hash is set
+		 * @param h: the hash of the token
+		 * @return: true if all of the bits are set
+		 */
+		private boolean contains(long h) {
+			long h2 = Long.rotateLeft(h, 32) | 1;
+			for (int i = 0; i < numHashes; i++) {
+				long bit = ((h + i * h2) & Long.MAX_VALUE) % numBits;
+				if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,455 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads a file as raw bytes one line at a time without decoding it. The file is split into
+ * chunks that each start at the beginning of a line, and the chunks are handled in parallel
+ * on a ForkJoinPool, each by its own LineHandler, so the results can be put back together in
+ * the order they occur in the file.
+ * <br>A scanner can also read a CSV file one record at a time, where a line break between
+ * quotes doesn't end the record. Records are then handed to the LineHandler in place of lines,
+ * and the chunks each start at the beginning of a record
+ */
+public class ChunkedScanner {
+
+	private static final int BLOCK_SIZE = 1 << 16;
+	// chunks smaller than this aren't worth handing to another thread
+	private static final long MIN_CHUNK_SIZE = 1 << 20;
+	// how many chunks to make for each thread, so a slow chunk doesn't hold everything up
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private int parallelism;
+	private TaskProgress progress;
+	// whether line breaks between quotes are part of the line
+	private boolean quotedRecords;
+
+	/**
+	 * Constructor for ChunkedScanner
+	 * <br>pre: parallelism > 0
+	 * @param parallelism: the number of threads to handle chunks with. If 1, everything is
+	 * handled on the calling thread
+	 * @param progress: where to report the bytes read and check for cancellation, or null
+	 */
+	public ChunkedScanner(int parallelism, TaskProgress progress) {
+		this(parallelism, progress, false);
+	}
+
+	/**
+	 * Constructor for ChunkedScanner
+	 * <br>pre: parallelism > 0
+	 * @param parallelism: the number of threads to handle chunks with. If 1, everything is
+	 * handled on the calling thread
+	 * @param progress: where to report the bytes read and check for cancellation, or null
+	 * @param quotedRecords: true to read CSV records, which only end at line breaks that have
+	 * an even number of quotes before them in the record, false to read plain lines
+	 */
+	public ChunkedScanner(int parallelism, TaskProgress progress, boolean quotedRecords) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("parallelism must be positive");
+		}
+
+		this.parallelism = parallelism;
+		this.progress = progress;
+		this.quotedRecords = quotedRecords;
+	}
+
+	/**
+	 * Splits a file into chunks that each start at the beginning of a line
+	 * <br>pre: in != null
+	 * @param in: the channel of the file to split
+	 * @return: the boundaries of the chunks in order, starting with 0 and ending with the size
+	 * of the file. Chunk i covers the positions from element i up to element i + 1
+	 * @throws IOException if the file can't be read
+	 */
+	public long[] findChunkBounds(FileChannel in) throws IOException {
+		return findChunkBounds(in, 0, in.size());
+	}
+
+	/**
+	 * Splits part of a file into chunks that each start at the beginning of a line, or of a
+	 * record if this scanner reads records
+	 * <br>pre: in != null && 0 <= from <= to and from is the start of a line or record
+	 * @param in: the channel of the file to split
+	 * @param from: the position to start at
+	 * @param to: the position to end at
+	 * @return: the boundaries of the chunks in order, starting with from and ending with to.
+	 * Chunk i covers the positions from element i up to element i + 1
+	 * @throws IOException if the file can't be read
+	 */
+	public long[] findChunkBounds(FileChannel in, long from, long to) throws IOException {
+		long size = to - from;
+		int numChunks = (int) Math.max(1, Math.min((long) parallelism * CHUNKS_PER_THREAD, size / MIN_CHUNK_SIZE));
+		if (parallelism == 1) {
+			numChunks = 1;
+		}
+
+		long[] bounds = new long[numChunks + 1];
+		bounds[0] = from;
+		int numBounds = 1;
+		ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+		// move each evenly spaced boundary forward to just after the next line break
+		for (int i = 1; i < numChunks; i++) {
+			long bound = Math.max(from + size * i / numChunks, bounds[numBounds - 1]);
+			bound = nextLineStart(in, bound, block);
+
+			// a very long line can swallow a whole chunk
+			if (bound > bounds[numBounds - 1] && bound < to) {
+				bounds[numBounds++] = bound;
+			}
+		}
+
+		bounds[numBounds++] = to;
+		bounds = Arrays.copyOf(bounds, numBounds);
+
+		return quotedRecords && bounds.length > 2 ? alignToRecords(in, bounds, block) : bounds;
+	}
+
+	/**
+	 * Helper method to move chunk boundaries that are in the middle of a record forward to the
+	 * start of the next record. A line break ends a record if an even number of quotes come
+	 * before it, so the quotes in every chunk are counted in parallel first to find out which
+	 * boundaries are between quotes
+	 * @param in: the channel of the file
+	 * @param bounds: the line-aligned chunk boundaries, starting at the start of a record
+	 * @param block: a buffer to read into
+	 * @return: the record-aligned chunk boundaries
+	 * @throws IOException if the file can't be read
+	 */
+	private long[] alignToRecords(FileChannel in, long[] bounds, ByteBuffer block) throws IOException {
+		ArrayList<QuoteCounter> counters = new ArrayList<> ();
+		for (int i = 0; i < bounds.length - 1; i++) {
+			counters.add(new QuoteCounter());
+		}
+		new ChunkedScanner(parallelism, null).scan(in, bounds, counters);
+
+		long[] aligned = new long[bounds.length];
+		aligned[0] = bounds[0];
+		int numAligned = 1;
+		boolean inQuotes = false;
+		long to = bounds[bounds.length - 1];
+
+		for (int i = 1; i < bounds.length - 1; i++) {
+			inQuotes ^= (counters.get(i - 1).numQuotes & 1) == 1;
+			long bound = inQuotes ? nextRecordStart(in, bounds[i], block) : bounds[i];
+
+			// a very long record can swallow a whole chunk
+			if (bound > aligned[numAligned - 1] && bound < to) {
+				aligned[numAligned++] = bound;
+			}
+		}
+
+		aligned[numAligned++] = to;
+		return Arrays.copyOf(aligned, numAligned);
+	}
+
+	/**
+	 * Helper method to find the start of the next record after a position that is between quotes
+	 * @param in: the channel of the file
+	 * @param pos: the position to start looking at, which is between quotes
+	 * @param block: a buffer to read into
+	 * @return: the position just after the first line break after pos that isn't between
+	 * quotes, or the size of the file if there is none
+	 * @throws IOException if the file can't be read
+	 */
+	private long nextRecordStart(FileChannel in, long pos, ByteBuffer block) throws IOException {
+		boolean inQuotes = true;
+		while (true) {
+			block.clear();
+			int read = in.read(block, pos);
+			if (read <= 0) {
+				return in.size();
+			}
+
+			for (int i = 0; i < read; i++) {
+				byte b = block.get(i);
+				if (b == '"') {
+					inQuotes = !inQuotes;
+				} else if ((b == '\n' || b == '\r') && !inQuotes) {
+					return pos + i + 1;
+				}
+			}
+			pos += read;
+		}
+	}
+
+	/**
+	 * Helper method to find the start of the first line that starts at or after a position
+	 * @param in: the channel of the file
+	 * @param pos: the position to start looking at
+	 * @param block: a buffer to read into
+	 * @return: the position just after the first line break at or after pos - 1, or the size
+	 * of the file if there is none
+	 * @throws IOException if the file can't be read
+	 */
+	private long nextLineStart(FileChannel in, long pos, ByteBuffer block) throws IOException {
+		if (pos == 0) {
+			return 0;
+		}
+
+		// a line starts at pos if the byte before it is a line break
+		pos--;
+		while (true) {
+			block.clear();
+			int read = in.read(block, pos);
+			if (read <= 0) {
+				return in.size();
+			}
+
+			for (int i = 0; i < read; i++) {
+				byte b = block.get(i);
+				if (b == '\n' || b == '\r') {
+					return pos + i + 1;
+				}
+			}
+			pos += read;
+		}
+	}
+
+	/**
+	 * Handles every line in each chunk of a file with that chunk's handler. Chunks are handled
+	 * in parallel unless this scanner was made with a parallelism of 1
+	 * <br>pre: in != null && bounds came from findChunkBounds for the same file &&
+	 * handlers.size() == bounds.length - 1
+	 * @param in: the channel of the file
+	 * @param bounds: the boundaries of the chunks
+	 * @param handlers: the handler for each chunk
+	 * @throws IOException if the file can't be read
+	 * @throws CancellationException if the scan was cancelled through its TaskProgress
+	 */
+	public void scan(FileChannel in, long[] bounds, List<? extends LineHandler> handlers) throws IOException {
+		if (handlers.size() != bounds.length - 1) {
+			throw new IllegalArgumentException("There must be one handler for each chunk");
+		}
+
+		if (progress != null) {
+			progress.addTotal(bounds[bounds.length - 1] - bounds[0]);
+		}
+
+		if (parallelism == 1 || handlers.size() == 1) {
+			for (int i = 0; i < handlers.size(); i++) {
+				forEach(in, bounds[i], bounds[i + 1], handlers.get(i), progress, quotedRecords);
+			}
+			return;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new ChunkTask(in, bounds, handlers, 0, handlers.size(), progress, quotedRecords));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Goes through part of a file one line at a time without decoding it. The part must start
+	 * at the beginning of a line. Both "\n" and "\r" end a line, so "\r\n" is followed by an
+	 * empty line
+	 * <br>pre: in != null && handler != null && 0 <= from <= to
+	 * @param in: the channel of the file
+	 * @param from: the position in the file to start at
+	 * @param to: the position in the file to stop at
+	 * @param handler: the handler to give each line to
+	 * @param progress: where to report the bytes read and check for cancellation, or null
+	 * @throws IOException if the file can't be read
+	 * @throws CancellationException if the scan was cancelled through progress
+	 */
+	public static void forEachLine(FileChannel in, long from, long to, LineHandler handler, TaskProgress progress) throws IOException {
+		forEach(in, from, to, handler, progress, false);
+	}
+
+	/**
+	 * Goes through part of a CSV file one record at a time without decoding it. The part must
+	 * start at the beginning of a record. A record ends at a "\n" or "\r" that has an even
+	 * number of quotes before it in the record, so "\r\n" is followed by an empty record
+	 * <br>pre: in != null && handler != null && 0 <= from <= to
+	 * @param in: the channel of the file
+	 * @param from: the position in the file to start at
+	 * @param to: the position in the file to stop at
+	 * @param handler: the handler to give each record to
+	 * @param progress: where to report the bytes read and check for cancellation, or null
+	 * @throws IOException if the file can't be read
+	 * @throws CancellationException if the scan was cancelled through progress
+	 */
+	public static void forEachRecord(FileChannel in, long from, long to, LineHandler handler, TaskProgress progress) throws IOException {
+		forEach(in, from, to, handler, progress, true);
+	}
+
+	/**
+	 * Goes through the rest of a stream one CSV record at a time, for files such as compressed
+	 * ones that can only be read from the start. The stream must be at the beginning of a record
+	 * <br>pre: in != null && handler != null && from >= 0
+	 * @param in: the stream to read
+	 * @param from: the position in the file of the next byte of the stream, which is what the
+	 * positions given to the handler count from
+	 * @param handler: the handler to give each record to
+	 * @param progress: where to check for cancellation, or null. The bytes read aren't reported,
+	 * since they may not be the bytes read from the file
+	 * @throws IOException if the stream can't be read
+	 * @throws CancellationException if the scan was cancelled through progress
+	 */
+	public static void forEachRecord(InputStream in, long from, LineHandler handler, TaskProgress progress) throws IOException {
+		forEach(Channels.newChannel(in), from, Long.MAX_VALUE, handler, progress, true);
+	}
+
+	/**
+	 * Helper method to go through part of a file one line or record at a time
+	 * @param in: the channel of the file. A FileChannel is read from the positions given, so it
+	 * can be shared between threads, and any other channel is read from wherever it is up to
+	 * @param from: the position in the file to start at
+	 * @param to: the position in the file to stop at
+	 * @param handler: the handler to give each line or record to
+	 * @param progress: where to report the bytes read from a FileChannel and check for
+	 * cancellation, or null
+	 * @param quotedRecords: whether line breaks between quotes are part of the line
+	 * @throws IOException if the file can't be read
+	 */
+	private static void forEach(ReadableByteChannel in, long from, long to, LineHandler handler, TaskProgress progress, boolean quotedRecords) throws IOException {
+		byte[] buf = new byte[BLOCK_SIZE];
+		int filled = 0;
+		// the position in the file of buf[0]
+		long bufOffset = from;
+		long pos = from;
+		PerformanceMetrics metrics = PerformanceMetrics.get();
+		long numLines = 0;
+		// whether the scan is between quotes. Only tracked when reading records
+		boolean inQuotes = false;
+
+		while (pos < to) {
+			if (progress != null) {
+				progress.checkCancelled();
+			}
+			
+			// fill the rest of the buffer from the file
+			ByteBuffer bb = ByteBuffer.wrap(buf, filled, (int) Math.min(buf.length - filled, to - pos));
+			int read = in instanceof FileChannel ? ((FileChannel) in).read(bb, pos) : in.read(bb);
+			if (read == -1) {
+				break;
+			}
+			pos += read;
+			metrics.addBytesRead(read);
+			if (progress != null && in instanceof FileChannel) {
+				progress.addProcessed(read);
+			}
+
+			// hand off every complete line in the buffer
+			int lineStart = 0;
+			for (int i = filled; i < filled + read; i++) {
+				if (quotedRecords && buf[i] == '"') {
+					inQuotes = !inQuotes;
+				} else if ((buf[i] == '\n' || buf[i] == '\r') && !inQuotes) {
+					numLines++;
+					if (!handler.handleLine(buf, lineStart, i, bufOffset)) {
+						metrics.addLinesScanned(numLines);
+						return;
+					}
+					lineStart = i + 1;
+				}
+			}
+			filled += read;
+
+			// move the incomplete line at the end to the front of the buffer, making the buffer
+			// bigger if the line doesn't leave room to read more
+			if (lineStart == 0 && filled == buf.length) {
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			} else {
+				System.arraycopy(buf, lineStart, buf, 0, filled - lineStart);
+				filled -= lineStart;
+				bufOffset += lineStart;
+			}
+		}
+
+		// the last line may not have a line break
+		if (filled > 0) {
+			numLines++;
+			handler.handleLine(buf, 0, filled, bufOffset);
+		}
+		metrics.addLinesScanned(numLines);
+	}
+
+	/**
+	 * Handler for each line of a file as it is read without decoding it
+	 */
+	public interface LineHandler {
+		/**
+		 * @param buf: the buffer holding the line. Only valid until this method returns
+		 * @param start: the index of the first byte of the line
+		 * @param end: the index just after the last byte of the line, not including the line break
+		 * @param bufOffset: the position in the file of buf[0]
+		 * @return: true to keep going, false to stop reading this chunk
+		 */
+		boolean handleLine(byte[] buf, int start, int end, long bufOffset);
+	}
+
+	/**
+	 * Fork/join task that handles a range of chunks, splitting the range in half until there is
+	 * only one chunk left
+	 */
+	private static class ChunkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = -3197846573207634515L;
+
+		private FileChannel in;
+		private long[] bounds;
+		private List<? extends LineHandler> handlers;
+		private int from;
+		private int to;
+		private TaskProgress progress;
+		private boolean quotedRecords;
+
+		private ChunkTask(FileChannel in, long[] bounds, List<? extends LineHandler> handlers, int from, int to, TaskProgress progress, boolean quotedRecords) {
+			this.in = in;
+			this.bounds = bounds;
+			this.handlers = handlers;
+			this.from = from;
+			this.to = to;
+			this.progress = progress;
+			this.quotedRecords = quotedRecords;
+		}
+
+		protected void compute() {
+			if (to - from == 1) {
+				try {
+					forEach(in, bounds[from], bounds[to], handlers.get(from), progress, quotedRecords);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return;
+			}
+
+			int mid = (from + to) / 2;
+			invokeAll(new ChunkTask(in, bounds, handlers, from, mid, progress, quotedRecords),
+					new ChunkTask(in, bounds, handlers, mid, to, progress, quotedRecords));
+		}
+	}
+
+	/**
+	 * Line handler that counts the quotes in one chunk of a file
+	 */
+	private static class QuoteCounter implements LineHandler {
+
+		private long numQuotes;
+
+		public boolean handleLine(byte[] buf, int start, int end, long bufOffset) {
+			for (int i = start; i < end; i++) {
+				if (buf[i] == '"') {
+					numQuotes++;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Commits new lines to the database file and to the data files they came from. The new
+ * contents of every data file are staged on a bounded pool of threads while the database file
+ * is being searched and written, so the disc work for all of the files overlaps and a commit
+ * takes about as long as its slowest file rather than all of them one after another. The
+ * database file and the staged data files are then put in place together in one group commit,
+ * which forces them all to disc in a single pass before any of them takes effect. If anything
+ * couldn't be written, none of the files are changed, so the data files never show lines as
+ * committed that aren't in the database file, and the database file never has lines the data
+ * files don't
+ */
+public class CommitPipeline {
+
+	private int parallelism;
+
+	/**
+	 * Constructor for CommitPipeline
+	 * <br>pre: parallelism > 0
+	 * @param parallelism: the most data files to stage at the same time
+	 */
+	public CommitPipeline(int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("parallelism must be positive");
+		}
+
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Inserts data into the database file and writes the new lines of each data file
+	 * <br>pre: database != null && refLinesToData != null && dataFiles != null
+	 * <br>post: if the group commit was committed, the database file and each data file that
+	 * could be staged have been written, and those data files have no new lines left. Otherwise
+	 * none of the files have been changed
+	 * @param database: the database file to insert the data into
+	 * @param refLinesToData: the data to insert after each reference line, as for
+	 * DatabaseFile.writeNewData. If empty, only the data files are written
+	 * @param dataFiles: the data files to write
+	 * @return: true if the files were written, false otherwise
+	 * @throws CancellationException if the database file's progress was cancelled while it was
+	 * being searched, in which case none of the files have been changed
+	 */
+	public boolean commit(DatabaseFile database, TreeMap<String, String> refLinesToData, final List<DataFile> dataFiles) {
+		// start staging every data file, which doesn't depend on the database file
+		final ArrayList<Future<Boolean>> staging = new ArrayList<> ();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, dataFiles.size())));
+		try {
+			for (final DataFile df : dataFiles) {
+				staging.add(pool.submit(new Callable<Boolean>() {
+					public Boolean call() {
+						return df.stage();
+					}
+				}));
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		// the data files join the group once the database file is ready to be put in place, so
+		// they are staged while it is being searched and written. Staging never needs the lock
+		// on the database file, which is held by then. If any of them couldn't be staged,
+		// nothing is written, so its lines aren't in the database file without being in it
+		GroupCommit group = new GroupCommit(GroupCommit.manifestFor(database.getFile()));
+		group.addMember(new GroupCommit.Member() {
+			public void join(GroupCommit commit) throws IOException {
+				if (!awaitAll(staging)) {
+					throw new IOException("Not every data file could be staged, so none of the files were written");
+				}
+				for (DataFile df : dataFiles) {
+					df.publish(commit);
+				}
+			}
+		});
+
+		boolean written = false;
+		try {
+			if (refLinesToData.isEmpty()) {
+				written = commitGroup(group);
+			} else {
+				written = database.writeNewData(refLinesToData, group);
+			}
+		} finally {
+			awaitAll(staging);
+			if (!written) {
+				for (DataFile df : dataFiles) {
+					df.discard();
+				}
+			}
+		}
+		if (!written) {
+			return false;
+		}
+
+		for (DataFile df : dataFiles) {
+			df.finishPublish();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Helper method to commit a group with nothing from the database file in it
+	 * @param group: the group
+	 * @return: true if the group was committed, false otherwise
+	 */
+	private static boolean commitGroup(GroupCommit group) {
+		try {
+			group.commit();
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			group.abort();
+			return false;
+		}
+	}
+	/**
+	 * Helper method to wait for every data file to be staged. A data file that couldn't be
+	 * staged is reported and left with nothing to publish
+	 * @param staging: the staging of each data file
+	 * @return: true if every data file was staged, false otherwise
+	 */
+	private static boolean awaitAll(List<Future<Boolean>> staging) {
+		boolean staged = true;
+		boolean interrupted = false;
+		for (Future<Boolean> f : staging) {
+			while (true) {
+				try {
+					staged &= f.get();
+					break;
+				} catch (InterruptedException e) {
+					// the staged files have to be finished with before they can be published
+					// or discarded, so keep waiting and pass the interruption on afterwards
+					interrupted = true;
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					staged = false;
+					break;
+				}
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return staged;
+	}
+}
@@ -0,0 +1,193 @@
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes files that may be gzipped. A file whose name ends in ".gz" is compressed,
+ * and is read and written as a stream, so only a buffer's worth of it is ever in memory. Since
+ * a compressed file can only be read from the start, positions in it are positions in the
+ * uncompressed contents
+ */
+public class CompressedFiles {
+
+	public static final String EXTENSION = ".gz";
+	public static final int MIN_LEVEL = Deflater.NO_COMPRESSION;
+	public static final int MAX_LEVEL = Deflater.BEST_COMPRESSION;
+	// the level gzip itself uses by default
+	public static final int DEFAULT_LEVEL = 6;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * @param file: the file to check
+	 * @return: true if the file is gzipped, judging by its name
+	 */
+	public static boolean isCompressed(File file) {
+		return file.getName().toLowerCase().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Opens a file to read its contents, uncompressing them if it is gzipped. A gzipped file
+	 * that has had more gzipped data appended to it is read as one
+	 * <br>pre: file != null
+	 * @param file: the file to read
+	 * @param progress: where to report the bytes read from the file itself, or null
+	 * @param cancellable: whether reading stops with a CancellationException once progress is
+	 * cancelled
+	 * @return: a stream of the contents of the file
+	 * @throws IOException if the file can't be opened or isn't really gzipped
+	 */
+	public static InputStream openInput(File file, TaskProgress progress, boolean cancellable) throws IOException {
+		InputStream in = new FileInputStream(file);
+		if (progress != null) {
+			in = new ProgressInputStream(in, progress, cancellable);
+		}
+
+		try {
+			return isCompressed(file) ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a file to write gzipped data to
+	 * <br>pre: file != null && MIN_LEVEL <= level <= MAX_LEVEL
+	 * @param file: the file to write
+	 * @param append: true to add the data to the end of the file as another gzip member, false
+	 * to replace the file
+	 * @param level: the compression level, from MIN_LEVEL for none to MAX_LEVEL for the smallest
+	 * output
+	 * @return: a stream that compresses whatever is written to it into the file
+	 * @throws IOException if the file can't be opened
+	 */
+	public static OutputStream openOutput(File file, boolean append, int level) throws IOException {
+		return wrapOutput(new BufferedOutputStream(new FileOutputStream(file, append), BUFFER_SIZE), level);
+	}
+
+	/**
+	 * Wraps a stream so that whatever is written to it is gzipped first, as one gzip member
+	 * <br>pre: out != null && MIN_LEVEL <= level <= MAX_LEVEL
+	 * @param out: the stream to write the gzipped data to, which is closed along with the new one
+	 * @param level: the compression level, from MIN_LEVEL for none to MAX_LEVEL for the smallest
+	 * output
+	 * @return: a stream that compresses whatever is written to it into out
+	 * @throws IOException if the gzip header can't be written
+	 */
+	public static OutputStream wrapOutput(OutputStream out, final int level) throws IOException {
+		return new GZIPOutputStream(out, BUFFER_SIZE) {
+			{
+				def.setLevel(level);
+			}
+		};
+	}
+
+	/**
+	 * Checks that a compression level is one that can be written with
+	 * @param level: the compression level
+	 * @return: true if MIN_LEVEL <= level <= MAX_LEVEL
+	 */
+	public static boolean isValidLevel(int level) {
+		return level >= MIN_LEVEL && level <= MAX_LEVEL;
+	}
+
+	/**
+	 * Skips over part of a stream, which for a compressed file means uncompressing it
+	 * @param in: the stream
+	 * @param count: the number of bytes to skip
+	 * @throws IOException if the stream can't be read or ends first
+	 */
+	public static void skipFully(InputStream in, long count) throws IOException {
+		while (count > 0) {
+			long skipped = in.skip(count);
+			if (skipped <= 0) {
+				if (in.read() == -1) {
+					throw new EOFException("The file ended before the position being read from");
+				}
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+
+	/**
+	 * Copies bytes from one stream to another
+	 * @param in: the stream to copy from
+	 * @param out: the stream to copy to
+	 * @param count: the number of bytes to copy, or -1 to copy everything left in the input
+	 * @throws IOException if either stream can't be accessed, or the input ends before count
+	 * bytes have been copied
+	 */
+	public static void copy(InputStream in, OutputStream out, long count) throws IOException {
+		byte[] buf = new byte[BUFFER_SIZE];
+		while (count != 0) {
+			int read = in.read(buf, 0, count < 0 ? buf.length : (int) Math.min(buf.length, count));
+			if (read == -1) {
+				if (count > 0) {
+					throw new EOFException("The file ended before the position being copied to");
+				}
+				return;
+			}
+			out.write(buf, 0, read);
+			if (count > 0) {
+				count -= read;
+			}
+		}
+	}
+
+	/**
+	 * Stream that reports how many bytes have been read from the file itself, which for a
+	 * compressed file is fewer than come out of it
+	 */
+	private static class ProgressInputStream extends FilterInputStream {
+
+		private TaskProgress progress;
+		private boolean cancellable;
+
+		private ProgressInputStream(InputStream in, TaskProgress progress, boolean cancellable) {
+			super(in);
+			this.progress = progress;
+			this.cancellable = cancellable;
+		}
+
+		public int read() throws IOException {
+			checkCancelled();
+			int b = super.read();
+			if (b != -1) {
+				progress.addProcessed(1);
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			checkCancelled();
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				progress.addProcessed(read);
+			}
+			return read;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			progress.addProcessed(skipped);
+			return skipped;
+		}
+
+		private void checkCancelled() {
+			if (cancellable) {
+				progress.checkCancelled();
+			}
+		}
+	}
+}
@@ -0,0 +1,330 @@
+import java.util.Arrays;
+
+/**
+ * Splits a record of a CSV file, such as a REDCap export, into its fields without decoding it
+ * or making any Strings. A field may be quoted, in which case it can contain commas, line
+ * breaks and quotes written as two quotes in a row. The tokenizer is lenient with files that
+ * aren't quite CSV: quotes in the middle of a field are kept as they are, and commas and line
+ * breaks between them don't end the field.
+ * <br>Whether a line break ends a record only depends on whether an even number of quotes come
+ * before it in the record, so records can be found by counting quotes alone. One tokenizer is
+ * reused for every record in a chunk, so it isn't safe to use from several threads at once
+ */
+public class CsvTokenizer {
+
+	private static final byte QUOTE = '"';
+	private static final byte SEPARATOR = ',';
+	private static final int INITIAL_FIELDS = 16;
+
+	// states of the state machine
+	private static final int FIELD_START = 0;
+	private static final int UNQUOTED = 1;
+	private static final int QUOTED = 2;
+	private static final int QUOTE_IN_QUOTED = 3;
+
+	// the fields of the last record tokenized, as indices into its buffer. The content of a
+	// quoted field doesn't include the quotes around it, and the raw field does
+	private int numFields;
+	private int[] rawStarts = new int[INITIAL_FIELDS];
+	private int[] rawEnds = new int[INITIAL_FIELDS];
+	private int[] contentStarts = new int[INITIAL_FIELDS];
+	private int[] contentEnds = new int[INITIAL_FIELDS];
+	private boolean[] quoted = new boolean[INITIAL_FIELDS];
+	private boolean[] escaped = new boolean[INITIAL_FIELDS];
+
+	private byte[] buf;
+	// the content of the last field unescaped
+	private byte[] unescaped = new byte[256];
+	private int unescapedLength;
+
+	/**
+	 * Splits a record into fields. Fields are separated by commas
+	 * <br>pre: 0 <= start <= end <= buf.length and the bytes are one whole record
+	 * <br>post: getNumFields() and the other getters describe the fields of this record, until
+	 * the next call
+	 * @param buf: the buffer holding the record
+	 * @param start: the index of the first byte of the record
+	 * @param end: the index just after the last byte of the record, not including the line break
+	 * @return: the number of fields in the record
+	 */
+	public int tokenize(byte[] buf, int start, int end) {
+		this.buf = buf;
+		numFields = 0;
+		escaped[0] = false;
+
+		int state = FIELD_START;
+		boolean inQuotes = false;
+		int fieldStart = start;
+
+		for (int i = start; i < end; i++) {
+			byte b = buf[i];
+
+			switch (state) {
+			case FIELD_START:
+				if (b == QUOTE) {
+					state = QUOTED;
+				} else if (b == SEPARATOR) {
+					addField(fieldStart, i, fieldStart, i, false, false);
+					fieldStart = i + 1;
+				} else {
+					state = UNQUOTED;
+				}
+				break;
+
+			case UNQUOTED:
+				// a field that doesn't start with a quote ends at the next comma that isn't
+				// between quotes
+				if (b == QUOTE) {
+					inQuotes = !inQuotes;
+				} else if (b == SEPARATOR && !inQuotes) {
+					addField(fieldStart, i, fieldStart, i, false, false);
+					fieldStart = i + 1;
+					state = FIELD_START;
+				}
+				break;
+
+			case QUOTED:
+				if (b == QUOTE) {
+					state = QUOTE_IN_QUOTED;
+				}
+				break;
+
+			case QUOTE_IN_QUOTED:
+				if (b == QUOTE) {
+					// two quotes in a row are a quote in the field
+					escaped[numFields] = true;
+					state = QUOTED;
+				} else if (b == SEPARATOR) {
+					addField(fieldStart, i, fieldStart + 1, i - 1, true, escaped[numFields]);
+					fieldStart = i + 1;
+					state = FIELD_START;
+				} else {
+					// the quote wasn't the end of the field after all, so treat the whole
+					// field as unquoted. One quote has been seen since the last one that
+					// started or ended a quoted part, which leaves us outside of quotes
+					escaped[numFields] = false;
+					inQuotes = false;
+					state = UNQUOTED;
+				}
+				break;
+			}
+		}
+
+		// the end of the record ends the last field
+		if (state == QUOTED) {
+			addField(fieldStart, end, fieldStart + 1, end, true, escaped[numFields]);
+		} else if (state == QUOTE_IN_QUOTED) {
+			addField(fieldStart, end, fieldStart + 1, end - 1, true, escaped[numFields]);
+		} else {
+			addField(fieldStart, end, fieldStart, end, false, false);
+		}
+
+		return numFields;
+	}
+
+	/**
+	 * Helper method to record a field, growing the arrays if needed
+	 * @param rawStart: the index of the first byte of the field
+	 * @param rawEnd: the index just after the last byte of the field
+	 * @param contentStart: the index of the first byte of the field's content
+	 * @param contentEnd: the index just after the last byte of the field's content
+	 * @param isQuoted: whether the field is in quotes
+	 * @param isEscaped: whether the field's content has escaped quotes in it
+	 */
+	private void addField(int rawStart, int rawEnd, int contentStart, int contentEnd, boolean isQuoted, boolean isEscaped) {
+		if (numFields + 1 >= rawStarts.length) {
+			int length = rawStarts.length * 2;
+			rawStarts = Arrays.copyOf(rawStarts, length);
+			rawEnds = Arrays.copyOf(rawEnds, length);
+			contentStarts = Arrays.copyOf(contentStarts, length);
+			contentEnds = Arrays.copyOf(contentEnds, length);
+			quoted = Arrays.copyOf(quoted, length);
+			escaped = Arrays.copyOf(escaped, length);
+		}
+
+		rawStarts[numFields] = rawStart;
+		rawEnds[numFields] = rawEnd;
+		contentStarts[numFields] = contentStart;
+		contentEnds[numFields] = contentEnd;
+		quoted[numFields] = isQuoted;
+		escaped[numFields] = isEscaped;
+		numFields++;
+		escaped[numFields] = false;
+	}
+
+	/**
+	 * @return: the number of fields in the last record tokenized
+	 */
+	public int getNumFields() {
+		return numFields;
+	}
+
+	/**
+	 * @param field: the index of the field
+	 * @return: the index of the first byte of the field, including any opening quote
+	 */
+	public int getRawStart(int field) {
+		return rawStarts[field];
+	}
+
+	/**
+	 * @param field: the index of the field
+	 * @return: the index just after the last byte of the field, including any closing quote
+	 */
+	public int getRawEnd(int field) {
+		return rawEnds[field];
+	}
+
+	/**
+	 * @param field: the index of the field
+	 * @return: the index of the first byte of the field's content, after any opening quote
+	 */
+	public int getContentStart(int field) {
+		return contentStarts[field];
+	}
+
+	/**
+	 * @param field: the index of the field
+	 * @return: the index just after the last byte of the field's content, before any closing
+	 * quote
+	 */
+	public int getContentEnd(int field) {
+		return contentEnds[field];
+	}
+
+	/**
+	 * @param field: the index of the field
+	 * @return: true if the field is in quotes, false otherwise
+	 */
+	public boolean isQuoted(int field) {
+		return quoted[field];
+	}
+
+	/**
+	 * @param field: the index of the field
+	 * @return: true if the field's content has quotes written as two quotes in a row, in which
+	 * case it has to be unescaped before it can be compared with anything
+	 */
+	public boolean isEscaped(int field) {
+		return escaped[field];
+	}
+
+	/**
+	 * @param field: the index of the field
+	 * @return: true if the raw field has a quote anywhere in it, false otherwise
+	 */
+	public boolean hasQuote(int field) {
+		if (quoted[field]) {
+			return true;
+		}
+
+		for (int i = rawStarts[field]; i < rawEnds[field]; i++) {
+			if (buf[i] == QUOTE) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Copies the content of an escaped field with each pair of quotes turned back into a single
+	 * quote
+	 * <br>pre: isEscaped(field)
+	 * @param field: the index of the field
+	 * @return: a buffer holding the unescaped content from index 0 to getUnescapedLength(). It
+	 * is reused by the next call
+	 */
+	public byte[] unescape(int field) {
+		int length = contentEnds[field] - contentStarts[field];
+		if (unescaped.length < length) {
+			unescaped = new byte[Math.max(length, unescaped.length * 2)];
+		}
+
+		unescapedLength = 0;
+		for (int i = contentStarts[field]; i < contentEnds[field]; i++) {
+			unescaped[unescapedLength++] = buf[i];
+			if (buf[i] == QUOTE) {
+				i++;
+			}
+		}
+
+		return unescaped;
+	}
+
+	/**
+	 * @return: the length of the content copied by the last call to unescape
+	 */
+	public int getUnescapedLength() {
+		return unescapedLength;
+	}
+
+	/**
+	 * Finds where in the record a position in the unescaped content of a field is
+	 * <br>pre: 0 <= pos <= the unescaped length of the field
+	 * @param field: the index of the field
+	 * @param pos: the position in the unescaped content
+	 * @return: the index in the record's buffer of the same position
+	 */
+	public int toRawIndex(int field, int pos) {
+		if (!escaped[field]) {
+			return contentStarts[field] + pos;
+		}
+
+		int raw = contentStarts[field];
+		for (int i = 0; i < pos; i++) {
+			raw += buf[raw] == QUOTE ? 2 : 1;
+		}
+		return raw;
+	}
+
+	/**
+	 * Checks whether some bytes can't go into an unquoted field as they are
+	 * @param bytes: the bytes to check
+	 * @return: true if the bytes have a comma, a quote or a line break in them, false otherwise
+	 */
+	public static boolean needsQuotes(byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			byte b = bytes[i];
+			if (b == SEPARATOR || b == QUOTE || b == '\n' || b == '\r') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Escapes some bytes to go into a quoted field by doubling every quote
+	 * @param bytes: the bytes to escape
+	 * @return: the escaped bytes, or bytes itself if it has no quotes
+	 */
+	public static byte[] escape(byte[] bytes) {
+		int numQuotes = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] == QUOTE) {
+				numQuotes++;
+			}
+		}
+		if (numQuotes == 0) {
+			return bytes;
+		}
+
+		byte[] escapedBytes = new byte[bytes.length + numQuotes];
+		int j = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			escapedBytes[j++] = bytes[i];
+			if (bytes[i] == QUOTE) {
+				escapedBytes[j++] = QUOTE;
+			}
+		}
+		return escapedBytes;
+	}
+
+	/**
+	 * Checks whether a byte is a quote
+	 * @param b: the byte to check
+	 * @return: true if b is a quote, false otherwise
+	 */
+	public static boolean isQuote(byte b) {
+		return b == QUOTE;
+	}
+}
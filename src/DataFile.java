@@ -1,22 +1,35 @@
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Paths;
-import java.util.LinkedList;
-import java.util.Scanner;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
 
 public class DataFile {
 	
 	private File file;
 	private static final String TEMP_FILE_NAME = "tempData";
 	private static final String TEMP_FILE_EXTEN = ".txt";
+	// what goes before each new line when they are inserted into the database file
+	private static final String NEW_LINE_SEPARATOR = " | ";
+	// the most bytes at the end of the file that are hashed to check it has only been added to,
+	// once lines another program added have been followed
+	private static final int MAX_HASHED_TAIL = 1 << 16;
 	
-	// cached list of the lines from the end of the file to display
-	private LinkedList<String> lastLines;
+	// cached lines from the end of the file to display, followed by any lines added since.
+	// Holds numLinesToStore lines, dropping the oldest ones as new lines are added as long
+	// as they come before the reference line
+	private RingBuffer<String> lastLines;
 	private int numLinesToStore;
 	private int numLinesAdded;
 	
@@ -27,6 +40,35 @@ public class DataFile {
 	private String refLine;
 	private int refLineInd;
 	
+	// the state of the file when lastLines was read, used to check that new lines can simply
+	// be appended to the end of the file
+	private long loadedLength;
+	private long loadedLastModified;
+	// where in the file the bytes the last lines were read from start, and the CRC-32 of them up
+	// to loadedLength, or -1 if it isn't known, used to check that they haven't changed
+	private long loadedTailStart;
+	private long loadedTailHash;
+	// the number of lines in lastLines that came from the file rather than from addLine
+	private int numLinesFromFile;
+	// the number of lines read from the end of the file, and how many of them have since been
+	// dropped from the front of lastLines
+	private int numLinesRead;
+	private int numLinesDropped;
+	private boolean fileLineRemoved;
+	
+	// whether the file is gzipped, in which case it can only be read from the start
+	private boolean compressed;
+	// whether the file is a Word document, which is only ever read
+	private boolean document;
+	
+	// the new contents of the file readied by stage(): either the bytes to append to it or a
+	// temp file to replace it with, and when staging started. Once they have been published,
+	// the file is read again when the group commit is over
+	private byte[] stagedAppend;
+	private File stagedFile;
+	private long stageStart;
+	private boolean published;
+	
 	/**
 	 * Constructor for DataFile. Creates a new DataFile
 	 * <br>pre: dataFile != null && databaseFile != null && linesFromEnd >= 0
@@ -37,72 +79,299 @@ public class DataFile {
 	 * against for determining which lines of data are new
 	 */
 	public DataFile(File dataFile, int linesFromEnd, DatabaseFile databaseFile) {
+		this(dataFile, linesFromEnd, databaseFile, null, DataFileCache.REF_LINE_UNKNOWN);
+	}
+	
+	/**
+	 * Helper constructor that optionally takes the lines of the file and their reference line
+	 * from what was already read, so that the reference lines of several DataFiles can be found
+	 * together and unchanged files don't have to be read again
+	 * @param dataFile: the file this DataFile will encapsulate
+	 * @param linesFromEnd: the number of lines from the end of the file to cache
+	 * @param databaseFile: the DatabaseFile object currently in use
+	 * @param entry: the last lines of the file, or null to read them now
+	 * @param refLineInd: the index in the entry's lines of the reference line, or -1 if none of
+	 * them are in the database. Ignored if entry is null
+	 */
+	private DataFile(File dataFile, int linesFromEnd, DatabaseFile databaseFile, DataFileCache.Entry entry, int refLineInd) {
 		file = dataFile;
 		database = databaseFile;
 		numLinesToStore = linesFromEnd;
-		resetLastLinesAndRefLine(linesFromEnd);
+		compressed = CompressedFiles.isCompressed(dataFile);
+		document = DocxReader.isDocument(dataFile);
+		
+		if (entry == null) {
+			resetLastLinesAndRefLine(linesFromEnd);
+		} else {
+			// the entry may hold more lines than are kept, in which case the reference line
+			// may be one of the lines left out
+			int numLeftOut = useEntry(entry);
+			setRefLineInd(Math.max(refLineInd - numLeftOut, -1));
+		}
 	}
 	
 	/**
-	 * Helper method to record the last few lines from the file, as determined by linesFromEnd
-	 * and set the reference line to the last line in the data file that is not already in the
-	 * database file
-	 * @param linesFromEnd: the number of lines from the end of the data file to record
+	 * Creates a DataFile for each of the specified files, finding all of their reference lines
+	 * with a single pass over the database file instead of one per DataFile
+	 * <br>pre: dataFiles != null && databaseFile != null && linesFromEnd >= 0
+	 * @param dataFiles: the files to create DataFiles for
+	 * @param linesFromEnd: the number of lines from the end of each file to cache
+	 * @param databaseFile: the DatabaseFile object currently in use
+	 * @return: a list of the new DataFiles, parallel to dataFiles
 	 */
-	private void resetLastLinesAndRefLine(int linesFromEnd) {
+	public static ArrayList<DataFile> openAll(List<File> dataFiles, int linesFromEnd, DatabaseFile databaseFile) {
+		return openAll(dataFiles, linesFromEnd, databaseFile, null);
+	}
+	
+	/**
+	 * Creates a DataFile for each of the specified files, using what the cache holds for files
+	 * that haven't changed since they were last read. A file is only read if the cache doesn't
+	 * have enough of its lines, and then only the lines it is missing are read where possible.
+	 * The database file is only searched for the files whose reference lines weren't found in
+	 * the database as it is now, all of them in a single pass
+	 * <br>pre: dataFiles != null && databaseFile != null && linesFromEnd >= 0
+	 * <br>post: the cache holds what was read from each file and the reference line found for it
+	 * @param dataFiles: the files to create DataFiles for
+	 * @param linesFromEnd: the number of lines from the end of each file to cache
+	 * @param databaseFile: the DatabaseFile object currently in use
+	 * @param cache: the cache of what was read from data files before, or null to read every file
+	 * @return: a list of the new DataFiles, parallel to dataFiles
+	 */
+	public static ArrayList<DataFile> openAll(List<File> dataFiles, int linesFromEnd, DatabaseFile databaseFile, DataFileCache cache) {
+		String fingerprint = cache == null ? null : databaseFile.getFingerprint();
+		
+		// get the end of every file first, reading only what the cache doesn't already have
+		ArrayList<DataFileCache.Entry> entries = new ArrayList<> ();
+		for (File f : dataFiles) {
+			DataFileCache.Entry entry = cache == null ? null : cache.get(f);
+			if (entry != null && entry.getLines().size() < linesFromEnd && !entry.hasWholeFile()) {
+				entry = entry.getLinesStart() >= 0 ? readMoreLines(f, entry, linesFromEnd, fingerprint) : null;
+			}
+			entries.add(entry == null ? readEntry(f, linesFromEnd) : entry);
+		}
+		
+		// then look up the lines of every file whose reference line isn't known, all together
+		int[] refLineIndices = new int[entries.size()];
+		ArrayList<List<String>> tails = new ArrayList<> ();
+		ArrayList<Integer> unknown = new ArrayList<> ();
+		for (int i = 0; i < entries.size(); i++) {
+			refLineIndices[i] = entries.get(i).getRefLineInd(fingerprint);
+			if (refLineIndices[i] == DataFileCache.REF_LINE_UNKNOWN) {
+				tails.add(entries.get(i).getLines());
+				unknown.add(i);
+			}
+		}
+		
+		if (!tails.isEmpty()) {
+			int[] found = databaseFile.findRefLineIndices(tails);
+			for (int j = 0; j < found.length; j++) {
+				refLineIndices[unknown.get(j)] = found[j];
+			}
+		}
+		
+		ArrayList<DataFile> opened = new ArrayList<> ();
+		for (int i = 0; i < entries.size(); i++) {
+			DataFileCache.Entry entry = entries.get(i);
+			if (cache != null) {
+				cache.put(entry.withRefLine(refLineIndices[i], fingerprint));
+			}
+			opened.add(new DataFile(dataFiles.get(i), linesFromEnd, databaseFile, entry, refLineIndices[i]));
+		}
+		
+		return opened;
+	}
+	
+	/**
+	 * Helper method to read the last few lines of a file, as determined by numLines
+	 * @param dataFile: the file to read
+	 * @param numLines: the number of lines from the end of the file to read
+	 * @return: an entry holding the lines, with no reference line. If the file couldn't be read,
+	 * the entry holds no lines and is never used in place of reading the file again
+	 */
+	private static DataFileCache.Entry readEntry(File dataFile, int numLines) {
+		// remember what the file looked like before reading it
+		long length = dataFile.length();
+		long lastModified = dataFile.lastModified();
+		
 		try {
-			// set up a scanner for the data file
-			Scanner input = new Scanner(Paths.get(file.getCanonicalPath()));
-			input.useDelimiter("[\n|\\n|\\r\\n]");
-			
-			lastLines = new LinkedList<> ();
-
-			String currentLine = "";
-			
-			// find the last few line of text in the file
-			while (input.hasNext()) {
-				// read in a line
-				currentLine = input.next();
-				
-				// if that line is not blank, add it to the list
-				if (currentLine.length() != 0) {
-					lastLines.add(currentLine);
-				}
-				
-				// because lastLines is a LinkedList, it implements the
-				// queue interface, which is helpful since when there are
-				// more than the maximum number of desired lines in the
-				// list, we want to remove the first one added
-				if (lastLines.size() > linesFromEnd) {
-					lastLines.poll();
+			// read just the last few non-blank lines, working backwards from the end of the file.
+			// A gzipped file or Word document has to be read through from the start instead, so
+			// the lines before them can't be read on their own later
+			RingBuffer<String> lines;
+			long linesStart = -1;
+			long linesHash = -1;
+			if (DocxReader.isDocument(dataFile)) {
+				lines = DocxReader.readLastLines(dataFile, numLines);
+			} else if (CompressedFiles.isCompressed(dataFile)) {
+				InputStream in = CompressedFiles.openInput(dataFile, null, false);
+				try {
+					lines = TailReader.readLastLines(in, numLines, Charset.defaultCharset());
+				} finally {
+					in.close();
 				}
+			} else {
+				lines = new RingBuffer<> (Math.max(numLines, 0));
+				linesStart = TailReader.readLinesBefore(dataFile, length, numLines, Charset.defaultCharset(), lines);
+				linesHash = hashTail(dataFile, linesStart, length, lastModified);
 			}
-
-			int offset = 1;
-			// determine the reference line by starting at the last line
-			// in the file and going backwards until a line that is in the
-			// database file is found
-			do {
-				refLineInd = lastLines.size() - offset;
-				refLine = lastLines.get(refLineInd);
-				offset++;
-			} while (!database.contains(refLine));
-
-			// any lines that are not in the database file are new lines,
-			// so record that
-			numLinesAdded = offset - 2;
 			
-			input.close();
-		} catch(FileNotFoundException ex) {
-			ex.printStackTrace();
+			return new DataFileCache.Entry(dataFile, length, lastModified, lines, numLines, linesStart, linesHash, -1, null);
 		} catch (IOException e) {
 			e.printStackTrace();
+			return new DataFileCache.Entry(dataFile, length, lastModified, Collections.<String> emptyList(), 0, -1, -1, -1, null);
 		}
 	}
 	
+	/**
+	 * Helper method to read the lines just before the ones an entry holds, so that it holds as
+	 * many as are needed without reading the lines it already has again
+	 * <br>pre: entry.getLinesStart() >= 0
+	 * @param dataFile: the file the entry is for
+	 * @param entry: the entry
+	 * @param numLines: the number of lines from the end of the file needed
+	 * @param fingerprint: the fingerprint of the database file as it is now, or null
+	 * @return: a new entry holding the extra lines and the entry's lines, keeping the entry's
+	 * reference line if it was found in this database, or null if the file couldn't be read
+	 */
+	private static DataFileCache.Entry readMoreLines(File dataFile, DataFileCache.Entry entry, int numLines, String fingerprint) {
+		RingBuffer<String> lines = new RingBuffer<> (numLines);
+		long linesStart;
+		long linesHash;
+		try {
+			linesStart = TailReader.readLinesBefore(dataFile, entry.getLinesStart(), numLines - entry.getLines().size(),
+					Charset.defaultCharset(), lines);
+			linesHash = hashTail(dataFile, linesStart, entry.getLength(), entry.getLastModified());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		int numAdded = lines.size();
+		for (String line : entry.getLines()) {
+			lines.addLast(line);
+		}
+		
+		// adding lines to the front moves the reference line back by as many. If none of the
+		// entry's lines were in the database, the lines added may be
+		int refLineInd = entry.getRefLineInd(fingerprint);
+		if (refLineInd >= 0) {
+			refLineInd += numAdded;
+		} else if (numAdded > 0) {
+			refLineInd = DataFileCache.REF_LINE_UNKNOWN;
+		}
+		return new DataFileCache.Entry(dataFile, entry.getLength(), entry.getLastModified(), lines, numLines, linesStart, linesHash,
+				refLineInd, refLineInd == DataFileCache.REF_LINE_UNKNOWN ? null : fingerprint);
+	}
+	
+	/**
+	 * Helper method to hash the end of a file, as long as the file is still as it was when its
+	 * last lines were read
+	 * @param dataFile: the file
+	 * @param from: the position to hash from
+	 * @param length: the length of the file when its last lines were read
+	 * @param lastModified: the modification time of the file when its last lines were read
+	 * @return: the CRC-32 of the bytes from from to length, or -1 if the file has changed
+	 * @throws IOException if the file can't be read
+	 */
+	private static long hashTail(File dataFile, long from, long length, long lastModified) throws IOException {
+		if (length - from >= Integer.MAX_VALUE) {
+			return -1;
+		}
+		
+		CRC32 crc = new CRC32();
+		crc.update(readBytes(dataFile, from, length));
+		return dataFile.length() == length && dataFile.lastModified() == lastModified ? crc.getValue() : -1;
+	}
+	
+	/**
+	 * Helper method to read part of a file
+	 * <br>pre: to - from < Integer.MAX_VALUE
+	 * @param dataFile: the file
+	 * @param from: the position of the first byte to read
+	 * @param to: the position just after the last byte to read
+	 * @return: the bytes
+	 * @throws IOException if the file can't be read or is shorter than to
+	 */
+	private static byte[] readBytes(File dataFile, long from, long to) throws IOException {
+		byte[] bytes = new byte[(int) (to - from)];
+		RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+		try {
+			raf.seek(from);
+			raf.readFully(bytes);
+		} finally {
+			raf.close();
+		}
+		PerformanceMetrics.get().addBytesRead(bytes.length);
+		
+		return bytes;
+	}
+	
+	/**
+	 * Helper method to keep the last lines held by an entry, up to numLinesToStore of them, as
+	 * the lines read from the file
+	 * @param entry: the entry
+	 * @return: the number of the entry's lines left out from the front
+	 */
+	private int useEntry(DataFileCache.Entry entry) {
+		loadedLength = entry.getLength();
+		loadedLastModified = entry.getLastModified();
+		loadedTailStart = entry.getLinesStart();
+		loadedTailHash = entry.getLinesHash();
+		fileLineRemoved = false;
+		
+		List<String> lines = entry.getLines();
+		int numLeftOut = Math.max(lines.size() - numLinesToStore, 0);
+		lastLines = new RingBuffer<> (numLinesToStore);
+		for (int i = numLeftOut; i < lines.size(); i++) {
+			lastLines.addLast(lines.get(i));
+		}
+		
+		numLinesFromFile = lastLines.size();
+		numLinesRead = lastLines.size();
+		numLinesDropped = 0;
+		return numLeftOut;
+	}
+	
+	/**
+	 * Helper method to record the last few lines from the file, as determined by linesFromEnd
+	 * @param linesFromEnd: the number of lines from the end of the data file to record
+	 */
+	private void readLastLines(int linesFromEnd) {
+		useEntry(readEntry(file, linesFromEnd));
+	}
+	
+	/**
+	 * Helper method to set the reference line and, from it, the number of new lines
+	 * @param ind: the index in lastLines of the last line that is in the database file,
+	 * or -1 if none of them are
+	 */
+	private void setRefLineInd(int ind) {
+		refLineInd = ind;
+		refLine = ind == -1 ? null : lastLines.get(ind);
+		
+		// any lines after the reference line are not in the database file, so they are
+		// new lines
+		numLinesAdded = lastLines.size() - ind - 1;
+	}
+	
+	/**
+	 * Helper method to record the last few lines from the file, as determined by linesFromEnd
+	 * and set the reference line to the last line in the data file that is not already in the
+	 * database file
+	 * @param linesFromEnd: the number of lines from the end of the data file to record
+	 */
+	private void resetLastLinesAndRefLine(int linesFromEnd) {
+		long start = System.nanoTime();
+		readLastLines(linesFromEnd);
+		setRefLineInd(database.findRefLineIndices(Collections.singletonList(lastLines))[0]);
+		PerformanceMetrics.get().addTime(PerformanceMetrics.RESET_LAST_LINES, start);
+	}
+	
 	/**
 	 * Gets the reference line (the first line from the end of the file that
 	 * is in the database file)
+	 * @return: the reference line, or null if none of the cached lines are in the
+	 * database file
 	 */
 	public String getRefLine() {
 		return refLine;
@@ -116,12 +385,17 @@ public class DataFile {
 	 * between each
 	 */
 	public String getFormattedNewLines() {
-		StringBuilder strBldr = new StringBuilder();
+		// work out the exact length first so the StringBuilder never has to grow
+		int length = 0;
+		for (int i = refLineInd + 1; i < lastLines.size(); i++) {
+			length += NEW_LINE_SEPARATOR.length() + lastLines.get(i).length();
+		}
+		StringBuilder strBldr = new StringBuilder(length);
 		
 		// starting at the index of the reference line, append each line of data
 		// to the StringBuilder
 		for (int i = refLineInd + 1; i < lastLines.size(); i++) {
-			strBldr.append(" | ");
+			strBldr.append(NEW_LINE_SEPARATOR);
 			strBldr.append(lastLines.get(i));
 		}
 		
@@ -130,12 +404,44 @@ public class DataFile {
 	
 	/**
 	 * Gets a list of the last few data lines in this file. The exact number is
-	 * determined when this DataFile object is created. <br><b>WARNING:</b> Do 
-	 * not modify the returned list! It will cause logic errors!
-	 * @return: a LinkedList of Strings with the last few data lines in this file
+	 * determined when this DataFile object is created. The list can't be modified, but
+	 * it reflects any lines added or removed afterwards
+	 * @return: a read-only view of the last few data lines in this file
+	 */
+	public List<String> getLastLines() {
+		return Collections.unmodifiableList(lastLines);
+	}
+	
+	/**
+	 * Gets where the first of the last data lines is in the file, so the lines before it can be
+	 * read from the file itself
+	 * @return: the number of non-blank lines from the first line of getLastLines() to the end
+	 * of the file, as the file was when the last lines were read
+	 */
+	public int getLastLinesStartFromEnd() {
+		return numLinesRead - numLinesDropped;
+	}
+	
+	/**
+	 * @return: true if the file is gzipped, in which case it can only be read from the start
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+	
+	/**
+	 * @return: true if the file is a Word document, whose lines are read as paragraphs and
+	 * which can't be written to, so lines can't be added to it here
+	 */
+	public boolean isDocument() {
+		return document;
+	}
+	
+	/**
+	 * @return: the length of the file when the last lines were read from it
 	 */
-	public LinkedList<String> getLastLines() {
-		return lastLines;
+	public long getLoadedLength() {
+		return loadedLength;
 	}
 	
 	/**
@@ -150,12 +456,158 @@ public class DataFile {
 	 * Adds a new data line to the end of this file
 	 * <br>pre: line != null
 	 * <br>post: the list returned by getLastLines() has line at the end and getLinesAdded()
-	 * returns one more than before
+	 * returns one more than before. If the list was full, its first line has been dropped if
+	 * that line comes before the reference line
 	 * @param line: the data line to add
 	 */
 	public void addLine(String line) {
+		makeRoom();
 		numLinesAdded++;
-		lastLines.add(line);
+		lastLines.addLast(line);
+	}
+	
+	/**
+	 * Helper method to make room in lastLines for another line by dropping the oldest line,
+	 * unless it is needed to tell where the new lines go, in which case lastLines grows
+	 */
+	private void makeRoom() {
+		if (lastLines.isFull()) {
+			if (refLineInd > 0) {
+				lastLines.removeFirst();
+				refLineInd--;
+				numLinesFromFile--;
+				numLinesDropped++;
+			} else {
+				lastLines.ensureCapacity(Math.max(1, lastLines.capacity() * 2));
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether the file has changed since it was read, by its size and modification time
+	 * @return: true if the file has changed, false otherwise
+	 */
+	public boolean hasChanged() {
+		return file.length() != loadedLength || file.lastModified() != loadedLastModified;
+	}
+	
+	/**
+	 * Picks up any lines another program has added to the end of the file since it was read,
+	 * reading only the bytes after the old end of the file. They go after the lines that were
+	 * already in the file and before any lines added with addLine, and count as new lines. If
+	 * the file has been changed in some other way, or is gzipped or a Word document, it is read
+	 * again from the end as long as no lines have been added or removed here, since those would
+	 * be lost
+	 * @return: true if getLastLines() or getNumLinesAdded() have changed, false if the file
+	 * hasn't changed or it couldn't be followed
+	 */
+	public boolean readAppendedLines() {
+		if (!hasChanged()) {
+			return false;
+		}
+		
+		try {
+			if (followAppend()) {
+				return true;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		
+		if (lastLines.size() == numLinesFromFile && !fileLineRemoved) {
+			resetLastLinesAndRefLine(numLinesToStore);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Helper method to pick up the lines another program has added to the end of the file since
+	 * it was read, if adding lines is all that has been done to it. The bytes the last lines were
+	 * read from are hashed again to check that they haven't changed. This may be called off the
+	 * event dispatch thread while the last lines are shown, so they are added to a copy of
+	 * lastLines that replaces it, and the list getLastLines() gave out before is never changed
+	 * @return: true if the new lines have been read, false if the file was changed in some other
+	 * way or is gzipped or a Word document, so it can't be read from where it used to end
+	 * @throws IOException if the file can't be read
+	 */
+	private boolean followAppend() throws IOException {
+		long length = file.length();
+		long lastModified = file.lastModified();
+		if (compressed || document || loadedTailHash == -1 || length <= loadedLength || length - loadedTailStart >= Integer.MAX_VALUE) {
+			return false;
+		}
+		
+		// read from one byte before the old end at least, to tell if the old last line was
+		// finished
+		long from = Math.max(0, Math.min(loadedTailStart, loadedLength - 1));
+		byte[] bytes = readBytes(file, from, length);
+		int oldEnd = (int) (loadedLength - from);
+		CRC32 crc = new CRC32();
+		crc.update(bytes, (int) (loadedTailStart - from), (int) (loadedLength - loadedTailStart));
+		if (crc.getValue() != loadedTailHash) {
+			return false;
+		}
+		
+		List<String> appended = readLinesAfter(bytes, oldEnd);
+		if (appended == null) {
+			return false;
+		}
+		
+		RingBuffer<String> lines = new RingBuffer<> (lastLines.capacity());
+		for (String line : lastLines) {
+			lines.addLast(line);
+		}
+		lastLines = lines;
+		for (String line : appended) {
+			makeRoom();
+			lastLines.add(numLinesFromFile, line);
+			numLinesFromFile++;
+			numLinesRead++;
+			numLinesAdded++;
+		}
+		
+		// only the end of the file is hashed from now on, so following it doesn't read more
+		// and more of it
+		int tailStart = Math.max((int) (loadedTailStart - from), bytes.length - MAX_HASHED_TAIL);
+		crc.reset();
+		crc.update(bytes, tailStart, bytes.length - tailStart);
+		loadedTailStart = from + tailStart;
+		loadedTailHash = crc.getValue();
+		loadedLength = length;
+		loadedLastModified = lastModified;
+		return true;
+	}
+	
+	/**
+	 * Helper method to split the bytes added to the end of the file into non-blank lines
+	 * @param bytes: bytes read from the file, up to where it ends now
+	 * @param oldEnd: the index in bytes of where the file used to end. If the file wasn't empty,
+	 * bytes has to hold the byte before it
+	 * @return: the lines after oldEnd, or null if the last line before oldEnd was carried on
+	 * rather than new lines being started after it
+	 */
+	private List<String> readLinesAfter(byte[] bytes, int oldEnd) {
+		int lineStart = oldEnd;
+		if (loadedLength > 0) {
+			byte last = bytes[oldEnd - 1];
+			if (last != '\n' && last != '\r' && bytes[oldEnd] != '\n' && bytes[oldEnd] != '\r') {
+				return null;
+			}
+		}
+		
+		ArrayList<String> lines = new ArrayList<> ();
+		for (int i = lineStart; i <= bytes.length; i++) {
+			if (i == bytes.length || bytes[i] == '\n' || bytes[i] == '\r') {
+				if (i > lineStart) {
+					lines.add(new String(bytes, lineStart, i - lineStart, Charset.defaultCharset()));
+				}
+				lineStart = i + 1;
+			}
+		}
+		
+		return lines;
 	}
 	
 	/**
@@ -170,12 +622,20 @@ public class DataFile {
 		
 		// search for the line to remove starting at the line after the reference line
 		// we only want to allow the client to remove lines that are not in the database
-		// file to prevent misalignments
-		for (int i = refLineInd + 1; i < lastLines.size(); i++) {
+		// file to prevent misalignments. A Word document can't be rewritten without the lines
+		// already in it, so only lines added here can be removed from it
+		int first = document ? Math.max(refLineInd + 1, numLinesFromFile) : refLineInd + 1;
+		for (int i = first; i < lastLines.size(); i++) {
 			// if we have found the right line, then remove it
 			if (lastLines.get(i).equals(line)) {
 				lastLines.remove(i);
 				numLinesAdded--;
+				
+				// if the line was already in the file, the file has to be rewritten without it
+				if (i < numLinesFromFile) {
+					numLinesFromFile--;
+					fileLineRemoved = true;
+				}
 				return true;
 			}
 		}
@@ -191,66 +651,289 @@ public class DataFile {
 	}
 	
 	/**
-	 * Writes all new lines to the data file on disc
-	 * <br>post: getLinesAdded() returns 0
+	 * Writes all new lines to the data file on disc, by staging them and then publishing them
+	 * straight away in a group commit of their own. See stage() and publish()
+	 * <br>post: getLinesAdded() returns 0, unless this is a Word document lines were added to
 	 */
 	public void write() {
+		// finish any earlier write of the file on its own that was interrupted
+		File manifest = GroupCommit.manifestFor(file);
 		try {
-			// make new file, ensuring its name is unique so we don't overwrite another file
-			int fileNumber = 0;
-			File tempFile = new File(TEMP_FILE_NAME + fileNumber + TEMP_FILE_EXTEN);
+			GroupCommit.recover(manifest);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (!stage()) {
+			return;
+		}
+		
+		GroupCommit commit = new GroupCommit(manifest);
+		try {
+			publish(commit);
+			commit.commit();
+		} catch (IOException e) {
+			e.printStackTrace();
+			commit.abort();
+			discard();
+			return;
+		}
+		
+		finishPublish();
+	}
+	
+	/**
+	 * Gets the new contents of the data file ready without changing the file itself, so that
+	 * publish() only has to put them in place. If the file hasn't changed since it was read and
+	 * none of the lines that were already in it were removed, the lines added since then are
+	 * readied to be appended to the end of the file. Otherwise the whole file is written to a
+	 * temp file next to it, to replace it with. Lines another program has added to the end of
+	 * the file since it was read are kept, but if the file has been changed in any other way
+	 * nothing is staged, since writing it would lose the change. Nothing is staged for a Word
+	 * document, since it is never written. Different DataFiles can be staged at the same time on
+	 * different threads
+	 * <br>post: anything staged before has been discarded
+	 * @return: true if the new contents were staged or there is nothing to stage, false if they
+	 * couldn't be staged, which has been reported
+	 */
+	public boolean stage() {
+		discard();
+		stageStart = System.nanoTime();
+		if (document) {
+			return true;
+		}
+		
+		try {
+			if (hasChanged() && !followAppend()) {
+				throw new IOException(file.getName() + " was changed by another program since it was read, so it wasn't written");
+			}
 			
-			while (!tempFile.createNewFile()) {
-				fileNumber++;
-				tempFile = new File(TEMP_FILE_NAME + fileNumber + TEMP_FILE_EXTEN);
+			if (!fileLineRemoved) {
+				stagedAppend = stageAppend();
+			} else {
+				stagedFile = stageRewrite();
+			}
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Adds the contents readied by stage() to a group commit, so that they are forced to disc
+	 * and put in place along with the other files in the group. New lines to append are
+	 * appended to the end of the file as it was read, which is undone if the group isn't
+	 * committed, and a temp file is moved over the file. If another program has added lines to
+	 * the end of the file since it was staged, it is staged again so that they are kept. The
+	 * group only writes the file if it is still the length it was staged at. Once the group has
+	 * been committed finishPublish() must be called, or discard() if it failed
+	 * <br>pre: stage() has been called since the last publish() or discard()
+	 * @param commit: the group commit
+	 * @throws IOException if the file has been changed in some other way since it was staged,
+	 * in which case the group mustn't be committed
+	 */
+	public void publish(GroupCommit commit) throws IOException {
+		if ((stagedAppend != null || stagedFile != null) && hasChanged() && !stage()) {
+			throw new IOException(file.getName() + " was changed by another program since it was staged, so it wasn't written");
+		}
+		
+		// if staging failed, it has already been reported and the file is left as it is
+		if (stagedAppend != null) {
+			commit.requireLength(file, loadedLength);
+			commit.append(file, loadedLength, stagedAppend);
+			PerformanceMetrics.get().addBytesWritten(stagedAppend.length);
+			published = true;
+		} else if (stagedFile != null) {
+			// the group commit deletes the temp file if it can't be moved into place
+			commit.requireLength(file, loadedLength);
+			commit.replace(stagedFile, file);
+			published = true;
+		}
+		
+		stagedAppend = null;
+		stagedFile = null;
+	}
+	
+	/**
+	 * Reads the file again once the group commit it was published in has been committed, so
+	 * that the lines written are read from the file. A Word document is never written: once its
+	 * new lines are in the database file it is just read again, and if lines were added to it
+	 * here it is left as it is
+	 * <br>post: getLinesAdded() returns 0, unless nothing could be published or this is a Word
+	 * document lines were added to
+	 */
+	public void finishPublish() {
+		if (document) {
+			if (lastLines.size() == numLinesFromFile) {
+				numLinesAdded = 0;
+				resetLastLinesAndRefLine(numLinesToStore);
+			}
+			return;
+		}
+		
+		if (!published) {
+			return;
+		}
+		published = false;
+		
+		// reset this DataFile object
+		int numLines = numLinesAdded;
+		numLinesAdded = 0;
+		resetLastLinesAndRefLine(numLinesToStore);
+		
+		PerformanceMetrics.get().addDataFileWrite(file, numLines, stageStart);
+	}
+	
+	/**
+	 * Throws away anything readied by stage(), or published in a group commit that failed,
+	 * leaving the data file as it is and the new lines still to be written
+	 */
+	public void discard() {
+		if (stagedFile != null) {
+			stagedFile.delete();
+		}
+		stagedFile = null;
+		stagedAppend = null;
+		published = false;
+	}
+	
+	/**
+	 * Helper method to encode the lines added since the file was read, ready to be appended to
+	 * the end of the file. A gzipped file has them added as another gzip member, which is read
+	 * as part of the same file
+	 * @return: the bytes to append
+	 * @throws IOException if the file can't be read
+	 */
+	private byte[] stageAppend() throws IOException {
+		// make sure the new lines start on a line of their own
+		boolean needsNewLine = false;
+		if (loadedLength > 0) {
+			int lastByte = readLastByte();
+			needsNewLine = lastByte != '\n' && lastByte != '\r';
+		}
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream os = compressed ? CompressedFiles.wrapOutput(bytes, database.getCompressionLevel()) : bytes;
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(os, Charset.defaultCharset()));
+		
+		if (needsNewLine) {
+			out.newLine();
+		}
+		
+		// only the lines after the ones read from the file are new to the file
+		for (int i = numLinesFromFile; i < lastLines.size(); i++) {
+			out.write(lastLines.get(i));
+			out.newLine();
+		}
+		
+		out.close();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Helper method to read the last byte of the file as it was when it was read, which for a
+	 * gzipped file means uncompressing all of it
+	 * <br>pre: loadedLength > 0
+	 * @return: the last byte, or -1 if the file is empty
+	 * @throws IOException if the file can't be read
+	 */
+	private int readLastByte() throws IOException {
+		if (!compressed) {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				raf.seek(loadedLength - 1);
+				return raf.read();
+			} finally {
+				raf.close();
+			}
+		}
+		
+		InputStream in = CompressedFiles.openInput(file, null, false);
+		try {
+			byte[] buf = new byte[8192];
+			int lastByte = -1;
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				if (read > 0) {
+					lastByte = buf[read - 1] & 0xFF;
+				}
+			}
+			return lastByte;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Checks if a file is a temp file a data file is rewritten to before it is renamed over it
+	 * @param file: the file
+	 * @return: true if the file has the name of a data file's temp file, false otherwise
+	 */
+	public static boolean isTempFile(File file) {
+		return GroupCommit.isTempFile(file, TEMP_FILE_NAME, TEMP_FILE_EXTEN);
+	}
+	
+	/**
+	 * Helper method to write the whole file to a temp file in the same folder, with all of the
+	 * new lines after the reference line. A gzipped file is written gzipped at the database's
+	 * compression level
+	 * @return: the temp file
+	 * @throws IOException if either file can't be accessed
+	 */
+	private File stageRewrite() throws IOException {
+		// make new file next to the data file so it can be renamed over it
+		File tempFile = GroupCommit.createTempFile(file, TEMP_FILE_NAME, TEMP_FILE_EXTEN);
+		
+		try {
+			if (refLine == null) {
+				throw new IOException("None of the last lines of " + file.getName() + " are in the database file, so there is nowhere to write new lines");
 			}
 			
 			// set up output streams to new file and input streams from the data file
-			FileWriter fw = new FileWriter(tempFile);
-			BufferedWriter out = new BufferedWriter(fw);
-			
-			BufferedReader in = new BufferedReader(new FileReader(file));
-
-			String line = "";
-			
-			// write all of the lines in the data file to the temp file, except
-			// the new lines
-			while (line != null && !line.equals(refLine)) {				
-				line = in.readLine();
-
-				out.write(line);
-				out.newLine();
+			OutputStream os = compressed ? CompressedFiles.openOutput(tempFile, false, database.getCompressionLevel()) : new FileOutputStream(tempFile);
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(os, Charset.defaultCharset()));
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(CompressedFiles.openInput(file, null, false), Charset.defaultCharset()));
+				try {
+					// write all of the lines in the data file to the temp file, up to and
+					// including the reference line
+					String line;
+					while ((line = in.readLine()) != null) {
+						out.write(line);
+						out.newLine();
+						if (line.equals(refLine)) {
+							break;
+						}
+					}
+					
+					if (line == null) {
+						throw new IOException("The reference line of " + file.getName() + " is no longer in it: " + refLine);
+					}
+				} finally {
+					in.close();
+				}
 				
-			}
-			in.close();
-
-			// write the new lines to the file
-			boolean pastRef = false;
-			for (String l : lastLines) {
-				if (pastRef) {
-					out.write(l);
-					out.newLine();
-				} else {
-					if (l.equals(refLine)) {
-						pastRef = true;
+				// write the new lines to the file
+				boolean pastRef = false;
+				for (String l : lastLines) {
+					if (pastRef) {
+						out.write(l);
+						out.newLine();
+					} else {
+						if (l.equals(refLine)) {
+							pastRef = true;
+						}
 					}
 				}
+			} finally {
+				out.close();
 			}
-			
-			out.close();
-			fw.close();
-			
-			// replace the original data file with the temp file
-			file.delete();
-			tempFile.renameTo(file);
-			file = tempFile;
-			
-			// reset this DataFile object
-			numLinesAdded = 0;
-			resetLastLinesAndRefLine(numLinesToStore);
-			
+			PerformanceMetrics.get().addBytesWritten(tempFile.length());
 		} catch (IOException e) {
-			e.printStackTrace();
+			tempFile.delete();
+			throw e;
 		}
+		
+		return tempFile;
 	}
 }
@@ -0,0 +1,180 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Remembers what was read from each data file the last time a DataFile was made for it, so
+ * that making new DataFiles for the same files (when the database file is opened again, or the
+ * number of lines to display changes) doesn't have to read files that haven't changed. Each
+ * entry holds the last lines of a file as they were read and where they start in it, keyed by
+ * the file and its size and modification time, together with the reference line that was found
+ * for them and the fingerprint of the database it was found in. Safe to use from several
+ * threads at once
+ */
+public class DataFileCache {
+
+	// returned by Entry.getRefLineInd when the reference line wasn't found in the same database
+	public static final int REF_LINE_UNKNOWN = -2;
+
+	// the entry for each data file, by its absolute path
+	private HashMap<File, Entry> entries = new HashMap<> ();
+
+	/**
+	 * Gets the entry for a data file, if the file hasn't changed since the entry was made
+	 * @param file: the data file
+	 * @return: the entry, or null if there isn't one or the file has changed
+	 */
+	public synchronized Entry get(File file) {
+		File key = file.getAbsoluteFile();
+		Entry entry = entries.get(key);
+		if (entry != null && (file.length() != entry.length || file.lastModified() != entry.lastModified)) {
+			entries.remove(key);
+			return null;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Records what was read from a data file, replacing any earlier entry for it
+	 * <br>pre: entry != null
+	 * @param entry: the entry to record
+	 */
+	public synchronized void put(Entry entry) {
+		entries.put(entry.file.getAbsoluteFile(), entry);
+	}
+
+	/**
+	 * Forgets every entry
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * The last lines of a data file as they were read, and the reference line found for them.
+	 * Entries can't be changed once they are made
+	 */
+	public static class Entry {
+
+		private File file;
+		// the state of the file when the lines were read
+		private long length;
+		private long lastModified;
+		// the last non-blank lines of the file, how many lines were asked for, and the position
+		// of the first of them in the file, or -1 if lines before them can't be read on their own
+		private List<String> lines;
+		private int numAsked;
+		private long linesStart;
+		// the CRC-32 of the bytes from linesStart to the end of the file, or -1 if it isn't known
+		private long linesHash;
+		// the index in lines of the reference line, and the fingerprint of the database it was
+		// found in, or null if it hasn't been
+		private int refLineInd;
+		private String databaseFingerprint;
+
+		/**
+		 * Constructor for Entry
+		 * @param file: the data file
+		 * @param length: the length of the file when the lines were read
+		 * @param lastModified: the modification time of the file when the lines were read
+		 * @param lines: the last non-blank lines of the file, which are copied
+		 * @param numAsked: how many lines were asked for. If lines holds fewer, it holds every
+		 * line in the file
+		 * @param linesStart: the position of the first of the lines in the file, or -1 if the
+		 * lines before them can't be read on their own
+		 * @param linesHash: the CRC-32 of the bytes from linesStart to the end of the file, or -1
+		 * if it isn't known
+		 * @param refLineInd: the index in lines of the reference line, or -1 if none of them
+		 * are in the database
+		 * @param databaseFingerprint: the fingerprint of the database the reference line was
+		 * found in, or null if it is unknown
+		 */
+		public Entry(File file, long length, long lastModified, List<String> lines, int numAsked, long linesStart, long linesHash, int refLineInd, String databaseFingerprint) {
+			this.file = file;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.lines = Collections.unmodifiableList(new ArrayList<> (lines));
+			this.numAsked = numAsked;
+			this.linesStart = linesStart;
+			this.linesHash = linesHash;
+			this.refLineInd = refLineInd;
+			this.databaseFingerprint = databaseFingerprint;
+		}
+
+		/**
+		 * @return: the length of the file when the lines were read
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * @return: the modification time of the file when the lines were read
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return: a read-only list of the last non-blank lines of the file
+		 */
+		public List<String> getLines() {
+			return lines;
+		}
+
+		/**
+		 * @return: the number of lines that were asked for
+		 */
+		public int getNumAsked() {
+			return numAsked;
+		}
+
+		/**
+		 * @return: true if the lines are every non-blank line in the file
+		 */
+		public boolean hasWholeFile() {
+			return lines.size() < numAsked;
+		}
+
+		/**
+		 * @return: the position of the first of the lines in the file, or -1 if the lines
+		 * before them can't be read on their own
+		 */
+		public long getLinesStart() {
+			return linesStart;
+		}
+
+		/**
+		 * @return: the CRC-32 of the bytes from getLinesStart() to the end of the file as it was
+		 * when the lines were read, or -1 if it isn't known
+		 */
+		public long getLinesHash() {
+			return linesHash;
+		}
+
+		/**
+		 * Gets the reference line found for the lines, if it was found in the same database
+		 * @param fingerprint: the fingerprint of the database as it is now
+		 * @return: the index in getLines() of the reference line, -1 if none of the lines are in
+		 * the database, or REF_LINE_UNKNOWN if the reference line wasn't found in this database
+		 */
+		public int getRefLineInd(String fingerprint) {
+			return fingerprint != null && fingerprint.equals(databaseFingerprint) ? refLineInd : REF_LINE_UNKNOWN;
+		}
+
+		/**
+		 * Makes a copy of this entry with the reference line that was found for its lines
+		 * @param ind: the index in getLines() of the reference line, or -1 if none of the lines
+		 * are in the database
+		 * @param fingerprint: the fingerprint of the database the reference line was found in,
+		 * or null if the entry shouldn't be trusted to know it
+		 * @return: the new entry
+		 */
+		public Entry withRefLine(int ind, String fingerprint) {
+			return new Entry(file, length, lastModified, lines, numAsked, linesStart, linesHash, ind, fingerprint);
+		}
+	}
+}
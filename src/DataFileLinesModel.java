@@ -0,0 +1,477 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * List model of every non-blank line of a data file, followed by any new lines added to it,
+ * that only reads the lines that are actually shown. The last lines come from the DataFile
+ * itself; the lines before them are read from the file a page at a time when they are asked
+ * for, using a table of where every page of lines starts, and the last few pages read are
+ * kept in case they are shown again. Scrolling through a whole data file only ever holds a few
+ * pages of it in memory. The table has to go through the whole file, so it is made with
+ * readTable() on a background thread and then handed to the model. A gzipped data file can't be
+ * read from the middle, so while its table is made its lines are uncompressed into a temp file,
+ * and its pages are read from there. The same goes for a Word document, whose lines are copied
+ * out of its XML
+ * <br>Lists showing this model should have a prototype cell value or fixed cell size set, or
+ * Swing will ask for every line to measure them
+ */
+public class DataFileLinesModel extends AbstractListModel<String> {
+
+	private static final long serialVersionUID = -6803125738461627205L;
+
+	private static final int PAGE_SIZE = 256;
+	private static final int MAX_CACHED_PAGES = 16;
+	private static final int BLOCK_SIZE = 1 << 16;
+	// how much of the end of the file is checked to make sure it has only been added to
+	private static final int CHECK_SIZE = 4096;
+	private static final String SPOOL_PREFIX = "dataFileLines";
+	private static final String SPOOL_EXTEN = ".txt";
+
+	private DataFile dataFile;
+	// the last lines of the data file, shown after the lines read from the file
+	private List<String> lastLines = Collections.emptyList();
+	// the number of lines before the last lines, which are read from the file
+	private int numEarlierLines;
+	private int size;
+	private Table table;
+
+	// the most recently read pages, least recently used first
+	private LinkedHashMap<Integer, String[]> pages = new LinkedHashMap<Integer, String[]> (MAX_CACHED_PAGES, 0.75f, true) {
+		private static final long serialVersionUID = 4918572253630845107L;
+
+		protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+			return size() > MAX_CACHED_PAGES;
+		}
+	};
+
+	/**
+	 * Where every page of lines of a data file starts, as it was when the table was made. Once
+	 * made it is never changed, so it can be made on one thread and used on another
+	 */
+	public static class Table {
+
+		private File file;
+		// the file the pages are read from: the data file itself, or for a gzipped file or a Word
+		// document, a temp file of its lines, and the character set the lines are in
+		private File source;
+		private boolean spooled;
+		private Charset charset = Charset.defaultCharset();
+		// the length of the data file the table is for, and where in the source the first of every
+		// PAGE_SIZE non-blank lines starts, up to contentLength
+		private long tableLength;
+		private long contentLength;
+		private long[] pageStarts = new long[16];
+		private int numPages;
+		private int numFileLines;
+		// whether the table ends part way through a line, and a checksum of the bytes just before
+		// its end, so the table can be carried on when lines are added to the file
+		private boolean endsInLine;
+		private long endChecksum;
+
+		/**
+		 * Constructor for Table. Makes an empty table
+		 * @param file: the data file
+		 * @param length: the length of the data file the table is for
+		 */
+		private Table(File file, long length) {
+			this.file = file;
+			source = file;
+			tableLength = length;
+		}
+
+		/**
+		 * Helper method to copy the table, so that the copy can be carried on
+		 * @return: the copy
+		 */
+		private Table copy() {
+			Table t = new Table(file, tableLength);
+			t.contentLength = contentLength;
+			t.pageStarts = pageStarts.clone();
+			t.numPages = numPages;
+			t.numFileLines = numFileLines;
+			t.endsInLine = endsInLine;
+			t.endChecksum = endChecksum;
+			return t;
+		}
+
+		/**
+		 * Helper method to go through the data file from the end of the table to the specified
+		 * length, counting its non-blank lines and recording where every page of them starts.
+		 * Lines end with "\n", "\r\n" or "\r", the same as for the last lines
+		 * <br>pre: the table isn't spooled
+		 * @param length: how much of the file the table should cover
+		 * @return: true if the table was carried on, false if the file couldn't be read or the
+		 * bytes before the end of the table have changed
+		 */
+		private boolean extend(long length) {
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					if (raf.length() < contentLength || checksum(raf, contentLength) != endChecksum) {
+						return false;
+					}
+
+					byte[] buf = new byte[BLOCK_SIZE];
+					long pos = contentLength;
+					raf.seek(pos);
+					while (pos < length) {
+						int read = raf.read(buf, 0, (int) Math.min(buf.length, length - pos));
+						if (read == -1) {
+							break;
+						}
+
+						countLines(buf, read, pos);
+						pos += read;
+					}
+
+					tableLength = pos;
+					contentLength = pos;
+					endChecksum = checksum(raf, contentLength);
+					return true;
+				} finally {
+					raf.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+
+		/**
+		 * Helper method to make the table for a gzipped data file or a Word document, copying its
+		 * lines into a temp file as they are counted
+		 * <br>pre: the table is empty
+		 * @param document: true if the file is a Word document, false if it is gzipped
+		 * @return: true if the table was made, false if the file couldn't be read
+		 */
+		private boolean spool(boolean document) {
+			try {
+				source = File.createTempFile(SPOOL_PREFIX, SPOOL_EXTEN);
+				spooled = true;
+				source.deleteOnExit();
+
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(source));
+				try {
+					if (document) {
+						spoolDocument(out);
+					} else {
+						spoolCompressed(out);
+					}
+				} finally {
+					out.close();
+				}
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				dispose();
+				return false;
+			}
+		}
+
+		/**
+		 * Helper method to uncompress a gzipped data file into the temp file
+		 * @param out: the temp file
+		 * @throws IOException if either file can't be accessed
+		 */
+		private void spoolCompressed(OutputStream out) throws IOException {
+			InputStream in = CompressedFiles.openInput(file, null, false);
+			try {
+				byte[] buf = new byte[BLOCK_SIZE];
+				int read;
+				while ((read = in.read(buf)) != -1) {
+					countLines(buf, read, contentLength);
+					out.write(buf, 0, read);
+					contentLength += read;
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * Helper method to copy the lines of a Word document into the temp file, a line each
+		 * @param out: the temp file
+		 * @throws IOException if either file can't be accessed
+		 */
+		private void spoolDocument(final OutputStream out) throws IOException {
+			// the lines are written back exactly as they were read
+			charset = StandardCharsets.UTF_8;
+			final IOException[] failure = new IOException[1];
+			DocxReader.forEachLine(file, new DocxReader.LineHandler() {
+				public boolean handleLine(String line) {
+					byte[] bytes = (line + "\n").getBytes(charset);
+					countLines(bytes, bytes.length, contentLength);
+					try {
+						out.write(bytes);
+					} catch (IOException e) {
+						failure[0] = e;
+						return false;
+					}
+					contentLength += bytes.length;
+					return true;
+				}
+			});
+
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+		}
+
+		/**
+		 * Helper method to count the non-blank lines in a block of the file, recording where each
+		 * page of them starts
+		 * @param buf: the block
+		 * @param len: the number of bytes in the block
+		 * @param pos: the position of the block in the source
+		 */
+		private void countLines(byte[] buf, int len, long pos) {
+			for (int i = 0; i < len; i++) {
+				if (buf[i] == '\n' || buf[i] == '\r') {
+					endsInLine = false;
+				} else if (!endsInLine) {
+					// the first byte of a non-blank line
+					endsInLine = true;
+					if (numFileLines % PAGE_SIZE == 0) {
+						if (numPages == pageStarts.length) {
+							pageStarts = Arrays.copyOf(pageStarts, pageStarts.length * 2);
+						}
+						pageStarts[numPages++] = pos + i;
+					}
+					numFileLines++;
+				}
+			}
+		}
+
+		/**
+		 * Helper method to delete the temp file of lines, if there is one
+		 */
+		private void dispose() {
+			if (spooled) {
+				source.delete();
+			}
+		}
+	}
+
+	/**
+	 * Makes the table of pages for a data file as it was when its last lines were read, which
+	 * means going through the whole file. Can be run on any thread. If the previous table is for
+	 * the same file and it has only been added to since, only the new end of the file is read
+	 * @param dataFile: the data file, or null
+	 * @param previous: the table shown before, or null
+	 * @return: the table, which is previous if the file hasn't changed, or null if dataFile is
+	 * null. If the file couldn't be read, the table has no lines
+	 */
+	public static Table readTable(DataFile dataFile, Table previous) {
+		if (dataFile == null) {
+			return null;
+		}
+
+		File file = dataFile.getFile();
+		long length = dataFile.getLoadedLength();
+		if (previous != null && previous.file.equals(file)) {
+			if (previous.tableLength == length) {
+				return previous;
+			}
+			if (!previous.spooled && length > previous.tableLength) {
+				Table extended = previous.copy();
+				if (extended.extend(length)) {
+					return extended;
+				}
+			}
+		}
+
+		Table table = new Table(file, length);
+		boolean read;
+		if (dataFile.isDocument() || dataFile.isCompressed()) {
+			read = table.spool(dataFile.isDocument());
+		} else {
+			read = table.extend(length);
+		}
+
+		return read ? table : new Table(file, length);
+	}
+
+	/**
+	 * Changes the data file whose lines are shown
+	 * <br>pre: table was made by readTable() for dataFile
+	 * @param dataFile: the data file to show, or null to show nothing
+	 * @param table: the table of pages of the data file, or null
+	 */
+	public void setDataFile(DataFile dataFile, Table table) {
+		int oldSize = size;
+		this.dataFile = dataFile;
+		setTable(table);
+		numEarlierLines = 0;
+		lastLines = Collections.emptyList();
+		size = 0;
+
+		if (oldSize > 0) {
+			fireIntervalRemoved(this, 0, oldSize - 1);
+		}
+		linesChanged();
+	}
+
+	/**
+	 * @return: the data file whose lines are shown, or null
+	 */
+	public DataFile getDataFile() {
+		return dataFile;
+	}
+
+	/**
+	 * @return: the table of pages of the data file shown, or null
+	 */
+	public Table getTable() {
+		return table;
+	}
+
+	/**
+	 * Updates the list after lines have been added to or removed from the data file here, which
+	 * doesn't change the file itself
+	 */
+	public void linesChanged() {
+		linesChanged(table);
+	}
+
+	/**
+	 * Updates the list after lines have been added to or removed from the data file, or it has
+	 * been written or read again. If the table isn't for the file as it was when its last lines
+	 * were read, only the last lines are shown
+	 * <br>pre: table was made by readTable() for the data file shown
+	 * @param table: the table of pages of the data file
+	 */
+	public void linesChanged(Table table) {
+		if (dataFile == null) {
+			return;
+		}
+		setTable(table);
+
+		int oldSize = size;
+		int oldEarlierLines = numEarlierLines;
+		lastLines = dataFile.getLastLines();
+		boolean current = table != null && table.tableLength == dataFile.getLoadedLength();
+		numEarlierLines = current ? Math.max(0, table.numFileLines - dataFile.getLastLinesStartFromEnd()) : 0;
+		size = numEarlierLines + lastLines.size();
+
+		// only the lines around the last lines can have changed
+		if (size > oldSize) {
+			fireIntervalAdded(this, oldSize, size - 1);
+		} else if (size < oldSize) {
+			fireIntervalRemoved(this, size, oldSize - 1);
+		}
+		int firstChanged = Math.min(oldEarlierLines, numEarlierLines);
+		if (firstChanged < Math.min(size, oldSize)) {
+			fireContentsChanged(this, firstChanged, Math.min(size, oldSize) - 1);
+		}
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public String getElementAt(int index) {
+		if (index >= numEarlierLines) {
+			return lastLines.get(index - numEarlierLines);
+		}
+
+		String[] page = pages.get(index / PAGE_SIZE);
+		if (page == null) {
+			page = readPage(index / PAGE_SIZE);
+			pages.put(index / PAGE_SIZE, page);
+		}
+
+		String line = page[index % PAGE_SIZE];
+		return line == null ? "" : line;
+	}
+
+	/**
+	 * Helper method to change the table, throwing away the pages read with the old one
+	 * @param table: the new table, or null
+	 */
+	private void setTable(Table table) {
+		if (table == this.table) {
+			return;
+		}
+
+		if (this.table != null) {
+			this.table.dispose();
+		}
+		this.table = table;
+		pages.clear();
+	}
+
+	/**
+	 * Helper method to checksum the bytes just before a position in the file
+	 * @param raf: the open file
+	 * @param end: the position after the last byte to checksum
+	 * @return: a checksum of up to CHECK_SIZE bytes before end
+	 * @throws IOException if the file can't be read
+	 */
+	private static long checksum(RandomAccessFile raf, long end) throws IOException {
+		byte[] bytes = new byte[(int) Math.min(CHECK_SIZE, end)];
+		raf.seek(end - bytes.length);
+		raf.readFully(bytes);
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return crc.getValue();
+	}
+
+	/**
+	 * Helper method to read a page of lines from the data file, or from its temp file of lines
+	 * @param page: the index of the page
+	 * @return: the lines in the page. Lines that couldn't be read, because the file has changed
+	 * since the table was made, are null
+	 */
+	private String[] readPage(int page) {
+		String[] lines = new String[PAGE_SIZE];
+		long start = table.pageStarts[page];
+		long end = page + 1 < table.numPages ? table.pageStarts[page + 1] : table.contentLength;
+
+		try {
+			byte[] bytes;
+			RandomAccessFile raf = new RandomAccessFile(table.source, "r");
+			try {
+				bytes = new byte[(int) Math.max(0, Math.min(end, raf.length()) - start)];
+				raf.seek(start);
+				raf.readFully(bytes);
+			} finally {
+				raf.close();
+			}
+
+			// split the page into its non-blank lines
+			ArrayList<String> split = new ArrayList<> (PAGE_SIZE);
+			int lineStart = 0;
+			for (int i = 0; i <= bytes.length && split.size() < PAGE_SIZE; i++) {
+				if (i == bytes.length || bytes[i] == '\n' || bytes[i] == '\r') {
+					if (i > lineStart) {
+						split.add(new String(bytes, lineStart, i - lineStart, table.charset));
+					}
+					lineStart = i + 1;
+				}
+			}
+			split.toArray(lines);
+			PerformanceMetrics.get().addBytesRead(bytes.length);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return lines;
+	}
+}
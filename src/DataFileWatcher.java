@@ -0,0 +1,180 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a set of data files for changes made by other programs, on a background thread.
+ * The directories the files are in are registered with a WatchService, and the sizes of the
+ * files are also checked every few seconds, since on some systems the WatchService only polls
+ * and can be slow to notice changes. The listener is told which file changed, and is left to
+ * work out what changed in it
+ */
+public class DataFileWatcher {
+
+	// how often the sizes of the files are checked, in milliseconds
+	private static final long POLL_INTERVAL = 2000;
+
+	/**
+	 * Told about each change to a watched file. Called on the watcher's thread
+	 */
+	public interface Listener {
+		/**
+		 * Called when a watched file may have changed
+		 * @param file: the file, as it was given to watch
+		 */
+		void fileChanged(File file);
+	}
+
+	private WatchService service;
+	private Listener listener;
+	// the files being watched, by their absolute path, and the size each was last seen to be
+	private HashMap<Path, File> files = new HashMap<> ();
+	private HashMap<Path, Long> sizes = new HashMap<> ();
+	// the key each watched directory is registered with
+	private HashMap<Path, WatchKey> directories = new HashMap<> ();
+	private Thread thread;
+
+	/**
+	 * Constructor for DataFileWatcher. Starts watching with no files
+	 * <br>pre: listener != null
+	 * @param listener: the listener to tell about changes
+	 * @throws IOException if the file system can't be watched
+	 */
+	public DataFileWatcher(Listener listener) throws IOException {
+		this.listener = listener;
+		service = FileSystems.getDefault().newWatchService();
+
+		thread = new Thread(new Runnable() {
+			public void run() {
+				watchLoop();
+			}
+		}, "Data file watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Changes the files being watched. Directories with no watched files left in them are no
+	 * longer watched
+	 * <br>pre: toWatch != null
+	 * @param toWatch: the files to watch from now on
+	 */
+	public synchronized void watch(Collection<File> toWatch) {
+		HashMap<Path, File> newFiles = new HashMap<> ();
+		for (File f : toWatch) {
+			newFiles.put(f.getAbsoluteFile().toPath(), f);
+		}
+
+		// register the directories of any new files
+		for (Path path : newFiles.keySet()) {
+			Path dir = path.getParent();
+			if (!directories.containsKey(dir)) {
+				try {
+					directories.put(dir, dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+				} catch (IOException e) {
+					// the size check still picks up changes to its files
+					e.printStackTrace();
+				}
+			}
+			if (!sizes.containsKey(path)) {
+				sizes.put(path, newFiles.get(path).length());
+			}
+		}
+
+		// and stop watching directories that aren't needed any more
+		Iterator<Map.Entry<Path, WatchKey>> it = directories.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Path, WatchKey> dir = it.next();
+			boolean needed = false;
+			for (Path path : newFiles.keySet()) {
+				needed |= dir.getKey().equals(path.getParent());
+			}
+			if (!needed) {
+				dir.getValue().cancel();
+				it.remove();
+			}
+		}
+
+		sizes.keySet().retainAll(newFiles.keySet());
+		files = newFiles;
+	}
+
+	/**
+	 * Stops watching every file and ends the background thread
+	 */
+	public void close() {
+		try {
+			service.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper method run by the background thread. Waits for events on the watched
+	 * directories, checking the sizes of the files whenever the poll interval passes, until the
+	 * watcher is closed
+	 */
+	private void watchLoop() {
+		try {
+			while (true) {
+				WatchKey key = service.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				ArrayList<File> changed = new ArrayList<> ();
+
+				synchronized (this) {
+					if (key == null) {
+						// nothing was reported, so fall back on the sizes of the files
+						for (Map.Entry<Path, File> f : files.entrySet()) {
+							long size = f.getValue().length();
+							if (size != sizes.get(f.getKey())) {
+								sizes.put(f.getKey(), size);
+								changed.add(f.getValue());
+							}
+						}
+					} else {
+						Path dir = (Path) key.watchable();
+						for (WatchEvent<?> event : key.pollEvents()) {
+							if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+								// some events were lost, so any file in the directory may have changed
+								for (Map.Entry<Path, File> f : files.entrySet()) {
+									if (dir.equals(f.getKey().getParent()) && !changed.contains(f.getValue())) {
+										changed.add(f.getValue());
+									}
+								}
+							} else {
+								Path path = dir.resolve((Path) event.context());
+								File f = files.get(path);
+								if (f != null && !changed.contains(f)) {
+									sizes.put(path, f.length());
+									changed.add(f);
+								}
+							}
+						}
+						key.reset();
+					}
+				}
+
+				// tell the listener outside of the lock, so it can change the files being watched
+				for (File f : changed) {
+					listener.fileChanged(f);
+				}
+			}
+		} catch (InterruptedException e) {
+			// the thread is only interrupted when the program is ending
+		} catch (ClosedWatchServiceException e) {
+			// the watcher was closed
+		}
+	}
+}
@@ -1,11 +1,24 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 
 public class DatabaseFile {
 
@@ -14,9 +27,197 @@ public class DatabaseFile {
 	private static final int DATA_END_CHAR_OFFSET = 1;
 	private static final String TEMP_FILE_NAME = "tempDatabase";
 	private static final String TEMP_FILE_EXTEN = ".csv";
+	private static final long DEFAULT_COMPACTION_THRESHOLD = 16 << 20;
+	// inserted around an unquoted field to put it in quotes
+	private static final byte[] QUOTE = new byte[] {'"'};
+	
+	// the charset the database file is encoded in. REDCap exports are UTF-8
+	private Charset charset = StandardCharsets.UTF_8;
+	
+	// the number of threads to scan the database file with
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	
+	// where to report progress and check for cancellation while the file is being read or
+	// written, or null
+	private TaskProgress progress;
+	
+	// every delimited data token in the database file. Loaded from the sidecar file or built
+	// on the first lookup and patched whenever writeNewData rewrites the file, so contains
+	// never has to rescan the file
+	private DatabaseIndex tokenIndex;
+	
+	// in filter mode, the false positive rate of the Bloom filter that is kept of the tokens
+	// instead of the index, the most memory it may take up, and the filter once it has been
+	// built. 0 in index mode
+	private double filterRate;
+	private long filterMemoryLimit = Runtime.getRuntime().maxMemory() / 4;
+	private BloomFilter tokenFilter;
+	// the fingerprint of the database the filter holds the tokens of
+	private String filterFingerprint;
+	
+	// whether commits are appended to the journal next to the database file instead of
+	// rewriting it, and how big the journal can get before it is folded into the database file
+	private boolean journalMode;
+	private long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+	// the commits not yet written into the database file. Loaded on first use whether or not
+	// journal mode is on, since a journal may have been left by an earlier run
+	private DatabaseJournal journal;
+	// the thread folding the journal into the database file, or null
+	private Thread compactor;
+	
+	// whether the database file is gzipped, in which case it is read and rewritten as a stream,
+	// and the level rewritten gzipped files are compressed at
+	private boolean compressed;
+	private int compressionLevel = CompressedFiles.DEFAULT_LEVEL;
 	
 	public DatabaseFile(File database) {
 		file = database;
+		compressed = CompressedFiles.isCompressed(database);
+		
+		// finish or undo any commit to the database file and its data files that was interrupted,
+		// before anything is read from them
+		try {
+			GroupCommit.recover(GroupCommit.manifestFor(file));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Sets the number of threads used to scan the database file. The database file is split
+	 * into chunks of whole lines that are scanned in parallel, and the results are the same
+	 * no matter how many threads are used
+	 * <br>pre: parallelism > 0
+	 * @param parallelism: the number of threads to use. 1 scans everything on the calling thread
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("parallelism must be positive");
+		}
+		
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * Sets the charset the database file is encoded in. The file is searched as encoded bytes,
+	 * so the data being looked for is encoded with this charset rather than the file being
+	 * decoded
+	 * <br>pre: charset is UTF-8 or a charset with one byte per char
+	 * @param charset: the charset of the database file. UTF-8 by default
+	 */
+	public synchronized void setCharset(Charset charset) {
+		if (charset == null || !ReferenceMatcher.isSupported(charset)) {
+			throw new IllegalArgumentException("The database file can only be read as UTF-8 or a"
+					+ " single byte charset, not " + (charset == null ? null : charset.name()));
+		}
+		
+		// tokens are split a number of chars after each data end char, so the index has to be
+		// built again if chars are now a different number of bytes
+		if (StandardCharsets.UTF_8.equals(charset) != isUtf8()) {
+			tokenIndex = null;
+			tokenFilter = null;
+		}
+		this.charset = charset;
+	}
+	
+	/**
+	 * Sets where the bytes read and written by later operations on this database file are
+	 * reported. Scans of the file stop with a CancellationException once progress is cancelled,
+	 * but a rewrite of the file that has already started is always finished
+	 * @param progress: the progress to report to, or null to stop reporting
+	 */
+	public void setProgress(TaskProgress progress) {
+		this.progress = progress;
+	}
+	
+	/**
+	 * Sets whether lookups use a Bloom filter of the data tokens instead of the full index, for
+	 * database files whose index would take up too much memory. The filter is built in memory
+	 * with one pass over the file, and isn't saved. Data the filter rules out is answered
+	 * without reading the file, and anything else is checked by scanning the file, which stops
+	 * as soon as everything being checked has been found
+	 * <br>pre: 0 <= falsePositiveRate < 1
+	 * @param falsePositiveRate: how often data that isn't in the file may pass the filter and
+	 * have to be checked by scanning, or 0 to use the index
+	 */
+	public synchronized void setFilterMode(double falsePositiveRate) {
+		if (!(falsePositiveRate >= 0 && falsePositiveRate < 1)) {
+			throw new IllegalArgumentException("falsePositiveRate must be at least 0 and less than 1");
+		}
+		
+		if (falsePositiveRate != filterRate) {
+			filterRate = falsePositiveRate;
+			tokenIndex = null;
+			tokenFilter = null;
+		}
+	}
+	
+	/**
+	 * Sets the most memory the Bloom filter may take up in filter mode. The filter is never
+	 * bigger than it needs to be for the number of tokens the database file could hold, but if
+	 * it reaches this limit first it stops growing, and more data that isn't in the file gets
+	 * past it than the false positive rate allows
+	 * <br>pre: bytes >= 8
+	 * @param bytes: the memory limit. A quarter of the most memory the JVM may use by default
+	 */
+	public synchronized void setFilterMemoryLimit(long bytes) {
+		if (bytes < 8) {
+			throw new IllegalArgumentException("bytes must be at least 8");
+		}
+		
+		if (bytes != filterMemoryLimit) {
+			filterMemoryLimit = bytes;
+			tokenFilter = null;
+		}
+	}
+	
+	/**
+	 * Sets whether commits are appended to a journal next to the database file instead of
+	 * rewriting the whole database file. The database is read with the journal applied, and
+	 * once the journal gets bigger than the compaction threshold it is folded into the database
+	 * file in the background. Turning journal mode off makes the next commit fold the journal
+	 * into the database file as part of its rewrite. A gzipped database file can't have a
+	 * journal applied to it as it is read, so it is always rewritten
+	 * @param journalMode: true to append commits to the journal, false to rewrite the database
+	 * file on every commit
+	 */
+	public void setJournalMode(boolean journalMode) {
+		this.journalMode = journalMode;
+	}
+	
+	/**
+	 * Sets the level gzipped files are compressed at when they are rewritten, both the database
+	 * file and the data files checked against it. Higher levels make smaller files but take
+	 * longer to write
+	 * <br>pre: CompressedFiles.MIN_LEVEL <= level <= CompressedFiles.MAX_LEVEL
+	 * @param level: the compression level, from 0 for no compression to 9 for the smallest files
+	 */
+	public void setCompressionLevel(int level) {
+		if (!CompressedFiles.isValidLevel(level)) {
+			throw new IllegalArgumentException("level must be from " + CompressedFiles.MIN_LEVEL + " to " + CompressedFiles.MAX_LEVEL);
+		}
+		
+		compressionLevel = level;
+	}
+	
+	/**
+	 * @return: the level gzipped files are compressed at when they are rewritten
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+	
+	/**
+	 * Sets how big the journal can get before it is folded into the database file
+	 * <br>pre: threshold > 0
+	 * @param threshold: the size of the journal in bytes
+	 */
+	public void setCompactionThreshold(long threshold) {
+		if (threshold <= 0) {
+			throw new IllegalArgumentException("threshold must be positive");
+		}
+		
+		compactionThreshold = threshold;
 	}
 	
 	/**
@@ -37,39 +238,380 @@ public class DatabaseFile {
 	}
 	
 	/**
-	 * Checks the database file to see if it contains the specified data with the correct format
+	 * Helper method to check if a string contains any of the data end chars
+	 * @param str: the string to check
+	 * @return: true if any char in str is a data end char, false otherwise
+	 */
+	private boolean containsDataEndChar(String str) {
+		for (int i = 0; i < str.length(); i++) {
+			if (arrayContains(DATA_END_CHARS, str.charAt(i))) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Helper method to check if a byte is one of the data end chars
+	 * @param b: the byte to check
+	 * @return: true if b is the encoding of a data end char, false otherwise
+	 */
+	private boolean isDataEndChar(byte b) {
+		// the data end chars are all ASCII, which is the same byte in every supported charset
+		return b >= 0 && arrayContains(DATA_END_CHARS, (char) b);
+	}
+	
+	/**
+	 * @return: true if the database file is encoded in UTF-8, false if it is in a single byte
+	 * charset
+	 */
+	private boolean isUtf8() {
+		return StandardCharsets.UTF_8.equals(charset);
+	}
+	
+	/**
+	 * Helper method to check the index for a piece of data
+	 * <br>pre: the index is available
 	 * @param data: the data to check for
-	 * @return: true if the data is in the database, false otherwise
+	 * @return: true if data is one of the tokens in the index, false otherwise
+	 */
+	private boolean indexContains(String data) {
+		byte[] token = data.getBytes(charset);
+		return tokenIndex.containsToken(token, 0, token.length);
+	}
+	
+	/**
+	 * Helper method to add every delimited data token in a record of the database to the index.
+	 * Each field of the record is tokenized separately, after any escaped quotes in it have been
+	 * turned back into plain quotes
+	 * @param buf: the buffer holding the record
+	 * @param start: the index of the first byte of the record
+	 * @param end: the index just after the last byte of the record
+	 * @param tokenizer: the tokenizer to split the record into fields with
+	 * @param index: the index, filter or other sink to add the tokens to
+	 * @param line: the index of the record's line in the index
+	 */
+	private void indexRecord(byte[] buf, int start, int end, CsvTokenizer tokenizer, TokenSink index, int line) {
+		int numFields = tokenizer.tokenize(buf, start, end);
+		for (int f = 0; f < numFields; f++) {
+			indexField(buf, tokenizer, f, index, line);
+		}
+	}
+	
+	/**
+	 * Helper method to add every delimited data token in a field of a record that has been
+	 * split into fields, after any escaped quotes in it have been turned back into plain quotes
+	 * @param buf: the buffer holding the record
+	 * @param tokenizer: the tokenizer the record was split into fields with
+	 * @param field: the index of the field
+	 * @param index: the sink to add the tokens to. If the field has escaped quotes, the
+	 * positions are in its unescaped content
+	 * @param line: the index of the record's line in the index
+	 */
+	private void indexField(byte[] buf, CsvTokenizer tokenizer, int field, TokenSink index, int line) {
+		if (tokenizer.isEscaped(field)) {
+			indexField(tokenizer.unescape(field), 0, tokenizer.getUnescapedLength(), index, line);
+		} else {
+			indexField(buf, tokenizer.getContentStart(field), tokenizer.getContentEnd(field), index, line);
+		}
+	}
+	
+	/**
+	 * Helper method to add every delimited data token in the content of a field to the index.
+	 * A token ends at the end of the field or anywhere a data end char occurs
+	 * DATA_END_CHAR_OFFSET chars after its end (or the field ends within that offset), which is
+	 * the same rule contains and writeNewData use. A token starts at the beginning of the field
+	 * or DATA_END_CHAR_OFFSET chars after the previous data end char
+	 * @param buf: the buffer holding the encoded content of the field
+	 * @param start: the index of the first byte of the content
+	 * @param end: the index just after the last byte of the content
+	 * @param index: the sink to add the tokens to
+	 * @param line: the index of the field's line in the index
+	 */
+	private void indexField(byte[] buf, int start, int end, TokenSink index, int line) {
+		boolean utf8 = isUtf8();
+		int tokenStart = start;
+		
+		// go through the field byte by byte. Each position is a possible end of a token
+		// (exclusive), unless it is in the middle of a multi-byte char
+		for (int pos = start; pos <= end; pos++) {
+			if (pos < end && utf8 && (buf[pos] & 0xC0) == 0x80) {
+				continue;
+			}
+			
+			// if a valid data end char occurs at the right offset after this position, then
+			// everything from the start of the token up to here is a data token
+			if (pos > tokenStart && ReferenceMatcher.isDataEnd(buf, pos, end, true, utf8, DATA_END_CHARS, DATA_END_CHAR_OFFSET)) {
+				index.addToken(buf, tokenStart, pos, line);
+			}
+			
+			// if this char is itself a data end char, the next token starts after the offset
+			if (pos < end && isDataEndChar(buf[pos])) {
+				tokenStart = skipChars(buf, pos + 1, end, DATA_END_CHAR_OFFSET, utf8);
+			}
+		}
+	}
+	
+	/**
+	 * Helper method to move forward over a number of encoded chars
+	 * @param buf: the encoded chars
+	 * @param pos: the index to start at
+	 * @param end: the index to stop at
+	 * @param numChars: the number of chars to move over
+	 * @param utf8: whether the chars are UTF-8 rather than a single byte charset
+	 * @return: the index after numChars chars, or end if there aren't that many
+	 */
+	private static int skipChars(byte[] buf, int pos, int end, int numChars, boolean utf8) {
+		for (int i = 0; i < numChars && pos < end; i++) {
+			int lead = buf[pos] & 0xFF;
+			pos += !utf8 || lead < 0xC0 ? 1 : lead < 0xE0 ? 2 : lead < 0xF0 ? 3 : 4;
+		}
+		
+		return Math.min(pos, end);
+	}
+	
+	/**
+	 * Helper method to find every occurrence of every pattern of a matcher in a field that
+	 * starts where a data token can start and is followed by a valid data end. This is the one
+	 * rule contains, findRefLineIndices and writeNewData all match data by, and for data with no
+	 * data end char in it, it finds exactly the tokens indexField adds
+	 * @param matcher: the matcher to search with
+	 * @param buf: the buffer holding the record
+	 * @param tokenizer: the tokenizer the record was split into fields with
+	 * @param field: the index of the field
+	 * @param matches: the list to add the matches to, in the order they end. If the field has
+	 * escaped quotes, the positions are in its unescaped content and have to be converted with
+	 * tokenizer.toRawIndex
+	 */
+	private void findInField(ReferenceMatcher matcher, byte[] buf, CsvTokenizer tokenizer, int field, List<ReferenceMatcher.Match> matches) {
+		int first = matches.size();
+		byte[] content = buf;
+		int start = tokenizer.getContentStart(field);
+		int end = tokenizer.getContentEnd(field);
+		if (tokenizer.isEscaped(field)) {
+			content = tokenizer.unescape(field);
+			start = 0;
+			end = tokenizer.getUnescapedLength();
+		}
+		matcher.findAll(content, start, end, true, matches);
+		
+		// drop the matches that start in the middle of a token, such as "abc" in "zzabc | x"
+		for (int i = matches.size() - 1; i >= first; i--) {
+			if (!isTokenStart(content, start, end, matches.get(i).getStart())) {
+				matches.remove(i);
+			}
+		}
+	}
+	
+	/**
+	 * Helper method to check if a data token can start at a position in the content of a field,
+	 * the same way indexField splits it: at the beginning of the field, or DATA_END_CHAR_OFFSET
+	 * chars after the last data end char before the position
+	 * @param buf: the buffer holding the encoded content of the field
+	 * @param start: the index of the first byte of the content
+	 * @param end: the index just after the last byte of the content
+	 * @param pos: the position to check
+	 * @return: true if a token can start at pos, false otherwise
 	 */
-	public boolean contains(String data) {
-		BufferedReader in;
+	private boolean isTokenStart(byte[] buf, int start, int end, int pos) {
+		int tokenStart = start;
+		for (int i = start; i < pos; i++) {
+			if (isDataEndChar(buf[i])) {
+				tokenStart = skipChars(buf, i + 1, end, DATA_END_CHAR_OFFSET, isUtf8());
+			}
+		}
+		
+		return pos == tokenStart;
+	}
+	
+	/**
+	 * Helper method to get the journal, opening it again if the database file has been changed
+	 * since it was opened
+	 * @return: the journal of the database file
+	 * @throws IOException if the journal file can't be read
+	 */
+	private DatabaseJournal getJournal() throws IOException {
+		if (journal == null || journal.isStale()) {
+			journal = DatabaseJournal.open(file);
+		}
+		
+		return journal;
+	}
+	
+	/**
+	 * Helper method to open the contents of the database for reading, with any commits in the
+	 * journal applied
+	 * @return: a channel to read the contents from
+	 * @throws IOException if the database file or journal can't be opened
+	 */
+	private FileChannel openDatabase() throws IOException {
+		if (!getJournal().isEmpty()) {
+			return journal.openChannel();
+		}
+		
+		return new FileInputStream(file).getChannel();
+	}
+	
+	/**
+	 * Helper method to go through the contents of a gzipped database file one record at a time,
+	 * uncompressing it as it is read
+	 * @param from: the position in the uncompressed contents to start at. Must be the start of
+	 * a record
+	 * @param handler: the handler to give each record to
+	 * @throws IOException if the database file can't be read
+	 */
+	private void scanCompressed(long from, ChunkedScanner.LineHandler handler) throws IOException {
+		if (progress != null) {
+			progress.addTotal(file.length());
+		}
+		
+		InputStream in = CompressedFiles.openInput(file, progress, true);
 		try {
-			// set up an input stream for the file
-			in = new BufferedReader(new FileReader(file));
-
-			String line = in.readLine();
-
-			// go over each line of the file
-			while (line != null) {			
-				int dataLen = data.length();
+			CompressedFiles.skipFully(in, from);
+			ChunkedScanner.forEachRecord(in, from, handler, progress);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Helper method to check if commits are written to the journal. A gzipped database file
+	 * never has a journal
+	 * @return: true if commits are appended to the journal, false if the database file is
+	 * rewritten
+	 */
+	private boolean usesJournal() {
+		return journalMode && !compressed;
+	}
+	
+	/**
+	 * Helper method to get the file whose fingerprint says whether the index is up to date. While
+	 * there are commits in the journal, only the journal changes on each commit
+	 * <br>pre: the journal has been opened, unless the database file is gzipped
+	 * @return: the journal file if it has any commits, otherwise the database file
+	 */
+	private File fingerprintFile() {
+		return journal != null && !journal.isEmpty() ? journal.getFile() : file;
+	}
+	
+	/**
+	 * Checks if a file is a temp file a database file is rewritten to before it is renamed over
+	 * it
+	 * @param file: the file
+	 * @return: true if the file has the name of a database file's temp file, false otherwise
+	 */
+	public static boolean isTempFile(File file) {
+		return GroupCommit.isTempFile(file, TEMP_FILE_NAME, TEMP_FILE_EXTEN);
+	}
+	
+	/**
+	 * Helper method to make a new temp file to write the new database file to, next to it and
+	 * ensuring its name is unique
+	 * @return: the temp file, which has been created empty
+	 * @throws IOException if the temp file can't be created
+	 */
+	private File createTempFile() throws IOException {
+		return GroupCommit.createTempFile(file, TEMP_FILE_NAME, TEMP_FILE_EXTEN);
+	}
+	
+	/**
+	 * Helper method to replace the database file with a temp file holding its new contents, so
+	 * that a crash can't leave it missing or half written. See GroupCommit
+	 * @param tempFile: the temp file, made by createTempFile and closed
+	 * @param commit: the group commit to replace the database file in, which is committed
+	 * @throws IOException if the group can't be committed. The temp file has been deleted unless
+	 * it will be moved into place the next time the database file is opened
+	 */
+	private void replaceWith(File tempFile, GroupCommit commit) throws IOException {
+		commit.replace(tempFile, file);
+		try {
+			commit.commit();
+		} catch (IOException e) {
+			commit.abort();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Helper method to read through the database file once from the specified position to the
+	 * end, optionally indexing it or filling a filter with its tokens and optionally searching
+	 * for a set of data strings at the same time
+	 * @param from: the position to start reading at. Must be the start of a line
+	 * @param index: the index to add every data token and line start to, or null to not index
+	 * the file. Its fingerprint is set to the file as it is before reading, and every byte of
+	 * the file is hashed as it is read, carrying on from the hash of the bytes the index was
+	 * built from if from isn't 0
+	 * @param filter: the filter to add every data token to, or null
+	 * @param matcher: a matcher for the encoded data strings to search for, or null to not
+	 * search for any
+	 * @param found: the set to add each data string that is found to. Only used if matcher is
+	 * not null, and must be safe to add to from several threads
+	 * @param numToFind: the number of distinct data strings in the matcher. If the file isn't
+	 * being indexed or filtered, the scan stops once all of them have been found
+	 * @return: true if the file was read, false if it couldn't be
+	 */
+	private boolean scanFile(long from, DatabaseIndex index, BloomFilter filter, ReferenceMatcher matcher, Set<String> found, int numToFind) {
+		try {
+			FileChannel in = compressed ? null : openDatabase();
+			// the hash is of the bytes of the database file, which a gzipped file or one with
+			// commits in the journal doesn't give the scan
+			long prefixHash = index == null || compressed || !journal.isEmpty() ? -1 : from == 0 ? 0 : index.getPrefixHash();
+			if (index != null) {
+				index.setFingerprint(fingerprintFile());
+				index.setSingleByteChars(!isUtf8());
+			}
+			
+			// a gzipped file can only be read from the start, so it is scanned as one chunk
+			if (compressed) {
+				scanCompressed(from, new TokenScanner(index, filter, matcher, found, numToFind));
+				return true;
+			}
+			
+			try {
+				// scan each chunk of the file with its own scanner, each indexing into its own
+				// index if there is more than one chunk
+				ChunkedScanner scanner = new ChunkedScanner(parallelism, progress, true);
+				long[] bounds = scanner.findChunkBounds(in, from, in.size());
+				ArrayList<TokenScanner> scanners = new ArrayList<> ();
+				int numChunks = bounds.length - 1;
+				for (int i = 0; i < numChunks; i++) {
+					DatabaseIndex chunkIndex = index == null || numChunks == 1 ? index : new DatabaseIndex();
+					// the false positive rates and memory of the chunk filters add up once they are
+					// put together, and a chunk can't hold more tokens than it has bytes
+					BloomFilter chunkFilter = filter == null || numChunks == 1 ? filter : new BloomFilter(filter.getFalsePositiveRate() / numChunks,
+							Math.max(1, Math.min(bounds[i + 1] - bounds[i], filter.getMaxTokens())), Math.max(8, filter.getMaxBytes() / numChunks));
+					TokenScanner ts = new TokenScanner(chunkIndex, chunkFilter, matcher, found, numToFind);
+					if (prefixHash != -1) {
+						ts.hashBytes(bounds[i + 1]);
+					}
+					scanners.add(ts);
+				}
+				scanner.scan(in, bounds, scanners);
 				
-				// if the line is long enough to possibly contain the data
-				if (line.length() > dataLen) {
-					// go through the line character by character
-					for (int i = 0; i < line.length() - dataLen; i++) {
-						// check if the specified data string is at this location in the line, and if
-						// after this substring a valid data end char occurs within the right offset
-						if (line.substring(i, i + dataLen).equals(data) && (i + dataLen + DATA_END_CHAR_OFFSET >= line.length() || arrayContains(DATA_END_CHARS, line.charAt(i + dataLen + DATA_END_CHAR_OFFSET)))) {
-							in.close();
-							return true;
+				if (prefixHash != -1) {
+					for (int i = 0; i < numChunks; i++) {
+						prefixHash = DatabaseIndex.combineCrc(prefixHash, scanners.get(i).crc.getValue(), bounds[i + 1] - bounds[i]);
+					}
+					index.setPrefixHash(prefixHash);
+				}
+				
+				// put the chunk indexes together in file order
+				if (numChunks > 1) {
+					for (TokenScanner ts : scanners) {
+						if (index != null) {
+							index.addAll(ts.index);
+						}
+						if (filter != null) {
+							filter.addAll(ts.filter);
 						}
 					}
 				}
-			
-				line = in.readLine();
+			} finally {
+				in.close();
 			}
-			in.close();
-			return false;
+			
+			return true;
 			
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -80,6 +622,355 @@ public class DatabaseFile {
 		}
 	}
 	
+	/**
+	 * Helper method to load the index saved in the sidecar file next to the database file, if
+	 * it is still valid. If the database file has only been added to since the index was saved,
+	 * and there are no commits in the journal, only the new end of the file is indexed, and the
+	 * updated index is saved
+	 */
+	private void loadSavedIndex() {
+		try {
+			if (!compressed) {
+				getJournal();
+			}
+			DatabaseIndex saved = DatabaseIndex.load(file);
+			if (saved == null || saved.hasSingleByteChars() == isUtf8()) {
+				return;
+			}
+			
+			if (saved.matches(fingerprintFile())) {
+				tokenIndex = saved;
+			} else if (!compressed && getJournal().isEmpty() && saved.isAppendedTo(file) && scanFile(saved.getFileSize(), saved, null, null, null, 0)) {
+				tokenIndex = saved;
+				saveIndex();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Helper method to save the index to the sidecar file next to the database file
+	 */
+	private void saveIndex() {
+		try {
+			tokenIndex.save(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Helper method to make sure the index is available, loading it from the sidecar file or
+	 * building it by reading the whole database file
+	 * @return: true if the index is available, false if the database file couldn't be read
+	 */
+	private boolean ensureIndex() {
+		if (tokenIndex == null) {
+			loadSavedIndex();
+		}
+		
+		if (tokenIndex == null) {
+			DatabaseIndex index = new DatabaseIndex();
+			if (scanFile(0, index, null, null, null, 0)) {
+				tokenIndex = index;
+				saveIndex();
+			}
+		}
+		
+		return tokenIndex != null;
+	}
+	
+	/**
+	 * Helper method to throw away the index or filter if the database file has been changed by
+	 * another program since it was built. A saved index that the file has only been added to
+	 * is still used, once the new end has been scanned
+	 */
+	private void dropOutdatedLookups() {
+		try {
+			if (tokenIndex != null && !tokenIndex.matches(fingerprintFile())) {
+				tokenIndex = null;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			tokenIndex = null;
+		}
+		
+		if (tokenFilter != null && !isFilterCurrent()) {
+			tokenFilter = null;
+		}
+	}
+	
+	/**
+	 * @return: true if the filter was built from the database as it is now, false otherwise
+	 */
+	private boolean isFilterCurrent() {
+		String fingerprint = getFingerprint();
+		return fingerprint != null && fingerprint.equals(filterFingerprint);
+	}
+	
+	/**
+	 * Helper method to make sure the filter is available, building it by reading the whole
+	 * database file
+	 * @return: true if the filter is available, false if the database file couldn't be read
+	 */
+	private boolean ensureFilter() {
+		if (tokenFilter == null) {
+			// there can't be more tokens than bytes, but a gzipped file's bytes are no guide
+			long maxTokens = Long.MAX_VALUE;
+			if (!compressed) {
+				maxTokens = Math.max(1, file.length() + DatabaseJournal.journalFor(file).length());
+			}
+			BloomFilter filter = new BloomFilter(filterRate, maxTokens, filterMemoryLimit);
+			filterFingerprint = getFingerprint();
+			if (scanFile(0, null, filter, null, null, 0)) {
+				tokenFilter = filter;
+			}
+		}
+		
+		return tokenFilter != null;
+	}
+	
+	/**
+	 * Helper method to check the filter for a piece of data
+	 * <br>pre: the filter is available
+	 * @param data: the data to check for
+	 * @return: false if data is definitely not one of the tokens in the file, true if it
+	 * probably is
+	 */
+	private boolean filterContains(String data) {
+		byte[] token = data.getBytes(charset);
+		return tokenFilter.mightContainToken(token, 0, token.length);
+	}
+	
+	/**
+	 * Helper method to check which of several pieces of data are really in the database file
+	 * with a single scan of the file, which stops once all of them have been found
+	 * <br>pre: !data.isEmpty()
+	 * @param data: the data to check for
+	 * @return: the pieces of data that were found, or null if the file couldn't be read
+	 */
+	private Set<String> verifyTokens(Set<String> data) {
+		long start = System.nanoTime();
+		Set<String> found = ConcurrentHashMap.newKeySet();
+		ReferenceMatcher matcher = new ReferenceMatcher(data, charset, DATA_END_CHARS, DATA_END_CHAR_OFFSET);
+		
+		boolean read = scanFile(0, null, null, matcher, found, data.size());
+		PerformanceMetrics.get().addTime(PerformanceMetrics.VERIFY_TOKENS, start);
+		return read ? found : null;
+	}
+	
+	/**
+	 * Checks the database file to see if it contains the specified data with the correct format.
+	 * The lookup is done against an index of the data tokens in the file, which is saved next to
+	 * the database file, so at most the first call reads the file. In filter mode, data the
+	 * filter rules out is answered without reading the file, and other data is checked by
+	 * scanning it. Data that itself contains a data end char can't line up with the tokens, so
+	 * it is still checked by scanning the file
+	 * @param data: the data to check for
+	 * @return: true if the data is in the database, false otherwise
+	 */
+	public synchronized boolean contains(String data) {
+		long start = System.nanoTime();
+		boolean contains;
+		if (containsDataEndChar(data)) {
+			Set<String> found = ConcurrentHashMap.newKeySet();
+			scanFile(0, null, null, new ReferenceMatcher(Collections.singleton(data), charset, DATA_END_CHARS, DATA_END_CHAR_OFFSET), found, 1);
+			contains = !found.isEmpty();
+		} else if (filterRate > 0) {
+			// only data that gets past the filter has to be looked for in the file
+			Set<String> found = ensureFilter() && filterContains(data) ? verifyTokens(Collections.singleton(data)) : null;
+			contains = found != null && found.contains(data);
+		} else {
+			contains = ensureIndex() && indexContains(data);
+		}
+		
+		PerformanceMetrics metrics = PerformanceMetrics.get();
+		metrics.addMatchesFound(contains ? 1 : 0);
+		metrics.addTime(PerformanceMetrics.CONTAINS, start);
+		return contains;
+	}
+	
+	/**
+	 * Finds the reference line for each of several data files at once. For each list of lines,
+	 * the reference line is the last line in it that is in the database file. Everything that
+	 * has to be read from the database file is read in a single pass, no matter how many lists
+	 * or lines there are, and nothing at all is read if the saved index is still valid and none
+	 * of the lines contain a data end char
+	 * <br>pre: tails != null and none of the lists or lines in tails are null
+	 * @param tails: for each data file, the last few lines of that file in the order they occur
+	 * @return: an array parallel to tails holding, for each list, the index of the last line in
+	 * it that is in the database file, or -1 if none of its lines are
+	 */
+	public synchronized int[] findRefLineIndices(List<? extends List<String>> tails) {
+		if (tails == null) {
+			throw new IllegalArgumentException("tails may not be null");
+		}
+		
+		long start = System.nanoTime();
+		// what is found is remembered against the database's fingerprint, so it has to be found
+		// in the database as it is now
+		dropOutdatedLookups();
+		int[] refLineIndices = filterRate > 0 ? findRefLinesWithFilter(tails) : findRefLinesWithIndex(tails);
+		
+		int numFound = 0;
+		for (int ind : refLineIndices) {
+			if (ind != -1) {
+				numFound++;
+			}
+		}
+		
+		PerformanceMetrics metrics = PerformanceMetrics.get();
+		metrics.addMatchesFound(numFound);
+		metrics.addTime(PerformanceMetrics.FIND_REF_LINES, start);
+		return refLineIndices;
+	}
+	
+	/**
+	 * Helper method to find the reference lines using the index, building it if there isn't one
+	 * @param tails: for each data file, the last few lines of that file in the order they occur
+	 * @return: for each list, the index of the last line in it that is in the database file, or
+	 * -1 if none of its lines are
+	 */
+	private int[] findRefLinesWithIndex(List<? extends List<String>> tails) {
+		if (tokenIndex == null) {
+			loadSavedIndex();
+		}
+		
+		// lines with a data end char in them have to be searched for in the file, but only the
+		// ones after the last line in each list that the index can answer for
+		HashSet<String> toSearch = new HashSet<> ();
+		boolean needIndex = tokenIndex == null;
+		for (List<String> tail : tails) {
+			for (int i = tail.size() - 1; i >= 0; i--) {
+				String line = tail.get(i);
+				if (containsDataEndChar(line)) {
+					toSearch.add(line);
+				} else if (!needIndex && indexContains(line)) {
+					break;
+				}
+			}
+		}
+		
+		// build the index and search for the other lines with the same pass over the file
+		Set<String> found = ConcurrentHashMap.newKeySet();
+		if (needIndex || !toSearch.isEmpty()) {
+			DatabaseIndex index = needIndex ? new DatabaseIndex() : null;
+			ReferenceMatcher matcher = toSearch.isEmpty() ? null : new ReferenceMatcher(toSearch, charset, DATA_END_CHARS, DATA_END_CHAR_OFFSET);
+			
+			if (scanFile(0, index, null, matcher, found, toSearch.size()) && needIndex) {
+				tokenIndex = index;
+				saveIndex();
+			}
+		}
+		
+		// now every line can be answered from memory
+		int[] refLineIndices = new int[tails.size()];
+		for (int t = 0; t < tails.size(); t++) {
+			List<String> tail = tails.get(t);
+			refLineIndices[t] = -1;
+			
+			for (int i = tail.size() - 1; i >= 0; i--) {
+				String line = tail.get(i);
+				if (containsDataEndChar(line) ? found.contains(line) : tokenIndex != null && indexContains(line)) {
+					refLineIndices[t] = i;
+					break;
+				}
+			}
+		}
+		
+		return refLineIndices;
+	}
+	
+	/**
+	 * Helper method to find the reference lines using the filter. Lines the filter rules out are
+	 * passed over without reading the file. The last line of each list that gets past the
+	 * filter, and any lines after it with a data end char in them, are all checked with a single
+	 * scan of the file. Only if one of those lines turns out to be a false positive are the
+	 * lines before it checked with another scan
+	 * @param tails: for each data file, the last few lines of that file in the order they occur
+	 * @return: for each list, the index of the last line in it that is in the database file, or
+	 * -1 if none of its lines are
+	 */
+	private int[] findRefLinesWithFilter(List<? extends List<String>> tails) {
+		int[] refLineIndices = new int[tails.size()];
+		// for each list, the index of the last line that hasn't been checked yet, or -1 once
+		// the list is settled
+		int[] next = new int[tails.size()];
+		for (int t = 0; t < tails.size(); t++) {
+			refLineIndices[t] = -1;
+			next[t] = tails.get(t).size() - 1;
+		}
+		if (!ensureFilter()) {
+			return refLineIndices;
+		}
+		
+		while (true) {
+			HashSet<String> toSearch = new HashSet<> ();
+			for (int t = 0; t < tails.size(); t++) {
+				List<String> tail = tails.get(t);
+				for (int i = next[t]; i >= 0; i--) {
+					String line = tail.get(i);
+					if (containsDataEndChar(line)) {
+						toSearch.add(line);
+					} else if (filterContains(line)) {
+						toSearch.add(line);
+						break;
+					}
+				}
+			}
+			
+			Set<String> found = toSearch.isEmpty() ? null : verifyTokens(toSearch);
+			if (found == null) {
+				return refLineIndices;
+			}
+			
+			// settle every list whose lines were all found or ruled out
+			boolean falsePositive = false;
+			for (int t = 0; t < tails.size(); t++) {
+				List<String> tail = tails.get(t);
+				int i = next[t];
+				next[t] = -1;
+				for (; i >= 0; i--) {
+					String line = tail.get(i);
+					if (found.contains(line)) {
+						refLineIndices[t] = i;
+						break;
+					}
+					if (!containsDataEndChar(line) && filterContains(line)) {
+						// the filter was wrong about this line, so keep looking before it
+						next[t] = i - 1;
+						falsePositive = true;
+						break;
+					}
+				}
+			}
+			
+			if (!falsePositive) {
+				return refLineIndices;
+			}
+		}
+	}
+	
+	/**
+	 * Gets a fingerprint of everything lookups in the database depend on: the size, modification
+	 * time and sampled contents of the database file, the size and modification time of its
+	 * journal, and the charset it is read in. Anything looked up while the fingerprint stays the
+	 * same would be found again
+	 * @return: the fingerprint, or null if the database file can't be read
+	 */
+	public synchronized String getFingerprint() {
+		try {
+			long length = file.length();
+			File journalFile = DatabaseJournal.journalFor(file);
+			return file.getAbsolutePath() + ":" + length + ":" + file.lastModified() + ":" + DatabaseIndex.contentHash(file, length)
+					+ ":" + journalFile.length() + ":" + journalFile.lastModified() + ":" + charset.name();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
 	/**
 	 * @return: the name of this database file
 	 */
@@ -87,6 +978,13 @@ public class DatabaseFile {
 		return file.getName();
 	}
 	
+	/**
+	 * @return: the File object this DatabaseFile is using
+	 */
+	public File getFile() {
+		return file;
+	}
+	
 	/**
 	 * Searches for each line in refLine, then writes the corresponding data into the file just after
 	 * that reference line
@@ -96,8 +994,10 @@ public class DatabaseFile {
 	 * @param refLines: the array of reference lines to search for. Should be parallel to
 	 * data so that the data for each refLine occurs at the same index
 	 * @param data: the array of data to insert. Should be parallel to refLines
+	 * @return: true if the file was updated or there was nothing to insert, false if the file
+	 * couldn't be read or written
 	 */
-	public void writeNewData(String[] refLines, String[] data) {
+	public boolean writeNewData(String[] refLines, String[] data) {
 		if (refLines == null || data == null || refLines.length != data.length) {
 			throw new IllegalArgumentException("refLines and data may not be null and must have"
 					+ " the same length");
@@ -109,7 +1009,7 @@ public class DatabaseFile {
 			refLinesToData.put(refLines[i], data[i]);
 		}
 		
-		writeNewData(refLinesToData);
+		return writeNewData(refLinesToData);
 	}
 	
 	/**
@@ -117,78 +1017,620 @@ public class DatabaseFile {
 	 * that key (reference line)
 	 * <br>pre: refLinesToData != null
 	 * <br>post: after each occurrence of any key in refLinesToData, the corresponding string from the
-	 * map is inserted into the file
+	 * map is inserted into the file. Where several keys end at the same place, only the data of the
+	 * longest one is inserted there. Keys are matched within a single field of a record, by the
+	 * same rule as contains: only where they start a data token and are followed by a data end,
+	 * so "abc" is not matched in "zzabc | x". The data is escaped to suit the field it goes
+	 * into; an unquoted field is put in quotes if the data has a comma, quote or line break in it
+	 * <br>If the index built while looking up the reference lines is still valid, it lists every
+	 * line each reference line is on, and just those lines are read to find where the data goes.
+	 * Otherwise, or if a reference line has a data end char in it or is on too many lines, the
+	 * whole file is searched. The index is patched with the changed records afterwards
 	 * @param refLinesToData: a TreeMap mapping each reference line to its corresponding data
+	 * @return: true if the file was updated or there was nothing to insert, false if the file
+	 * couldn't be read or written
 	 */
-	public void writeNewData(TreeMap<String, String> refLinesToData) {
+	public boolean writeNewData(TreeMap<String, String> refLinesToData) {
+		return writeNewData(refLinesToData, new GroupCommit(GroupCommit.manifestFor(file)));
+	}
+	
+	/**
+	 * Does the same as writeNewData(TreeMap), but makes the change to the database file as part
+	 * of a group commit, so that it and everything else in the group take effect together or
+	 * not at all. The group is committed here once the change is ready, even if there is nothing
+	 * to insert
+	 * <br>pre: refLinesToData != null && commit != null && commit keeps its manifest at
+	 * GroupCommit.manifestFor(getFile()), so an interrupted commit is finished or undone when the
+	 * database file is opened again
+	 * @param refLinesToData: a TreeMap mapping each reference line to its corresponding data
+	 * @param commit: the group commit, which hasn't been committed
+	 * @return: true if the group was committed, false if the database file couldn't be read or
+	 * the group couldn't be committed, in which case nothing in the group has been changed
+	 */
+	public synchronized boolean writeNewData(TreeMap<String, String> refLinesToData, GroupCommit commit) {
 		if (refLinesToData == null) {
 			throw new IllegalArgumentException("refLinesToData may not be null");
 		}
 		
+		PerformanceMetrics metrics = PerformanceMetrics.get();
+		long start = System.nanoTime();
 		try {
-			// make new file, ensuring its name is unique					 
-			int fileNumber = 0;
-			File tempFile = new File(TEMP_FILE_NAME + fileNumber + TEMP_FILE_EXTEN);
-			
-			while (!tempFile.createNewFile()) {
-				fileNumber++;
-				tempFile = new File(TEMP_FILE_NAME + fileNumber + TEMP_FILE_EXTEN);
+			// build the matcher for all of the reference lines once for the whole file, and
+			// encode the data to insert after each of them
+			ArrayList<String> refLines = new ArrayList<> (refLinesToData.keySet());
+			ReferenceMatcher matcher = new ReferenceMatcher(refLines, charset, DATA_END_CHARS, DATA_END_CHAR_OFFSET);
+			byte[][] fragments = new byte[refLines.size()][];
+			for (int i = 0; i < fragments.length; i++) {
+				fragments[i] = refLinesToData.get(refLines.get(i)).getBytes(charset);
 			}
 			
-			// set up streams
-			FileWriter fw = new FileWriter(tempFile);
-			BufferedWriter out = new BufferedWriter(fw);
-			
-			BufferedReader in = new BufferedReader(new FileReader(file));
-
-			String line = in.readLine();
+			// the index records where each token is, but only if the file hasn't changed since
+			// it was built. If it has only been added to, just the new end is scanned
+			FileChannel in = compressed ? null : openDatabase();
+			if (tokenIndex != null && !tokenIndex.matches(fingerprintFile())) {
+				tokenIndex = null;
+				loadSavedIndex();
+			}
+			if (tokenFilter != null && !isFilterCurrent()) {
+				tokenFilter = null;
+			}
 			
-			// go over each line in the database file
-			while (line != null) {				
-				String newLine = line;
+			try {
+				// first find where in the file each piece of data has to go. If the index knows
+				// the lines each reference line is on, only those lines are read; otherwise
+				// each chunk of the file is searched in parallel. A gzipped file is searched from
+				// the first of those lines, or from the start, as it is uncompressed
+				long phaseStart = System.nanoTime();
+				ArrayList<InsertionFinder> finders = new ArrayList<> ();
+				int[] lines = findRefLineLines(refLines);
+				if (compressed) {
+					if (lines == null || lines.length > 0) {
+						InsertionFinder finder = new InsertionFinder(matcher, fragments);
+						scanCompressed(lines == null ? 0 : tokenIndex.getLineStart(lines[0]), finder);
+						finders.add(finder);
+					}
+				} else if (lines != null) {
+					InsertionFinder finder = new InsertionFinder(matcher, fragments);
+					for (int line : lines) {
+						long to = line + 1 < tokenIndex.getNumLines() ? tokenIndex.getLineStart(line + 1) : in.size();
+						ChunkedScanner.forEachRecord(in, tokenIndex.getLineStart(line), to, finder, null);
+					}
+					finders.add(finder);
+				} else {
+					ChunkedScanner scanner = new ChunkedScanner(parallelism, progress, true);
+					long[] bounds = scanner.findChunkBounds(in);
+					for (int i = 0; i < bounds.length - 1; i++) {
+						finders.add(new InsertionFinder(matcher, fragments));
+					}
+					scanner.scan(in, bounds, finders);
+				}
 				
-				boolean foundMatch = false;
+				// put the results of the chunks back together in file order
+				ArrayList<Insertion> insertions = new ArrayList<> ();
+				ArrayList<byte[]> changedRecords = new ArrayList<> ();
+				ArrayList<Long> changedRecordStarts = new ArrayList<> ();
+				for (InsertionFinder finder : finders) {
+					insertions.addAll(finder.insertions);
+					changedRecords.addAll(finder.changedRecords);
+					changedRecordStarts.addAll(finder.changedRecordStarts);
+				}
+				metrics.addMatchesFound(insertions.size());
+				metrics.addTime(PerformanceMetrics.FIND_INSERTIONS, phaseStart);
 				
-				// for each reference line
-				for (String l : refLinesToData.keySet()) {
-					int dataLen = l.length();
-					// if the current line is long enough to contain the current reference
-					// line, and we haven't already found a match on this line
-					if (line.length() > dataLen && !foundMatch) {
-						// go over the line character by character
-						for (int i = 0; i < line.length() - dataLen; i++) {
-							// if a substring at the current position equals the reference line,
-							// and the character at the specified end offset is one of the valid
-							// data end chars
-							if (line.substring(i, i + dataLen).equals(l) && (i + dataLen + DATA_END_CHAR_OFFSET >= line.length() || arrayContains(DATA_END_CHARS, line.charAt(i + dataLen + DATA_END_CHAR_OFFSET)))) {
-								String newData = refLinesToData.get(l);
-								// we have found a reference line, so insert the correct data into
-								// this line
-								newLine = newLine.substring(0, i + dataLen) + newData + newLine.substring(i + dataLen);
-								foundMatch = true;
-								break; // some pretty horrible gack, but a little more efficient
-							}
-						}
+				// if no reference lines were found, there's nothing to change but the rest of the group
+				if (insertions.isEmpty()) {
+					commit.commit();
+					return true;
+				}
+				
+				// in journal mode only the insertions are written, to the end of the journal.
+				// Otherwise the whole database file is rewritten, which also folds in anything
+				// left in the journal
+				phaseStart = System.nanoTime();
+				if (usesJournal()) {
+					in.close();
+					long[] offsets = new long[insertions.size()];
+					byte[][] data = new byte[insertions.size()][];
+					for (int i = 0; i < offsets.length; i++) {
+						offsets[i] = insertions.get(i).offset;
+						data[i] = insertions.get(i).data;
+					}
+					
+					long oldLength = journal.getLength();
+					journal.append(offsets, data, offsets.length, commit);
+					metrics.addBytesWritten(journal.getLength() - oldLength);
+					metrics.addTime(PerformanceMetrics.JOURNAL_APPEND, phaseStart);
+				} else if (compressed) {
+					spliceCompressed(insertions, commit);
+					metrics.addTime(PerformanceMetrics.SPLICE, phaseStart);
+				} else {
+					File tempFile = createTempFile();
+					FileOutputStream fos = new FileOutputStream(tempFile);
+					FileChannel out = fos.getChannel();
+					if (progress != null) {
+						progress.addTotal(in.size());
 					}
+					
+					// then build the new file by copying the unchanged bytes between the insertions
+					// straight from the old file and writing only the new data
+					long copied = 0;
+					for (Insertion ins : insertions) {
+						transferFully(in, copied, ins.offset - copied, out);
+						out.write(ByteBuffer.wrap(ins.data));
+						copied = ins.offset;
+					}
+					transferFully(in, copied, in.size() - copied, out);
+					metrics.addBytesRead(in.size());
+					metrics.addBytesWritten(out.size());
+					
+					out.close();
+					fos.close();
+					in.close();
+					
+					// replace the old file with the new one
+					replaceWith(tempFile, commit);
+					journal.delete();
+					metrics.addTime(PerformanceMetrics.SPLICE, phaseStart);
 				}
 				
-				// write out the lines to the temp file
-				out.write(newLine);
-				out.newLine();
+				// the only tokens that changed are in the records that had data inserted, and the
+				// records after each insertion have moved
+				if (tokenIndex != null) {
+					phaseStart = System.nanoTime();
+					CsvTokenizer tokenizer = new CsvTokenizer();
+					for (int i = 0; i < changedRecords.size(); i++) {
+						byte[] record = changedRecords.get(i);
+						int line = tokenIndex.findLineAt(changedRecordStarts.get(i));
+						indexRecord(record, 0, record.length, tokenizer, tokenIndex, line);
+					}
+					
+					long[] offsets = new long[insertions.size()];
+					int[] lengths = new int[insertions.size()];
+					for (int i = 0; i < offsets.length; i++) {
+						offsets[i] = insertions.get(i).offset;
+						lengths[i] = insertions.get(i).data.length;
+					}
+					tokenIndex.shiftLineStarts(offsets, lengths, offsets.length);
+					
+					// the new file was copied without being read, so the hash of all of its bytes
+					// isn't known and the index is rebuilt rather than extended if it is added to
+					tokenIndex.setFingerprint(fingerprintFile());
+					saveIndex();
+					metrics.addTime(PerformanceMetrics.UPDATE_INDEX, phaseStart);
+				}
 				
-				line = in.readLine();
+				// the filter doesn't record where tokens are, so it only needs the new tokens
+				if (tokenFilter != null) {
+					phaseStart = System.nanoTime();
+					CsvTokenizer tokenizer = new CsvTokenizer();
+					for (byte[] record : changedRecords) {
+						indexRecord(record, 0, record.length, tokenizer, tokenFilter, 0);
+					}
+					filterFingerprint = getFingerprint();
+					metrics.addTime(PerformanceMetrics.UPDATE_INDEX, phaseStart);
+				}
+				
+				if (usesJournal() && journal.getLength() > compactionThreshold) {
+					compactInBackground();
+				}
+			} finally {
+				if (in != null) {
+					in.close();
+				}
+			}
+			
+			return true;
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+			commit.abort();
+			return false;
+		} catch (RuntimeException e) {
+			commit.abort();
+			throw e;
+		} finally {
+			metrics.addTime(PerformanceMetrics.WRITE_NEW_DATA, start);
+		}
+	}
+	
+	/**
+	 * Helper method to find the lines of the database file that the reference lines are on,
+	 * using the index so the file doesn't have to be searched
+	 * @param refLines: the reference lines to find
+	 * @return: the indices of the lines that any of the reference lines are on, in order and
+	 * without duplicates, or null if the index isn't available or can't list the lines a
+	 * reference line is on, in which case the whole file has to be searched
+	 */
+	private int[] findRefLineLines(List<String> refLines) {
+		if (tokenIndex == null) {
+			return null;
+		}
+		
+		TreeSet<Integer> lines = new TreeSet<> ();
+		for (String refLine : refLines) {
+			// reference lines with a data end char in them aren't tokens in the index
+			if (containsDataEndChar(refLine)) {
+				return null;
+			}
+			
+			byte[] token = refLine.getBytes(charset);
+			int[] tokenLines = tokenIndex.findTokenLines(token, 0, token.length);
+			if (tokenLines == null) {
+				return null;
+			}
+			for (int line : tokenLines) {
+				lines.add(line);
+			}
+		}
+		
+		int[] lineArr = new int[lines.size()];
+		int i = 0;
+		for (int line : lines) {
+			lineArr[i++] = line;
+		}
+		return lineArr;
+	}
+	
+	/**
+	 * Helper method to rewrite a gzipped database file with data inserted into it, uncompressing
+	 * the old file and compressing the new one as they are streamed through, so neither is ever
+	 * held in memory
+	 * @param insertions: the data to insert, in the order it goes in the file
+	 * @param commit: the group commit to replace the database file in, which is committed
+	 * @throws IOException if either file can't be accessed or the group can't be committed
+	 */
+	private void spliceCompressed(List<Insertion> insertions, GroupCommit commit) throws IOException {
+		PerformanceMetrics metrics = PerformanceMetrics.get();
+		File tempFile = createTempFile();
+		if (progress != null) {
+			progress.addTotal(file.length());
+		}
+		
+		InputStream in = CompressedFiles.openInput(file, progress, false);
+		try {
+			OutputStream out = CompressedFiles.openOutput(tempFile, false, compressionLevel);
+			try {
+				long copied = 0;
+				for (Insertion ins : insertions) {
+					CompressedFiles.copy(in, out, ins.offset - copied);
+					out.write(ins.data);
+					copied = ins.offset;
+				}
+				CompressedFiles.copy(in, out, -1);
+			} finally {
+				out.close();
 			}
-			out.close();
-			fw.close();
+		} finally {
 			in.close();
+		}
+		metrics.addBytesRead(file.length());
+		metrics.addBytesWritten(tempFile.length());
+		
+		// replace the old file with the new one
+		replaceWith(tempFile, commit);
+	}
+	
+	/**
+	 * Helper method to copy a range of one file into another, since a single transferTo may
+	 * copy less than was asked for
+	 * @param in: the channel to copy from
+	 * @param position: the position in the input to start copying at
+	 * @param count: the number of bytes to copy
+	 * @param out: the channel to copy to
+	 * @throws IOException if either file can't be accessed
+	 */
+	private void transferFully(FileChannel in, long position, long count, FileChannel out) throws IOException {
+		while (count > 0) {
+			long transferred = in.transferTo(position, count, out);
+			position += transferred;
+			count -= transferred;
 			
-			// delete the old file and replace it with the new one
-			file.delete();
-			tempFile.renameTo(file);
-			file = tempFile;
+			if (progress != null) {
+				progress.addProcessed(transferred);
+			}
+		}
+	}
+	
+	/**
+	 * Helper method to start folding the journal into the database file on a background thread,
+	 * unless that is already happening
+	 */
+	private void compactInBackground() {
+		if (compactor != null && compactor.isAlive()) {
+			return;
+		}
+		
+		compactor = new Thread(new Runnable() {
+			public void run() {
+				compact();
+			}
+		}, "Compact " + file.getName());
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+	
+	/**
+	 * Waits for the journal to finish being folded into the database file, if that is happening.
+	 * Should be called before the program exits, since it is done on a daemon thread
+	 */
+	public void awaitCompaction() {
+		Thread running = compactor;
+		if (running == null) {
+			return;
+		}
+		
+		try {
+			running.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Folds every commit in the journal into the database file by rewriting it, then deletes the
+	 * journal. The database is copied without holding the lock on this DatabaseFile, so lookups
+	 * and commits can go on meanwhile; if a commit is made while the copy is being made, the copy
+	 * is thrown away and the journal is left to be folded in later
+	 */
+	private void compact() {
+		PerformanceMetrics metrics = PerformanceMetrics.get();
+		long start = System.nanoTime();
+		
+		DatabaseJournal snapshot;
+		long journalLength;
+		FileChannel in;
+		synchronized (this) {
+			try {
+				snapshot = getJournal();
+				if (snapshot.isEmpty()) {
+					return;
+				}
+				journalLength = snapshot.getLength();
+				in = snapshot.openChannel();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+		
+		File tempFile = null;
+		try {
+			try {
+				tempFile = createTempFile();
+				FileOutputStream fos = new FileOutputStream(tempFile);
+				FileChannel out = fos.getChannel();
+				try {
+					long copied = 0;
+					while (copied < in.size()) {
+						copied += in.transferTo(copied, in.size() - copied, out);
+					}
+					metrics.addBytesRead(in.size());
+					metrics.addBytesWritten(out.size());
+				} finally {
+					out.close();
+					fos.close();
+				}
+			} finally {
+				in.close();
+			}
 			
+			// the contents are the same, so the index only needs its fingerprint updated
+			synchronized (this) {
+				if (journal == snapshot && journal.getLength() == journalLength) {
+					// the temp file is dealt with by replaceWith from here on
+					File replacement = tempFile;
+					tempFile = null;
+					replaceWith(replacement, new GroupCommit(GroupCommit.manifestFor(file)));
+					journal.delete();
+					
+					if (tokenIndex != null) {
+						tokenIndex.setFingerprint(file);
+						saveIndex();
+					}
+				}
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+			metrics.addTime(PerformanceMetrics.COMPACT, start);
+		}
+	}
+	
+	/**
+	 * Bytes to be inserted into the database file
+	 */
+	private static class Insertion {
+		// the position in the file to insert at, and the encoded data to insert there
+		private long offset;
+		private byte[] data;
+		
+		private Insertion(long offset, byte[] data) {
+			this.offset = offset;
+			this.data = data;
+		}
+	}
+	
+	/**
+	 * Record handler that records where in the database file each piece of data has to be
+	 * inserted
+	 */
+	private class InsertionFinder implements ChunkedScanner.LineHandler {
+		
+		private ReferenceMatcher matcher;
+		// the data to insert after each pattern of the matcher, as it is and escaped for a
+		// quoted field
+		private byte[][] fragments;
+		private byte[][] escapedFragments;
+		private boolean[] fragmentNeedsQuotes;
+		private CsvTokenizer tokenizer = new CsvTokenizer();
+		private ArrayList<ReferenceMatcher.Match> matches = new ArrayList<> ();
+		private ArrayList<Insertion> insertions = new ArrayList<> ();
+		// the new contents of each record that has data inserted into it, and where in the old
+		// file each of those records started
+		private ArrayList<byte[]> changedRecords = new ArrayList<> ();
+		private ArrayList<Long> changedRecordStarts = new ArrayList<> ();
+		
+		private InsertionFinder(ReferenceMatcher matcher, byte[][] fragments) {
+			this.matcher = matcher;
+			this.fragments = fragments;
+			escapedFragments = new byte[fragments.length][];
+			fragmentNeedsQuotes = new boolean[fragments.length];
+			for (int i = 0; i < fragments.length; i++) {
+				escapedFragments[i] = CsvTokenizer.escape(fragments[i]);
+				fragmentNeedsQuotes[i] = CsvTokenizer.needsQuotes(fragments[i]);
+			}
+		}
+		
+		public boolean handleLine(byte[] buf, int start, int end, long bufOffset) {
+			// most records have nothing to insert, and don't need to be split into fields
+			if (matcher.findCandidate(buf, start, end) == end) {
+				return true;
+			}
+			
+			int firstInsertion = insertions.size();
+			int numFields = tokenizer.tokenize(buf, start, end);
+			
+			for (int f = 0; f < numFields; f++) {
+				matches.clear();
+				findInField(matcher, buf, tokenizer, f, matches);
+				if (matches.isEmpty()) {
+					continue;
+				}
+				
+				// data that can't go into a plain unquoted field as it is means the field has to
+				// be put in quotes. A field that already has quotes in the middle of it isn't
+				// proper CSV, so its data goes in as it is
+				boolean addQuotes = false;
+				if (!tokenizer.hasQuote(f)) {
+					for (ReferenceMatcher.Match m : matches) {
+						addQuotes |= fragmentNeedsQuotes[m.getPatternIndex()];
+					}
+				}
+				boolean escape = tokenizer.isQuoted(f) || addQuotes;
+				
+				if (addQuotes) {
+					insertions.add(new Insertion(bufOffset + tokenizer.getRawStart(f), QUOTE));
+				}
+				
+				int lastEnd = -1;
+				for (ReferenceMatcher.Match m : matches) {
+					// matches ending at the same place are ordered longest first, and only the
+					// longest reference line there gets its data inserted
+					if (m.getEnd() == lastEnd) {
+						continue;
+					}
+					lastEnd = m.getEnd();
+					
+					int pos = tokenizer.isEscaped(f) ? tokenizer.toRawIndex(f, m.getEnd()) : m.getEnd();
+					byte[] data = escape ? escapedFragments[m.getPatternIndex()] : fragments[m.getPatternIndex()];
+					insertions.add(new Insertion(bufOffset + pos, data));
+				}
+				
+				if (addQuotes) {
+					insertions.add(new Insertion(bufOffset + tokenizer.getRawEnd(f), QUOTE));
+				}
+			}
+			
+			// only keep the new record if the index or filter needs to be updated with it
+			if ((tokenIndex != null || tokenFilter != null) && insertions.size() > firstInsertion) {
+				ByteArrayOutputStream newRecord = new ByteArrayOutputStream();
+				int copied = start;
+				for (int i = firstInsertion; i < insertions.size(); i++) {
+					Insertion ins = insertions.get(i);
+					int pos = (int) (ins.offset - bufOffset);
+					newRecord.write(buf, copied, pos - copied);
+					newRecord.write(ins.data, 0, ins.data.length);
+					copied = pos;
+				}
+				newRecord.write(buf, copied, end - copied);
+				changedRecords.add(newRecord.toByteArray());
+				changedRecordStarts.add(bufOffset + start);
+			}
+			
+			return true;
+		}
+	}
+	
+	/**
+	 * Record handler that indexes or filters and/or searches one chunk of the database file
+	 */
+	private class TokenScanner implements ChunkedScanner.LineHandler {
+		
+		private DatabaseIndex index;
+		private BloomFilter filter;
+		private ReferenceMatcher matcher;
+		private Set<String> found;
+		private int numToFind;
+		private CsvTokenizer tokenizer = new CsvTokenizer();
+		private ArrayList<ReferenceMatcher.Match> matches = new ArrayList<> ();
+		// the hash of every byte of the chunk, including line breaks, or null to not hash it,
+		// and the position the chunk ends at
+		private CRC32 crc;
+		private long chunkEnd;
+		
+		private TokenScanner(DatabaseIndex index, BloomFilter filter, ReferenceMatcher matcher, Set<String> found, int numToFind) {
+			this.index = index;
+			this.filter = filter;
+			this.matcher = matcher;
+			this.found = found;
+			this.numToFind = numToFind;
+		}
+		
+		/**
+		 * Makes this scanner hash every byte of its chunk as it goes
+		 * @param chunkEnd: the position the chunk ends at
+		 */
+		private void hashBytes(long chunkEnd) {
+			crc = new CRC32();
+			this.chunkEnd = chunkEnd;
+		}
+		
+		public boolean handleLine(byte[] buf, int start, int end, long bufOffset) {
+			// every record but the last in the chunk is followed by the one byte that ended it
+			if (crc != null) {
+				crc.update(buf, start, end - start);
+				if (bufOffset + end < chunkEnd) {
+					crc.update(buf[end]);
+				}
+			}
+			
+			if (end == start) {
+				return true;
+			}
+			
+			// whether the record has been split into fields yet
+			boolean tokenized = false;
+			if (index != null) {
+				index.addLineStart(bufOffset + start);
+				indexRecord(buf, start, end, tokenizer, index, index.getNumLines() - 1);
+				tokenized = true;
+			} else if (filter != null) {
+				indexRecord(buf, start, end, tokenizer, filter, 0);
+				tokenized = true;
+			}
+			
+			// a record with no byte that a data string starts with can't contain any of them
+			if (matcher != null && (tokenized || matcher.findCandidate(buf, start, end) < end)) {
+				int numFields = tokenized ? tokenizer.getNumFields() : tokenizer.tokenize(buf, start, end);
+				for (int f = 0; f < numFields; f++) {
+					matches.clear();
+					findInField(matcher, buf, tokenizer, f, matches);
+					for (ReferenceMatcher.Match m : matches) {
+						found.add(m.getPattern());
+					}
+				}
+			}
+			
+			// if we're only searching, there's no need to read past the last match, in this
+			// chunk or any other
+			if (index == null && filter == null && found != null && found.size() == numToFind) {
+				return false;
+			}
+			
+			return true;
 		}
 	}
 }
@@ -0,0 +1,876 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Index of a database file: a hash of the encoded bytes of every data token in it, the lines it
+ * occurs on, and the position of the start of every non-empty record (a line, or several lines if
+ * a quoted field has line breaks in it), together with a fingerprint (size, modification time
+ * and a hash of the contents) of the file it was built from. Lines are counted in records, so
+ * a token's lines and getLineStart tell exactly where in the file to look for it. It can be saved to a sidecar file next to the
+ * database and memory mapped back in later, so opening an unchanged database doesn't need to
+ * read the database at all. Each save goes to a new sidecar file numbered one higher than the
+ * last, since the old one may still be mapped, and on some systems a mapped file can't be
+ * replaced or deleted. Older sidecar files are deleted once they can be.
+ * <br>Tokens are stored as 64 bit hashes in an open addressing hash table, so very rarely a
+ * token that isn't in the database could be reported as being in it
+ */
+public class DatabaseIndex implements TokenSink {
+
+	private static final int MAGIC = 0x52444358;
+	// version 2 hashes the encoded bytes of each token rather than its chars, version 3
+	// stores the line each token is on, version 4 hashes every byte the index was built from,
+	// and version 5 stores every line a token is on
+	private static final int VERSION = 5;
+	private static final int HEADER_SIZE = 64;
+	private static final String SIDECAR_EXTEN = ".idx";
+	private static final String TEMP_EXTEN = ".tmp";
+	// how much of each end of the database file is hashed for the fingerprint
+	private static final int SAMPLE_SIZE = 1 << 16;
+	private static final int INITIAL_CAPACITY = 1 << 10;
+	private static final int BLOCK_SIZE = 1 << 16;
+	// flags stored in the header
+	private static final int FLAG_SINGLE_BYTE_CHARS = 1;
+	private static final int FLAG_PREFIX_HASHED = 2;
+	// the number of bits in a CRC-32, and the CRC-32 polynomial with its bits reversed
+	private static final int CRC_BITS = 32;
+	private static final long CRC_POLYNOMIAL = 0xEDB88320L;
+
+	// the most lines that are kept for one token. A token on more lines than this is common
+	// enough that the whole file may as well be searched for it
+	public static final int MAX_TOKEN_LINES = 16;
+	// stored in place of the line of a token that is on more than MAX_TOKEN_LINES lines
+	private static final int MANY_LINES = Integer.MIN_VALUE;
+
+	// the fingerprint of the database file this index describes
+	private long fileSize;
+	private long lastModified;
+	private long contentHash;
+	// a hash of every byte the index was built from, to check that the file has only been added
+	// to, and whether it is known. It is only known if the index was built by reading the file
+	private long prefixHash;
+	private boolean prefixHashed;
+	// whether tokens were split counting one byte per char rather than as UTF-8
+	private boolean singleByteChars;
+
+	// hash table of the token hashes, where 0 marks an empty slot. The capacity is always a
+	// power of 2 and the table is kept at most half full
+	private LongBuffer tokens;
+	private int numTokens;
+	// parallel to tokens, the line each token is on if it is only on one, MANY_LINES, or
+	// otherwise -1 - the index of the first entry of the list of its lines in lineLists
+	private IntBuffer tokenLines;
+	// the lists of lines of the tokens on more than one line. Each entry is a line followed by
+	// the index of the next entry, or -1 at the end of the list
+	private IntBuffer lineLists;
+	private int numListEntries;
+
+	private LongBuffer lineStarts;
+	private int numLines;
+
+	// whether the buffers are mapped from a sidecar file, and so have to be copied before
+	// they can be changed
+	private boolean mapped;
+	// the number of the sidecar file this index was loaded from or last saved to, or -1
+	private long generation = -1;
+
+	/**
+	 * Constructor for DatabaseIndex. Creates an empty index with no fingerprint
+	 */
+	public DatabaseIndex() {
+		tokens = LongBuffer.allocate(INITIAL_CAPACITY);
+		tokenLines = IntBuffer.allocate(INITIAL_CAPACITY);
+		lineLists = IntBuffer.allocate(INITIAL_CAPACITY);
+		lineStarts = LongBuffer.allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Helper constructor for an index mapped from a sidecar file
+	 */
+	private DatabaseIndex(long fileSize, long lastModified, long contentHash, long prefixHash, LongBuffer tokens, int numTokens, IntBuffer tokenLines, IntBuffer lineLists, int numListEntries, LongBuffer lineStarts, int numLines) {
+		this.fileSize = fileSize;
+		this.lastModified = lastModified;
+		this.contentHash = contentHash;
+		this.prefixHash = prefixHash;
+		this.tokens = tokens;
+		this.numTokens = numTokens;
+		this.tokenLines = tokenLines;
+		this.lineLists = lineLists;
+		this.numListEntries = numListEntries;
+		this.lineStarts = lineStarts;
+		this.numLines = numLines;
+		mapped = true;
+	}
+
+	/**
+	 * Helper method to hash a token. The result is never 0, since 0 marks an empty slot
+	 * @param buf: the buffer holding the encoded token
+	 * @param start: the index of the first byte of the token
+	 * @param end: the index just after the last byte of the token
+	 * @return: a 64 bit hash of the token
+	 */
+	static long hash(byte[] buf, int start, int end) {
+		// FNV-1a over the bytes of the token
+		long h = 0xcbf29ce484222325L;
+		for (int i = start; i < end; i++) {
+			h ^= buf[i] & 0xFF;
+			h *= 0x100000001b3L;
+		}
+
+		// then mix the bits so the low bits can be used to pick a slot
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * Checks if a token is in the index
+	 * @param buf: the buffer holding the encoded token
+	 * @param start: the index of the first byte of the token
+	 * @param end: the index just after the last byte of the token
+	 * @return: true if the token was added to the index, false otherwise
+	 */
+	public boolean containsToken(byte[] buf, int start, int end) {
+		return findSlot(hash(buf, start, end)) != -1;
+	}
+
+	/**
+	 * Finds the lines a token is on
+	 * @param buf: the buffer holding the encoded token
+	 * @param start: the index of the first byte of the token
+	 * @param end: the index just after the last byte of the token
+	 * @return: the indices of the lines the token is on, in no particular order and possibly
+	 * with duplicates, an empty array if it isn't in the index, or null if it is on more than
+	 * MAX_TOKEN_LINES lines
+	 */
+	public int[] findTokenLines(byte[] buf, int start, int end) {
+		int slot = findSlot(hash(buf, start, end));
+		if (slot == -1) {
+			return new int[0];
+		}
+
+		int value = tokenLines.get(slot);
+		if (value == MANY_LINES) {
+			return null;
+		}
+		if (value >= 0) {
+			return new int[] {value};
+		}
+
+		int[] lines = new int[MAX_TOKEN_LINES];
+		int numFound = 0;
+		for (int entry = -1 - value; entry != -1; entry = lineLists.get(2 * entry + 1)) {
+			lines[numFound++] = lineLists.get(2 * entry);
+		}
+		return Arrays.copyOf(lines, numFound);
+	}
+
+	/**
+	 * Helper method to find the slot of a token hash in the table
+	 * @param h: the hash to look for
+	 * @return: the index of the slot holding h, or -1 if it isn't in the table
+	 */
+	private int findSlot(long h) {
+		int mask = tokens.capacity() - 1;
+
+		// linear probe until the token or an empty slot is found
+		for (int slot = (int) h & mask; ; slot = (slot + 1) & mask) {
+			long stored = tokens.get(slot);
+			if (stored == h) {
+				return slot;
+			}
+			if (stored == 0) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Adds a token to the index
+	 * @param buf: the buffer holding the encoded token
+	 * @param start: the index of the first byte of the token
+	 * @param end: the index just after the last byte of the token
+	 * @param line: the index of the line the token is on
+	 */
+	public void addToken(byte[] buf, int start, int end, int line) {
+		addHash(hash(buf, start, end), line);
+	}
+
+	/**
+	 * Helper method to add a token hash to the table, or another line to a hash already in it
+	 * @param h: the hash to add
+	 * @param line: the line the token is on
+	 */
+	private void addHash(long h, int line) {
+		copyIfMapped();
+
+		int slot = findSlot(h);
+		if (slot == -1) {
+			putHash(h, line);
+			return;
+		}
+
+		// lines are mostly added in order, so a token that is in a line more than once is
+		// usually caught by looking at the line added last
+		int value = tokenLines.get(slot);
+		if (value == MANY_LINES || value == line || (value < 0 && lineLists.get(2 * (-1 - value)) == line)) {
+			return;
+		}
+
+		int next;
+		if (value >= 0) {
+			next = addListEntry(value, -1);
+		} else {
+			int length = 0;
+			for (int entry = -1 - value; entry != -1; entry = lineLists.get(2 * entry + 1)) {
+				length++;
+			}
+			if (length == MAX_TOKEN_LINES) {
+				// the entries of the list are left unused rather than moved
+				tokenLines.put(slot, MANY_LINES);
+				return;
+			}
+			next = -1 - value;
+		}
+		tokenLines.put(slot, -1 - addListEntry(line, next));
+	}
+
+	/**
+	 * Helper method to put a hash that isn't in the table into it, growing the table if it gets
+	 * too full
+	 * @param h: the hash to put in
+	 * @param value: what to store for it in tokenLines
+	 */
+	private void putHash(long h, int value) {
+		if ((numTokens + 1) * 2 > tokens.capacity()) {
+			LongBuffer old = tokens;
+			IntBuffer oldLines = tokenLines;
+			tokens = LongBuffer.allocate(old.capacity() * 2);
+			tokenLines = IntBuffer.allocate(old.capacity() * 2);
+			numTokens = 0;
+			for (int i = 0; i < old.capacity(); i++) {
+				if (old.get(i) != 0) {
+					putHash(old.get(i), oldLines.get(i));
+				}
+			}
+		}
+
+		int mask = tokens.capacity() - 1;
+		int slot = (int) h & mask;
+		while (tokens.get(slot) != 0) {
+			slot = (slot + 1) & mask;
+		}
+		tokens.put(slot, h);
+		tokenLines.put(slot, value);
+		numTokens++;
+	}
+
+	/**
+	 * Helper method to add an entry to the lists of lines
+	 * @param line: the line of the entry
+	 * @param next: the index of the entry after it, or -1
+	 * @return: the index of the new entry
+	 */
+	private int addListEntry(int line, int next) {
+		if (2 * (numListEntries + 1) > lineLists.capacity()) {
+			IntBuffer old = lineLists;
+			lineLists = IntBuffer.allocate(old.capacity() * 2);
+			old.clear();
+			lineLists.put(old);
+			lineLists.clear();
+		}
+
+		lineLists.put(2 * numListEntries, line);
+		lineLists.put(2 * numListEntries + 1, next);
+		return numListEntries++;
+	}
+
+	/**
+	 * Records the start of a line. Lines must be added in the order they occur in the file
+	 * @param pos: the position in the file of the first byte of the line
+	 */
+	public void addLineStart(long pos) {
+		copyIfMapped();
+
+		if (numLines == lineStarts.capacity()) {
+			LongBuffer old = lineStarts;
+			lineStarts = LongBuffer.allocate(old.capacity() * 2);
+			old.clear();
+			lineStarts.put(old);
+			lineStarts.clear();
+		}
+
+		lineStarts.put(numLines++, pos);
+	}
+
+	/**
+	 * Adds all of the tokens and lines of another index to this one. The lines of the other index
+	 * must all come after the lines of this one, and are numbered on from them
+	 * @param other: the index to add
+	 */
+	public void addAll(DatabaseIndex other) {
+		int firstLine = numLines;
+		for (int i = 0; i < other.tokens.capacity(); i++) {
+			long h = other.tokens.get(i);
+			int value = other.tokenLines.get(i);
+			if (h == 0) {
+				continue;
+			}
+
+			if (value == MANY_LINES) {
+				copyIfMapped();
+				int slot = findSlot(h);
+				if (slot == -1) {
+					putHash(h, MANY_LINES);
+				} else {
+					tokenLines.put(slot, MANY_LINES);
+				}
+			} else if (value >= 0) {
+				addHash(h, firstLine + value);
+			} else {
+				for (int entry = -1 - value; entry != -1; entry = other.lineLists.get(2 * entry + 1)) {
+					addHash(h, firstLine + other.lineLists.get(2 * entry));
+				}
+			}
+		}
+
+		for (int i = 0; i < other.numLines; i++) {
+			addLineStart(other.lineStarts.get(i));
+		}
+	}
+
+	/**
+	 * Moves the line starts to account for bytes inserted into the file
+	 * <br>pre: the insertions are in order, and none of them are at the start of a line
+	 * @param offsets: the position in the old file of each insertion
+	 * @param lengths: the number of bytes inserted at each position
+	 * @param numInsertions: the number of insertions
+	 */
+	public void shiftLineStarts(long[] offsets, int[] lengths, int numInsertions) {
+		copyIfMapped();
+
+		long shift = 0;
+		int ins = 0;
+		for (int i = 0; i < numLines; i++) {
+			long start = lineStarts.get(i);
+			while (ins < numInsertions && offsets[ins] < start) {
+				shift += lengths[ins++];
+			}
+			lineStarts.put(i, start + shift);
+		}
+	}
+
+	/**
+	 * @return: the number of non-empty lines in the file
+	 */
+	public int getNumLines() {
+		return numLines;
+	}
+
+	/**
+	 * @param line: the index of a non-empty line
+	 * @return: the position in the file of the first byte of that line
+	 */
+	public long getLineStart(int line) {
+		return lineStarts.get(line);
+	}
+
+	/**
+	 * Finds the line that a position in the file is on
+	 * <br>pre: getNumLines() > 0 and pos >= getLineStart(0)
+	 * @param pos: the position in the file
+	 * @return: the index of the last line that starts at or before pos
+	 */
+	public int findLineAt(long pos) {
+		int low = 0;
+		int high = numLines - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (lineStarts.get(mid) <= pos) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Records how the tokens in this index are split. Chars after a data end char are skipped
+	 * by the number of bytes they take up, so an index built for one kind of charset can't be
+	 * used with the other
+	 * @param singleByteChars: true if the database file is in a charset with one byte per char,
+	 * false if it is UTF-8
+	 */
+	public void setSingleByteChars(boolean singleByteChars) {
+		this.singleByteChars = singleByteChars;
+	}
+
+	/**
+	 * @return: true if this index was built for a charset with one byte per char, false if it
+	 * was built for UTF-8
+	 */
+	public boolean hasSingleByteChars() {
+		return singleByteChars;
+	}
+
+	/**
+	 * @return: the size of the database file this index was built from
+	 */
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * Helper method to copy the buffers to the heap before changing them if they are mapped
+	 * from a sidecar file
+	 */
+	private void copyIfMapped() {
+		if (!mapped) {
+			return;
+		}
+
+		LongBuffer newTokens = LongBuffer.allocate(tokens.capacity());
+		tokens.clear();
+		newTokens.put(tokens);
+		tokens = newTokens;
+
+		IntBuffer newTokenLines = IntBuffer.allocate(tokenLines.capacity());
+		tokenLines.clear();
+		newTokenLines.put(tokenLines);
+		tokenLines = newTokenLines;
+
+		IntBuffer newLists = IntBuffer.allocate(Math.max(INITIAL_CAPACITY, numListEntries * 4));
+		lineLists.clear();
+		newLists.put(lineLists);
+		lineLists = newLists;
+
+		LongBuffer newLines = LongBuffer.allocate(Math.max(INITIAL_CAPACITY, numLines * 2));
+		lineStarts.clear();
+		newLines.put(lineStarts);
+		lineStarts = newLines;
+
+		mapped = false;
+	}
+
+	/**
+	 * Records the fingerprint of the database file as it is now. Should be called before the
+	 * file is read to build the index. Only the start and end of the file are read, so the hash
+	 * of all of its bytes is unknown until it is given to setPrefixHash
+	 * @param database: the database file
+	 * @throws IOException if the file can't be read
+	 */
+	public void setFingerprint(File database) throws IOException {
+		fileSize = database.length();
+		lastModified = database.lastModified();
+		contentHash = contentHash(database, fileSize);
+		prefixHashed = false;
+	}
+
+	/**
+	 * Records the hash of every byte of the database file the index was built from, as worked
+	 * out by whatever read those bytes to build it
+	 * <br>pre: setFingerprint has been called, and crc is of the first getFileSize() bytes
+	 * @param crc: the CRC-32 of the bytes
+	 */
+	public void setPrefixHash(long crc) {
+		prefixHash = crc ^ (fileSize << 32);
+		prefixHashed = true;
+	}
+
+	/**
+	 * @return: the CRC-32 of every byte of the database file the index was built from, or -1 if
+	 * it isn't known
+	 */
+	public long getPrefixHash() {
+		return prefixHashed ? prefixHash & 0xFFFFFFFFL : -1;
+	}
+
+	/**
+	 * Checks if the database file is exactly as it was when this index was built
+	 * @param database: the database file
+	 * @return: true if the size, modification time and sampled contents all match
+	 * @throws IOException if the file can't be read
+	 */
+	public boolean matches(File database) throws IOException {
+		return database.length() == fileSize && database.lastModified() == lastModified
+				&& contentHash(database, fileSize) == contentHash;
+	}
+
+	/**
+	 * Checks if the database file has only had bytes added to its end since this index was
+	 * built, and the old contents ended with a complete line. This reads all of the old
+	 * contents, so it is only meant for checking a saved index when it is loaded
+	 * @param database: the database file
+	 * @return: true if the file is bigger and starts with the bytes the index was built from,
+	 * false if it doesn't or the hash of those bytes isn't known
+	 * @throws IOException if the file can't be read
+	 */
+	public boolean isAppendedTo(File database) throws IOException {
+		// the sampled hash rules most changes out without reading the whole file
+		if (!prefixHashed || fileSize == 0 || database.length() <= fileSize || contentHash(database, fileSize) != contentHash
+				|| prefixHash(database, fileSize) != prefixHash) {
+			return false;
+		}
+
+		// a line that was cut off at the old end would have been indexed with the wrong tokens
+		RandomAccessFile raf = new RandomAccessFile(database, "r");
+		try {
+			raf.seek(fileSize - 1);
+			int last = raf.read();
+			return last == '\n' || last == '\r';
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Helper method to hash the start and end of the first bytes of a file
+	 * @param file: the file to hash
+	 * @param size: how many bytes of the file to consider
+	 * @return: a hash of the first and last SAMPLE_SIZE of those bytes
+	 * @throws IOException if the file can't be read
+	 */
+	static long contentHash(File file, long size) throws IOException {
+		CRC32 crc = new CRC32();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			byte[] buf = new byte[(int) Math.min(SAMPLE_SIZE, size)];
+			raf.readFully(buf);
+			crc.update(buf);
+
+			if (size > SAMPLE_SIZE) {
+				buf = new byte[(int) Math.min(SAMPLE_SIZE, size - SAMPLE_SIZE)];
+				raf.seek(size - buf.length);
+				raf.readFully(buf);
+				crc.update(buf);
+			}
+		} finally {
+			raf.close();
+		}
+
+		return crc.getValue() ^ (size << 32);
+	}
+
+	/**
+	 * Helper method to hash all of the first bytes of a file
+	 * @param file: the file to hash
+	 * @param size: how many bytes of the file to hash
+	 * @return: a hash of the bytes
+	 * @throws IOException if the file can't be read
+	 */
+	private static long prefixHash(File file, long size) throws IOException {
+		CRC32 crc = new CRC32();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[BLOCK_SIZE];
+			long left = size;
+			int read;
+			while (left > 0 && (read = in.read(buf, 0, (int) Math.min(buf.length, left))) != -1) {
+				crc.update(buf, 0, read);
+				left -= read;
+			}
+		} finally {
+			in.close();
+		}
+		PerformanceMetrics.get().addBytesRead(size);
+
+		return crc.getValue() ^ (size << 32);
+	}
+
+	/**
+	 * Works out the CRC-32 of two blocks of bytes one after the other from the CRC-32 of each,
+	 * so blocks read separately can be hashed as one, the same way zlib's crc32_combine does
+	 * @param crc1: the CRC-32 of the first block
+	 * @param crc2: the CRC-32 of the second block
+	 * @param length2: the number of bytes in the second block
+	 * @return: the CRC-32 of both blocks
+	 */
+	static long combineCrc(long crc1, long crc2, long length2) {
+		if (length2 <= 0) {
+			return crc1;
+		}
+
+		// the operator that appends one zero bit to the message, then two, then four, ...
+		long[] even = new long[CRC_BITS];
+		long[] odd = new long[CRC_BITS];
+		odd[0] = CRC_POLYNOMIAL;
+		for (int n = 1; n < CRC_BITS; n++) {
+			odd[n] = 1L << (n - 1);
+		}
+		squareGf2Matrix(even, odd);
+		squareGf2Matrix(odd, even);
+
+		// apply length2 zero bytes to crc1, one bit of length2 at a time
+		while (true) {
+			squareGf2Matrix(even, odd);
+			if ((length2 & 1) != 0) {
+				crc1 = timesGf2Matrix(even, crc1);
+			}
+			length2 >>= 1;
+			if (length2 == 0) {
+				break;
+			}
+
+			squareGf2Matrix(odd, even);
+			if ((length2 & 1) != 0) {
+				crc1 = timesGf2Matrix(odd, crc1);
+			}
+			length2 >>= 1;
+			if (length2 == 0) {
+				break;
+			}
+		}
+
+		return crc1 ^ crc2;
+	}
+
+	/**
+	 * Helper method to multiply a vector by a matrix over GF(2)
+	 * @param matrix: the columns of the matrix
+	 * @param vector: the vector
+	 * @return: the product
+	 */
+	private static long timesGf2Matrix(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Helper method to square a matrix over GF(2)
+	 * @param square: where to put the square
+	 * @param matrix: the matrix to square
+	 */
+	private static void squareGf2Matrix(long[] square, long[] matrix) {
+		for (int n = 0; n < CRC_BITS; n++) {
+			square[n] = timesGf2Matrix(matrix, matrix[n]);
+		}
+	}
+
+	/**
+	 * Helper method to get a sidecar file for a database file
+	 * @param database: the database file
+	 * @param generation: the number of the sidecar file
+	 * @return: the file the index of the database is saved in
+	 */
+	static File sidecarFor(File database, long generation) {
+		return new File(database.getPath() + "." + generation + SIDECAR_EXTEN);
+	}
+
+	/**
+	 * Checks if a file is one of the sidecar files of a database file, or a sidecar file being
+	 * written
+	 * @param file: the file
+	 * @param database: the database file
+	 * @return: true if the file is a sidecar file of the database file, false otherwise
+	 */
+	public static boolean isSidecar(File file, File database) {
+		String name = file.getName();
+		if (name.endsWith(SIDECAR_EXTEN + TEMP_EXTEN)) {
+			name = name.substring(0, name.length() - TEMP_EXTEN.length());
+		}
+		return generationOf(name, database) != -1 || name.equals(database.getName() + SIDECAR_EXTEN);
+	}
+
+	/**
+	 * Helper method to get the number of a sidecar file of a database file from its name
+	 * @param name: the name of the file
+	 * @param database: the database file
+	 * @return: the number of the sidecar file, or -1 if it isn't a sidecar file of the database
+	 */
+	private static long generationOf(String name, File database) {
+		String prefix = database.getName() + ".";
+		int end = name.length() - SIDECAR_EXTEN.length();
+		if (!name.startsWith(prefix) || !name.endsWith(SIDECAR_EXTEN) || end <= prefix.length() || end - prefix.length() > 18) {
+			return -1;
+		}
+
+		for (int i = prefix.length(); i < end; i++) {
+			if (!Character.isDigit(name.charAt(i))) {
+				return -1;
+			}
+		}
+		return Long.parseLong(name.substring(prefix.length(), end));
+	}
+
+	/**
+	 * Helper method to find the numbers of the sidecar files next to a database file
+	 * @param database: the database file
+	 * @return: the numbers, from lowest to highest
+	 */
+	private static long[] findGenerations(File database) {
+		File[] files = database.getAbsoluteFile().getParentFile().listFiles();
+		if (files == null) {
+			return new long[0];
+		}
+
+		long[] generations = new long[files.length];
+		int numGenerations = 0;
+		for (File f : files) {
+			long generation = generationOf(f.getName(), database);
+			if (generation != -1) {
+				generations[numGenerations++] = generation;
+			}
+		}
+
+		generations = Arrays.copyOf(generations, numGenerations);
+		Arrays.sort(generations);
+		return generations;
+	}
+
+	/**
+	 * Saves this index to a new sidecar file next to the database file, numbered one higher than
+	 * any there already, then deletes the older ones. An older one that can't be deleted yet
+	 * (because it is still mapped, for example) is deleted by a later save
+	 * @param database: the database file
+	 * @throws IOException if the sidecar file can't be written
+	 */
+	public void save(File database) throws IOException {
+		long[] generations = findGenerations(database);
+		long next = Math.max(generation, generations.length == 0 ? -1 : generations[generations.length - 1]) + 1;
+		File sidecar = sidecarFor(database, next);
+		File temp = new File(sidecar.getPath() + TEMP_EXTEN);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fileSize);
+			out.writeLong(lastModified);
+			out.writeLong(contentHash);
+			out.writeInt(tokens.capacity());
+			out.writeInt(numTokens);
+			out.writeInt(numLines);
+			out.writeInt((singleByteChars ? FLAG_SINGLE_BYTE_CHARS : 0) | (prefixHashed ? FLAG_PREFIX_HASHED : 0));
+			out.writeLong(prefixHash);
+			out.writeInt(numListEntries);
+			out.writeInt(0);
+
+			for (int i = 0; i < tokens.capacity(); i++) {
+				out.writeLong(tokens.get(i));
+			}
+			for (int i = 0; i < tokens.capacity(); i++) {
+				out.writeInt(tokenLines.get(i));
+			}
+			for (int i = 0; i < numLines; i++) {
+				out.writeLong(lineStarts.get(i));
+			}
+			for (int i = 0; i < 2 * numListEntries; i++) {
+				out.writeInt(lineLists.get(i));
+			}
+		} finally {
+			out.close();
+		}
+
+		// the new sidecar file has a name of its own, so nothing has to be replaced
+		if (!temp.renameTo(sidecar)) {
+			temp.delete();
+			throw new IOException("Couldn't save the index to " + sidecar.getName());
+		}
+		generation = next;
+
+		for (long g : generations) {
+			sidecarFor(database, g).delete();
+		}
+		// from before sidecar files were numbered
+		new File(database.getPath() + SIDECAR_EXTEN).delete();
+	}
+
+	/**
+	 * Memory maps the index saved next to a database file, if there is one, from the newest
+	 * sidecar file. The index may be out of date, so check it with matches or isAppendedTo
+	 * before using it
+	 * @param database: the database file
+	 * @return: the saved index, or null if there is no valid sidecar file
+	 * @throws IOException if a sidecar file can't be read
+	 */
+	public static DatabaseIndex load(File database) throws IOException {
+		long[] generations = findGenerations(database);
+		for (int i = generations.length - 1; i >= 0; i--) {
+			DatabaseIndex index = loadSidecar(sidecarFor(database, generations[i]));
+			if (index != null) {
+				index.generation = generations[i];
+				return index;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Helper method to memory map the index saved in a sidecar file
+	 * @param sidecar: the sidecar file
+	 * @return: the saved index, or null if the sidecar file isn't valid
+	 * @throws IOException if the sidecar file can't be read
+	 */
+	private static DatabaseIndex loadSidecar(File sidecar) throws IOException {
+		if (!sidecar.isFile() || sidecar.length() < HEADER_SIZE) {
+			return null;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(sidecar, "r");
+		MappedByteBuffer map;
+		try {
+			map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+
+		if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+			return null;
+		}
+
+		long fileSize = map.getLong(8);
+		long lastModified = map.getLong(16);
+		long contentHash = map.getLong(24);
+		int capacity = map.getInt(32);
+		int numTokens = map.getInt(36);
+		int numLines = map.getInt(40);
+		long prefixHash = map.getLong(48);
+		int numListEntries = map.getInt(56);
+
+		// make sure the tables are all there
+		if (Integer.bitCount(capacity) != 1 || map.capacity() != HEADER_SIZE + 12L * capacity + 8L * numLines + 8L * numListEntries) {
+			return null;
+		}
+
+		map.position(HEADER_SIZE);
+		ByteBuffer tokenBytes = map.slice();
+		tokenBytes.limit(8 * capacity);
+		map.position(HEADER_SIZE + 8 * capacity);
+		ByteBuffer tokenLineBytes = map.slice();
+		tokenLineBytes.limit(4 * capacity);
+		map.position(HEADER_SIZE + 12 * capacity);
+		ByteBuffer lineBytes = map.slice();
+		lineBytes.limit(8 * numLines);
+		map.position(HEADER_SIZE + 12 * capacity + 8 * numLines);
+		ByteBuffer listBytes = map.slice();
+
+		DatabaseIndex index = new DatabaseIndex(fileSize, lastModified, contentHash, prefixHash, tokenBytes.asLongBuffer(), numTokens, tokenLineBytes.asIntBuffer(),
+				listBytes.asIntBuffer(), numListEntries, lineBytes.asLongBuffer(), numLines);
+		index.singleByteChars = (map.getInt(44) & FLAG_SINGLE_BYTE_CHARS) != 0;
+		index.prefixHashed = (map.getInt(44) & FLAG_PREFIX_HASHED) != 0;
+		return index;
+	}
+}
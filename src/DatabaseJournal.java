@@ -0,0 +1,599 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the data inserted into a database file, kept in a journal file next to it.
+ * Each commit is appended as one record listing where in the database each piece of data goes
+ * and the data itself, so a commit only costs as many bytes as it inserts instead of a copy of
+ * the whole database. The database file itself isn't changed until the journal is folded into
+ * it by rewriting it.
+ * <br>The contents of the database with every commit applied are read through openChannel, which
+ * puts together pieces of the database file and the journal as it goes. The journal starts with
+ * the fingerprint of the database file it applies to, so a journal left next to a database
+ * that has since been changed some other way is never applied to it
+ */
+public class DatabaseJournal {
+
+	private static final int MAGIC = 0x52444a4c;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final String JOURNAL_EXTEN = ".journal";
+	private static final String STALE_EXTEN = ".stale";
+	private static final int INITIAL_PIECES = 16;
+
+	private File database;
+	private File journalFile;
+	private int numCommits;
+	// the number of bytes of the journal file that hold complete commits
+	private long length;
+
+	// the fingerprint of the database file the journal applies to
+	private long baseSize;
+	private long baseLastModified;
+
+	// the contents with every commit applied, as a list of pieces in order. Each piece is a
+	// range of the database file or the journal, starting at pieceStarts[i] in the contents and
+	// at pieceSources[i] in its file
+	private long[] pieceStarts = new long[INITIAL_PIECES];
+	private long[] pieceSources = new long[INITIAL_PIECES];
+	private boolean[] pieceInJournal = new boolean[INITIAL_PIECES];
+	private int numPieces;
+	private long size;
+
+	/**
+	 * Helper constructor for DatabaseJournal. Use open to get the journal of a database file
+	 */
+	private DatabaseJournal(File database) {
+		this.database = database;
+		journalFile = journalFor(database);
+	}
+
+	/**
+	 * Helper method to get the journal file for a database file
+	 * @param database: the database file
+	 * @return: the file the journal of the database is kept in
+	 */
+	static File journalFor(File database) {
+		return new File(database.getPath() + JOURNAL_EXTEN);
+	}
+
+	/**
+	 * Opens the journal of a database file, applying every complete commit in it. A commit that
+	 * was cut off while it was being appended is dropped. If the journal doesn't apply to the
+	 * database file as it is now, it is renamed with ".stale" added to its name so it isn't lost,
+	 * and an empty journal is returned
+	 * @param database: the database file
+	 * @return: the journal, which has no commits if there is no journal file
+	 * @throws IOException if the journal file can't be read
+	 */
+	public static DatabaseJournal open(File database) throws IOException {
+		DatabaseJournal journal = new DatabaseJournal(database);
+		if (!journal.journalFile.isFile()) {
+			journal.reset();
+			return journal;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(journal.journalFile, "rw");
+		try {
+			if (!journal.readCommits(raf)) {
+				raf.close();
+				File stale = new File(journal.journalFile.getPath() + STALE_EXTEN);
+				stale.delete();
+				journal.journalFile.renameTo(stale);
+				journal.reset();
+				return journal;
+			}
+
+			// drop anything after the last complete commit
+			if (raf.length() > journal.length) {
+				raf.setLength(journal.length);
+			}
+		} finally {
+			raf.close();
+		}
+
+		return journal;
+	}
+
+	/**
+	 * Helper method to read the header and commits of the journal file
+	 * @param raf: the journal file
+	 * @return: true if the journal applies to the database file, false otherwise
+	 * @throws IOException if the journal file can't be read
+	 */
+	private boolean readCommits(RandomAccessFile raf) throws IOException {
+		if (raf.length() < HEADER_SIZE) {
+			return false;
+		}
+
+		// the journal is folded into the database once it gets big, so it can be read whole
+		byte[] bytes = new byte[(int) raf.length()];
+		raf.readFully(bytes);
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+			return false;
+		}
+
+		baseSize = buf.getLong(8);
+		baseLastModified = buf.getLong(16);
+		long baseHash = buf.getLong(24);
+		if (database.length() != baseSize || database.lastModified() != baseLastModified
+				|| DatabaseIndex.contentHash(database, baseSize) != baseHash) {
+			return false;
+		}
+
+		resetPieces();
+		length = HEADER_SIZE;
+
+		// each commit is the number of insertions, then the offset, length and bytes of each,
+		// then a CRC of all of that
+		int pos = HEADER_SIZE;
+		while (buf.limit() - pos >= 8) {
+			int numInsertions = buf.getInt(pos);
+			if (numInsertions <= 0) {
+				break;
+			}
+
+			long[] offsets = new long[numInsertions];
+			long[] sources = new long[numInsertions];
+			int[] lengths = new int[numInsertions];
+			int p = pos + 4;
+			boolean complete = true;
+			for (int i = 0; i < numInsertions && complete; i++) {
+				if (buf.limit() - p < 12) {
+					complete = false;
+					break;
+				}
+				offsets[i] = buf.getLong(p);
+				lengths[i] = buf.getInt(p + 8);
+				sources[i] = p + 12;
+				p += 12;
+				complete = lengths[i] >= 0 && buf.limit() - p >= lengths[i];
+				p += lengths[i];
+			}
+			if (!complete || buf.limit() - p < 4) {
+				break;
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(bytes, pos, p - pos);
+			if ((int) crc.getValue() != buf.getInt(p)) {
+				break;
+			}
+
+			applyCommit(offsets, sources, lengths, numInsertions);
+			numCommits++;
+			pos = p + 4;
+			length = pos;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Appends a commit to the journal as part of a group commit, commits the group, and then
+	 * applies it. The journal file is created, fingerprinting the database file as it is now, if
+	 * this is the first commit. The commit is forced to the disk before this returns, and if the
+	 * group can't be committed the journal is left as it was
+	 * <br>pre: the offsets are in order and each is at most size(), and no commits have been
+	 * made to the database file in any other way since the journal was opened
+	 * @param offsets: where each piece of data goes in the contents as they are before this commit
+	 * @param data: the data to insert at each offset
+	 * @param numInsertions: the number of insertions
+	 * @param commit: the group commit to append the commit in, which hasn't been committed
+	 * @throws IOException if the group can't be committed
+	 */
+	public void append(long[] offsets, byte[][] data, int numInsertions, GroupCommit commit) throws IOException {
+		if (numInsertions == 0) {
+			commit.commit();
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		boolean first = numCommits == 0;
+		if (first) {
+			reset();
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(baseSize);
+			out.writeLong(baseLastModified);
+			out.writeLong(DatabaseIndex.contentHash(database, baseSize));
+		}
+
+		// work out where in the journal each piece of data will be
+		long writeStart = first ? 0 : length;
+		long[] sources = new long[numInsertions];
+		int[] lengths = new int[numInsertions];
+		out.writeInt(numInsertions);
+		for (int i = 0; i < numInsertions; i++) {
+			out.writeLong(offsets[i]);
+			out.writeInt(data[i].length);
+			sources[i] = writeStart + out.size();
+			lengths[i] = data[i].length;
+			out.write(data[i]);
+		}
+
+		CRC32 crc = new CRC32();
+		int headerLength = first ? HEADER_SIZE : 0;
+		crc.update(bytes.toByteArray(), headerLength, bytes.size() - headerLength);
+		out.writeInt((int) crc.getValue());
+		out.close();
+
+		// a commit that was cut off before is overwritten
+		commit.append(journalFile, writeStart, bytes.toByteArray());
+		try {
+			commit.commit();
+		} catch (IOException e) {
+			commit.abort();
+			throw e;
+		}
+
+		applyCommit(offsets, sources, lengths, numInsertions);
+		numCommits++;
+		length = writeStart + bytes.size();
+	}
+
+	/**
+	 * Deletes the journal file, once its commits have been written into the database file
+	 * <br>post: isEmpty()
+	 */
+	public void delete() {
+		journalFile.delete();
+		reset();
+	}
+
+	/**
+	 * Helper method to make the journal empty, applying to the database file as it is now
+	 */
+	private void reset() {
+		numCommits = 0;
+		length = 0;
+		baseSize = database.length();
+		baseLastModified = database.lastModified();
+		resetPieces();
+	}
+
+	/**
+	 * Helper method to set the contents back to just the database file
+	 */
+	private void resetPieces() {
+		numPieces = 0;
+		size = 0;
+		if (baseSize > 0) {
+			addPiece(false, 0, baseSize);
+		}
+	}
+
+	/**
+	 * @return: true if there are no commits in the journal, so the database file is up to date
+	 */
+	public boolean isEmpty() {
+		return numCommits == 0;
+	}
+
+	/**
+	 * Checks cheaply whether the database file has been changed some other way since the journal
+	 * was started, in which case it has to be opened again
+	 * @return: true if there are commits in the journal and the database file's size or
+	 * modification time has changed, false otherwise
+	 */
+	public boolean isStale() {
+		return numCommits > 0 && (database.length() != baseSize || database.lastModified() != baseLastModified);
+	}
+
+	/**
+	 * @return: the number of bytes in the journal file
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return: the journal file
+	 */
+	public File getFile() {
+		return journalFile;
+	}
+
+	/**
+	 * @return: the size of the contents with every commit applied
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Opens the contents with every commit applied for reading. The channel reads the commits
+	 * made up to now, even if more are appended while it is open, and it is safe to read from
+	 * several threads at once with the positional read methods. It can't be mapped or locked,
+	 * since its contents aren't one file, so it must only be read: the scans of the database and
+	 * the splice that rewrites it use the read and transfer methods, and only the index's own
+	 * sidecar file is ever mapped
+	 * @return: a read only channel of the contents
+	 * @throws IOException if the database or journal file can't be opened
+	 */
+	public FileChannel openChannel() throws IOException {
+		FileChannel base = new FileInputStream(database).getChannel();
+		FileChannel journal = null;
+		try {
+			if (numCommits > 0) {
+				journal = new FileInputStream(journalFile).getChannel();
+			}
+		} finally {
+			if (numCommits > 0 && journal == null) {
+				base.close();
+			}
+		}
+
+		return new JournalChannel(base, journal, Arrays.copyOf(pieceStarts, numPieces), Arrays.copyOf(pieceSources, numPieces),
+				Arrays.copyOf(pieceInJournal, numPieces), size);
+	}
+
+	/**
+	 * Helper method to insert the data of a commit into the pieces
+	 * @param offsets: where each piece of data goes in the contents as they are before the commit
+	 * @param sources: where in the journal each piece of data is
+	 * @param lengths: the length of each piece of data
+	 * @param numInsertions: the number of insertions
+	 */
+	private void applyCommit(long[] offsets, long[] sources, int[] lengths, int numInsertions) {
+		long[] oldStarts = Arrays.copyOf(pieceStarts, numPieces);
+		long[] oldSources = Arrays.copyOf(pieceSources, numPieces);
+		boolean[] oldInJournal = Arrays.copyOf(pieceInJournal, numPieces);
+		int oldNumPieces = numPieces;
+		long oldSize = size;
+
+		numPieces = 0;
+		size = 0;
+		int ins = 0;
+		for (int p = 0; p < oldNumPieces; p++) {
+			long start = oldStarts[p];
+			long pieceLength = (p + 1 < oldNumPieces ? oldStarts[p + 1] : oldSize) - start;
+
+			// split the piece at each insertion in it, with data at the start of a piece going
+			// before it
+			long done = 0;
+			while (ins < numInsertions && offsets[ins] < start + pieceLength) {
+				long cut = offsets[ins] - start;
+				if (cut > done) {
+					addPiece(oldInJournal[p], oldSources[p] + done, cut - done);
+					done = cut;
+				}
+				addPiece(true, sources[ins], lengths[ins]);
+				ins++;
+			}
+			if (pieceLength > done) {
+				addPiece(oldInJournal[p], oldSources[p] + done, pieceLength - done);
+			}
+		}
+
+		// anything left goes at the very end
+		for (; ins < numInsertions; ins++) {
+			addPiece(true, sources[ins], lengths[ins]);
+		}
+	}
+
+	/**
+	 * Helper method to add a piece to the end of the contents
+	 * @param inJournal: whether the piece is in the journal rather than the database file
+	 * @param source: where the piece starts in its file
+	 * @param pieceLength: the length of the piece
+	 */
+	private void addPiece(boolean inJournal, long source, long pieceLength) {
+		if (pieceLength == 0) {
+			return;
+		}
+
+		if (numPieces == pieceStarts.length) {
+			pieceStarts = Arrays.copyOf(pieceStarts, numPieces * 2);
+			pieceSources = Arrays.copyOf(pieceSources, numPieces * 2);
+			pieceInJournal = Arrays.copyOf(pieceInJournal, numPieces * 2);
+		}
+
+		pieceStarts[numPieces] = size;
+		pieceSources[numPieces] = source;
+		pieceInJournal[numPieces] = inJournal;
+		numPieces++;
+		size += pieceLength;
+	}
+
+	/**
+	 * Read only channel of the contents of a database file with the commits in its journal
+	 * applied, reading each piece from whichever file it is in. Mapping or locking it throws an
+	 * UnsupportedOperationException, since there is no one file to map or lock
+	 */
+	private static class JournalChannel extends FileChannel {
+
+		private FileChannel base;
+		private FileChannel journal;
+		private long[] pieceStarts;
+		private long[] pieceSources;
+		private boolean[] pieceInJournal;
+		private long size;
+		private long position;
+
+		private JournalChannel(FileChannel base, FileChannel journal, long[] pieceStarts, long[] pieceSources, boolean[] pieceInJournal, long size) {
+			this.base = base;
+			this.journal = journal;
+			this.pieceStarts = pieceStarts;
+			this.pieceSources = pieceSources;
+			this.pieceInJournal = pieceInJournal;
+			this.size = size;
+		}
+
+		/**
+		 * Helper method to find the piece a position is in
+		 * <br>pre: 0 <= pos < size
+		 * @param pos: the position in the contents
+		 * @return: the index of the last piece that starts at or before pos
+		 */
+		private int findPiece(long pos) {
+			int low = 0;
+			int high = pieceStarts.length - 1;
+			while (low < high) {
+				int mid = (low + high + 1) >>> 1;
+				if (pieceStarts[mid] <= pos) {
+					low = mid;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Helper method to get the length of a piece
+		 * @param piece: the index of the piece
+		 * @return: the number of bytes in it
+		 */
+		private long pieceLength(int piece) {
+			return (piece + 1 < pieceStarts.length ? pieceStarts[piece + 1] : size) - pieceStarts[piece];
+		}
+
+		public int read(ByteBuffer dst, long pos) throws IOException {
+			if (pos >= size) {
+				return -1;
+			}
+
+			// read from one piece after another until dst is full or the contents run out
+			int total = 0;
+			int piece = findPiece(pos);
+			while (dst.hasRemaining() && piece < pieceStarts.length) {
+				long offset = pos - pieceStarts[piece];
+				int count = (int) Math.min(dst.remaining(), pieceLength(piece) - offset);
+				FileChannel in = pieceInJournal[piece] ? journal : base;
+
+				int oldLimit = dst.limit();
+				dst.limit(dst.position() + count);
+				try {
+					while (dst.hasRemaining()) {
+						if (in.read(dst, pieceSources[piece] + offset + count - dst.remaining()) == -1) {
+							throw new IOException("The database file or its journal is shorter than the journal says");
+						}
+					}
+				} finally {
+					dst.limit(oldLimit);
+				}
+
+				total += count;
+				pos += count;
+				piece++;
+			}
+
+			return total;
+		}
+
+		public int read(ByteBuffer dst) throws IOException {
+			int read = read(dst, position);
+			if (read > 0) {
+				position += read;
+			}
+			return read;
+		}
+
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			long total = 0;
+			for (int i = offset; i < offset + length; i++) {
+				int read = read(dsts[i]);
+				if (read == -1) {
+					return total == 0 ? -1 : total;
+				}
+				total += read;
+				if (dsts[i].hasRemaining()) {
+					break;
+				}
+			}
+			return total;
+		}
+
+		public long transferTo(long pos, long count, WritableByteChannel target) throws IOException {
+			// each piece is transferred straight from its file
+			long total = 0;
+			count = Math.min(count, size - pos);
+			while (total < count) {
+				int piece = findPiece(pos);
+				long offset = pos - pieceStarts[piece];
+				long n = Math.min(count - total, pieceLength(piece) - offset);
+				FileChannel in = pieceInJournal[piece] ? journal : base;
+
+				long transferred = in.transferTo(pieceSources[piece] + offset, n, target);
+				if (transferred <= 0) {
+					break;
+				}
+				total += transferred;
+				pos += transferred;
+			}
+			return total;
+		}
+
+		public long position() {
+			return position;
+		}
+
+		public FileChannel position(long newPosition) {
+			position = newPosition;
+			return this;
+		}
+
+		public long size() {
+			return size;
+		}
+
+		public int write(ByteBuffer src) {
+			throw new NonWritableChannelException();
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			throw new NonWritableChannelException();
+		}
+
+		public int write(ByteBuffer src, long pos) {
+			throw new NonWritableChannelException();
+		}
+
+		public FileChannel truncate(long newSize) {
+			throw new NonWritableChannelException();
+		}
+
+		public long transferFrom(ReadableByteChannel src, long pos, long count) {
+			throw new NonWritableChannelException();
+		}
+
+		public void force(boolean metaData) {
+			// nothing is ever written
+		}
+
+		public MappedByteBuffer map(MapMode mode, long pos, long mapSize) {
+			throw new UnsupportedOperationException("The contents of a journaled database can't be mapped");
+		}
+
+		public FileLock lock(long pos, long lockSize, boolean shared) {
+			throw new UnsupportedOperationException("The contents of a journaled database can't be locked");
+		}
+
+		public FileLock tryLock(long pos, long lockSize, boolean shared) {
+			throw new UnsupportedOperationException("The contents of a journaled database can't be locked");
+		}
+
+		protected void implCloseChannel() throws IOException {
+			base.close();
+			if (journal != null) {
+				journal.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,170 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the text of a Word document (.docx) one paragraph at a time, so that it can be used as
+ * a data file. The document's XML is streamed straight out of the zip file with a StAX reader
+ * and each paragraph is handed on as soon as it ends, so only one paragraph is ever held in
+ * memory no matter how big the document is. Line breaks inside a paragraph split it into
+ * separate lines, and tabs are kept. Blank lines are left out, the same as for text data files
+ */
+public class DocxReader {
+
+	public static final String EXTENSION = ".docx";
+
+	// where the text of the document is in the zip file, and the namespace of its elements
+	private static final String DOCUMENT_ENTRY = "word/document.xml";
+	private static final String WORD_NAMESPACE = "http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+
+	/**
+	 * @param file: the file to check
+	 * @return: true if the file is a Word document, judging by its name
+	 */
+	public static boolean isDocument(File file) {
+		return file.getName().toLowerCase().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Reads the last non-blank lines of a document, holding no more than numLines at a time
+	 * <br>pre: file != null && numLines >= 0
+	 * @param file: the document to read
+	 * @param numLines: the maximum number of non-blank lines to read
+	 * @return: a buffer with a capacity of numLines holding the last numLines non-blank lines in
+	 * the document, in order. If the document has fewer, all of them are returned
+	 * @throws IOException if the document can't be read
+	 */
+	public static RingBuffer<String> readLastLines(File file, int numLines) throws IOException {
+		final RingBuffer<String> lines = new RingBuffer<> (Math.max(numLines, 0));
+		if (numLines <= 0) {
+			return lines;
+		}
+
+		forEachLine(file, new LineHandler() {
+			public boolean handleLine(String line) {
+				if (lines.isFull()) {
+					lines.removeFirst();
+				}
+				lines.addLast(line);
+				return true;
+			}
+		});
+
+		return lines;
+	}
+
+	/**
+	 * Goes through the non-blank lines of a document in order
+	 * <br>pre: file != null && handler != null
+	 * @param file: the document to read
+	 * @param handler: the handler to give each line to
+	 * @throws IOException if the document can't be read or isn't a Word document
+	 */
+	public static void forEachLine(File file, LineHandler handler) throws IOException {
+		ZipFile zip = new ZipFile(file);
+		try {
+			ZipEntry entry = zip.getEntry(DOCUMENT_ENTRY);
+			if (entry == null) {
+				throw new IOException(file.getName() + " isn't a Word document");
+			}
+
+			InputStream in = zip.getInputStream(entry);
+			try {
+				readParagraphs(in, handler);
+			} catch (XMLStreamException e) {
+				throw new IOException("Couldn't read " + file.getName(), e);
+			} finally {
+				in.close();
+			}
+			PerformanceMetrics.get().addBytesRead(entry.getCompressedSize());
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * Helper method to go through the paragraphs of the document's XML, building up the text of
+	 * each line from the text runs, tabs and breaks in it
+	 * @param in: the document's XML
+	 * @param handler: the handler to give each line to
+	 * @throws XMLStreamException if the XML can't be parsed
+	 */
+	private static void readParagraphs(InputStream in, LineHandler handler) throws XMLStreamException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		// the document is only ever read, so nothing outside of it is ever loaded
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		XMLStreamReader reader = factory.createXMLStreamReader(in);
+
+		try {
+			StringBuilder line = new StringBuilder();
+			// whether the reader is inside a w:t element, whose text is part of the line
+			boolean inText = false;
+
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT && WORD_NAMESPACE.equals(reader.getNamespaceURI())) {
+					String name = reader.getLocalName();
+					if (name.equals("t")) {
+						inText = true;
+					} else if (name.equals("tab")) {
+						line.append('\t');
+					} else if (name.equals("br") || name.equals("cr") || name.equals("p")) {
+						// a paragraph inside another one, as in a text box, starts a line of its own
+						if (!handleLine(line, handler)) {
+							return;
+						}
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT && WORD_NAMESPACE.equals(reader.getNamespaceURI())) {
+					String name = reader.getLocalName();
+					if (name.equals("t")) {
+						inText = false;
+					} else if (name.equals("p") && !handleLine(line, handler)) {
+						return;
+					}
+				} else if (inText && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+						|| event == XMLStreamConstants.SPACE)) {
+					line.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				}
+			}
+
+			handleLine(line, handler);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Helper method to hand on the line built up so far, unless it is blank
+	 * @param line: the text of the line. Is emptied afterwards
+	 * @param handler: the handler to give the line to
+	 * @return: false if the handler wants to stop, true otherwise
+	 */
+	private static boolean handleLine(StringBuilder line, LineHandler handler) {
+		if (line.length() == 0) {
+			return true;
+		}
+
+		String text = line.toString();
+		line.setLength(0);
+		return handler.handleLine(text);
+	}
+
+	/**
+	 * Handler for each non-blank line of a document
+	 */
+	public interface LineHandler {
+		/**
+		 * @param line: the text of the line
+		 * @return: true to keep going, false to stop reading the document
+		 */
+		boolean handleLine(String line);
+	}
+}
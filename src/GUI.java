@@ -3,9 +3,14 @@ import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.AbstractAction;
 import javax.swing.BorderFactory;
@@ -20,9 +25,14 @@ import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
+import javax.swing.ListModel;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
@@ -40,7 +50,7 @@ public class GUI extends JFrame {
 
 	// lists
 	private DefaultListModel<String> dataFilesDisplayList;
-	private DefaultListModel<String> dataFileLineDisplayList;
+	private DataFileLinesModel dataFileLineDisplayList;
 	private JList<String> dataFilesList;
 	private JList<String> dataFileLineList;
 
@@ -53,13 +63,26 @@ public class GUI extends JFrame {
 	// text fields
 	private JTextField lineInput;
 	private JTextField message;
+	
+	// background tasks
+	private JProgressBar progressBar;
+	private JButton cancel;
+	private BackgroundTask currentTask;
 
 	// utility
 	private ArrayList<DataFile> dataFiles;
 	private DatabaseFile databaseFile;
 	private JFrame frame;
 	private int numDataLinesToDisplay = 10;
+	private int numScanThreads = Runtime.getRuntime().availableProcessors();
+	private Charset databaseCharset = StandardCharsets.UTF_8;
+	private double filterRate;
+	private int compressionLevel = CompressedFiles.DEFAULT_LEVEL;
+	private boolean useJournal;
 	private DataFile selectedFile;
+	private DataFileWatcher watcher;
+	// what was read from each data file, so unchanged files aren't read again when reopened
+	private DataFileCache dataFileCache = new DataFileCache();
 	
 	public GUI(String title) {
 		setDefaultCloseOperation(EXIT_ON_CLOSE);
@@ -74,6 +97,7 @@ public class GUI extends JFrame {
 		message = new JTextField(30);
 		p.setBorder(BorderFactory.createTitledBorder("output"));
 		p.add(message, BorderLayout.CENTER);
+		p.add(makeProgressDisplay(), BorderLayout.EAST);
 
 		panel.add(p, BorderLayout.SOUTH);
 
@@ -91,6 +115,27 @@ public class GUI extends JFrame {
 		makeMenus();
 
 		dataFiles = new ArrayList<> ();
+		
+		// pick up lines that are added to the data files in other programs while they are open
+		try {
+			watcher = new DataFileWatcher(new DataFileWatcher.Listener() {
+				public void fileChanged(File file) {
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							ArrayList<DataFile> changed = new ArrayList<> ();
+							for (DataFile df : dataFiles) {
+								if (df.getFile().equals(file)) {
+									changed.add(df);
+								}
+							}
+							followDataFiles(changed);
+						}
+					});
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 
 		pack();
 		setSize(650, 400);
@@ -107,7 +152,7 @@ public class GUI extends JFrame {
 	 * @param listener: a listener so things can happen when the list selection changes
 	 * @return: the created JList of Strings
 	 */
-	private JList<String> makeList(DefaultListModel<String> listModel, String name, ListSelectionListener listener) {
+	private JList<String> makeList(ListModel<String> listModel, String name, ListSelectionListener listener) {
 		JList<String> newList = new JList<> (listModel);
 		newList.setBorder(BorderFactory.createTitledBorder(name));
 		newList.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
@@ -119,6 +164,29 @@ public class GUI extends JFrame {
 		return newList;
 	}
 	
+	/**
+	 * Helper method to make the progress bar and cancel button for background tasks
+	 */
+	private JPanel makeProgressDisplay() {
+		JPanel panel = new JPanel(new BorderLayout());
+		progressBar = new JProgressBar(0, 100);
+		progressBar.setStringPainted(true);
+		panel.add(progressBar, BorderLayout.CENTER);
+		
+		cancel = new JButton("Cancel");
+		cancel.setEnabled(false);
+		cancel.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				if (currentTask != null) {
+					currentTask.cancelTask();
+				}
+			}
+		});
+		panel.add(cancel, BorderLayout.EAST);
+		
+		return panel;
+	}
+	
 	/**
 	 * Helper method to make the display and button for managing data files 
 	 */
@@ -161,9 +229,12 @@ public class GUI extends JFrame {
 	private JPanel makeDataLinesDisplay() {
 		JPanel panel = new JPanel(new BorderLayout());
 		panel.setBorder(BorderFactory.createTitledBorder("Data File Lines"));
-		dataFileLineDisplayList = new DefaultListModel<> ();
+		dataFileLineDisplayList = new DataFileLinesModel();
 
 		dataFileLineList = makeList(dataFileLineDisplayList, "", new DataFileLinesListener());
+		// a whole data file can be shown, so give the rows a fixed size instead of measuring
+		// every line
+		dataFileLineList.setPrototypeCellValue("0000000000000000000000000000000000000000000000000000000000000000");
 		panel.add(new JScrollPane(dataFileLineList), BorderLayout.CENTER);
 		newLineDisplay = new JLabel(NEW_LINES_DISPLAY_TEXT + "0");
 		panel.add(newLineDisplay, BorderLayout.NORTH);
@@ -204,17 +275,139 @@ public class GUI extends JFrame {
 				numDataLinesToDisplay = Integer.parseInt(JOptionPane.showInputDialog(frame, "Enter the number of data lines to display", numDataLinesToDisplay));
 				
 				// recreate the DataFile list
-				ArrayList<DataFile> temp = new ArrayList<> ();
-				for (DataFile df : dataFiles) {
-					temp.add(new DataFile(df.getFile(), numDataLinesToDisplay, databaseFile));
+				if (dataFiles.size() > 0) {
+					rebuildDataFiles();
+				}
+			}
+		});
+
+		menu.add(new AbstractAction("Change number of threads used to scan the database") {
+			private static final long serialVersionUID = -2404945329617305873L;
+
+			public void actionPerformed(ActionEvent ev) {
+				// show a dialog to allow the client to enter in how many threads they want
+				String input = JOptionPane.showInputDialog(frame, "Enter the number of threads to scan the database file with", numScanThreads);
+				if (input == null) {
+					return;
 				}
 				
-				dataFiles = temp;
+				int threads;
+				try {
+					threads = Integer.parseInt(input.trim());
+				} catch (NumberFormatException e) {
+					threads = 0;
+				}
+				if (threads <= 0) {
+					message.setText("The number of threads must be at least 1");
+					return;
+				}
 				
-				// reset the data line and data file displays
-				dataFileLineDisplayList.clear();
-				newLineDisplay.setText(NEW_LINES_DISPLAY_TEXT + "0");
-				dataFilesList.clearSelection();
+				numScanThreads = threads;
+				if (databaseFile != null) {
+					databaseFile.setParallelism(numScanThreads);
+				}
+			}
+		});
+
+		menu.add(new AbstractAction("Change charset of the database file") {
+			private static final long serialVersionUID = 3177264850418963527L;
+
+			public void actionPerformed(ActionEvent ev) {
+				// show a dialog to allow the client to enter the name of the charset
+				String name = JOptionPane.showInputDialog(frame, "Enter the charset the database file is encoded in", databaseCharset.name());
+				if (name == null) {
+					return;
+				}
+				
+				Charset newCharset;
+				try {
+					newCharset = Charset.forName(name);
+				} catch (IllegalArgumentException e) {
+					message.setText("Unknown charset " + name);
+					return;
+				}
+				if (!ReferenceMatcher.isSupported(newCharset)) {
+					message.setText("The charset must be UTF-8 or have one byte per char");
+					return;
+				}
+				
+				databaseCharset = newCharset;
+				if (databaseFile != null) {
+					databaseFile.setCharset(databaseCharset);
+				}
+			}
+		});
+
+		menu.add(new AbstractAction("Change lookup filter false positive rate") {
+			private static final long serialVersionUID = -8411305129786642214L;
+
+			public void actionPerformed(ActionEvent ev) {
+				// a Bloom filter takes far less memory than the full index for very large
+				// database files, at the cost of scanning the file for anything that gets past it
+				String rate = JOptionPane.showInputDialog(frame, "Enter the false positive rate of the Bloom filter to look data up in,"
+						+ "\nor 0 to use the full index", filterRate);
+				if (rate == null) {
+					return;
+				}
+				
+				double newRate;
+				try {
+					newRate = Double.parseDouble(rate);
+				} catch (NumberFormatException e) {
+					newRate = -1;
+				}
+				if (!(newRate >= 0 && newRate < 1)) {
+					message.setText("The false positive rate must be at least 0 and less than 1");
+					return;
+				}
+				
+				filterRate = newRate;
+				if (databaseFile != null) {
+					databaseFile.setFilterMode(filterRate);
+				}
+			}
+		});
+
+		menu.add(new JCheckBoxMenuItem(new AbstractAction("Write database changes to a journal") {
+			private static final long serialVersionUID = 6930164250913795428L;
+
+			public void actionPerformed(ActionEvent ev) {
+				// small commits are appended to a journal next to the database file, which is
+				// folded into the database file in the background once it gets big
+				useJournal = ((JCheckBoxMenuItem) ev.getSource()).isSelected();
+				if (databaseFile != null) {
+					databaseFile.setJournalMode(useJournal);
+				}
+			}
+		}));
+
+		menu.add(new AbstractAction("Change compression level of .gz files") {
+			private static final long serialVersionUID = -2285830648143590126L;
+
+			public void actionPerformed(ActionEvent ev) {
+				// gzipped database and data files are rewritten at this level, trading time spent
+				// compressing for fewer bytes to write
+				String level = JOptionPane.showInputDialog(frame, "Enter the level to compress rewritten .gz files at, from "
+						+ CompressedFiles.MIN_LEVEL + " (fastest) to " + CompressedFiles.MAX_LEVEL + " (smallest)", compressionLevel);
+				if (level == null) {
+					return;
+				}
+				
+				int newLevel;
+				try {
+					newLevel = Integer.parseInt(level);
+				} catch (NumberFormatException e) {
+					newLevel = -1;
+				}
+				if (!CompressedFiles.isValidLevel(newLevel)) {
+					message.setText("The compression level must be from " + CompressedFiles.MIN_LEVEL + " to " + CompressedFiles.MAX_LEVEL);
+					return;
+				}
+				
+				compressionLevel = newLevel;
+				if (databaseFile != null) {
+					databaseFile.setCompressionLevel(compressionLevel);
+				}
 			}
 		});
 
@@ -250,11 +443,28 @@ public class GUI extends JFrame {
 				
 				// if a valid file is selected
 				if (newFile != null) {
-					// make a new DataFile
-					DataFile temp = new DataFile(newFile, numDataLinesToDisplay, databaseFile);
-					// and add it to the internal list and the display list
-					dataFiles.add(temp);
-					dataFilesDisplayList.addElement(newFile.getName());
+					new BackgroundTask("Reading " + newFile.getName() + "...", databaseFile) {
+						private DataFile temp;
+						
+						protected void work() {
+							// make a new DataFile
+							temp = new DataFile(newFile, numDataLinesToDisplay, databaseFile);
+						}
+						
+						protected void succeeded() {
+							// new lines can only be added after a line that is in the database file
+							if (temp.getRefLine() == null) {
+								message.setText("None of the last lines of " + newFile.getName() + " are in the database file");
+								return;
+							}
+							
+							// and add it to the internal list and the display list
+							dataFiles.add(temp);
+							dataFilesDisplayList.addElement(newFile.getName());
+							watchDataFiles();
+							message.setText("Added data file: " + newFile.getName());
+						}
+					}.start();
 				}
 			}
 		});
@@ -269,26 +479,37 @@ public class GUI extends JFrame {
 				
 				// if a valid file is selected
 				if (newDBFile != null) {
-					// set the new database file and the display
-					databaseFile = new DatabaseFile(newDBFile);
-					databaseFileDisplay.setText(databaseFile.getName());
-
-					// if there are any data files, reset them by creating new DataFile objects
-					// this is to ensure that any new lines already in the data files are correctly
-					// accounted for
-					if (dataFiles.size() > 0) {
-						ArrayList<DataFile> temp = new ArrayList<> ();
-						for (DataFile df : dataFiles) {
-							temp.add(new DataFile(df.getFile(), numDataLinesToDisplay, databaseFile));
-						}
+					DatabaseFile newDatabase = new DatabaseFile(newDBFile);
+					newDatabase.setParallelism(numScanThreads);
+					newDatabase.setCharset(databaseCharset);
+					newDatabase.setFilterMode(filterRate);
+					newDatabase.setJournalMode(useJournal);
+					newDatabase.setCompressionLevel(compressionLevel);
+					ArrayList<File> files = getDataFilePaths();
+					
+					new BackgroundTask("Reading " + newDBFile.getName() + "...", newDatabase) {
+						private ArrayList<DataFile> reopened;
 						
-						dataFiles = temp;
+						protected void work() {
+							// if there are any data files, reset them by creating new DataFile objects
+							// this is to ensure that any new lines already in the data files are correctly
+							// accounted for
+							if (files.size() > 0) {
+								reopened = DataFile.openAll(files, numDataLinesToDisplay, newDatabase, dataFileCache);
+							}
+						}
 						
-						// reset the data line and data file displays
-						dataFileLineDisplayList.clear();
-						newLineDisplay.setText(NEW_LINES_DISPLAY_TEXT + "0");
-						dataFilesList.clearSelection();
-					}
+						protected void succeeded() {
+							// set the new database file and the display
+							databaseFile = newDatabase;
+							databaseFileDisplay.setText(databaseFile.getName());
+							message.setText("Opened database file: " + databaseFile.getName());
+							
+							if (reopened != null) {
+								showDataFiles(reopened);
+							}
+						}
+					}.start();
 				}
 			}
 		});
@@ -303,6 +524,225 @@ public class GUI extends JFrame {
 		return fileMenu;
 	}
 
+	/**
+	 * Helper method to recreate every DataFile in the background, so that any new lines already
+	 * in the data files and any change in the number of lines to display are accounted for. The
+	 * reference lines of all of the data files are found with a single pass over the database file,
+	 * and data files that haven't changed since they were last read aren't read again
+	 */
+	private void rebuildDataFiles() {
+		ArrayList<File> files = getDataFilePaths();
+		
+		new BackgroundTask("Rereading data files...", databaseFile) {
+			private ArrayList<DataFile> reopened;
+			
+			protected void work() {
+				reopened = DataFile.openAll(files, numDataLinesToDisplay, databaseFile, dataFileCache);
+			}
+			
+			protected void succeeded() {
+				showDataFiles(reopened);
+				message.setText("Data files updated");
+			}
+		}.start();
+	}
+	
+	/**
+	 * Helper method to get the file of every data file currently in use
+	 * @return: a list of the files, in the order they are displayed
+	 */
+	private ArrayList<File> getDataFilePaths() {
+		ArrayList<File> files = new ArrayList<> ();
+		for (DataFile df : dataFiles) {
+			files.add(df.getFile());
+		}
+		
+		return files;
+	}
+	
+	/**
+	 * Helper method to replace the data files in use and reset the displays for them
+	 * @param newDataFiles: the data files to use from now on
+	 */
+	private void showDataFiles(ArrayList<DataFile> newDataFiles) {
+		dataFiles = new ArrayList<> ();
+		dataFilesDisplayList.clear();
+		
+		for (DataFile df : newDataFiles) {
+			// drop any data file that no longer has a line in the database file to add after
+			if (df.getRefLine() == null) {
+				message.setText("None of the last lines of " + df.getFile().getName() + " are in the database file");
+			} else {
+				dataFiles.add(df);
+				dataFilesDisplayList.addElement(df.getFile().getName());
+			}
+		}
+		
+		// reset the data line and data file displays
+		dataFileLineDisplayList.setDataFile(null, null);
+		newLineDisplay.setText(NEW_LINES_DISPLAY_TEXT + "0");
+		dataFilesList.clearSelection();
+		watchDataFiles();
+	}
+	
+	/**
+	 * Helper method to watch the data files currently in use for changes made by other
+	 * programs
+	 */
+	private void watchDataFiles() {
+		if (watcher != null) {
+			watcher.watch(getDataFilePaths());
+		}
+	}
+	
+	/**
+	 * Helper method to pick up any lines other programs have added to data files, updating the
+	 * displays if one of them is the one shown. The files are read in the background, since a
+	 * file that was changed other than by adding lines to it is read again and its reference
+	 * line looked up in the database file. Only files whose size or modification time have
+	 * changed are read, and nothing is done while a background task is running, since it may be
+	 * using the data files; every data file is checked again once it finishes
+	 * @param files: the data files to check
+	 */
+	private void followDataFiles(List<DataFile> files) {
+		if (currentTask != null) {
+			return;
+		}
+		
+		ArrayList<DataFile> toRead = new ArrayList<> ();
+		for (DataFile df : files) {
+			if (df.hasChanged()) {
+				toRead.add(df);
+			}
+		}
+		if (toRead.isEmpty()) {
+			return;
+		}
+		
+		DataFile shown = dataFileLineDisplayList.getDataFile();
+		DataFileLinesModel.Table previous = dataFileLineDisplayList.getTable();
+		new BackgroundTask("Reading new lines...", databaseFile) {
+			private ArrayList<DataFile> changed = new ArrayList<> ();
+			private DataFileLinesModel.Table table;
+			
+			protected void work() {
+				for (DataFile df : toRead) {
+					if (df.readAppendedLines()) {
+						changed.add(df);
+					}
+				}
+				
+				if (changed.contains(shown)) {
+					table = DataFileLinesModel.readTable(shown, previous);
+				}
+			}
+			
+			protected void succeeded() {
+				if (changed.isEmpty()) {
+					message.setText("No new lines in the data files");
+				}
+				for (DataFile df : changed) {
+					showAppendedLines(df, table);
+				}
+			}
+			
+			protected boolean checksDataFilesAfter() {
+				// the files were just read, so checking them again could go on forever
+				return false;
+			}
+		}.start();
+	}
+	
+	/**
+	 * Helper method to update the displays once lines another program added to a data file
+	 * have been read
+	 * @param df: the data file
+	 * @param table: the table of pages of the data file shown, if it is this one
+	 */
+	private void showAppendedLines(DataFile df, DataFileLinesModel.Table table) {
+		int ind = dataFiles.indexOf(df);
+		if (ind == -1) {
+			return;
+		}
+		
+		boolean shown = df == dataFileLineDisplayList.getDataFile();
+		if (df.getRefLine() == null) {
+			// the file was changed so much that there is nowhere to add new lines any more
+			dataFiles.remove(ind);
+			dataFilesDisplayList.removeElementAt(ind);
+			if (shown) {
+				dataFileLineDisplayList.setDataFile(null, null);
+				newLineDisplay.setText(NEW_LINES_DISPLAY_TEXT + "0");
+			}
+			watchDataFiles();
+			message.setText("None of the last lines of " + df.getFile().getName() + " are in the database file");
+			return;
+		}
+		
+		if (shown) {
+			dataFileLineDisplayList.linesChanged(table);
+			newLineDisplay.setText(NEW_LINES_DISPLAY_TEXT + df.getNumLinesAdded());
+		}
+		message.setText("Read new lines of " + df.getFile().getName());
+	}
+	
+	/**
+	 * Helper method to show the lines of a data file, scrolled to the last ones. Finding where
+	 * the pages of lines start means going through the whole file, so it is done in the
+	 * background
+	 * @param df: the data file to show
+	 */
+	private void showDataFileLines(DataFile df) {
+		if (currentTask != null) {
+			return;
+		}
+		
+		DataFileLinesModel.Table previous = dataFileLineDisplayList.getTable();
+		new BackgroundTask("Reading " + df.getFile().getName() + "...", databaseFile) {
+			private DataFileLinesModel.Table table;
+			
+			protected void work() {
+				table = DataFileLinesModel.readTable(df, previous);
+			}
+			
+			protected void succeeded() {
+				// another data file may have been chosen since
+				if (df != selectedFile) {
+					return;
+				}
+				
+				dataFileLineDisplayList.setDataFile(df, table);
+				dataFileLineList.ensureIndexIsVisible(dataFileLineDisplayList.getSize() - 1);
+				// update the new lines display for any new lines in the selected data file
+				newLineDisplay.setText(NEW_LINES_DISPLAY_TEXT + df.getNumLinesAdded());
+				message.setText("Showing " + df.getFile().getName());
+			}
+		}.start();
+	}
+	
+	/**
+	 * Helper method to enable or disable every control that could change the database file or
+	 * the data files while a background task is using them
+	 * @param enabled: true to enable the controls, false to disable them
+	 */
+	private void setControlsEnabled(boolean enabled) {
+		JMenuBar bar = getJMenuBar();
+		for (int i = 0; i < bar.getMenuCount(); i++) {
+			bar.getMenu(i).setEnabled(enabled);
+		}
+		
+		write.setEnabled(enabled);
+		fileRemove.setEnabled(enabled);
+		dataFilesList.setEnabled(enabled);
+		dataFileLineList.setEnabled(enabled);
+		
+		// the data line controls are only usable when a data file is selected
+		boolean lineControlsEnabled = enabled && dataFilesList.getSelectedIndex() != -1;
+		lineInput.setEnabled(lineControlsEnabled);
+		lineAdd.setEnabled(lineControlsEnabled);
+		lineRemove.setEnabled(lineControlsEnabled);
+	}
+
 	/**
 	 * Opens a file viewer to allow the client to select a file to open
 	 * @return: the file the client selected
@@ -352,24 +792,13 @@ public class GUI extends JFrame {
 			if (e.getValueIsAdjusting() == false) {
 				// if the selection is valid
 				if (dataFilesList.getSelectedIndex() != -1) {
-					// reset the data line display
-					dataFileLineDisplayList.clear();
-					
 					// activate the data line buttons and text box
 					lineInput.setEnabled(true);
 					lineAdd.setEnabled(true);
 					lineRemove.setEnabled(true);
 
 					selectedFile = dataFiles.get(dataFilesList.getSelectedIndex());
-
-					// add the last lines from the selected data file to the data line
-					// display
-					for (String line : selectedFile.getLastLines()) {
-						dataFileLineDisplayList.addElement(line);
-					}
-					// update the new lines display for any new lines in the selected
-					// data file
-					newLineDisplay.setText(NEW_LINES_DISPLAY_TEXT + selectedFile.getNumLinesAdded());
+					showDataFileLines(selectedFile);
 
 				} else {
 					lineInput.setEnabled(false);
@@ -412,13 +841,19 @@ public class GUI extends JFrame {
 				message.setText("No file selected to add to!");
 				return;
 			}
+			// Word documents are only read, so their lines have to be added in Word
+			if (selectedFile.isDocument()) {
+				message.setText("Lines can't be added to a Word document here, add them in Word instead");
+				return;
+			}
 
 			String newLine = lineInput.getText();
 			// if some text was entered
 			if (newLine.length() > 0) {
 				// add it to the selected data file and the data line display
 				selectedFile.addLine(lineInput.getText());
-				dataFileLineDisplayList.addElement(lineInput.getText());
+				dataFileLineDisplayList.linesChanged();
+				dataFileLineList.ensureIndexIsVisible(dataFileLineDisplayList.getSize() - 1);
 				// reset the text box
 				lineInput.setText("");
 				
@@ -439,7 +874,7 @@ public class GUI extends JFrame {
 				if (selectedFile.removeLine(dataFileLineList.getSelectedValue())) {
 					// if the line is removed, then also remove it from the display
 					// and decrement the new line count display
-					dataFileLineDisplayList.removeElementAt(dataFileLineList.getSelectedIndex());
+					dataFileLineDisplayList.linesChanged();
 					newLineDisplay.setText(NEW_LINES_DISPLAY_TEXT + selectedFile.getNumLinesAdded());
 				} else {
 					message.setText("Cannot remove that line!");
@@ -469,9 +904,10 @@ public class GUI extends JFrame {
 				// remove the data file from the list and the display
 				dataFiles.remove(dataFilesList.getSelectedIndex());
 				dataFilesDisplayList.removeElementAt(dataFilesList.getSelectedIndex());
+				watchDataFiles();
 				
 				// and clear the data line display
-				dataFileLineDisplayList.clear();
+				dataFileLineDisplayList.setDataFile(null, null);
 			} else {
 				message.setText("Must select a file to remove");
 			}
@@ -501,35 +937,180 @@ public class GUI extends JFrame {
 				return;
 			}
 			
-			message.setText("Writing to files...");
-			
-			// create a TreeMap of the reference lines and data to insert from the
-			// data files
-			TreeMap<String, String> refLinesToData = new TreeMap<> (new DataComparator());
+			// create a TreeMap of the reference lines and data to insert from the data files
+			// with new lines. Data files that share a reference line all have their lines
+			// inserted after it
+			TreeMap<String, String> refLinesToData = new TreeMap<> ();
+			ArrayList<DataFile> toWrite = new ArrayList<> ();
 			for (DataFile df : dataFiles) {
-				refLinesToData.put(df.getRefLine(), df.getFormattedNewLines());
+				if (df.getNumLinesAdded() == 0) {
+					continue;
+				}
+				if (df.getRefLine() == null) {
+					message.setText("None of the last lines of " + df.getFile().getName() + " are in the database file, so nothing was written");
+					return;
+				}
+				
+				String data = refLinesToData.get(df.getRefLine());
+				refLinesToData.put(df.getRefLine(), (data == null ? "" : data) + df.getFormattedNewLines());
+				toWrite.add(df);
 			}
 			
-			// tell the database to insert the TreeMap of data
-			databaseFile.writeNewData(refLinesToData);
-			
-			// tell each data file to write any new lines
-			for (DataFile df : dataFiles) {
-				df.write();
-			}
+			DataFile shown = dataFileLineDisplayList.getDataFile();
+			DataFileLinesModel.Table previous = dataFileLineDisplayList.getTable();
 			
-			message.setText("Files updated!");
+			new BackgroundTask("Writing to files...", databaseFile) {
+				private String summary;
+				private boolean written;
+				private DataFileLinesModel.Table table;
+				
+				protected void work() {
+					// record how long each part of the commit takes
+					PerformanceMetrics metrics = PerformanceMetrics.get();
+					metrics.beginCommit(databaseFile.getFile());
+					
+					try {
+						// insert the TreeMap of data into the database while the new lines of
+						// each data file are staged, then write the data files
+						written = new CommitPipeline(numScanThreads).commit(databaseFile, refLinesToData, toWrite);
+					} finally {
+						summary = metrics.finishCommit(written);
+					}
+					
+					// the lines that were written are now read from the data file
+					table = DataFileLinesModel.readTable(shown, previous);
+				}
+				
+				protected void succeeded() {
+					if (written) {
+						message.setText("Files updated! " + summary);
+					} else {
+						message.setText("Nothing was written, none of the files have been changed");
+					}
+					dataFileLineDisplayList.linesChanged(table);
+				}
+			}.start();
 		}
 	}
-
-	private static class DataComparator implements Comparator<String> {
+	
+	/**
+	 * Base class for file operations that are run off of the event dispatch thread so the
+	 * window stays responsive. While one is running, the progress bar shows how many of the
+	 * bytes it has read or written so far, the cancel button stops it at the next safe point,
+	 * and every control that could change the files it is using is disabled
+	 */
+	abstract class BackgroundTask extends SwingWorker<Void, Void> {
+		
+		private String description;
+		private DatabaseFile database;
+		private TaskProgress progress = new TaskProgress();
+		private Timer timer;
+		
 		/**
-		 * comparator to compare the <b>lengths</b> of two strings
+		 * Constructor for BackgroundTask
+		 * @param description: the message to display while the task is running
+		 * @param database: the database file the task reads and writes, whose progress is
+		 * displayed, or null
 		 */
-		public int compare(String str1, String str2) {
-			return str2.length() - str1.length();
+		BackgroundTask(String description, DatabaseFile database) {
+			this.description = description;
+			this.database = database;
+		}
+		
+		/**
+		 * Does the actual file operations. Runs on a background thread, so it must not
+		 * touch any of the Swing components
+		 * @throws Exception if the operation fails or is cancelled
+		 */
+		protected abstract void work() throws Exception;
+		
+		/**
+		 * Updates the display once work() has finished without being cancelled or failing.
+		 * Runs on the event dispatch thread
+		 */
+		protected abstract void succeeded();
+		
+		/**
+		 * @return: true if the data files should be checked for lines added by other programs
+		 * once the task has finished, false otherwise
+		 */
+		protected boolean checksDataFilesAfter() {
+			return true;
+		}
+		
+		/**
+		 * Starts the task, disabling the controls until it has finished
+		 */
+		void start() {
+			currentTask = this;
+			setControlsEnabled(false);
+			cancel.setEnabled(true);
+			progressBar.setValue(0);
+			message.setText(description);
+			
+			// update the progress bar a few times a second while the task runs
+			timer = new Timer(100, new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					progressBar.setValue(progress.getPercent());
+				}
+			});
+			timer.start();
+			
+			execute();
+		}
+		
+		/**
+		 * Asks the task to stop at the next point it can safely do so
+		 */
+		void cancelTask() {
+			progress.cancel();
+			cancel.setEnabled(false);
+		}
+		
+		protected Void doInBackground() throws Exception {
+			if (database != null) {
+				database.setProgress(progress);
+			}
+			
+			try {
+				work();
+			} finally {
+				if (database != null) {
+					database.setProgress(null);
+				}
+			}
+			
+			return null;
+		}
+		
+		protected void done() {
+			timer.stop();
+			currentTask = null;
+			cancel.setEnabled(false);
+			setControlsEnabled(true);
+			
+			try {
+				get();
+				progressBar.setValue(100);
+				succeeded();
+				
+				// catch up with any changes to the data files made while the task was running
+				if (checksDataFilesAfter()) {
+					followDataFiles(dataFiles);
+				}
+			} catch (InterruptedException e) {
+				message.setText("Interrupted");
+			} catch (ExecutionException e) {
+				progressBar.setValue(0);
+				if (e.getCause() instanceof CancellationException) {
+					message.setText("Cancelled");
+				} else {
+					e.getCause().printStackTrace();
+					message.setText("Failed: " + description);
+					showError(e.getCause().toString());
+				}
+			}
 		}
-
 	}
 
 }
@@ -0,0 +1,522 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Changes a group of files so that a crash can't leave any of them missing or half written, and
+ * leaves either all of the changes in place or none of them. A file is either replaced with a new
+ * version of it, written to a temp file next to it, or has bytes appended to it in place. When
+ * the group is committed, a manifest listing how long each file to append to was is written and
+ * forced first, so the appends can be undone, then the appends are made. Every file is then
+ * forced to disc in one pass, and the manifest is written again marked as committed, which is
+ * the point the whole group takes effect. Only then is each temp file moved over its file with an
+ * atomic rename. If the program stops partway through, recover() uses the manifest to either
+ * undo the appends or finish the renames, depending on whether the group got as far as being
+ * committed. A file another program may be changing can be required to still be the length it
+ * was readied at, so the group fails rather than cut off or write over that program's changes
+ */
+public class GroupCommit {
+
+	public static final String MANIFEST_EXTEN = ".commit";
+	// added to the manifest's name while it is being written
+	private static final String TEMP_EXTEN = ".tmp";
+	// separates the fields of each line of the manifest
+	private static final char SEPARATOR = '\t';
+	// the kinds of line in the manifest, and the line that marks it as committed
+	private static final String REPLACE = "replace";
+	private static final String APPEND = "append";
+	private static final String COMMITTED = "committed";
+	// the length recorded for a file that didn't exist before it was appended to
+	private static final long NO_FILE = -1;
+
+	/**
+	 * Something that adds its own changes to the group at the last moment, so that it can keep
+	 * working on them while the rest of the group is being readied
+	 */
+	public interface Member {
+		/**
+		 * Adds the member's changes to the group. Called at the start of commit(), on the thread
+		 * committing the group
+		 * @param commit: the group commit
+		 * @throws IOException if the member's changes couldn't be readied, in which case the
+		 * group isn't committed
+		 */
+		void join(GroupCommit commit) throws IOException;
+	}
+
+	private File manifest;
+	private ArrayList<Member> members = new ArrayList<> ();
+	// the temp files and the files they replace, in the order they are moved into place
+	private ArrayList<File> temps = new ArrayList<> ();
+	private ArrayList<File> targets = new ArrayList<> ();
+	// the files to append to, where in each the appended bytes go, and the bytes
+	private ArrayList<File> appendTargets = new ArrayList<> ();
+	private ArrayList<Long> appendStarts = new ArrayList<> ();
+	private ArrayList<byte[]> appendBytes = new ArrayList<> ();
+	// files another program may change, and how long each must still be when it is written
+	private ArrayList<File> checkedFiles = new ArrayList<> ();
+	private ArrayList<Long> checkedLengths = new ArrayList<> ();
+	// how long each file to append to was before it was appended to, or NO_FILE
+	private long[] oldLengths;
+	// how many of the appends have been made, which are the ones abort() undoes
+	private int numAppended;
+	private boolean manifestWritten;
+	private boolean committed;
+
+	/**
+	 * Constructor for GroupCommit
+	 * <br>pre: manifest != null
+	 * @param manifest: where to keep the manifest while the group is being committed, which
+	 * must be on the same disc as the files
+	 */
+	public GroupCommit(File manifest) {
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Gets the usual manifest for a group that changes a file
+	 * @param file: the file
+	 * @return: the manifest, next to the file
+	 */
+	public static File manifestFor(File file) {
+		return new File(file.getPath() + MANIFEST_EXTEN);
+	}
+
+	/**
+	 * Checks if a file is a manifest, or a manifest being written
+	 * @param file: the file
+	 * @return: true if the file's name is that of a manifest, false otherwise
+	 */
+	public static boolean isManifest(File file) {
+		String name = file.getName();
+		return name.endsWith(MANIFEST_EXTEN) || name.endsWith(MANIFEST_EXTEN + TEMP_EXTEN);
+	}
+
+	/**
+	 * Checks if a file has the name of a temp file made by createTempFile
+	 * @param file: the file
+	 * @param prefix: the start of the temp file's name
+	 * @param suffix: the end of the temp file's name
+	 * @return: true if the file's name is the prefix, a number and the suffix, false otherwise
+	 */
+	public static boolean isTempFile(File file, String prefix, String suffix) {
+		String name = file.getName();
+		if (!name.startsWith(prefix) || !name.endsWith(suffix) || name.length() <= prefix.length() + suffix.length()) {
+			return false;
+		}
+
+		for (int i = prefix.length(); i < name.length() - suffix.length(); i++) {
+			if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Makes a new empty temp file in the same folder as a file, so that it can be renamed over
+	 * it, ensuring its name is unique
+	 * <br>pre: target != null && prefix != null && suffix != null
+	 * @param target: the file the temp file will replace
+	 * @param prefix: the start of the temp file's name, which is followed by a number
+	 * @param suffix: the end of the temp file's name
+	 * @return: the temp file
+	 * @throws IOException if the temp file can't be created
+	 */
+	public static File createTempFile(File target, String prefix, String suffix) throws IOException {
+		File folder = target.getAbsoluteFile().getParentFile();
+		int fileNumber = 0;
+		File tempFile = new File(folder, prefix + fileNumber + suffix);
+
+		while (!tempFile.createNewFile()) {
+			fileNumber++;
+			tempFile = new File(folder, prefix + fileNumber + suffix);
+		}
+		PerformanceMetrics.get().addTempFileCreated();
+
+		return tempFile;
+	}
+
+	/**
+	 * Adds a member that adds its changes to the group when it is committed
+	 * <br>pre: commit() hasn't been called
+	 * @param member: the member
+	 */
+	public void addMember(Member member) {
+		members.add(member);
+	}
+
+	/**
+	 * Adds the replacement of a file to the group
+	 * <br>pre: temp is in the same folder as target && commit() hasn't been called, or this is
+	 * called from Member.join
+	 * @param temp: the temp file holding the new contents, which has been closed
+	 * @param target: the file to replace
+	 */
+	public void replace(File temp, File target) {
+		temps.add(temp.getAbsoluteFile());
+		targets.add(target.getAbsoluteFile());
+	}
+
+	/**
+	 * Adds bytes to write to the end of a file in place to the group. They are written when the
+	 * group is committed
+	 * <br>pre: commit() hasn't been called, or this is called from Member.join
+	 * @param target: the file, which is created if it doesn't exist
+	 * @param start: where in the file to write the bytes. Anything already after it is replaced
+	 * @param bytes: the bytes to write
+	 */
+	public void append(File target, long start, byte[] bytes) {
+		appendTargets.add(target.getAbsoluteFile());
+		appendStarts.add(start);
+		appendBytes.add(bytes);
+	}
+
+	/**
+	 * Adds a file that must still be as long as it was when its changes were readied to the
+	 * group. It is checked before anything is written and again just before the file itself is
+	 * appended to or replaced, and if another program has made it longer or shorter by then the
+	 * group isn't committed, so that nothing that program wrote is cut off or written over
+	 * <br>pre: commit() hasn't been called, or this is called from Member.join
+	 * @param file: the file
+	 * @param length: how long the file must be
+	 */
+	public void requireLength(File file, long length) {
+		checkedFiles.add(file.getAbsoluteFile());
+		checkedLengths.add(length);
+	}
+
+	/**
+	 * Makes every change in the group and forces it to disc
+	 * <br>post: every file in the group is on disc, and the manifest has been deleted
+	 * @throws IOException if a file can't be written, forced or moved, or a file added with
+	 * requireLength() has been changed. If this happens before the group is committed, abort()
+	 * undoes the appends that were made and throws the temp files away.
+	 * Otherwise the manifest is kept so that recover() can finish the moves
+	 */
+	public void commit() throws IOException {
+		long start = System.nanoTime();
+
+		for (Member m : members) {
+			m.join(this);
+		}
+		checkLengths(null);
+
+		// first make sure the appends can be undone, then make them
+		if (!appendTargets.isEmpty()) {
+			oldLengths = new long[appendTargets.size()];
+			for (int i = 0; i < oldLengths.length; i++) {
+				File f = appendTargets.get(i);
+				oldLengths[i] = f.exists() ? Math.min(f.length(), appendStarts.get(i)) : NO_FILE;
+			}
+			writeManifest(false);
+			manifestWritten = true;
+
+			for (int i = 0; i < oldLengths.length; i++) {
+				File f = appendTargets.get(i);
+				checkLengths(f);
+				numAppended = i + 1;
+				writeAt(f, appendStarts.get(i), appendBytes.get(i));
+			}
+		}
+
+		// the one barrier: everything the manifest points to has to be on disc before the group is
+		// marked as committed
+		for (File f : temps) {
+			forceFile(f);
+		}
+
+		if (!temps.isEmpty()) {
+			for (File f : targets) {
+				checkLengths(f);
+			}
+			writeManifest(true);
+			manifestWritten = true;
+			committed = true;
+
+			moveAll(temps, targets);
+			forceFolders(targets);
+		}
+		committed = true;
+		if (manifestWritten) {
+			Files.delete(manifest.toPath());
+		}
+
+		PerformanceMetrics.get().addTime(PerformanceMetrics.GROUP_COMMIT, start);
+	}
+
+	/**
+	 * Undoes a group commit that failed before it was committed, cutting the files that were
+	 * appended to back to how long they were and throwing away the temp files. Does nothing
+	 * once the group has been committed, since recover() finishes it from the manifest, or if
+	 * it has already been undone
+	 */
+	public void abort() {
+		if (committed) {
+			return;
+		}
+
+		try {
+			if (oldLengths != null) {
+				undoAppends(appendTargets.subList(0, numAppended), oldLengths);
+				oldLengths = null;
+			}
+			if (manifestWritten) {
+				Files.delete(manifest.toPath());
+				manifestWritten = false;
+			}
+		} catch (IOException e) {
+			// the manifest is left for recover() to try again
+			e.printStackTrace();
+		}
+
+		for (File f : temps) {
+			f.delete();
+		}
+	}
+
+	/**
+	 * Finishes a group commit that was interrupted. If it was committed, each temp file in its
+	 * manifest that is still there is moved into place. Otherwise every file that was appended
+	 * to is cut back to how long it was, and the temp files are deleted. Does nothing if there
+	 * is no manifest
+	 * <br>pre: manifest != null
+	 * @param manifest: the manifest of the group
+	 * @return: true if there was a commit to finish, false otherwise
+	 * @throws IOException if the manifest can't be read or a file can't be changed back or moved
+	 */
+	public static boolean recover(File manifest) throws IOException {
+		if (!manifest.exists()) {
+			return false;
+		}
+
+		ArrayList<File> temps = new ArrayList<> ();
+		ArrayList<File> targets = new ArrayList<> ();
+		ArrayList<File> appendTargets = new ArrayList<> ();
+		ArrayList<Long> oldLengths = new ArrayList<> ();
+		boolean committed = false;
+		BufferedReader in = new BufferedReader(new InputStreamReader(Files.newInputStream(manifest.toPath()), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(String.valueOf(SEPARATOR), 3);
+				if (fields[0].equals(COMMITTED)) {
+					committed = true;
+				} else if (fields.length == 3 && fields[0].equals(REPLACE)) {
+					temps.add(new File(fields[1]));
+					targets.add(new File(fields[2]));
+				} else if (fields.length == 3 && fields[0].equals(APPEND)) {
+					oldLengths.add(Long.parseLong(fields[1]));
+					appendTargets.add(new File(fields[2]));
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Couldn't read " + manifest.getName(), e);
+		} finally {
+			in.close();
+		}
+
+		if (committed) {
+			// a temp file that is gone has already been moved into place
+			for (int i = temps.size() - 1; i >= 0; i--) {
+				if (!temps.get(i).exists()) {
+					temps.remove(i);
+					targets.remove(i);
+				}
+			}
+			moveAll(temps, targets);
+			forceFolders(targets);
+		} else {
+			long[] lengths = new long[oldLengths.size()];
+			for (int i = 0; i < lengths.length; i++) {
+				lengths[i] = oldLengths.get(i);
+			}
+			undoAppends(appendTargets, lengths);
+			for (File f : temps) {
+				f.delete();
+			}
+		}
+
+		Files.delete(manifest.toPath());
+		return true;
+	}
+
+	/**
+	 * Helper method to write the manifest. It is written to a temp file and renamed into place,
+	 * so it is either all there or not there at all
+	 * @param markCommitted: true to mark the group as committed, false otherwise
+	 * @throws IOException if the manifest can't be written
+	 */
+	private void writeManifest(boolean markCommitted) throws IOException {
+		File temp = new File(manifest.getPath() + TEMP_EXTEN);
+		FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			Writer out = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
+			for (int i = 0; i < temps.size(); i++) {
+				out.write(REPLACE + SEPARATOR + temps.get(i).getPath() + SEPARATOR + targets.get(i).getPath() + "\n");
+			}
+			for (int i = 0; i < appendTargets.size(); i++) {
+				out.write(APPEND + SEPARATOR + oldLengths[i] + SEPARATOR + appendTargets.get(i).getPath() + "\n");
+			}
+			if (markCommitted) {
+				out.write(COMMITTED + "\n");
+			}
+			out.flush();
+			fos.getChannel().force(true);
+		} finally {
+			fos.close();
+		}
+
+		move(temp, manifest);
+		forceFolder(manifest.getAbsoluteFile().getParentFile());
+	}
+
+	/**
+	 * Helper method to check that files added with requireLength() are still as long as they
+	 * must be
+	 * @param file: the file to check, or null to check all of them
+	 * @throws IOException if a file isn't, which means another program has changed it
+	 */
+	private void checkLengths(File file) throws IOException {
+		for (int i = 0; i < checkedFiles.size(); i++) {
+			File f = checkedFiles.get(i);
+			if ((file == null || f.equals(file)) && f.length() != checkedLengths.get(i)) {
+				throw new IOException(f.getName() + " was changed by another program while it was being written, so it wasn't written");
+			}
+		}
+	}
+
+	/**
+	 * Helper method to write bytes into a file in place and force them to disc
+	 * @param file: the file, which is created if it doesn't exist
+	 * @param start: where to write the bytes. Anything already after it is cut off first
+	 * @param bytes: the bytes
+	 * @throws IOException if the file can't be written
+	 */
+	private static void writeAt(File file, long start, byte[] bytes) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(Math.min(raf.length(), start));
+			raf.seek(start);
+			raf.write(bytes);
+			raf.getChannel().force(true);
+		} finally {
+			raf.close();
+		}
+		forceFolder(file.getAbsoluteFile().getParentFile());
+	}
+
+	/**
+	 * Helper method to cut each file that was appended to back to how long it was, deleting the
+	 * ones that didn't exist before
+	 * @param files: the files
+	 * @param lengths: how long each file was, or NO_FILE, starting with the first of files
+	 * @throws IOException if a file can't be cut back
+	 */
+	private static void undoAppends(List<File> files, long[] lengths) throws IOException {
+		for (int i = 0; i < files.size(); i++) {
+			File f = files.get(i);
+			if (lengths[i] == NO_FILE) {
+				f.delete();
+			} else if (f.exists() && f.length() > lengths[i]) {
+				RandomAccessFile raf = new RandomAccessFile(f, "rw");
+				try {
+					raf.setLength(lengths[i]);
+					raf.getChannel().force(true);
+				} finally {
+					raf.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Helper method to move each temp file over the file it replaces
+	 * @param temps: the temp files
+	 * @param targets: the files they replace, parallel to temps
+	 * @throws IOException if a file can't be moved
+	 */
+	private static void moveAll(ArrayList<File> temps, ArrayList<File> targets) throws IOException {
+		for (int i = 0; i < temps.size(); i++) {
+			move(temps.get(i), targets.get(i));
+		}
+	}
+
+	/**
+	 * Helper method to rename a file over another one in a single step where the file system
+	 * allows it
+	 * @param from: the file to move
+	 * @param to: the file to replace
+	 * @throws IOException if the file can't be moved
+	 */
+	private static void move(File from, File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Helper method to force the contents of a file to disc
+	 * @param file: the file
+	 * @throws IOException if the file can't be opened or forced
+	 */
+	private static void forceFile(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Helper method to force the folder of each file to disc once, so that the renames in them
+	 * are on disc too
+	 * @param files: the files
+	 */
+	private static void forceFolders(ArrayList<File> files) {
+		LinkedHashSet<File> folders = new LinkedHashSet<> ();
+		for (File f : files) {
+			folders.add(f.getAbsoluteFile().getParentFile());
+		}
+
+		for (File folder : folders) {
+			forceFolder(folder);
+		}
+	}
+
+	/**
+	 * Helper method to force a folder to disc, so that renames in it are on disc. Not every
+	 * system allows a folder to be opened, so failing to is ignored
+	 * @param folder: the folder
+	 */
+	private static void forceFolder(File folder) {
+		try {
+			FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// the rename can't be forced any further here
+		}
+	}
+}
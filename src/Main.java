@@ -7,15 +7,10 @@ import java.io.IOException;
 public class Main {
 	
 	public static void main(String[] args) throws IOException {
-		// attempt to read docx files; not working so great
-//		try {
-//			FileInputStream fis = new FileInputStream("DataTestDoc.docx");
-//			XWPFDocument xdoc = new XWPFDocument(OPCPackage.open(fis));
-//			XWPFWordExtractor extractor = new XWPFWordExtractor(xdoc);
-//			System.out.println(extractor.getText());
-//		} catch(Exception ex) {
-//			ex.printStackTrace();
-//		}
+		// with arguments, merge from the command line instead of opening the window
+		if (args.length > 0) {
+			System.exit(BatchMerge.run(args, System.out, System.err));
+		}
 		
 		GUI gui = new GUI("Data Addition");
 
@@ -0,0 +1,401 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timers for the file operations. There is one instance for the whole program,
+ * which is published as a JMX MXBean. Each commit (writing new lines to the database file and
+ * then to the data files) is also appended to a log file as a single line of JSON holding the
+ * counters for just that commit, the size of the database file and the time spent on each
+ * data file. The log file is redcap-metrics.jsonl in the working directory unless the
+ * redcap.metrics.log system property names another file, or is empty to turn the log off.
+ * <br>Safe to use from several threads at once
+ */
+public class PerformanceMetrics implements PerformanceMetricsMXBean {
+
+	// names of the timed operations and phases
+	public static final String CONTAINS = "DatabaseFile.contains";
+	public static final String FIND_REF_LINES = "DatabaseFile.findRefLineIndices";
+	public static final String WRITE_NEW_DATA = "DatabaseFile.writeNewData";
+	public static final String FIND_INSERTIONS = "DatabaseFile.writeNewData.find";
+	public static final String SPLICE = "DatabaseFile.writeNewData.splice";
+	public static final String UPDATE_INDEX = "DatabaseFile.writeNewData.index";
+	public static final String JOURNAL_APPEND = "DatabaseFile.writeNewData.journal";
+	public static final String COMPACT = "DatabaseFile.compact";
+	public static final String VERIFY_TOKENS = "DatabaseFile.verifyTokens";
+	public static final String RESET_LAST_LINES = "DataFile.resetLastLinesAndRefLine";
+	public static final String DATA_FILE_WRITE = "DataFile.write";
+	public static final String GROUP_COMMIT = "GroupCommit.commit";
+
+	private static final String OBJECT_NAME = "RedCapDataAdder:type=PerformanceMetrics";
+	private static final String LOG_PROPERTY = "redcap.metrics.log";
+	private static final String DEFAULT_LOG = "redcap-metrics.jsonl";
+	private static final int NANOS_PER_MILLI = 1000000;
+
+	private static PerformanceMetrics instance;
+
+	private ConcurrentHashMap<String, AtomicLong> calls = new ConcurrentHashMap<> ();
+	private ConcurrentHashMap<String, AtomicLong> nanos = new ConcurrentHashMap<> ();
+	private AtomicLong bytesRead = new AtomicLong();
+	private AtomicLong bytesWritten = new AtomicLong();
+	private AtomicLong linesScanned = new AtomicLong();
+	private AtomicLong matchesFound = new AtomicLong();
+	private AtomicLong tempFilesCreated = new AtomicLong();
+	private AtomicLong commits = new AtomicLong();
+	private volatile String lastCommit;
+
+	// the commit in progress, or null
+	private volatile Commit commit;
+
+	private PerformanceMetrics() {
+	}
+
+	/**
+	 * Gets the metrics for the program, publishing them through JMX the first time
+	 * @return: the metrics
+	 */
+	public static synchronized PerformanceMetrics get() {
+		if (instance == null) {
+			instance = new PerformanceMetrics();
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Records one run of a timed operation or phase
+	 * @param name: the name of the operation or phase
+	 * @param startNanos: the value of System.nanoTime() when it started
+	 */
+	public void addTime(String name, long startNanos) {
+		counter(calls, name).incrementAndGet();
+		counter(nanos, name).addAndGet(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @param bytes: the number of bytes read from a file
+	 */
+	public void addBytesRead(long bytes) {
+		bytesRead.addAndGet(bytes);
+	}
+
+	/**
+	 * @param bytes: the number of bytes written to a file
+	 */
+	public void addBytesWritten(long bytes) {
+		bytesWritten.addAndGet(bytes);
+	}
+
+	/**
+	 * @param lines: the number of database file lines scanned
+	 */
+	public void addLinesScanned(long lines) {
+		linesScanned.addAndGet(lines);
+	}
+
+	/**
+	 * @param matches: the number of matches found
+	 */
+	public void addMatchesFound(long matches) {
+		matchesFound.addAndGet(matches);
+	}
+
+	/**
+	 * Records that a temp file was created
+	 */
+	public void addTempFileCreated() {
+		tempFilesCreated.incrementAndGet();
+	}
+
+	/**
+	 * Records that a data file was written, adding it to the commit in progress if there is one
+	 * @param dataFile: the data file
+	 * @param numLines: the number of new lines written to it
+	 * @param startNanos: the value of System.nanoTime() when writing it started
+	 */
+	public void addDataFileWrite(File dataFile, int numLines, long startNanos) {
+		long elapsed = System.nanoTime() - startNanos;
+		counter(calls, DATA_FILE_WRITE).incrementAndGet();
+		counter(nanos, DATA_FILE_WRITE).addAndGet(elapsed);
+
+		Commit current = commit;
+		if (current != null) {
+			current.addDataFile(dataFile, numLines, elapsed);
+		}
+	}
+
+	/**
+	 * Starts recording a commit. Only one commit is recorded at a time, so this replaces any
+	 * commit that wasn't finished
+	 * @param database: the database file being written to
+	 */
+	public void beginCommit(File database) {
+		commit = new Commit(database);
+	}
+
+	/**
+	 * Finishes recording the commit in progress and appends it to the log file
+	 * @param succeeded: whether the commit succeeded
+	 * @return: a short summary of the commit for display, or an empty string if no commit was
+	 * in progress
+	 */
+	public String finishCommit(boolean succeeded) {
+		Commit finished = commit;
+		commit = null;
+		if (finished == null) {
+			return "";
+		}
+
+		commits.incrementAndGet();
+		lastCommit = finished.toJson(succeeded);
+		appendToLog(lastCommit);
+		return finished.summary();
+	}
+
+	public Map<String, Long> getCalls() {
+		return snapshot(calls, 1);
+	}
+
+	public Map<String, Long> getMillis() {
+		return snapshot(nanos, NANOS_PER_MILLI);
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public long getLinesScanned() {
+		return linesScanned.get();
+	}
+
+	public long getMatchesFound() {
+		return matchesFound.get();
+	}
+
+	public long getTempFilesCreated() {
+		return tempFilesCreated.get();
+	}
+
+	public long getCommits() {
+		return commits.get();
+	}
+
+	public String getLastCommit() {
+		return lastCommit;
+	}
+
+	public void reset() {
+		calls.clear();
+		nanos.clear();
+		bytesRead.set(0);
+		bytesWritten.set(0);
+		linesScanned.set(0);
+		matchesFound.set(0);
+		tempFilesCreated.set(0);
+		commits.set(0);
+		lastCommit = null;
+	}
+
+	/**
+	 * Helper method to get the counter for a name, creating it if needed
+	 * @param counters: the counters to look in
+	 * @param name: the name of the counter
+	 * @return: the counter
+	 */
+	private static AtomicLong counter(ConcurrentHashMap<String, AtomicLong> counters, String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			counters.putIfAbsent(name, new AtomicLong());
+			counter = counters.get(name);
+		}
+
+		return counter;
+	}
+
+	/**
+	 * Helper method to copy a set of counters, sorted by name
+	 * @param counters: the counters to copy
+	 * @param divisor: what to divide each counter by
+	 * @return: the copy
+	 */
+	private static TreeMap<String, Long> snapshot(Map<String, AtomicLong> counters, long divisor) {
+		TreeMap<String, Long> copy = new TreeMap<> ();
+		for (Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+			copy.put(e.getKey(), e.getValue().get() / divisor);
+		}
+
+		return copy;
+	}
+
+	/**
+	 * @return: the file a line is added to for each commit, or null if the log is turned off
+	 */
+	public static File getLogFile() {
+		String path = System.getProperty(LOG_PROPERTY, DEFAULT_LOG);
+		return path.isEmpty() ? null : new File(path);
+	}
+
+	/**
+	 * Helper method to append a line to the log file, if there is one
+	 * @param line: the line to append
+	 */
+	private static void appendToLog(String line) {
+		File log = getLogFile();
+		if (log == null) {
+			return;
+		}
+
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(log, true), StandardCharsets.UTF_8);
+			try {
+				out.write(line);
+				out.write(System.lineSeparator());
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper method to quote a string for JSON
+	 * @param str: the string to quote
+	 * @return: str in quotes, with any characters JSON doesn't allow in a string escaped
+	 */
+	static String jsonString(String str) {
+		StringBuilder quoted = new StringBuilder(str.length() + 2);
+		quoted.append('"');
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		quoted.append('"');
+		return quoted.toString();
+	}
+
+	/**
+	 * Helper method to turn a number of bytes into a short readable string
+	 * @param bytes: the number of bytes
+	 * @return: the number of bytes in B, KB or MB
+	 */
+	private static String formatBytes(long bytes) {
+		if (bytes < 1 << 10) {
+			return bytes + " B";
+		} else if (bytes < 1 << 20) {
+			return (bytes >> 10) + " KB";
+		}
+		return (bytes >> 20) + " MB";
+	}
+
+	/**
+	 * The counters at the start of a commit and the data files written during it
+	 */
+	private class Commit {
+
+		private File database;
+		private long databaseSize;
+		private long startMillis = System.currentTimeMillis();
+		private long startNanos = System.nanoTime();
+		private Map<String, Long> startNanosByName = snapshot(nanos, 1);
+		private Map<String, Long> startCallsByName = snapshot(calls, 1);
+		private long startBytesRead = bytesRead.get();
+		private long startBytesWritten = bytesWritten.get();
+		private long startLinesScanned = linesScanned.get();
+		private long startMatchesFound = matchesFound.get();
+		private long startTempFilesCreated = tempFilesCreated.get();
+		private ArrayList<String> dataFiles = new ArrayList<> ();
+		private long dataFileNanos;
+		private int numLines;
+
+		private Commit(File database) {
+			this.database = database;
+			databaseSize = database.length();
+		}
+
+		private synchronized void addDataFile(File dataFile, int lines, long elapsed) {
+			dataFiles.add("{\"file\":" + jsonString(dataFile.getPath()) + ",\"size\":" + dataFile.length()
+					+ ",\"lines\":" + lines + ",\"millis\":" + elapsed / NANOS_PER_MILLI + "}");
+			dataFileNanos += elapsed;
+			numLines += lines;
+		}
+
+		/**
+		 * @param succeeded: whether the commit succeeded
+		 * @return: the commit as a single line of JSON
+		 */
+		private synchronized String toJson(boolean succeeded) {
+			StringBuilder json = new StringBuilder();
+			json.append("{\"time\":").append(startMillis);
+			json.append(",\"succeeded\":").append(succeeded);
+			json.append(",\"database\":").append(jsonString(database.getPath()));
+			json.append(",\"databaseSize\":").append(databaseSize);
+			json.append(",\"millis\":").append((System.nanoTime() - startNanos) / NANOS_PER_MILLI);
+			json.append(",\"bytesRead\":").append(bytesRead.get() - startBytesRead);
+			json.append(",\"bytesWritten\":").append(bytesWritten.get() - startBytesWritten);
+			json.append(",\"linesScanned\":").append(linesScanned.get() - startLinesScanned);
+			json.append(",\"matchesFound\":").append(matchesFound.get() - startMatchesFound);
+			json.append(",\"tempFilesCreated\":").append(tempFilesCreated.get() - startTempFilesCreated);
+
+			// only the operations and phases that ran during the commit
+			json.append(",\"phases\":{");
+			boolean first = true;
+			for (Map.Entry<String, Long> e : snapshot(nanos, 1).entrySet()) {
+				Long before = startNanosByName.get(e.getKey());
+				long callsBefore = startCallsByName.containsKey(e.getKey()) ? startCallsByName.get(e.getKey()) : 0;
+				long callsDuring = counter(calls, e.getKey()).get() - callsBefore;
+				if (callsDuring == 0) {
+					continue;
+				}
+
+				if (!first) {
+					json.append(',');
+				}
+				first = false;
+				json.append(jsonString(e.getKey())).append(":{\"calls\":").append(callsDuring);
+				json.append(",\"millis\":").append((e.getValue() - (before == null ? 0 : before)) / NANOS_PER_MILLI).append('}');
+			}
+			json.append('}');
+
+			json.append(",\"dataFiles\":[").append(String.join(",", dataFiles)).append("]}");
+			return json.toString();
+		}
+
+		/**
+		 * @return: a short summary of the commit for display
+		 */
+		private synchronized String summary() {
+			long totalMillis = (System.nanoTime() - startNanos) / NANOS_PER_MILLI;
+			return dataFiles.size() + " data files, " + numLines + " lines in " + totalMillis + " ms (data files "
+					+ dataFileNanos / NANOS_PER_MILLI + " ms, " + formatBytes(bytesRead.get() - startBytesRead) + " read, "
+					+ formatBytes(bytesWritten.get() - startBytesWritten) + " written)";
+		}
+	}
+}
@@ -0,0 +1,58 @@
+import java.util.Map;
+
+/**
+ * Management interface of PerformanceMetrics, published through JMX so the numbers can be
+ * watched in JConsole or VisualVM while the program is running
+ */
+public interface PerformanceMetricsMXBean {
+
+	/**
+	 * @return: how many times each timed operation or phase has run
+	 */
+	Map<String, Long> getCalls();
+
+	/**
+	 * @return: the total wall time in milliseconds spent in each timed operation or phase
+	 */
+	Map<String, Long> getMillis();
+
+	/**
+	 * @return: the number of bytes read from database and data files
+	 */
+	long getBytesRead();
+
+	/**
+	 * @return: the number of bytes written to database and data files
+	 */
+	long getBytesWritten();
+
+	/**
+	 * @return: the number of database file lines scanned
+	 */
+	long getLinesScanned();
+
+	/**
+	 * @return: the number of matches found while scanning or looking up lines
+	 */
+	long getMatchesFound();
+
+	/**
+	 * @return: the number of temp files created
+	 */
+	long getTempFilesCreated();
+
+	/**
+	 * @return: the number of commits finished
+	 */
+	long getCommits();
+
+	/**
+	 * @return: the JSON line written for the last commit, or null if there hasn't been one
+	 */
+	String getLastCommit();
+
+	/**
+	 * Sets every counter back to 0
+	 */
+	void reset();
+}
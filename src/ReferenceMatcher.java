@@ -0,0 +1,500 @@
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Multi-pattern matcher used to find every occurrence of a set of reference lines in a line
+ * of the database in a single left-to-right pass (an Aho-Corasick automaton). Only occurrences
+ * that are followed by a data end char at the given offset (or that end within that offset
+ * of the end of the line) count as matches, the same rule DatabaseFile has always used.
+ * A matcher either searches Strings or, if it was made with a charset, encoded bytes
+ */
+public class ReferenceMatcher {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private String[] patterns;
+	private char[] dataEndChars;
+	private int dataEndCharOffset;
+	// the charset the patterns were encoded with, or null if this matcher searches Strings
+	private Charset charset;
+	private boolean utf8;
+
+	// the automaton. State 0 is the root. For each state, childSymbols holds the sorted symbols
+	// it has a transition on and childStates the state each of those leads to
+	private int[][] childSymbols;
+	private int[][] childStates;
+	private int[] fail;
+	private int[] depth;
+	// when searching bytes, the state each byte leads to from the root, or 0 if no pattern
+	// starts with it. Most bytes of a line don't start a pattern, so the search skips straight
+	// over them with this instead of stepping the automaton
+	private int[] rootStates;
+	// index of the longest pattern that ends at each state, or -1 if none does
+	private int[] output;
+	// the next state down the fail chain that has an output, or -1 if there is none
+	private int[] outputLink;
+	private int numStates;
+
+	/**
+	 * Constructor for ReferenceMatcher. Builds the automaton for searching Strings for the
+	 * specified patterns
+	 * <br>pre: patterns != null && dataEndChars != null && dataEndCharOffset >= 0
+	 * <br>post: a new ReferenceMatcher is created that matches every non-empty pattern
+	 * @param patterns: the reference lines to search for
+	 * @param dataEndChars: the chars that may mark the end of a piece of data
+	 * @param dataEndCharOffset: how many chars after the end of a match the data end char occurs
+	 */
+	public ReferenceMatcher(Collection<String> patterns, char[] dataEndChars, int dataEndCharOffset) {
+		this(patterns, null, dataEndChars, dataEndCharOffset);
+	}
+
+	/**
+	 * Constructor for ReferenceMatcher. Builds the automaton for searching bytes encoded with
+	 * the specified charset for the specified patterns
+	 * <br>pre: patterns != null && dataEndChars != null && dataEndCharOffset >= 0 and charset is
+	 * either UTF-8 or a charset with one byte per char that encodes the data end chars as ASCII
+	 * <br>post: a new ReferenceMatcher is created that matches every non-empty pattern
+	 * @param patterns: the reference lines to search for
+	 * @param charset: the charset of the bytes that will be searched, or null to search Strings
+	 * @param dataEndChars: the chars that may mark the end of a piece of data
+	 * @param dataEndCharOffset: how many chars after the end of a match the data end char occurs
+	 */
+	public ReferenceMatcher(Collection<String> patterns, Charset charset, char[] dataEndChars, int dataEndCharOffset) {
+		if (patterns == null || dataEndChars == null || dataEndCharOffset < 0) {
+			throw new IllegalArgumentException("patterns and dataEndChars may not be null and"
+					+ " dataEndCharOffset may not be negative");
+		}
+		if (charset != null && !isSupported(charset)) {
+			throw new IllegalArgumentException("Searching bytes is only supported for UTF-8 and"
+					+ " single byte charsets, not " + charset.name());
+		}
+
+		this.patterns = patterns.toArray(new String[patterns.size()]);
+		this.charset = charset;
+		utf8 = StandardCharsets.UTF_8.equals(charset);
+		this.dataEndChars = dataEndChars.clone();
+		this.dataEndCharOffset = dataEndCharOffset;
+
+		childSymbols = new int[INITIAL_CAPACITY][];
+		childStates = new int[INITIAL_CAPACITY][];
+		depth = new int[INITIAL_CAPACITY];
+		output = new int[INITIAL_CAPACITY];
+		numStates = 0;
+		newState(0);
+
+		// add each pattern to the trie, marking the state it ends at
+		for (int p = 0; p < this.patterns.length; p++) {
+			int[] symbols = toSymbols(this.patterns[p]);
+			if (symbols.length == 0) {
+				continue;
+			}
+
+			int state = 0;
+			for (int i = 0; i < symbols.length; i++) {
+				int next = child(state, symbols[i]);
+				if (next == -1) {
+					next = newState(depth[state] + 1);
+					addChild(state, symbols[i], next);
+				}
+				state = next;
+			}
+
+			// keep the first pattern if the same reference line was given twice
+			if (output[state] == -1) {
+				output[state] = p;
+			}
+		}
+
+		buildFailLinks();
+
+		if (charset != null) {
+			rootStates = new int[256];
+			for (int i = 0; i < childSymbols[0].length; i++) {
+				rootStates[childSymbols[0][i]] = childStates[0][i];
+			}
+		}
+	}
+
+	/**
+	 * Checks if bytes encoded with the specified charset can be searched by a ReferenceMatcher
+	 * @param charset: the charset to check
+	 * @return: true if the charset is UTF-8 or has one byte per char, false otherwise
+	 */
+	public static boolean isSupported(Charset charset) {
+		return StandardCharsets.UTF_8.equals(charset) || charset.newEncoder().maxBytesPerChar() == 1;
+	}
+
+	/**
+	 * Helper method to turn a pattern into the symbols the automaton works on, which are chars
+	 * when searching Strings and unsigned bytes when searching bytes
+	 * @param pattern: the pattern to convert
+	 * @return: the symbols of the pattern
+	 */
+	private int[] toSymbols(String pattern) {
+		if (charset == null) {
+			int[] symbols = new int[pattern.length()];
+			for (int i = 0; i < symbols.length; i++) {
+				symbols[i] = pattern.charAt(i);
+			}
+			return symbols;
+		}
+
+		byte[] bytes = pattern.getBytes(charset);
+		int[] symbols = new int[bytes.length];
+		for (int i = 0; i < symbols.length; i++) {
+			symbols[i] = bytes[i] & 0xFF;
+		}
+		return symbols;
+	}
+
+	/**
+	 * Helper method to add a new state to the automaton, growing the arrays if needed
+	 * @param stateDepth: the length of the prefix the new state represents
+	 * @return: the number of the new state
+	 */
+	private int newState(int stateDepth) {
+		if (numStates == depth.length) {
+			int newCapacity = depth.length * 2;
+			childSymbols = Arrays.copyOf(childSymbols, newCapacity);
+			childStates = Arrays.copyOf(childStates, newCapacity);
+			depth = Arrays.copyOf(depth, newCapacity);
+			output = Arrays.copyOf(output, newCapacity);
+		}
+
+		childSymbols[numStates] = new int[0];
+		childStates[numStates] = new int[0];
+		depth[numStates] = stateDepth;
+		output[numStates] = -1;
+
+		return numStates++;
+	}
+
+	/**
+	 * Helper method to add a transition to the trie, keeping the symbols of the state sorted
+	 * @param state: the state the transition leaves from
+	 * @param symbol: the symbol the transition is taken on
+	 * @param target: the state the transition leads to
+	 */
+	private void addChild(int state, int symbol, int target) {
+		int[] symbols = childSymbols[state];
+		int[] states = childStates[state];
+		int ind = -(Arrays.binarySearch(symbols, symbol) + 1);
+
+		int[] newSymbols = new int[symbols.length + 1];
+		int[] newStates = new int[states.length + 1];
+		System.arraycopy(symbols, 0, newSymbols, 0, ind);
+		System.arraycopy(states, 0, newStates, 0, ind);
+		newSymbols[ind] = symbol;
+		newStates[ind] = target;
+		System.arraycopy(symbols, ind, newSymbols, ind + 1, symbols.length - ind);
+		System.arraycopy(states, ind, newStates, ind + 1, states.length - ind);
+
+		childSymbols[state] = newSymbols;
+		childStates[state] = newStates;
+	}
+
+	/**
+	 * Helper method to look up a transition in the trie
+	 * @param state: the state the transition leaves from
+	 * @param symbol: the symbol the transition is taken on
+	 * @return: the state the transition leads to, or -1 if there is no such transition
+	 */
+	private int child(int state, int symbol) {
+		int ind = Arrays.binarySearch(childSymbols[state], symbol);
+		return ind >= 0 ? childStates[state][ind] : -1;
+	}
+
+	/**
+	 * Helper method to compute the fail link and output link of every state with a breadth
+	 * first walk of the trie, so every state's fail link is known before its children's
+	 */
+	private void buildFailLinks() {
+		fail = new int[numStates];
+		outputLink = new int[numStates];
+		outputLink[0] = -1;
+
+		LinkedList<Integer> queue = new LinkedList<> ();
+		queue.add(0);
+
+		while (!queue.isEmpty()) {
+			int state = queue.poll();
+
+			for (int i = 0; i < childSymbols[state].length; i++) {
+				int symbol = childSymbols[state][i];
+				int target = childStates[state][i];
+
+				// the fail link of the child is the longest proper suffix of its prefix that is
+				// also in the trie, found by following the fail links of the parent
+				if (state == 0) {
+					fail[target] = 0;
+				} else {
+					fail[target] = step(fail[state], symbol);
+				}
+
+				outputLink[target] = output[fail[target]] != -1 ? fail[target] : outputLink[fail[target]];
+				queue.add(target);
+			}
+		}
+	}
+
+	/**
+	 * Helper method to advance the automaton by one symbol
+	 * @param state: the current state
+	 * @param symbol: the next symbol of the input
+	 * @return: the state after reading the symbol
+	 */
+	private int step(int state, int symbol) {
+		while (true) {
+			if (state == 0 && rootStates != null) {
+				return rootStates[symbol];
+			}
+
+			int next = child(state, symbol);
+			if (next != -1) {
+				return next;
+			}
+			if (state == 0) {
+				return 0;
+			}
+			state = fail[state];
+		}
+	}
+
+	/**
+	 * Helper method to check if an array of chars contains a specified char
+	 * @param arr: the array to search
+	 * @param c: the char to check for
+	 * @return: true if the specified char is in the array, false otherwise
+	 */
+	private boolean arrayContains(char[] arr, char c) {
+		for (int i = 0; i < arr.length; i++) {
+			if (arr[i] == c) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Helper method to check if a match may end at the specified position of a line
+	 * @param line: the line being searched
+	 * @param end: the index just after the last char of the match
+	 * @return: true if there is at least one char after end and a data end char occurs at the
+	 * right offset after end (or the line ends before that offset), false otherwise
+	 */
+	private boolean isDataEnd(String line, int end) {
+		return end < line.length() && (end + dataEndCharOffset >= line.length()
+				|| arrayContains(dataEndChars, line.charAt(end + dataEndCharOffset)));
+	}
+
+	/**
+	 * Finds every occurrence of every pattern in the line that is followed by a valid data end
+	 * <br>pre: line != null
+	 * @param line: the line to search
+	 * @return: a list of all of the matches, ordered by where they end. Matches that end at the
+	 * same position are ordered from the longest pattern to the shortest
+	 */
+	public List<Match> findAll(String line) {
+		if (charset != null) {
+			throw new IllegalStateException("This matcher searches bytes, not Strings");
+		}
+
+		List<Match> matches = new ArrayList<> ();
+		int state = 0;
+
+		for (int i = 0; i < line.length(); i++) {
+			state = step(state, line.charAt(i));
+
+			// only check the end rule if some pattern actually ends here
+			int matchState = output[state] != -1 ? state : outputLink[state];
+			if (matchState != -1 && isDataEnd(line, i + 1)) {
+				while (matchState != -1) {
+					matches.add(new Match(output[matchState], i + 1 - depth[matchState], i + 1));
+					matchState = outputLink[matchState];
+				}
+			}
+		}
+
+		return matches;
+	}
+
+	/**
+	 * Helper method to check if a match may end at the specified position of a line of encoded
+	 * bytes. This applies exactly the same rule as for Strings, so the offset is counted in
+	 * chars (UTF-16 units) rather than bytes
+	 * @param buf: the bytes being searched
+	 * @param end: the index just after the last byte of the match
+	 * @param lineEnd: the index just after the last byte of the line
+	 * @param endIsDataEnd: whether a match may end right at lineEnd
+	 * @param utf8: whether the bytes are UTF-8 rather than a single byte charset
+	 * @param dataEndChars: the chars that may follow a match
+	 * @param dataEndCharOffset: how many chars after the end of a match the data end char is
+	 * @return: true if end is lineEnd and endIsDataEnd is true, or if there is at least one char
+	 * after end and a data end char occurs at the right offset after end (or the line ends
+	 * before that offset), false otherwise
+	 */
+	static boolean isDataEnd(byte[] buf, int end, int lineEnd, boolean endIsDataEnd, boolean utf8, char[] dataEndChars, int dataEndCharOffset) {
+		if (end >= lineEnd) {
+			return endIsDataEnd && end == lineEnd;
+		}
+
+		// skip over the right number of chars, which may each be several bytes
+		int pos = end;
+		int charsLeft = dataEndCharOffset;
+		while (charsLeft > 0 && pos < lineEnd) {
+			int lead = buf[pos] & 0xFF;
+			if (utf8 && lead >= 0xF0) {
+				// a 4 byte sequence is two chars in a String. If only one is left to skip, the
+				// offset lands on the second half of the pair, which is never a data end char
+				if (charsLeft == 1) {
+					return false;
+				}
+				pos += 4;
+				charsLeft -= 2;
+			} else {
+				pos += utf8 && lead >= 0xE0 ? 3 : utf8 && lead >= 0xC0 ? 2 : 1;
+				charsLeft--;
+			}
+		}
+
+		if (pos >= lineEnd) {
+			return true;
+		}
+
+		// data end chars are all ASCII, which is the same byte in every supported charset
+		for (int i = 0; i < dataEndChars.length; i++) {
+			if (dataEndChars[i] == buf[pos]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the next byte in a range that some pattern starts with. No match can start before
+	 * it, so callers can skip records that have no such byte without splitting them into fields
+	 * <br>pre: this matcher was made with a charset and 0 <= start <= end <= buf.length
+	 * @param buf: the bytes to search
+	 * @param start: the index of the first byte to check
+	 * @param end: the index just after the last byte to check
+	 * @return: the index of the first byte from start on that a pattern starts with, or end if
+	 * there is none
+	 */
+	public int findCandidate(byte[] buf, int start, int end) {
+		int[] root = rootStates;
+		int i = start;
+		while (i < end && root[buf[i] & 0xFF] == 0) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Finds every occurrence of every pattern in a line of encoded bytes that is followed by a
+	 * valid data end
+	 * <br>pre: this matcher was made with a charset and 0 <= lineStart <= lineEnd <= buf.length
+	 * @param buf: the bytes to search
+	 * @param lineStart: the index of the first byte of the line
+	 * @param lineEnd: the index just after the last byte of the line, not including the line break
+	 * @return: a list of all of the matches, ordered by where they end. Matches that end at the
+	 * same position are ordered from the longest pattern to the shortest. Positions are indices
+	 * into buf
+	 */
+	public List<Match> findAll(byte[] buf, int lineStart, int lineEnd) {
+		List<Match> matches = new ArrayList<> ();
+		findAll(buf, lineStart, lineEnd, false, matches);
+		return matches;
+	}
+
+	/**
+	 * Finds every occurrence of every pattern in a range of encoded bytes, such as a single
+	 * field of a record, that is followed by a valid data end
+	 * <br>pre: this matcher was made with a charset and 0 <= start <= end <= buf.length
+	 * @param buf: the bytes to search
+	 * @param start: the index of the first byte of the range
+	 * @param end: the index just after the last byte of the range
+	 * @param endIsDataEnd: whether a match may end right at the end of the range, as it may at
+	 * the end of a field
+	 * @param matches: the list to add the matches to, ordered by where they end. Matches that
+	 * end at the same position are ordered from the longest pattern to the shortest. Positions
+	 * are indices into buf
+	 */
+	public void findAll(byte[] buf, int start, int end, boolean endIsDataEnd, List<Match> matches) {
+		if (charset == null) {
+			throw new IllegalStateException("This matcher searches Strings, not bytes");
+		}
+
+		int state = 0;
+		for (int i = start; i < end; i++) {
+			// back at the root nothing is partly matched, so jump to where the next match could
+			// start
+			if (state == 0) {
+				i = findCandidate(buf, i, end);
+				if (i == end) {
+					break;
+				}
+			}
+			state = step(state, buf[i] & 0xFF);
+
+			// only check the end rule if some pattern actually ends here
+			int matchState = output[state] != -1 ? state : outputLink[state];
+			if (matchState != -1 && isDataEnd(buf, i + 1, end, endIsDataEnd, utf8, dataEndChars, dataEndCharOffset)) {
+				while (matchState != -1) {
+					matches.add(new Match(output[matchState], i + 1 - depth[matchState], i + 1));
+					matchState = outputLink[matchState];
+				}
+			}
+		}
+	}
+
+	/**
+	 * A single occurrence of one of the patterns in a line
+	 */
+	public class Match {
+
+		private int patternInd;
+		private int start;
+		private int end;
+
+		private Match(int patternInd, int start, int end) {
+			this.patternInd = patternInd;
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * @return: the pattern that was matched
+		 */
+		public String getPattern() {
+			return patterns[patternInd];
+		}
+
+		/**
+		 * @return: the index of the first char of the match
+		 */
+		public int getStart() {
+			return start;
+		}
+
+		/**
+		 * @return: the index just after the last char of the match
+		 */
+		public int getEnd() {
+			return end;
+		}
+
+		/**
+		 * @return: the index of the pattern that was matched in the collection the matcher
+		 * was made from
+		 */
+		public int getPatternIndex() {
+			return patternInd;
+		}
+	}
+}
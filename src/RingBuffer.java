@@ -0,0 +1,214 @@
+import java.util.AbstractList;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * List backed by a circular array, so elements can be added or removed at either end and any
+ * element can be read by its index in constant time. It holds at most its capacity; adding to
+ * a full buffer is an error, so the owner decides whether to evict the oldest element with
+ * removeFirst or to make room with ensureCapacity
+ * @param <E>: the type of the elements
+ */
+public class RingBuffer<E> extends AbstractList<E> implements RandomAccess {
+
+	private Object[] elements;
+	// the index in elements of the first element
+	private int head;
+	private int size;
+
+	/**
+	 * Constructor for RingBuffer
+	 * <br>pre: capacity >= 0
+	 * @param capacity: the number of elements the buffer can hold
+	 */
+	public RingBuffer(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity may not be negative");
+		}
+
+		elements = new Object[capacity];
+	}
+
+	/**
+	 * @return: the number of elements the buffer can hold
+	 */
+	public int capacity() {
+		return elements.length;
+	}
+
+	/**
+	 * @return: true if no more elements can be added without removing one first, false
+	 * otherwise
+	 */
+	public boolean isFull() {
+		return size == elements.length;
+	}
+
+	/**
+	 * Makes the buffer able to hold at least the specified number of elements
+	 * <br>post: capacity() >= capacity
+	 * @param capacity: the number of elements the buffer must be able to hold
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity <= elements.length) {
+			return;
+		}
+
+		Object[] grown = new Object[capacity];
+		for (int i = 0; i < size; i++) {
+			grown[i] = elements[slot(i)];
+		}
+		elements = grown;
+		head = 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public E get(int index) {
+		checkIndex(index, size);
+		return (E) elements[slot(index)];
+	}
+
+	@SuppressWarnings("unchecked")
+	public E set(int index, E element) {
+		checkIndex(index, size);
+		int slot = slot(index);
+		E old = (E) elements[slot];
+		elements[slot] = element;
+		return old;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds an element before the first one
+	 * <br>pre: !isFull()
+	 * @param element: the element to add
+	 * @throws IllegalStateException if the buffer is full
+	 */
+	public void addFirst(E element) {
+		checkNotFull();
+		head = head == 0 ? elements.length - 1 : head - 1;
+		elements[head] = element;
+		size++;
+		modCount++;
+	}
+
+	/**
+	 * Adds an element after the last one
+	 * <br>pre: !isFull()
+	 * @param element: the element to add
+	 * @throws IllegalStateException if the buffer is full
+	 */
+	public void addLast(E element) {
+		checkNotFull();
+		elements[slot(size)] = element;
+		size++;
+		modCount++;
+	}
+
+	public boolean add(E element) {
+		addLast(element);
+		return true;
+	}
+
+	/**
+	 * Inserts an element, moving whichever side of the buffer is shorter to make room for it
+	 * <br>pre: !isFull()
+	 * @throws IllegalStateException if the buffer is full
+	 */
+	public void add(int index, E element) {
+		checkIndex(index, size + 1);
+		if (index == 0) {
+			addFirst(element);
+			return;
+		}
+
+		checkNotFull();
+		if (index < size / 2) {
+			head = head == 0 ? elements.length - 1 : head - 1;
+			for (int i = 0; i < index; i++) {
+				elements[slot(i)] = elements[slot(i + 1)];
+			}
+		} else {
+			for (int i = size; i > index; i--) {
+				elements[slot(i)] = elements[slot(i - 1)];
+			}
+		}
+		elements[slot(index)] = element;
+		size++;
+		modCount++;
+	}
+
+	/**
+	 * Removes the first element, which is the oldest one if elements are only added with
+	 * addLast
+	 * @return: the element that was removed
+	 * @throws NoSuchElementException if the buffer is empty
+	 */
+	public E removeFirst() {
+		if (size == 0) {
+			throw new NoSuchElementException();
+		}
+
+		return remove(0);
+	}
+
+	/**
+	 * Removes an element, moving whichever side of the buffer is shorter to close the gap
+	 */
+	@SuppressWarnings("unchecked")
+	public E remove(int index) {
+		checkIndex(index, size);
+		E removed = (E) elements[slot(index)];
+
+		if (index < size / 2) {
+			for (int i = index; i > 0; i--) {
+				elements[slot(i)] = elements[slot(i - 1)];
+			}
+			elements[head] = null;
+			head = slot(1);
+		} else {
+			for (int i = index; i < size - 1; i++) {
+				elements[slot(i)] = elements[slot(i + 1)];
+			}
+			elements[slot(size - 1)] = null;
+		}
+		size--;
+		modCount++;
+
+		return removed;
+	}
+
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			elements[slot(i)] = null;
+		}
+		head = 0;
+		size = 0;
+		modCount++;
+	}
+
+	/**
+	 * Helper method to find where in the array an element is
+	 * @param index: the index of the element in the list
+	 * @return: the index of the element in the array
+	 */
+	private int slot(int index) {
+		int slot = head + index;
+		return slot >= elements.length ? slot - elements.length : slot;
+	}
+
+	private void checkIndex(int index, int limit) {
+		if (index < 0 || index >= limit) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+
+	private void checkNotFull() {
+		if (size == elements.length) {
+			throw new IllegalStateException("The buffer is full");
+		}
+	}
+}
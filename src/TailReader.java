@@ -0,0 +1,174 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the last few lines of a file by seeking backwards from the end of the file in fixed
+ * size blocks, so the cost depends on how many lines are wanted rather than on the size of
+ * the file. Files that can't be read backwards, such as compressed ones, can instead be read
+ * through from the start, keeping only the last lines
+ */
+public class TailReader {
+
+	private static final int BLOCK_SIZE = 8192;
+
+	/**
+	 * Reads the last non-blank lines of a file. Lines may end with "\n", "\r\n" or "\r"
+	 * <br>pre: file != null && numLines >= 0
+	 * @param file: the file to read
+	 * @param numLines: the maximum number of non-blank lines to read
+	 * @param charset: the charset the file is encoded in
+	 * @return: a buffer with a capacity of numLines holding the last numLines non-blank lines in
+	 * the file, in the order they occur in the file. If the file has fewer non-blank lines, all
+	 * of them are returned
+	 * @throws IOException if the file can't be read
+	 */
+	public static RingBuffer<String> readLastLines(File file, int numLines, Charset charset) throws IOException {
+		RingBuffer<String> lines = new RingBuffer<> (Math.max(numLines, 0));
+		readLinesBefore(file, file.length(), numLines, charset, lines);
+
+		return lines;
+	}
+
+	/**
+	 * Reads the non-blank lines just before a position in a file, working backwards from it, so
+	 * that more lines can be read from before the ones already read. Lines may end with "\n",
+	 * "\r\n" or "\r"
+	 * <br>pre: file != null && end is the end of the file or the start of a line && numLines >= 0
+	 * && lines has room for numLines more lines
+	 * @param file: the file to read
+	 * @param end: the position to read back from
+	 * @param numLines: the maximum number of non-blank lines to read
+	 * @param charset: the charset the file is encoded in
+	 * @param lines: the buffer to add the lines to. They are added to the front, in the order
+	 * they occur in the file
+	 * @return: the position of the first byte of the earliest line read, or end if no lines were
+	 * read. Calling this again with that position reads the lines before these
+	 * @throws IOException if the file can't be read
+	 */
+	public static long readLinesBefore(File file, long end, int numLines, Charset charset, RingBuffer<String> lines) throws IOException {
+		long start = end;
+		if (numLines <= 0) {
+			return start;
+		}
+		int wanted = lines.size() + numLines;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		FileChannel channel = raf.getChannel();
+
+		try {
+			ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+			// bytes of the line that starts before the current block. They are kept in reverse
+			// order so that each new block can be added on cheaply
+			ByteArrayOutputStream partial = new ByteArrayOutputStream();
+			long pos = Math.min(end, channel.size());
+
+			// go backwards through the file one block at a time until we have enough lines
+			while (pos > 0 && lines.size() < wanted) {
+				int len = (int) Math.min(BLOCK_SIZE, pos);
+				pos -= len;
+
+				block.clear();
+				block.limit(len);
+				while (block.hasRemaining()) {
+					if (channel.read(block, pos + block.position()) == -1) {
+						break;
+					}
+				}
+
+				PerformanceMetrics.get().addBytesRead(len);
+				byte[] bytes = block.array();
+
+				// go through the block from the end, finishing a line at each line break
+				for (int i = len - 1; i >= 0 && lines.size() < wanted; i--) {
+					if (bytes[i] == '\n' || bytes[i] == '\r') {
+						if (addLine(lines, partial, charset)) {
+							start = pos + i + 1;
+						}
+					} else {
+						partial.write(bytes[i]);
+					}
+				}
+			}
+
+			// the start of the file ends the first line
+			if (pos == 0 && lines.size() < wanted && addLine(lines, partial, charset)) {
+				start = 0;
+			}
+		} finally {
+			channel.close();
+			raf.close();
+		}
+
+		return start;
+	}
+
+	/**
+	 * Reads the last non-blank lines of a stream by reading the whole stream, holding no more
+	 * than numLines lines at a time. Lines may end with "\n", "\r\n" or "\r"
+	 * <br>pre: in != null && numLines >= 0
+	 * @param in: the stream to read, which is read to its end but not closed
+	 * @param numLines: the maximum number of non-blank lines to read
+	 * @param charset: the charset the stream is encoded in
+	 * @return: a buffer with a capacity of numLines holding the last numLines non-blank lines in
+	 * the stream, in the order they occur. If the stream has fewer non-blank lines, all of them
+	 * are returned
+	 * @throws IOException if the stream can't be read
+	 */
+	public static RingBuffer<String> readLastLines(InputStream in, int numLines, Charset charset) throws IOException {
+		RingBuffer<String> lines = new RingBuffer<> (Math.max(numLines, 0));
+		if (numLines <= 0) {
+			return lines;
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, charset), BLOCK_SIZE);
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.isEmpty()) {
+				continue;
+			}
+
+			if (lines.isFull()) {
+				lines.removeFirst();
+			}
+			lines.addLast(line);
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Helper method to decode a line whose bytes were collected in reverse order and add it to
+	 * the front of the list if it is not blank
+	 * @param lines: the list of lines found so far
+	 * @param reversed: the bytes of the line in reverse order. Is reset afterwards
+	 * @param charset: the charset the file is encoded in
+	 * @return: true if the line was added, false if it was blank
+	 */
+	private static boolean addLine(RingBuffer<String> lines, ByteArrayOutputStream reversed, Charset charset) {
+		if (reversed.size() == 0) {
+			return false;
+		}
+
+		byte[] bytes = reversed.toByteArray();
+		reversed.reset();
+
+		// put the bytes back in the order they occur in the file
+		for (int i = 0, j = bytes.length - 1; i < j; i++, j--) {
+			byte temp = bytes[i];
+			bytes[i] = bytes[j];
+			bytes[j] = temp;
+		}
+
+		lines.addFirst(new String(bytes, charset));
+		return true;
+	}
+}
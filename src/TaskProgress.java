@@ -0,0 +1,73 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of how many bytes a long running file operation has processed, and lets the
+ * operation be cancelled. Safe to use from several threads at once
+ */
+public class TaskProgress {
+
+	private AtomicLong totalBytes = new AtomicLong();
+	private AtomicLong processedBytes = new AtomicLong();
+	private volatile boolean cancelled;
+
+	/**
+	 * Records that more bytes are going to be processed
+	 * @param bytes: the number of bytes
+	 */
+	public void addTotal(long bytes) {
+		totalBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Records that some bytes have been processed
+	 * @param bytes: the number of bytes
+	 */
+	public void addProcessed(long bytes) {
+		processedBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * @return: the number of bytes processed so far
+	 */
+	public long getProcessed() {
+		return processedBytes.get();
+	}
+
+	/**
+	 * @return: the percentage of the bytes recorded so far that have been processed, from 0
+	 * to 100
+	 */
+	public int getPercent() {
+		long total = totalBytes.get();
+		if (total == 0) {
+			return 0;
+		}
+
+		return (int) Math.min(100, processedBytes.get() * 100 / total);
+	}
+
+	/**
+	 * Asks the operation to stop at the next point it can safely do so
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return: true if cancel() has been called, false otherwise
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Stops the operation if it has been cancelled
+	 * @throws CancellationException if cancel() has been called
+	 */
+	public void checkCancelled() {
+		if (cancelled) {
+			throw new CancellationException("Cancelled");
+		}
+	}
+}
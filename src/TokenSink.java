@@ -0,0 +1,15 @@
+/**
+ * Receives each data token of the database file as the file is split into tokens, so the same
+ * tokenizing can build an index, fill a filter or check for particular tokens
+ */
+public interface TokenSink {
+
+	/**
+	 * Called for each data token
+	 * @param buf: the buffer holding the encoded token
+	 * @param start: the index of the first byte of the token
+	 * @param end: the index just after the last byte of the token
+	 * @param line: the index of the line the token is on
+	 */
+	void addToken(byte[] buf, int start, int end, int line);
+}